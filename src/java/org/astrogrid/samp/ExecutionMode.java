@@ -0,0 +1,253 @@
+package org.astrogrid.samp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Determines what kind of thread is used to execute units of work
+ * such as serving an HTTP request or delivering a SAMP message to a client.
+ * Platform threads are available on all JVMs.
+ * Virtual threads are available from Java 21; on earlier JVMs the
+ * {@link #VIRTUAL} mode is not {@link #isAvailable available} and
+ * the {@link #getDefault default} falls back to platform threads.
+ * Since virtual threads are only reachable using reflection from
+ * the language level of this package, they are created that way.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public abstract class ExecutionMode {
+
+    private final String name_;
+
+    /** Mode in which each unit of work gets an ordinary platform thread. */
+    public static final ExecutionMode PLATFORM = new PlatformMode();
+
+    /** Mode in which each unit of work gets a virtual thread. */
+    public static final ExecutionMode VIRTUAL = new VirtualMode();
+
+    /**
+     * System property giving the default execution mode.
+     * Possible values are "platform" and "virtual".
+     * If "virtual" is requested but not available, platform threads
+     * are used instead.
+     * The property name is {@value}.
+     */
+    public static final String MODE_PROP = "jsamp.exec.mode";
+
+    private static ExecutionMode default_;
+    private static final Logger logger_ =
+        Logger.getLogger( ExecutionMode.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  name  mode name
+     */
+    protected ExecutionMode( String name ) {
+        name_ = name;
+    }
+
+    /**
+     * Returns the name of this mode.
+     *
+     * @return  name
+     */
+    public String getName() {
+        return name_;
+    }
+
+    /**
+     * Indicates whether this mode can be used in the current JVM.
+     *
+     * @return  true iff {@link #createThread} will work
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Returns a new unstarted thread which will execute a given runnable.
+     *
+     * @param  runnable  work to do
+     * @param  name   thread name
+     * @param  isDaemon  whether the thread should be a daemon thread;
+     *                   may be ignored if the mode does not support
+     *                   non-daemon threads
+     * @return   new thread
+     */
+    public abstract Thread createThread( Runnable runnable, String name,
+                                         boolean isDaemon );
+
+    public String toString() {
+        return name_;
+    }
+
+    /**
+     * Returns the execution mode used by default.
+     * Unless it has been set explicitly, this is determined by the
+     * value of the {@link #MODE_PROP} system property.
+     *
+     * @return  default mode, which is always available
+     */
+    public static synchronized ExecutionMode getDefault() {
+        if ( default_ == null ) {
+            String modeName = System.getProperty( MODE_PROP );
+            ExecutionMode mode = PLATFORM;
+            if ( modeName != null && modeName.trim().length() > 0 ) {
+                if ( VIRTUAL.getName().equalsIgnoreCase( modeName.trim() ) ) {
+                    if ( VIRTUAL.isAvailable() ) {
+                        mode = VIRTUAL;
+                    }
+                    else {
+                        logger_.warning( "Virtual threads not available"
+                                       + " in this JVM - using "
+                                       + PLATFORM );
+                    }
+                }
+                else if ( ! PLATFORM.getName()
+                                    .equalsIgnoreCase( modeName.trim() ) ) {
+                    logger_.warning( "Unknown " + MODE_PROP + " value \""
+                                   + modeName + "\" - using " + PLATFORM );
+                }
+            }
+            logger_.config( "Execution mode: " + mode );
+            default_ = mode;
+        }
+        return default_;
+    }
+
+    /**
+     * Sets the execution mode to be used by default.
+     * Components read the default when they are constructed or started,
+     * so this should be called early.
+     *
+     * @param  mode  new default mode
+     * @throws  IllegalArgumentException  if <code>mode</code>
+     *          is not available
+     */
+    public static synchronized void setDefault( ExecutionMode mode ) {
+        if ( ! mode.isAvailable() ) {
+            throw new IllegalArgumentException( "Execution mode " + mode
+                                              + " not available" );
+        }
+        default_ = mode;
+    }
+
+    /**
+     * Convenience method which creates and starts a thread
+     * using the default execution mode.
+     * The new thread is a daemon thread if the calling thread is.
+     *
+     * @param  runnable  work to do
+     * @param  name   thread name
+     * @return   started thread
+     */
+    public static Thread startThread( Runnable runnable, String name ) {
+        Thread thread =
+            getDefault().createThread( runnable, name,
+                                       Thread.currentThread().isDaemon() );
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Mode using platform threads.
+     */
+    private static class PlatformMode extends ExecutionMode {
+        PlatformMode() {
+            super( "platform" );
+        }
+        public boolean isAvailable() {
+            return true;
+        }
+        public Thread createThread( Runnable runnable, String name,
+                                    boolean isDaemon ) {
+            Thread thread = new Thread( runnable, name );
+            thread.setDaemon( isDaemon );
+            return thread;
+        }
+    }
+
+    /**
+     * Mode using virtual threads, accessed by reflection on the
+     * Java 21 <code>Thread.ofVirtual()</code> builder API.
+     * Virtual threads are always daemon threads.
+     */
+    private static class VirtualMode extends ExecutionMode {
+        private final Method ofVirtualMethod_;
+        private final Method nameMethod_;
+        private final Method unstartedMethod_;
+
+        VirtualMode() {
+            super( "virtual" );
+            Method ofVirtual = null;
+            Method name = null;
+            Method unstarted = null;
+            try {
+                Class builderClazz =
+                    Class.forName( "java.lang.Thread$Builder" );
+                ofVirtual =
+                    Thread.class.getMethod( "ofVirtual", new Class[ 0 ] );
+                name = builderClazz.getMethod( "name",
+                                               new Class[] { String.class } );
+                unstarted =
+                    builderClazz.getMethod( "unstarted",
+                                            new Class[] { Runnable.class } );
+
+                // The methods exist but are preview features on JDK 19/20,
+                // so make sure a thread can actually be built.
+                Object builder = ofVirtual.invoke( null, new Object[ 0 ] );
+                unstarted.invoke( builder, new Object[] { new Runnable() {
+                    public void run() {
+                    }
+                } } );
+            }
+            catch ( Throwable e ) {
+                ofVirtual = null;
+            }
+            ofVirtualMethod_ = ofVirtual;
+            nameMethod_ = name;
+            unstartedMethod_ = unstarted;
+        }
+
+        public boolean isAvailable() {
+            return ofVirtualMethod_ != null;
+        }
+
+        public Thread createThread( Runnable runnable, String name,
+                                    boolean isDaemon ) {
+            if ( ! isAvailable() ) {
+                throw new UnsupportedOperationException( "Mode " + this
+                                                       + " unavailable" );
+            }
+            try {
+                Object builder =
+                    ofVirtualMethod_.invoke( null, new Object[ 0 ] );
+                builder = nameMethod_.invoke( builder, new Object[] { name } );
+                return (Thread)
+                       unstartedMethod_.invoke( builder,
+                                                new Object[] { runnable } );
+            }
+            catch ( InvocationTargetException e ) {
+                Throwable cause = e.getCause();
+                if ( cause instanceof RuntimeException ) {
+                    throw (RuntimeException) cause;
+                }
+                else if ( cause instanceof Error ) {
+                    throw (Error) cause;
+                }
+                else {
+                    throw (IllegalStateException)
+                          new IllegalStateException( "Thread creation failed" )
+                         .initCause( cause );
+                }
+            }
+            catch ( IllegalAccessException e ) {
+                logger_.log( Level.WARNING, "Virtual thread creation failed",
+                             e );
+                return PLATFORM.createThread( runnable, name, isDaemon );
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.astrogrid.samp;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes tasks one at a time in the order they are submitted.
+ * The submitting thread does not wait; the tasks are run by a thread
+ * which is started, using the default {@link ExecutionMode},
+ * when there is work to do, and which exits when the queue is empty.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class SerialExecutor {
+
+    private final String name_;
+    private final LinkedList queue_;
+    private boolean isRunning_;
+    private static final Logger logger_ =
+        Logger.getLogger( SerialExecutor.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  name   name for the thread which runs tasks
+     */
+    public SerialExecutor( String name ) {
+        name_ = name;
+        queue_ = new LinkedList();
+    }
+
+    /**
+     * Schedules a task for execution after all those previously submitted.
+     *
+     * @param  task  task to run
+     */
+    public void execute( Runnable task ) {
+        synchronized ( queue_ ) {
+            queue_.addLast( task );
+            if ( isRunning_ ) {
+                return;
+            }
+            isRunning_ = true;
+        }
+        ExecutionMode.startThread( new Runnable() {
+            public void run() {
+                for ( Runnable t; ( t = nextTask() ) != null; ) {
+                    try {
+                        t.run();
+                    }
+                    catch ( Throwable e ) {
+                        logger_.log( Level.WARNING, name_ + " task error", e );
+                    }
+                }
+            }
+        }, name_ );
+    }
+
+    /**
+     * Returns the next task to run, or null if there is none,
+     * in which case the calling thread should exit.
+     *
+     * @return  next task, or null
+     */
+    private Runnable nextTask() {
+        synchronized ( queue_ ) {
+            if ( queue_.isEmpty() ) {
+                isRunning_ = false;
+                return null;
+            }
+            else {
+                return (Runnable) queue_.removeFirst();
+            }
+        }
+    }
+}
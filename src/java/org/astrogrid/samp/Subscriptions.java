@@ -151,8 +151,9 @@ public class Subscriptions extends SampMap {
         }
         else if ( pattern.endsWith( ".*" ) ) {
             String prefix = pattern.substring( 0, pattern.length() - 2 );
-            return mtype.startsWith( prefix ) ? countAtoms( prefix )
-                                              : -1;
+            return mtype.equals( prefix ) || mtype.startsWith( prefix + "." )
+                 ? countAtoms( prefix )
+                 : -1;
         }
         else {
             return -1;
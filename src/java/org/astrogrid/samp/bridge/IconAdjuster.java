@@ -20,8 +20,9 @@ import org.astrogrid.samp.httpd.HttpServer;
  * @author   Mark Taylor
  * @since    23 Jul 2009
  */
-abstract class IconAdjuster implements HttpServer.Handler {
+abstract class IconAdjuster implements HttpServer.PrefixHandler {
 
+    private final String basePath_;
     private final URL baseUrl_;
     private static final String OUTPUT_FORMAT_NAME = "png";
     private static final String OUTPUT_MIME_TYPE = "image/png";
@@ -40,6 +41,7 @@ abstract class IconAdjuster implements HttpServer.Handler {
         if ( ! basePath.endsWith( "/" ) ) {
             basePath = basePath + "/";
         }
+        basePath_ = basePath;
         try {
             baseUrl_ = new URL( server.getBaseUrl(), basePath );
         }
@@ -116,6 +118,10 @@ abstract class IconAdjuster implements HttpServer.Handler {
         }
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
         URL baseIconUrl;
         try { 
@@ -13,6 +13,7 @@ import org.astrogrid.samp.Message;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.xmlrpc.XmlRpcHubConnection;
 
 /**
  * Message handler which watches hub event messages to keep track of
@@ -99,27 +100,91 @@ class ClientTracker extends AbstractMessageHandler {
 
         // Prepare an array of client objects, populating their characteristics
         // by interrogating the connection.
+        // If the connection can batch calls, use a single batch rather
+        // than two round trips per client.
         int nc = clientIds.length;
         TrackedClient[] clients = new TrackedClient[ nc ];
-        for ( int ic = 0; ic < nc; ic++ ) {
-            String id = clientIds[ ic ];
-            TrackedClient client = new TrackedClient( id );
-            client.setMetadata( connection.getMetadata( id ) );
-            client.setSubscriptions( connection.getSubscriptions( id ) );
-            clients[ ic ] = client;
+        if ( connection instanceof XmlRpcHubConnection && nc > 0 ) {
+            populateBatch( (XmlRpcHubConnection) connection, clientIds,
+                           clients );
+        }
+        else {
+            for ( int ic = 0; ic < nc; ic++ ) {
+                String id = clientIds[ ic ];
+                TrackedClient client = new TrackedClient( id );
+                client.setMetadata( connection.getMetadata( id ) );
+                client.setSubscriptions( connection.getSubscriptions( id ) );
+                clients[ ic ] = client;
+            }
         }
 
         // Populate the client set.  Discard any queued operations first.
         // This doesn't guarantee that we've got the most up to date
         // information ... but in absence of guaranteed delivery order for
         // messages that's more or less impossible.
-        synchronized ( opQueue_ ) {
+        synchronized ( this ) {
             ClientOperation[] pendingOps = opQueue_.getOperations();
             opQueue_.clear();
             clientSet_.setClients( clients );
         }
     }
 
+    /**
+     * Populates an array of client objects with their attributes,
+     * using a single batch of calls to the hub.
+     *
+     * @param  connection  hub connection
+     * @param  clientIds   client IDs
+     * @param  clients   array, same length as <code>clientIds</code>,
+     *                   to be filled with client objects
+     */
+    private static void populateBatch( XmlRpcHubConnection connection,
+                                       String[] clientIds,
+                                       TrackedClient[] clients )
+            throws SampException {
+        int nc = clientIds.length;
+        String[] methodNames = new String[ nc * 2 ];
+        Object[][] paramArrays = new Object[ nc * 2 ][];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            Object[] params = new Object[] { clientIds[ ic ] };
+            methodNames[ ic * 2 ] = "getMetadata";
+            paramArrays[ ic * 2 ] = params;
+            methodNames[ ic * 2 + 1 ] = "getSubscriptions";
+            paramArrays[ ic * 2 + 1 ] = params;
+        }
+        Object[] results = connection.execBatch( methodNames, paramArrays );
+        for ( int ic = 0; ic < nc; ic++ ) {
+            Map meta = asBatchMap( results[ ic * 2 ] );
+            Map subs = asBatchMap( results[ ic * 2 + 1 ] );
+            TrackedClient client = new TrackedClient( clientIds[ ic ] );
+            client.setMetadata( Metadata.asMetadata( meta ) );
+            client.setSubscriptions( Subscriptions.asSubscriptions( subs ) );
+            clients[ ic ] = client;
+        }
+    }
+
+    /**
+     * Returns a batched call result as a map, or throws an exception
+     * if the call failed.
+     *
+     * @param  result  element of {@link XmlRpcHubConnection#execBatch}
+     *                 result
+     * @return  result as a map
+     */
+    private static Map asBatchMap( Object result ) throws SampException {
+        if ( result instanceof SampException ) {
+            throw (SampException) result;
+        }
+        else if ( result instanceof Map ) {
+            return (Map) result;
+        }
+        else {
+            throw new SampException( "Hub returned unexpected type ("
+                                   + result.getClass().getName()
+                                   + " not map" );
+        }
+    }
+
     public Map processCall( HubConnection connection, String senderId,
                             Message message ) {
         String mtype = message.getMType();
@@ -135,8 +200,13 @@ class ClientTracker extends AbstractMessageHandler {
         String selfId = connection.getRegInfo().getSelfId();
         if ( REGISTER_MTYPE.equals( mtype ) ) {
             TrackedClient client = new TrackedClient( id );
-            opQueue_.apply( client );
-            clientSet_.addClient( client );
+
+            // Lock so that this cannot interleave with the handling of
+            // a concurrently delivered event concerning the same client.
+            synchronized ( this ) {
+                opQueue_.apply( client );
+                clientSet_.addClient( client );
+            }
         }
         else if ( UNREGISTER_MTYPE.equals( mtype ) ) {
             performClientOperation( new ClientOperation( id, mtype ) {
@@ -173,12 +243,15 @@ class ClientTracker extends AbstractMessageHandler {
 
     /**
      * Performs an operation on a ClientOperation object.
+     * The operation is either performed immediately, or queued if the
+     * client it refers to is not yet known.
      *
      * @param  op  client operation
      * @param  connection  hub connection
      */
-    private void performClientOperation( ClientOperation op,
-                                         HubConnection connection ) {
+    private synchronized void
+            performClientOperation( ClientOperation op,
+                                    HubConnection connection ) {
         String id = op.getId();
 
         // If the client is currently part of this tracker's data model,
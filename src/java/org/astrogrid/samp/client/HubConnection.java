@@ -111,6 +111,10 @@ public interface HubConnection {
     /**
      * Sends a message to all subscribed clients without wanting a response.
      *
+     * The hub may deliver the message after this method has returned,
+     * so a client's presence in the returned list does not guarantee
+     * that delivery to it succeeded.
+     *
      * @param  msg {@link org.astrogrid.samp.Message}-like map
      * @return  list of public-ids for clients to which the notify will be sent
      */
@@ -9,7 +9,7 @@ import javax.swing.ListModel;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
-import org.astrogrid.samp.hub.BasicClientSet;
+import org.astrogrid.samp.hub.SnapshotClientSet;
 import org.astrogrid.samp.hub.HubClient;
 import org.astrogrid.samp.hub.MessageRestriction;
 import org.astrogrid.samp.hub.ProfileToken;
@@ -17,11 +17,13 @@ import org.astrogrid.samp.hub.ProfileToken;
 /**
  * ClientSet implementation used by GuiHubService.
  * It also implements {@link javax.swing.ListModel}.
+ * Both the list model and {@link #getClients} present clients in
+ * registration order; lookups are provided by the superclass.
  *
  * @author   Mark Taylor
  * @since    20 Nov 2008
  */
-class GuiClientSet extends BasicClientSet implements ListModel {
+class GuiClientSet extends SnapshotClientSet implements ListModel {
 
     private final List clientList_;
     private final List listenerList_;
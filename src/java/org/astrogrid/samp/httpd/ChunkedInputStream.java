@@ -0,0 +1,278 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream which decodes an HTTP message body sent with the
+ * <code>chunked</code> transfer coding (RFC 7230 sec 4.1).
+ * It is used both for request bodies read by the server and for
+ * response bodies read by the internal XML-RPC client.
+ * Bytes are read from the underlying stream only as far as the end
+ * of the chunked body, including any trailer, so that a following
+ * message on the same connection is left unread.
+ * Chunk extensions and trailer fields are ignored.
+ * Closing this stream has no effect on the underlying stream.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final InputStream in_;
+    private final Scanner scanner_;
+    private final byte[] oneByte_;
+
+    /**
+     * Constructor.
+     *
+     * @param  in  stream positioned at the start of the chunked body
+     * @param  maxBodySize  maximum permitted decoded body size
+     */
+    public ChunkedInputStream( InputStream in, int maxBodySize ) {
+        in_ = in;
+        scanner_ = new Scanner( maxBodySize );
+        oneByte_ = new byte[ 1 ];
+    }
+
+    public int read() throws IOException {
+        int nr = read( oneByte_, 0, 1 );
+        return nr < 0 ? -1 : oneByte_[ 0 ] & 0xff;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        while ( ! scanner_.isComplete() ) {
+            long remaining = scanner_.getDataRemaining();
+            if ( remaining > 0 ) {
+                int nr = in_.read( b, off, (int) Math.min( len, remaining ) );
+                if ( nr < 0 ) {
+                    throw createTruncatedException();
+                }
+                scanner_.consumeData( nr );
+                return nr;
+            }
+
+            // Framing bytes are read singly so as not to overshoot the
+            // end of the body; they are few, and the underlying stream
+            // is buffered.
+            int c = in_.read();
+            if ( c < 0 ) {
+                throw createTruncatedException();
+            }
+            oneByte_[ 0 ] = (byte) c;
+            scanner_.scan( oneByte_, 0, 1 );
+        }
+        return -1;
+    }
+
+    public int available() throws IOException {
+        return (int) Math.min( in_.available(),
+                               scanner_.getDataRemaining() );
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Returns an exception indicating that the input ended before
+     * the chunked body was complete.
+     *
+     * @return  new exception
+     */
+    private static IOException createTruncatedException() {
+        return new EOFException( "Chunked body truncated" );
+    }
+
+    /**
+     * Incremental state machine which follows the framing of a
+     * chunked body.
+     * Framing bytes are passed to the {@link #scan} method;
+     * when it reports that chunk data is pending, the caller consumes
+     * that many data bytes by some other means and reports them using
+     * {@link #consumeData}.
+     * This allows the end of a chunked body to be located in bytes
+     * accumulated by a non-blocking reader, as well as decoding a stream.
+     */
+    static class Scanner {
+
+        private final int maxBodySize_;
+        private int state_;
+        private long chunkSize_;
+        private int nDigit_;
+        private long remaining_;
+        private long total_;
+
+        private static final int S_SIZE = 0;
+        private static final int S_EXT = 1;
+        private static final int S_DATA = 2;
+        private static final int S_DATA_END = 3;
+        private static final int S_DATA_LF = 4;
+        private static final int S_TRAILER_START = 5;
+        private static final int S_TRAILER = 6;
+        private static final int S_END_LF = 7;
+        private static final int S_DONE = 8;
+
+        /**
+         * Constructor.
+         *
+         * @param  maxBodySize  maximum permitted decoded body size;
+         *                      larger bodies provoke a 413 error
+         */
+        Scanner( int maxBodySize ) {
+            maxBodySize_ = maxBodySize;
+            state_ = S_SIZE;
+        }
+
+        /**
+         * Indicates whether the end of the chunked body, including
+         * any trailer, has been reached.
+         *
+         * @return  true iff complete
+         */
+        boolean isComplete() {
+            return state_ == S_DONE;
+        }
+
+        /**
+         * Returns the number of chunk data bytes which must be consumed
+         * before more framing bytes can be scanned.
+         *
+         * @return  pending data byte count
+         */
+        long getDataRemaining() {
+            return state_ == S_DATA ? remaining_ : 0;
+        }
+
+        /**
+         * Records that chunk data bytes have been consumed.
+         *
+         * @param  n  number of data bytes, not greater than
+         *            {@link #getDataRemaining}
+         */
+        void consumeData( long n ) {
+            remaining_ -= n;
+            if ( remaining_ == 0 ) {
+                state_ = S_DATA_END;
+            }
+        }
+
+        /**
+         * Scans framing bytes.  Scanning stops at the end of the input,
+         * at the start of chunk data, or at the end of the body.
+         *
+         * @param  b  buffer
+         * @param  off  offset of first byte to scan
+         * @param  len  number of bytes available
+         * @return  number of bytes consumed
+         * @throws  HttpServer.HttpException  if the framing is malformed
+         *          or the body is too large
+         */
+        int scan( byte[] b, int off, int len )
+                throws HttpServer.HttpException {
+            int i = 0;
+            while ( i < len && state_ != S_DATA && state_ != S_DONE ) {
+                byte c = b[ off + i++ ];
+                switch ( state_ ) {
+                    case S_SIZE:
+                        int digit = Character.digit( (char) c, 16 );
+                        if ( digit >= 0 ) {
+                            if ( ++nDigit_ > 15 ) {
+                                throw createBadException();
+                            }
+                            chunkSize_ = chunkSize_ * 16 + digit;
+                        }
+                        else if ( nDigit_ == 0 ) {
+                            throw createBadException();
+                        }
+                        else if ( c == '\n' ) {
+                            endSizeLine();
+                        }
+                        else {
+                            state_ = S_EXT;
+                        }
+                        break;
+                    case S_EXT:
+                        if ( c == '\n' ) {
+                            endSizeLine();
+                        }
+                        break;
+                    case S_DATA_END:
+                        if ( c == '\r' ) {
+                            state_ = S_DATA_LF;
+                        }
+                        else if ( c == '\n' ) {
+                            state_ = S_SIZE;
+                        }
+                        else {
+                            throw createBadException();
+                        }
+                        break;
+                    case S_DATA_LF:
+                        if ( c != '\n' ) {
+                            throw createBadException();
+                        }
+                        state_ = S_SIZE;
+                        break;
+                    case S_TRAILER_START:
+                        if ( c == '\n' ) {
+                            state_ = S_DONE;
+                        }
+                        else {
+                            state_ = c == '\r' ? S_END_LF : S_TRAILER;
+                        }
+                        break;
+                    case S_TRAILER:
+                        if ( c == '\n' ) {
+                            state_ = S_TRAILER_START;
+                        }
+                        break;
+                    case S_END_LF:
+                        if ( c != '\n' ) {
+                            throw createBadException();
+                        }
+                        state_ = S_DONE;
+                        break;
+                    default:
+                        throw new AssertionError();
+                }
+            }
+            return i;
+        }
+
+        /**
+         * Handles the end of a chunk size line.
+         */
+        private void endSizeLine() throws HttpServer.HttpException {
+            if ( chunkSize_ == 0 ) {
+                state_ = S_TRAILER_START;
+            }
+            else {
+                total_ += chunkSize_;
+                if ( total_ > maxBodySize_ ) {
+                    throw new HttpServer.HttpException( 413, "Request body "
+                                                      + "too large (>"
+                                                      + maxBodySize_
+                                                      + ")" );
+                }
+                remaining_ = chunkSize_;
+                state_ = S_DATA;
+            }
+            chunkSize_ = 0;
+            nDigit_ = 0;
+        }
+
+        /**
+         * Returns an exception indicating bad chunk framing.
+         *
+         * @return  new exception
+         */
+        private static HttpServer.HttpException createBadException() {
+            return new HttpServer.HttpException( 400, "Bad chunked "
+                                                    + "request body" );
+        }
+    }
+}
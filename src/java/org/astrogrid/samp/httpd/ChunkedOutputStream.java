@@ -0,0 +1,114 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream which writes an HTTP response body using the
+ * <code>chunked</code> transfer coding (RFC 7230 sec 4.1).
+ * This allows a response body of unknown length to be sent on a
+ * persistent HTTP/1.1 connection.
+ * Output is buffered, so that each chunk is a reasonable size;
+ * {@link #flush} sends any buffered bytes as a chunk.
+ * The {@link #finish} method must be called to terminate the body;
+ * it does not close the underlying stream.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+    private final byte[] buf_;
+    private int count_;
+    private boolean finished_;
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    private static final byte[] LAST_CHUNK =
+        new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+    /**
+     * Constructor.
+     *
+     * @param  out  destination stream for the encoded body
+     * @param  chunkSize  maximum size of chunks written from the buffer
+     */
+    ChunkedOutputStream( OutputStream out, int chunkSize ) {
+        super( out );
+        buf_ = new byte[ chunkSize ];
+    }
+
+    public void write( int b ) throws IOException {
+        if ( count_ == buf_.length ) {
+            writeBuffer();
+        }
+        buf_[ count_++ ] = (byte) b;
+    }
+
+    public void write( byte[] b, int off, int len ) throws IOException {
+        if ( len >= buf_.length ) {
+            writeBuffer();
+            writeChunk( b, off, len );
+        }
+        else {
+            if ( len > buf_.length - count_ ) {
+                writeBuffer();
+            }
+            System.arraycopy( b, off, buf_, count_, len );
+            count_ += len;
+        }
+    }
+
+    public void flush() throws IOException {
+        writeBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes any buffered bytes followed by the last chunk,
+     * terminating the body.  The underlying stream is flushed but
+     * not closed.  Calling this method more than once has no effect.
+     */
+    public void finish() throws IOException {
+        if ( ! finished_ ) {
+            finished_ = true;
+            writeBuffer();
+            out.write( LAST_CHUNK );
+            out.flush();
+        }
+    }
+
+    /**
+     * Finishes the body; the underlying stream is not closed.
+     */
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Writes the buffered bytes, if any, as a chunk.
+     */
+    private void writeBuffer() throws IOException {
+        if ( count_ > 0 ) {
+            writeChunk( buf_, 0, count_ );
+            count_ = 0;
+        }
+    }
+
+    /**
+     * Writes bytes as a single chunk.
+     *
+     * @param  b  buffer
+     * @param  off  offset of first byte
+     * @param  len  number of bytes, must be greater than zero
+     */
+    private void writeChunk( byte[] b, int off, int len ) throws IOException {
+        String size = Integer.toHexString( len );
+        for ( int i = 0; i < size.length(); i++ ) {
+            out.write( size.charAt( i ) );
+        }
+        out.write( CRLF );
+        out.write( b, off, len );
+        out.write( CRLF );
+    }
+}
@@ -0,0 +1,231 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Utilities for HTTP content codings (RFC 7231 sec 3.1.2),
+ * used to compress message bodies between JSAMP servers and clients.
+ * The <code>gzip</code> and <code>deflate</code> codings are supported.
+ *
+ * <p>A server indicates that it can decode compressed request bodies
+ * by including an <code>Accept-Encoding</code> header in its responses
+ * (RFC 7694); clients should not compress requests to servers which
+ * have not done so.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class ContentEncoding {
+
+    /** Name of the gzip content coding. */
+    public static final String GZIP = "gzip";
+
+    /** Name of the deflate (zlib) content coding. */
+    public static final String DEFLATE = "deflate";
+
+    /** Value for an Accept-Encoding header listing supported codings. */
+    public static final String ACCEPT_VALUE = GZIP + ", " + DEFLATE;
+
+    /** Header name for request and response content coding. */
+    public static final String HDR_CONTENT_ENCODING = "Content-Encoding";
+
+    /** Header name for acceptable content codings. */
+    public static final String HDR_ACCEPT_ENCODING = "Accept-Encoding";
+
+    /**
+     * System property giving the default size in bytes below which
+     * bodies are not compressed.
+     * A negative value disables compression.
+     * The property name is {@value}.
+     */
+    public static final String THRESHOLD_PROP = "jsamp.http.compress";
+
+    /** Default compression threshold in bytes. */
+    public static final int DEFAULT_THRESHOLD = 2048;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private ContentEncoding() {
+    }
+
+    /**
+     * Returns the default compression threshold.
+     * This is the value of the {@link #THRESHOLD_PROP} system property
+     * if set, otherwise {@link #DEFAULT_THRESHOLD}.
+     *
+     * @return  size in bytes below which bodies are not compressed,
+     *          or a negative value for no compression
+     */
+    public static int getDefaultThreshold() {
+        try {
+            return Integer.getInteger( THRESHOLD_PROP, DEFAULT_THRESHOLD )
+                          .intValue();
+        }
+        catch ( SecurityException e ) {
+            return DEFAULT_THRESHOLD;
+        }
+    }
+
+    /**
+     * Chooses a supported coding from the value of an
+     * <code>Accept-Encoding</code> header.
+     * gzip is preferred to deflate if both are acceptable.
+     *
+     * @param  acceptEncoding  header value, may be null
+     * @return  {@link #GZIP}, {@link #DEFLATE}, or null if neither
+     *          is acceptable
+     */
+    public static String negotiate( String acceptEncoding ) {
+        if ( acceptEncoding == null ) {
+            return null;
+        }
+        boolean hasGzip = false;
+        boolean hasDeflate = false;
+        String[] items = acceptEncoding.split( "," );
+        for ( int i = 0; i < items.length; i++ ) {
+            String item = items[ i ].trim().toLowerCase();
+            int isemi = item.indexOf( ';' );
+            String coding = isemi >= 0 ? item.substring( 0, isemi ).trim()
+                                       : item;
+            if ( isemi >= 0 && isZeroQuality( item.substring( isemi + 1 ) ) ) {
+                continue;
+            }
+            if ( coding.equals( GZIP ) || coding.equals( "x-gzip" ) ) {
+                hasGzip = true;
+            }
+            else if ( coding.equals( DEFLATE ) ) {
+                hasDeflate = true;
+            }
+        }
+        return hasGzip ? GZIP : ( hasDeflate ? DEFLATE : null );
+    }
+
+    /**
+     * Indicates whether content of a given MIME type is worth compressing.
+     * Textual types (text/*, XML and JSON) are.
+     *
+     * @param  contentType  Content-Type header value, may be null
+     * @return  true iff content should be compressed
+     */
+    public static boolean isCompressible( String contentType ) {
+        if ( contentType == null ) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith( "text/" )
+            || type.indexOf( "xml" ) >= 0
+            || type.indexOf( "json" ) >= 0
+            || type.indexOf( "javascript" ) >= 0;
+    }
+
+    /**
+     * Indicates whether a given content coding can be decoded.
+     *
+     * @param  coding  Content-Encoding header value, may be null
+     * @return  true iff {@link #createDecoder} will accept it
+     */
+    public static boolean isSupported( String coding ) {
+        return coding == null || getCoding( coding ) != null;
+    }
+
+    /**
+     * Returns a stream which compresses its output with a given coding.
+     * The returned stream must be closed or finished to complete
+     * the encoded data; closing it closes <code>out</code>.
+     *
+     * @param  out  destination stream for encoded bytes
+     * @param  coding  {@link #GZIP} or {@link #DEFLATE}
+     * @return  stream accepting unencoded bytes
+     */
+    public static DeflaterOutputStream createEncoder( OutputStream out,
+                                                      String coding )
+            throws IOException {
+        String c = getCoding( coding );
+        if ( GZIP.equals( c ) ) {
+            return new GZIPOutputStream( out );
+        }
+        else if ( DEFLATE.equals( c ) ) {
+            return new DeflaterOutputStream( out );
+        }
+        else {
+            throw new IllegalArgumentException( "Unsupported coding "
+                                              + coding );
+        }
+    }
+
+    /**
+     * Returns a stream which decodes data with a given content coding.
+     *
+     * @param  in  stream supplying encoded bytes
+     * @param  coding  Content-Encoding header value; if null or
+     *                 <code>identity</code>, <code>in</code> is returned
+     * @return  stream supplying decoded bytes
+     * @throws  IOException  if the coding is not supported or the
+     *          encoded data is corrupt
+     */
+    public static InputStream createDecoder( InputStream in, String coding )
+            throws IOException {
+        if ( coding == null ) {
+            return in;
+        }
+        String c = getCoding( coding );
+        if ( GZIP.equals( c ) ) {
+            return new GZIPInputStream( in );
+        }
+        else if ( DEFLATE.equals( c ) ) {
+            return new InflaterInputStream( in );
+        }
+        else if ( "identity".equals( c ) ) {
+            return in;
+        }
+        else {
+            throw new IOException( "Unsupported content coding " + coding );
+        }
+    }
+
+    /**
+     * Normalises a Content-Encoding header value.
+     *
+     * @param  coding  header value
+     * @return  supported coding name, or null
+     */
+    private static String getCoding( String coding ) {
+        String c = coding.trim().toLowerCase();
+        if ( c.equals( GZIP ) || c.equals( "x-gzip" ) ) {
+            return GZIP;
+        }
+        else if ( c.equals( DEFLATE ) || c.equals( "identity" ) ) {
+            return c;
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Indicates whether the parameter part of an Accept-Encoding item
+     * gives a quality value of zero, meaning unacceptable.
+     *
+     * @param  params  text following the semicolon
+     * @return  true iff q=0
+     */
+    private static boolean isZeroQuality( String params ) {
+        String p = params.trim();
+        if ( p.startsWith( "q=" ) ) {
+            try {
+                return Double.parseDouble( p.substring( 2 ).trim() ) <= 0;
+            }
+            catch ( NumberFormatException e ) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -20,7 +20,8 @@ import java.net.URL;
  * @author   Mark Taylor
  * @since    11 Mar 2016
  */
-public class DirectoryMapperHandler implements HttpServer.Handler {
+public class DirectoryMapperHandler
+        implements HttpServer.PrefixHandler {
 
     private final String localDocBase_;
     private final String serverDocPath_;
@@ -36,6 +37,10 @@ public class DirectoryMapperHandler implements HttpServer.Handler {
         serverDocPath_ = serverDocPath;
     }
 
+    public String getPathPrefix() {
+        return serverDocPath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
         String path = request.getUrl();
         if ( ! path.startsWith( serverDocPath_ ) ) {
@@ -45,6 +50,6 @@ public class DirectoryMapperHandler implements HttpServer.Handler {
         final URL srcUrl = getClass().getResource( localDocBase_ + relPath );
         return srcUrl == null
              ? null
-             : URLMapperHandler.mapUrlResponse( request.getMethod(), srcUrl );
+             : URLMapperHandler.mapUrlResponse( request, srcUrl );
     }
 }
@@ -0,0 +1,319 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * HTTP response which serves all or part of a file in the local
+ * filesystem.
+ * The file content is copied to the client directly from the
+ * file's channel, using zero-copy transfer to the socket where the
+ * server connection allows it, so that large files can be served
+ * without passing through JVM buffers.
+ *
+ * <p>Responses should be obtained using the {@link #createResponse}
+ * factory method, which implements conditional GET
+ * (<code>If-None-Match</code> and <code>If-Modified-Since</code>,
+ * answered with 304 Not Modified) based on
+ * <code>ETag</code> and <code>Last-Modified</code> validators,
+ * and single byte ranges (<code>Range</code> and <code>If-Range</code>,
+ * answered with 206 Partial Content).
+ * Multiple-range requests are served with the whole file.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class FileResponse extends HttpServer.Response {
+
+    private final File file_;
+    private final long start_;
+    private final long length_;
+
+    private static final String HDR_CONTENT_LENGTH = "Content-Length";
+    private static final String HDR_ETAG = "ETag";
+    private static final String HDR_LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * Constructor.
+     *
+     * @param  statusCode  3-digit status code
+     * @param  statusPhrase  text string passed to client along with status
+     * @param  headerMap   map of HTTP response header key-value pairs
+     * @param  file   file supplying the content
+     * @param  start  offset in file of first byte to send
+     * @param  length  number of bytes to send
+     */
+    protected FileResponse( int statusCode, String statusPhrase,
+                            Map headerMap, File file, long start,
+                            long length ) {
+        super( statusCode, statusPhrase, headerMap );
+        file_ = file;
+        start_ = start;
+        length_ = length;
+    }
+
+    public void writeBody( OutputStream out ) throws IOException {
+        FileChannel fchan = new FileInputStream( file_ ).getChannel();
+        try {
+            if ( out instanceof HttpOutputStream ) {
+                ((HttpOutputStream) out).transferFile( fchan, start_,
+                                                       length_ );
+            }
+            else {
+                HttpOutputStream.copyFile( fchan, start_, start_ + length_,
+                                           out );
+            }
+        }
+        finally {
+            fchan.close();
+        }
+    }
+
+    /**
+     * Returns a response to a request for a given file.
+     * GET and HEAD methods are served.
+     *
+     * @param  request  HTTP request
+     * @param  file   regular file to serve
+     * @param  contentType  MIME type of file content, or null to guess
+     *                      from the file name
+     * @return  response
+     */
+    public static HttpServer.Response createResponse( HttpServer.Request
+                                                      request,
+                                                      File file,
+                                                      String contentType ) {
+        String method = request.getMethod();
+        boolean isGet = "GET".equals( method );
+        if ( ! isGet && ! "HEAD".equals( method ) ) {
+            return HttpServer
+                  .create405Response( new String[] { "HEAD", "GET" } );
+        }
+        if ( ! file.isFile() || ! file.canRead() ) {
+            return HttpServer.createErrorResponse( 404, "Not found" );
+        }
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        String etag = createEtag( fileLength, lastModified );
+        String httpDate = formatDate( lastModified );
+        Map reqHdrs = request.getHeaderMap();
+
+        // Validator headers are common to all the responses.
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( HDR_ETAG, etag );
+        hdrMap.put( HDR_LAST_MODIFIED, httpDate );
+
+        // Conditional GET.
+        if ( isNotModified( reqHdrs, etag, lastModified ) ) {
+            return new HttpServer.Response( 304, "Not Modified", hdrMap ) {
+                public void writeBody( OutputStream out ) {
+                }
+            };
+        }
+
+        if ( contentType == null ) {
+            contentType = URLConnection.getFileNameMap()
+                                       .getContentTypeFor( file.getName() );
+        }
+        hdrMap.put( HttpServer.HDR_CONTENT_TYPE,
+                    contentType == null ? "application/octet-stream"
+                                        : contentType );
+        hdrMap.put( "Accept-Ranges", "bytes" );
+
+        // Range request, if it applies to the current file version.
+        String range = HttpServer.getHeader( reqHdrs, "Range" );
+        String ifRange = HttpServer.getHeader( reqHdrs, "If-Range" );
+        long[] span = null;
+        if ( isGet && range != null &&
+             ( ifRange == null || ifRange.trim().equals( etag ) ||
+               ifRange.trim().equals( httpDate ) ) ) {
+            span = parseRange( range, fileLength );
+            if ( span != null && span.length == 0 ) {
+                Map errHdrs = new LinkedHashMap();
+                errHdrs.put( "Content-Range", "bytes */" + fileLength );
+                errHdrs.put( HDR_CONTENT_LENGTH, "0" );
+                return new HttpServer
+                          .Response( 416, "Requested range not satisfiable",
+                                     errHdrs ) {
+                    public void writeBody( OutputStream out ) {
+                    }
+                };
+            }
+        }
+        final int code;
+        final String phrase;
+        final long start;
+        final long length;
+        if ( span == null ) {
+            code = 200;
+            phrase = "OK";
+            start = 0;
+            length = fileLength;
+        }
+        else {
+            code = 206;
+            phrase = "Partial Content";
+            start = span[ 0 ];
+            length = span[ 1 ] - span[ 0 ] + 1;
+            hdrMap.put( "Content-Range",
+                        "bytes " + span[ 0 ] + "-" + span[ 1 ]
+                      + "/" + fileLength );
+        }
+        hdrMap.put( HDR_CONTENT_LENGTH, Long.toString( length ) );
+        return isGet
+             ? new FileResponse( code, phrase, hdrMap, file, start, length )
+             : new FileResponse( code, phrase, hdrMap, file, start, 0 );
+    }
+
+    /**
+     * Determines whether the conditional request headers indicate that
+     * the client's cached copy is current.
+     * As required by RFC 7232, <code>If-Modified-Since</code> is ignored
+     * if <code>If-None-Match</code> is present.
+     *
+     * @param  reqHdrs  request headers
+     * @param  etag   current entity tag
+     * @param  lastModified  current modification time in milliseconds
+     * @return  true iff a 304 response is appropriate
+     */
+    private static boolean isNotModified( Map reqHdrs, String etag,
+                                          long lastModified ) {
+        String ifNoneMatch = HttpServer.getHeader( reqHdrs, "If-None-Match" );
+        if ( ifNoneMatch != null ) {
+            String[] tags = ifNoneMatch.split( "," );
+            for ( int i = 0; i < tags.length; i++ ) {
+                String tag = tags[ i ].trim();
+                if ( tag.startsWith( "W/" ) ) {
+                    tag = tag.substring( 2 );
+                }
+                if ( tag.equals( "*" ) || tag.equals( etag ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModSince =
+            HttpServer.getHeader( reqHdrs, "If-Modified-Since" );
+        if ( ifModSince != null ) {
+            long since = parseDate( ifModSince );
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the value of a Range header for a single byte range.
+     * If the header is not understood, or specifies more than one range,
+     * null is returned, indicating that the whole file should be served.
+     * If the range cannot be satisfied, an empty array is returned.
+     *
+     * @param  range  Range header value
+     * @param  fileLength  number of bytes in file
+     * @return   2-element array giving first and last (inclusive) byte
+     *           offsets, or empty array, or null
+     */
+    static long[] parseRange( String range, long fileLength ) {
+        range = range.trim();
+        if ( ! range.startsWith( "bytes=" ) || range.indexOf( ',' ) >= 0 ) {
+            return null;
+        }
+        String spec = range.substring( 6 ).trim();
+        int idash = spec.indexOf( '-' );
+        if ( idash < 0 ) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            String sFirst = spec.substring( 0, idash ).trim();
+            String sLast = spec.substring( idash + 1 ).trim();
+            if ( sFirst.length() == 0 ) {
+                long suffix = Long.parseLong( sLast );
+                if ( suffix <= 0 ) {
+                    return suffix == 0 ? new long[ 0 ] : null;
+                }
+                first = Math.max( 0, fileLength - suffix );
+                last = fileLength - 1;
+            }
+            else {
+                first = Long.parseLong( sFirst );
+                last = sLast.length() == 0 ? Long.MAX_VALUE
+                                           : Long.parseLong( sLast );
+                if ( first < 0 || last < first ) {
+                    return null;
+                }
+            }
+        }
+        catch ( NumberFormatException e ) {
+            return null;
+        }
+        if ( first >= fileLength ) {
+            return new long[ 0 ];
+        }
+        return new long[] { first, Math.min( last, fileLength - 1 ) };
+    }
+
+    /**
+     * Returns an entity tag for a file.
+     *
+     * @param  fileLength  file length in bytes
+     * @param  lastModified  modification time in milliseconds
+     * @return  quoted strong entity tag
+     */
+    private static String createEtag( long fileLength, long lastModified ) {
+        return "\"" + Long.toHexString( lastModified ) + "-"
+                    + Long.toHexString( fileLength ) + "\"";
+    }
+
+    /**
+     * Formats a time as an HTTP-date (RFC 1123 format).
+     *
+     * @param  millis  time in milliseconds since the epoch
+     * @return  formatted date
+     */
+    static String formatDate( long millis ) {
+        return createDateFormat().format( new Date( millis ) );
+    }
+
+    /**
+     * Parses an HTTP-date in RFC 1123 format.
+     *
+     * @param  txt  formatted date
+     * @return   time in milliseconds since the epoch,
+     *           or -1 if it cannot be parsed
+     */
+    static long parseDate( String txt ) {
+        try {
+            return createDateFormat().parse( txt.trim() ).getTime();
+        }
+        catch ( ParseException e ) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a new formatter for HTTP dates.
+     * DateFormat instances are not thread-safe, so one is created
+     * for each use.
+     *
+     * @return  date format
+     */
+    private static DateFormat createDateFormat() {
+        DateFormat fmt = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz",
+                                               Locale.US );
+        fmt.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return fmt;
+    }
+}
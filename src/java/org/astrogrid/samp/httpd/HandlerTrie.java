@@ -0,0 +1,177 @@
+package org.astrogrid.samp.httpd;
+
+/**
+ * Immutable routing table which maps request paths to the handlers
+ * which may serve them.
+ * Handlers implementing {@link HttpServer.PrefixHandler} are indexed
+ * in a character trie keyed on their path prefixes;
+ * other handlers are candidates for every path.
+ * Each trie node holds a precomputed array of all the handlers
+ * applicable to paths reaching it, in registration order,
+ * so that a lookup is a single walk along the path which allocates
+ * no memory.
+ *
+ * <p>Instances are never modified, so an {@link HttpServer} can replace
+ * its table on registration (copy-on-write) and read it without locking.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class HandlerTrie {
+
+    private final Node root_;
+
+    /** Trie with no handlers. */
+    public static final HandlerTrie EMPTY =
+        new HandlerTrie( new HttpServer.Handler[ 0 ] );
+
+    /**
+     * Constructor.
+     *
+     * @param  handlers  handlers in the order they should be consulted
+     */
+    public HandlerTrie( HttpServer.Handler[] handlers ) {
+        int nh = handlers.length;
+        root_ = new Node();
+        boolean[] rootFlags = new boolean[ nh ];
+        for ( int ih = 0; ih < nh; ih++ ) {
+            HttpServer.Handler handler = handlers[ ih ];
+            String prefix = handler instanceof HttpServer.PrefixHandler
+                          ? ((HttpServer.PrefixHandler) handler)
+                           .getPathPrefix()
+                          : null;
+            if ( prefix == null || prefix.length() == 0 ) {
+                rootFlags[ ih ] = true;
+            }
+            else {
+                Node node = root_;
+                for ( int ic = 0; ic < prefix.length(); ic++ ) {
+                    node = node.getOrCreateChild( prefix.charAt( ic ) );
+                }
+                node.addEnding( ih );
+            }
+        }
+        populate( root_, rootFlags, handlers );
+    }
+
+    /**
+     * Returns the handlers which may serve a request for a given path,
+     * in the order in which they should be consulted.
+     * The returned array must not be modified.
+     *
+     * @param  path  request URL path
+     * @return   candidate handlers
+     */
+    public HttpServer.Handler[] getHandlers( String path ) {
+        Node node = root_;
+        if ( path != null ) {
+            int leng = path.length();
+            for ( int ic = 0; ic < leng; ic++ ) {
+                Node child = node.getChild( path.charAt( ic ) );
+                if ( child == null ) {
+                    break;
+                }
+                node = child;
+            }
+        }
+        return node.handlers_;
+    }
+
+    /**
+     * Recursively fills in the handler arrays of a node and its children.
+     *
+     * @param  node  node to populate
+     * @param  flags  flags indicating which handlers apply to
+     *                ancestors of this node; not modified
+     * @param  handlers  all handlers
+     */
+    private static void populate( Node node, boolean[] flags,
+                                  HttpServer.Handler[] handlers ) {
+        boolean[] nodeFlags = (boolean[]) flags.clone();
+        for ( int ie = 0; ie < node.nEnding_; ie++ ) {
+            nodeFlags[ node.endings_[ ie ] ] = true;
+        }
+        int nh = 0;
+        for ( int ih = 0; ih < nodeFlags.length; ih++ ) {
+            if ( nodeFlags[ ih ] ) {
+                nh++;
+            }
+        }
+        node.handlers_ = new HttpServer.Handler[ nh ];
+        for ( int ih = 0, jh = 0; ih < nodeFlags.length; ih++ ) {
+            if ( nodeFlags[ ih ] ) {
+                node.handlers_[ jh++ ] = handlers[ ih ];
+            }
+        }
+        for ( int ik = 0; ik < node.nKid_; ik++ ) {
+            populate( node.kids_[ ik ], nodeFlags, handlers );
+        }
+    }
+
+    /**
+     * Trie node.
+     */
+    private static class Node {
+        char[] keys_ = new char[ 0 ];
+        Node[] kids_ = new Node[ 0 ];
+        int nKid_;
+        int[] endings_ = new int[ 0 ];
+        int nEnding_;
+        HttpServer.Handler[] handlers_;
+
+        /**
+         * Returns the child node for a given character.
+         *
+         * @param  c  character
+         * @return  child, or null
+         */
+        Node getChild( char c ) {
+            for ( int ik = 0; ik < nKid_; ik++ ) {
+                if ( keys_[ ik ] == c ) {
+                    return kids_[ ik ];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the child node for a given character,
+         * creating it if necessary.
+         *
+         * @param  c  character
+         * @return  child
+         */
+        Node getOrCreateChild( char c ) {
+            Node kid = getChild( c );
+            if ( kid == null ) {
+                if ( nKid_ == keys_.length ) {
+                    char[] keys = new char[ nKid_ + 4 ];
+                    Node[] kids = new Node[ nKid_ + 4 ];
+                    System.arraycopy( keys_, 0, keys, 0, nKid_ );
+                    System.arraycopy( kids_, 0, kids, 0, nKid_ );
+                    keys_ = keys;
+                    kids_ = kids;
+                }
+                kid = new Node();
+                keys_[ nKid_ ] = c;
+                kids_[ nKid_ ] = kid;
+                nKid_++;
+            }
+            return kid;
+        }
+
+        /**
+         * Records that the prefix of a given handler ends at this node.
+         *
+         * @param  ih  handler index
+         */
+        void addEnding( int ih ) {
+            if ( nEnding_ == endings_.length ) {
+                int[] endings = new int[ nEnding_ + 2 ];
+                System.arraycopy( endings_, 0, endings, 0, nEnding_ );
+                endings_ = endings;
+            }
+            endings_[ nEnding_++ ] = ih;
+        }
+    }
+}
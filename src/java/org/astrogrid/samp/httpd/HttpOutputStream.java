@@ -0,0 +1,104 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered stream used by the {@link HttpServer} engines for writing
+ * responses to a client connection.
+ * As well as behaving as a normal output stream, it can copy a region
+ * of a file directly to the connection's socket channel if there is one,
+ * using {@link java.nio.channels.FileChannel#transferTo}, so that
+ * on most platforms the bytes do not pass through the JVM at all.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class HttpOutputStream extends BufferedOutputStream {
+
+    private final OutputStream base_;
+    private final SocketChannel channel_;
+
+    /**
+     * Constructor.
+     *
+     * @param  base  unbuffered stream writing to the connection
+     * @param  channel  channel for the connection's socket, or null
+     *                  if there is none
+     */
+    HttpOutputStream( OutputStream base, SocketChannel channel ) {
+        super( base );
+        base_ = base;
+        channel_ = channel;
+    }
+
+    /**
+     * Writes part of a file to this stream.
+     * Any buffered bytes are flushed first.
+     *
+     * @param  fchan  file channel
+     * @param  pos   offset in file of first byte to write
+     * @param  count  number of bytes to write
+     */
+    void transferFile( FileChannel fchan, long pos, long count )
+            throws IOException {
+        flush();
+        long end = pos + count;
+        if ( channel_ == null ) {
+            copyFile( fchan, pos, end, base_ );
+        }
+        else {
+            while ( pos < end ) {
+                long nb = fchan.transferTo( pos, end - pos, channel_ );
+                if ( nb > 0 ) {
+                    pos += nb;
+                }
+                else if ( pos >= fchan.size() ) {
+                    throw new EOFException( "File truncated during transfer" );
+                }
+                else {
+                    awaitWritable();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a transfer to the socket channel makes no progress.
+     * This implementation throws an exception, which is appropriate
+     * for a blocking channel; engines using non-blocking channels should
+     * override it to wait until the channel can accept more bytes.
+     */
+    void awaitWritable() throws IOException {
+        throw new IOException( "No progress writing to channel" );
+    }
+
+    /**
+     * Writes part of a file to any output stream, for use where
+     * no socket channel is available.
+     *
+     * @param  fchan  file channel
+     * @param  pos   offset in file of first byte to write
+     * @param  end   offset in file after last byte to write
+     * @param  out   destination stream
+     */
+    static void copyFile( FileChannel fchan, long pos, long end,
+                          OutputStream out )
+            throws IOException {
+        WritableByteChannel outChan = Channels.newChannel( out );
+        while ( pos < end ) {
+            long nb = fchan.transferTo( pos, end - pos, outChan );
+            if ( nb <= 0 ) {
+                throw new EOFException( "File truncated during transfer" );
+            }
+            pos += nb;
+        }
+        out.flush();
+    }
+}
@@ -2,6 +2,9 @@ package org.astrogrid.samp.httpd;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -10,29 +13,59 @@ import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.zip.DeflaterOutputStream;
 import javax.net.ssl.SSLServerSocket;
+import org.astrogrid.samp.ExecutionMode;
 import org.astrogrid.samp.SampUtils;
 
 /**
  * Simple modular HTTP server.
- * One thread is started per request.  Connections are not kept open between
- * requests.  
- * Suitable for very large response bodies, but not for very large 
- * request bodies.
+ * By default each connection is served by its own thread; alternatively a
+ * selector-based engine using a small fixed number of I/O threads
+ * may be chosen at construction time.
+ * In either case requests are served by a bounded pool of worker threads
+ * with a bounded queue; when both are full, further requests are
+ * refused with a 503 (Service Unavailable) response.
+ * Worker threads are platform or virtual threads according to the
+ * {@link #setExecutionMode execution mode}.
+ * Connections are kept open between requests where the client asks
+ * for it, until they have been idle for the
+ * {@link #setKeepAliveTimeout keep-alive timeout}.
+ * With the thread-per-connection engine an idle connection occupies
+ * a worker, so it is closed early if another connection is waiting
+ * for one.
+ * Suitable for very large response bodies; responses of unknown length
+ * are sent to HTTP/1.1 clients with the chunked transfer coding.
+ * Request bodies, which may also be chunked, may be
+ * streamed by handlers rather than read into memory, and requests
+ * declaring bodies larger than the {@link #setMaxBodySize maximum size}
+ * are refused with a 413 (Request Entity Too Large) response.
+ * Textual responses are compressed with gzip or deflate if the client
+ * accepts it and they exceed the
+ * {@link #setCompressionThreshold compression threshold}
+ * or are of unknown length;
+ * compressed request bodies are decoded, and this capability is
+ * advertised to clients by an <code>Accept-Encoding</code> response
+ * header (RFC 7694).
  * Add one or more {@link HttpServer.Handler}s to serve actual requests.
- * The protocol version served is HTTP/1.0.
+ * A handler which cannot provide a response straight away may return a
+ * {@link DeferredResponse}, which frees the worker thread until some
+ * other thread completes it.
+ * The protocol version served is HTTP/1.1 for HTTP/1.1 requests and
+ * HTTP/1.0 otherwise; pipelined requests are served in order.
  *
  * <p>This class is completely self-contained, so that it can easily be 
  * lifted out and used in other packages if required.
@@ -43,8 +76,19 @@ import org.astrogrid.samp.SampUtils;
 public class HttpServer {
 
     private final ServerSocket serverSocket_;
+    private final boolean isNio_;
+    private NioEngine nioEngine_;
     private boolean isDaemon_;
-    private List handlerList_;
+    private final List handlerList_;
+    private volatile HandlerTrie handlerTrie_;
+    private volatile RequestListener[] requestListeners_;
+    private volatile int keepAliveMillis_;
+    private volatile int maxBodySize_;
+    private volatile int compressThreshold_;
+    private int maxWorkers_;
+    private int maxQueue_;
+    private ExecutionMode execMode_;
+    private WorkerPool workerPool_;
     private final URL baseUrl_;
     private volatile boolean started_;
     private volatile boolean stopped_;
@@ -52,38 +96,82 @@ public class HttpServer {
     /** Header string for MIME content type. */
     public static final String HDR_CONTENT_TYPE = "Content-Type";
     private static final String HDR_CONTENT_LENGTH = "Content-Length";
+    private static final String HDR_CONNECTION = "Connection";
+    private static final String HDR_TRANSFER_ENCODING = "Transfer-Encoding";
+    private static final String HDR_ETAG = "ETag";
+    private static final String HDR_VARY = "Vary";
+
+    /** Default maximum number of concurrently active worker threads. */
+    public static final int DEFAULT_MAX_WORKERS = 256;
+
+    /** Default maximum number of requests waiting for a worker thread. */
+    public static final int DEFAULT_MAX_QUEUE = 512;
+
+    /** Number of seconds a refused client is advised to wait. */
+    private static final int RETRY_AFTER_SECS = 1;
+
+    /** Default maximum request body size in bytes. */
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    /** Largest response body which will be compressed in memory. */
+    private static final int MAX_COMPRESS_SIZE = 1024 * 1024;
+
+    /** Size of chunks written for responses of unknown length. */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    /** Default keep-alive timeout in milliseconds. */
+    public static final int DEFAULT_KEEPALIVE_MILLIS = 15 * 1000;
+
+    /** Interval at which idle connections check whether to close. */
+    private static final int IDLE_SLICE_MILLIS = 250;
 
     /** Status code for OK (200). */
     public static final int STATUS_OK = 200;
 
-    private static final String URI_REGEX =
-        "([^\\s\\?]*)\\??([^\\s\\?]*)";
-    private static final String HTTP_VERSION_REGEX =
-        "HTTP/[0-9]+\\.[0-9]+";
-    private static final String HTTP_TOKEN_REGEX =
-        "[a-zA-Z0-9_\\.\\-]+";
-
-    private static final Pattern SIMPLE_REQUEST_PATTERN =
-        Pattern.compile( "GET" + " " + "(" + "\\S+" + ")" );
-    private static final Pattern REQUEST_LINE_PATTERN =
-        Pattern.compile( "(" + HTTP_TOKEN_REGEX + ")" // typically GET, HEAD etc
-                       + " " + "(" + "\\S+" + ")"
-                       + " " + HTTP_VERSION_REGEX );
-    private static final Pattern HEADER_PATTERN =
-        Pattern.compile( "(" + "[^\\s:]+" +")" + ":\\s*(.*)" );
-
     private static final Logger logger_ =
         Logger.getLogger( HttpServer.class.getName() );
 
     /**
-     * Constructs a server based on a given socket.
+     * Constructs a server based on a given socket using the
+     * thread-per-connection engine.
      *
      * @param  socket  listening socket
      */
     public HttpServer( ServerSocket socket ) {
+        this( socket, false );
+    }
+
+    /**
+     * Constructs a server based on a given socket, with a choice of
+     * request processing engine.
+     * If <code>isNio</code> is true, the socket must have an associated
+     * channel, as for instance a socket obtained from
+     * {@link java.nio.channels.ServerSocketChannel#socket}.
+     *
+     * @param  socket  listening socket
+     * @param  isNio   true for the selector-based engine,
+     *                 false for the thread-per-connection engine
+     * @throws  IllegalArgumentException  if <code>isNio</code> is true
+     *          but <code>socket</code> has no channel
+     */
+    public HttpServer( ServerSocket socket, boolean isNio ) {
+        if ( isNio && socket.getChannel() == null ) {
+            throw new IllegalArgumentException( "Selector-based engine "
+                                              + "requires a socket with "
+                                              + "a channel" );
+        }
         serverSocket_ = socket;
+        isNio_ = isNio;
         isDaemon_ = true;
-        handlerList_ = Collections.synchronizedList( new ArrayList() );
+        keepAliveMillis_ = DEFAULT_KEEPALIVE_MILLIS;
+        maxBodySize_ = DEFAULT_MAX_BODY_SIZE;
+        compressThreshold_ = ContentEncoding.getDefaultThreshold();
+        maxWorkers_ = DEFAULT_MAX_WORKERS;
+        maxQueue_ = DEFAULT_MAX_QUEUE;
+        execMode_ = ExecutionMode.getDefault();
+        handlerList_ = new ArrayList();
+        requestListeners_ = new RequestListener[ 0 ];
+        handlerTrie_ = HandlerTrie.EMPTY;
         boolean isTls = socket instanceof SSLServerSocket;
         String scheme = isTls ? "https" : "http";
         StringBuffer ubuf = new StringBuffer()
@@ -116,7 +204,10 @@ public class HttpServer {
      * @param  handler   handler to add
      */
     public void addHandler( Handler handler ) {
-        handlerList_.add( handler );
+        synchronized ( handlerList_ ) {
+            handlerList_.add( handler );
+            updateHandlers();
+        }
     }
 
     /**
@@ -125,7 +216,49 @@ public class HttpServer {
      * @param  handler   handler to remove
      */
     public void removeHandler( Handler handler ) {
-        handlerList_.remove( handler );
+        synchronized ( handlerList_ ) {
+            handlerList_.remove( handler );
+            updateHandlers();
+        }
+    }
+
+    /**
+     * Adds a listener which will be informed about each request served
+     * by this server, for instance to gather timing statistics.
+     *
+     * @param  listener  listener to add
+     */
+    public void addRequestListener( RequestListener listener ) {
+        synchronized ( handlerList_ ) {
+            List list = new ArrayList( Arrays.asList( requestListeners_ ) );
+            list.add( listener );
+            requestListeners_ =
+                (RequestListener[]) list.toArray( new RequestListener[ 0 ] );
+        }
+    }
+
+    /**
+     * Removes a listener previously added by {@link #addRequestListener}.
+     *
+     * @param  listener  listener to remove
+     */
+    public void removeRequestListener( RequestListener listener ) {
+        synchronized ( handlerList_ ) {
+            List list = new ArrayList( Arrays.asList( requestListeners_ ) );
+            list.remove( listener );
+            requestListeners_ =
+                (RequestListener[]) list.toArray( new RequestListener[ 0 ] );
+        }
+    }
+
+    /**
+     * Replaces the routing table following a change to the handler list.
+     * Must be called with the handler list locked.
+     */
+    private void updateHandlers() {
+        handlerTrie_ =
+            new HandlerTrie( (Handler[])
+                             handlerList_.toArray( new Handler[ 0 ] ) );
     }
 
     /**
@@ -137,6 +270,16 @@ public class HttpServer {
         return serverSocket_;
     }
 
+    /**
+     * Indicates whether this server uses the selector-based engine.
+     *
+     * @return  true for selector-based engine,
+     *          false for thread-per-connection engine
+     */
+    public boolean isNio() {
+        return isNio_;
+    }
+
     /**
      * Returns the base URL for this server.
      *
@@ -150,13 +293,15 @@ public class HttpServer {
      * Does the work for providing output corresponding to a given HTTP request.
      * This implementation calls each Handler in turn and the first one
      * to provide a non-null response is used.
+     * Handlers are called in the order they were added, except that
+     * {@link PrefixHandler}s are skipped if the request path
+     * does not start with their prefix.
      *
      * @param  request  represents an HTTP request that has been received
      * @return   represents the content of an HTTP response that should be sent
      */
     public Response serve( Request request ) {
-        Handler[] handlers =
-            (Handler[]) handlerList_.toArray( new Handler[ 0 ] );
+        Handler[] handlers = handlerTrie_.getHandlers( request.getUrl() );
         for ( int ih = 0; ih < handlers.length; ih++ ) {
             Handler handler = handlers[ ih ];
             Response response = handler.serveRequest( request );
@@ -179,58 +324,275 @@ public class HttpServer {
         isDaemon_ = isDaemon;
     }
 
+    /**
+     * Sets the time for which a persistent connection may remain idle
+     * waiting for the next request before the server closes it.
+     * A value of zero means that connections are closed after every
+     * response, as for HTTP/1.0 without keep-alive.
+     * The default is {@link #DEFAULT_KEEPALIVE_MILLIS}.
+     *
+     * @param  millis  keep-alive timeout in milliseconds, or 0
+     */
+    public void setKeepAliveTimeout( int millis ) {
+        if ( millis < 0 ) {
+            throw new IllegalArgumentException( "Negative timeout" );
+        }
+        keepAliveMillis_ = millis;
+    }
+
+    /**
+     * Returns the time for which a persistent connection may remain idle.
+     *
+     * @return  keep-alive timeout in milliseconds, or 0 for no keep-alive
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveMillis_;
+    }
+
+    /**
+     * Sets the largest request body this server will accept.
+     * Requests with a larger declared Content-Length are refused
+     * without their body being read.
+     * The default is {@link #DEFAULT_MAX_BODY_SIZE}.
+     *
+     * @param  maxBytes  maximum request body size in bytes
+     */
+    public void setMaxBodySize( int maxBytes ) {
+        if ( maxBytes < 0 ) {
+            throw new IllegalArgumentException( "Negative size" );
+        }
+        maxBodySize_ = maxBytes;
+    }
+
+    /**
+     * Returns the largest request body this server will accept.
+     *
+     * @return  maximum request body size in bytes
+     */
+    public int getMaxBodySize() {
+        return maxBodySize_;
+    }
+
+    /**
+     * Sets the size above which response bodies will be compressed
+     * for clients which accept it.
+     * Only responses with a textual content type are compressed;
+     * responses which do not declare a Content-Length are compressed
+     * as they are written, regardless of the threshold.
+     * A negative value disables compression of responses, and
+     * stops the server advertising that it can decode compressed requests.
+     * The default is given by {@link ContentEncoding#getDefaultThreshold}.
+     *
+     * @param  minBytes  minimum body size in bytes for compression,
+     *                   or negative for no compression
+     */
+    public void setCompressionThreshold( int minBytes ) {
+        compressThreshold_ = minBytes;
+    }
+
+    /**
+     * Returns the size above which response bodies will be compressed.
+     *
+     * @return  minimum body size in bytes for compression,
+     *          or negative for no compression
+     */
+    public int getCompressionThreshold() {
+        return compressThreshold_;
+    }
+
+    /**
+     * Sets the limits on the number of requests which this server
+     * will handle at once.
+     * Must be called before {@link #start} to have an effect.
+     * With the thread-per-connection engine, a persistent connection
+     * occupies a worker while it is open, though it gives the worker up
+     * if idle when other connections are queued.
+     *
+     * @param  maxWorkers  maximum number of concurrently active
+     *                     worker threads
+     * @param  maxQueue   maximum number of requests waiting for a worker;
+     *                    any more are refused
+     */
+    public void setWorkerLimits( int maxWorkers, int maxQueue ) {
+        if ( maxWorkers < 1 || maxQueue < 0 ) {
+            throw new IllegalArgumentException( "Bad limits " + maxWorkers
+                                              + ", " + maxQueue );
+        }
+        maxWorkers_ = maxWorkers;
+        maxQueue_ = maxQueue;
+    }
+
+    /**
+     * Sets the kind of thread used to serve requests.
+     * Must be called before {@link #start} to have an effect.
+     * The default is {@link org.astrogrid.samp.ExecutionMode#getDefault}.
+     *
+     * @param  execMode  execution mode
+     * @throws  IllegalArgumentException  if <code>execMode</code>
+     *          is not available
+     */
+    public void setExecutionMode( ExecutionMode execMode ) {
+        if ( ! execMode.isAvailable() ) {
+            throw new IllegalArgumentException( "Execution mode " + execMode
+                                              + " not available" );
+        }
+        execMode_ = execMode;
+    }
+
+    /**
+     * Returns the kind of thread used to serve requests.
+     *
+     * @return  execution mode
+     */
+    public ExecutionMode getExecutionMode() {
+        return execMode_;
+    }
+
+    /**
+     * Returns the number of requests currently waiting for a worker thread.
+     *
+     * @return  queue depth
+     */
+    public int getQueueDepth() {
+        WorkerPool pool = workerPool_;
+        return pool == null ? 0 : pool.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of worker threads currently serving requests
+     * (or, for the thread-per-connection engine, connections).
+     *
+     * @return   active worker count
+     */
+    public int getActiveWorkerCount() {
+        WorkerPool pool = workerPool_;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * Returns the total number of requests which have been refused
+     * with a 503 response because the server was saturated.
+     *
+     * @return   rejected request count
+     */
+    public long getRejectedCount() {
+        WorkerPool pool = workerPool_;
+        return pool == null ? 0 : pool.getRejectedCount();
+    }
+
     /**
      * Starts the server if it is not already started.
      */
     public synchronized void start() {
         if ( ! started_ ) {
-            Thread server = new Thread( "HTTP Server" ) {
-                public void run() {
-                    try {
-                        while ( ! stopped_ ) {
-                            try {
-                                final Socket sock = serverSocket_.accept();
-                                new Thread( "HTTP Request" ) {
-                                    public void run() {
-                                        try {
-                                            serveRequest( sock );
-                                        }
-                                        catch ( Throwable e ) {
-                                            logger_.log( Level.WARNING,
-                                                         "Httpd error", e );
-                                        }
-                                    }
-                                }.start();
-                            }
-                            catch ( IOException e ) {
-                                if ( ! stopped_ ) {
-                                    logger_.log( Level.WARNING,
-                                                 "Socket error", e );
-                                }
-                            }
+            logger_.info( "Server " + getBaseUrl() + " starting" );
+            workerPool_ = new WorkerPool( "HTTP Request", maxWorkers_,
+                                          maxQueue_, execMode_, isDaemon_ );
+            if ( isNio_ ) {
+                nioEngine_ = new NioEngine( this, serverSocket_.getChannel(),
+                                            workerPool_, isDaemon_ );
+                nioEngine_.start();
+            }
+            else {
+                Thread server = new Thread( "HTTP Server" ) {
+                    public void run() {
+                        try {
+                            acceptLoop();
+                        }
+                        finally {
+                            HttpServer.this.stop();
                         }
                     }
-                    finally {
-                        HttpServer.this.stop();
-                    }
-                }
-            };
-            server.setDaemon( isDaemon_ );
-            logger_.info( "Server " + getBaseUrl() + " starting" );
-            server.start();
+                };
+                server.setDaemon( isDaemon_ );
+                server.start();
+            }
             started_ = true;
             logger_.config( "Server " + getBaseUrl() + " started" );
         }
     }
 
+    /**
+     * Accepts connections on the server socket until this server is stopped,
+     * passing each one to a worker thread for processing.
+     * If no worker is available, the client is sent a 503 response.
+     * Used by the thread-per-connection engine.
+     */
+    private void acceptLoop() {
+        while ( ! stopped_ ) {
+            try {
+                final Socket sock = serverSocket_.accept();
+                Runnable task = new Runnable() {
+                    public void run() {
+                        try {
+                            serveRequest( sock );
+                        }
+                        catch ( Throwable e ) {
+                            logger_.log( Level.WARNING, "Httpd error", e );
+                        }
+                    }
+                };
+                boolean accepted;
+                try {
+                    accepted = workerPool_.offer( task );
+                }
+                catch ( IllegalStateException e ) {
+                    accepted = false;
+                }
+                if ( ! accepted ) {
+                    refuseConnection( sock );
+                }
+            }
+            catch ( IOException e ) {
+                if ( ! stopped_ ) {
+                    logger_.log( Level.WARNING, "Socket error", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a 503 response on a connection which cannot be served
+     * and closes it.
+     *
+     * @param  sock  client connection socket
+     */
+    private void refuseConnection( Socket sock ) {
+        logger_.info( "Server " + getBaseUrl() + " busy - refusing request" );
+        try {
+            OutputStream out =
+                new BufferedOutputStream( sock.getOutputStream() );
+            createUnavailableResponse().writeResponse( out );
+            out.flush();
+        }
+        catch ( IOException e ) {
+        }
+        finally {
+            try {
+                sock.close();
+            }
+            catch ( IOException e ) {
+            }
+        }
+    }
+
     /**
      * Stops the server if it is currently running.  Processing of any requests
      * which have already been received is completed.
+     * Persistent connections waiting for further requests are closed
+     * shortly afterwards, but a request which a client has already sent
+     * on one is still served.
      */
     public synchronized void stop() {
         if ( ! stopped_ ) {
             stopped_ = true;
             logger_.info( "Server " + getBaseUrl() + " stopping" );
+            if ( nioEngine_ != null ) {
+                nioEngine_.stop();
+            }
+            if ( workerPool_ != null ) {
+                workerPool_.shutdown();
+            }
             try {
                 serverSocket_.close();
             }
@@ -251,39 +613,287 @@ public class HttpServer {
     }
 
     /**
-     * Called by the server thread for each new connection.
+     * Called by the server thread for each new connection when using the
+     * thread-per-connection engine.
+     * Requests are read and served in turn until the connection
+     * is no longer persistent, or has been idle for longer than the
+     * keep-alive timeout.
      *
      * @param  sock   client connection socket
      */
     protected void serveRequest( Socket sock ) throws IOException {
+        InputStream in = new BufferedInputStream( sock.getInputStream() );
+        RequestParser parser = new RequestParser( maxBodySize_ );
+        BufferedOutputStream bos =
+            new HttpOutputStream( sock.getOutputStream(), sock.getChannel() );
+        serveSocket( sock, in, parser, bos, null, null );
+    }
 
-        // Try to generate a request object by examining the socket's 
-        // input stream.  If that fails, generate a response representing
-        // the error.
-        InputStream in = sock.getInputStream();
-        in = new BufferedInputStream( in );
-        Response response = null;
-        Request request = null; 
+    /**
+     * Serves requests on a connection for the thread-per-connection
+     * engine, optionally starting with one whose deferred response
+     * has just been completed.
+     * If a handler defers its response, this method arranges for the
+     * connection to be resumed on another thread when the response
+     * is complete, and returns without closing it.
+     *
+     * @param  sock   client connection socket
+     * @param  in   buffered input stream from socket
+     * @param  parser  request parser for this connection
+     * @param  bos   buffered output stream to socket
+     * @param  request  request whose response has been completed,
+     *                  or null to start by reading a request
+     * @param  response  finished response to <code>request</code>,
+     *                   or null to start by reading a request
+     */
+    private void serveSocket( final Socket sock, final InputStream in,
+                              final RequestParser parser,
+                              final BufferedOutputStream bos,
+                              Request request, Response response )
+            throws IOException {
+        boolean isDeferred = false;
         try {
-            request = parseRequest( in, sock.getRemoteSocketAddress() );
+            for ( boolean persistent = true; persistent; ) {
+
+                // Unless resuming, try to generate a request object by
+                // examining the socket's input stream.  If that fails,
+                // generate a response representing the error.
+                if ( response == null ) {
+                    try {
+                        request = parseRequest( in,
+                                                sock.getRemoteSocketAddress(),
+                                                parser );
+
+                        // If there was no input, make no response at all.
+                        if ( request == null ) {
+                            return;
+                        }
+                    }
+                    catch ( SocketTimeoutException e ) {
+                        return;
+                    }
+                    catch ( Throwable e ) {
+                        if ( stopped_ ) {
+                            return;
+                        }
+                        response = createParseErrorResponse( e );
+                    }
+                    response = processRequest( request, response );
+                }
+
+                // If the response is deferred, give up this thread and
+                // carry on with the connection when it is complete.
+                if ( response instanceof DeferredResponse ) {
+                    final Request req = request;
+                    final DeferredResponse deferred =
+                        (DeferredResponse) response;
+                    deferred.addCompletionListener( new Runnable() {
+                        public void run() {
+                            execute( new Runnable() {
+                                public void run() {
+                                    Response resp =
+                                        finishRequest( req,
+                                                       deferred.getResponse() );
+                                    try {
+                                        serveSocket( sock, in, parser, bos,
+                                                     req, resp );
+                                    }
+                                    catch ( Throwable e ) {
+                                        logger_.log( Level.WARNING,
+                                                     "Httpd error", e );
+                                    }
+                                }
+                            } );
+                        }
+                    } );
+                    isDeferred = true;
+                    return;
+                }
+                persistent = preparePersistence( request, response );
+
+                // Send the response back to the client.
+                response.writeResponse( bos );
+                bos.flush();
+
+                // Wait no longer than the keep-alive timeout for the next one.
+                if ( persistent && ! awaitRequest( sock, in ) ) {
+                    return;
+                }
+                request = null;
+                response = null;
+            }
+        }
+        finally {
+            if ( ! isDeferred ) {
+                try {
+                    bos.close();
+                }
+                catch ( IOException e ) {
+                }
+            }
+        }
+    }
 
-            // If there was no input, make no response at all.
-            if ( request == null ) {
-                return;
+    /**
+     * Waits for the next request to start arriving on a persistent
+     * connection, for up to the keep-alive timeout.
+     * The wait is made in short slices so that it ends soon after
+     * the server is stopped, or after another connection starts
+     * waiting for a worker, since this idle one is occupying one.
+     * The socket is never closed from another
+     * thread, so a request which the client had already sent when
+     * the server stopped is still served.
+     *
+     * @param  sock   client connection socket
+     * @param  in   buffered input stream from socket
+     * @return  true if a request is arriving,
+     *          false if the connection should be closed
+     */
+    private boolean awaitRequest( Socket sock, InputStream in )
+            throws IOException {
+        long end = System.currentTimeMillis() + keepAliveMillis_;
+        while ( true ) {
+            long remaining = end - System.currentTimeMillis();
+            if ( remaining <= 0 ) {
+                return false;
+            }
+            sock.setSoTimeout( (int) Math.min( remaining,
+                                               IDLE_SLICE_MILLIS ) );
+            in.mark( 1 );
+            try {
+                if ( in.read() < 0 ) {
+                    return false;
+                }
+                in.reset();
+                sock.setSoTimeout( keepAliveMillis_ );
+                return true;
+            }
+            catch ( SocketTimeoutException e ) {
+                if ( stopped_ || workerPool_.getQueueDepth() > 0 ) {
+                    return false;
+                }
             }
         }
-        catch ( HttpException e ) {
-            response = e.createResponse();
+    }
+
+    /**
+     * Runs a task on one of this server's worker threads,
+     * or on a new thread if the workers are saturated,
+     * since the task cannot be refused.
+     * This is used to carry on serving a connection whose deferred
+     * response has been completed, and may also be used to complete a
+     * {@link DeferredResponse} without holding up the thread
+     * which supplies its outcome.
+     *
+     * @param  task  task to run
+     */
+    public void execute( Runnable task ) {
+        WorkerPool pool = workerPool_;
+        boolean accepted;
+        try {
+            accepted = pool != null && pool.offer( task );
         }
-        catch ( IOException e ) {
-            response = createErrorResponse( 400, "I/O error", e );
+        catch ( IllegalStateException e ) {
+            accepted = false;
         }
-        catch ( Throwable e ) {
-            response = createErrorResponse( 500, "Server error", e );
+        if ( ! accepted ) {
+            ExecutionMode.startThread( task, "HTTP Deferred Response" );
         }
+    }
+
+    /**
+     * Determines whether the connection on which a request arrived
+     * can be kept open after the response has been sent,
+     * and configures the response's status line and
+     * <code>Connection</code> header accordingly.
+     * HTTP/1.1 responses with a body but no declared Content-Length
+     * are marked to be sent with the chunked transfer coding.
+     * The connection is persistent only if the client has asked for it
+     * (explicitly for HTTP/1.0, or implicitly for HTTP/1.1), the response
+     * declares its Content-Length, is chunked, or has a status which
+     * never has a body, keep-alive is enabled,
+     * and this server is not stopping.
+     * For the thread-per-connection engine, where an open connection
+     * ties up a worker, there must also be spare workers.
+     * If the connection would be persistent, any part of the request
+     * body not read by the handler is read and discarded, and if that
+     * fails the connection is not persistent.
+     *
+     * @param  request  request, or null if it could not be parsed
+     * @param  response  response which is about to be written
+     * @return  true iff the connection should be kept open
+     */
+    boolean preparePersistence( Request request, Response response ) {
+        String protocol = request == null ? null : request.getProtocol();
+        boolean isHttp11 = protocol != null
+                        && ! protocol.equals( "HTTP/1.0" )
+                        && ! protocol.equals( "HTTP/0.9" );
+        Map respHdrs = response.getHeaderMap();
+        boolean isDelimited = hasNoBody( response )
+                           || ( respHdrs != null &&
+                                getHeader( respHdrs, HDR_CONTENT_LENGTH )
+                                != null );
+        response.chunked_ = isHttp11 && ! isDelimited
+                         && ! "HEAD".equals( request.getMethod() )
+                         && ( respHdrs == null ||
+                              getHeader( respHdrs, HDR_TRANSFER_ENCODING )
+                              == null );
+        boolean persistent;
+        if ( protocol == null || keepAliveMillis_ <= 0 || stopped_ ||
+             ( ! isNio_ && ! workerPool_.hasSpareCapacity() ) ||
+             ! ( isDelimited || response.chunked_ ) ||
+             ! request.discardBody() ) {
+            persistent = false;
+        }
+        else {
+            String reqConn = getHeader( request.getHeaderMap(),
+                                        HDR_CONNECTION );
+            String respConn = respHdrs == null
+                            ? null
+                            : getHeader( respHdrs, HDR_CONNECTION );
+            reqConn = reqConn == null ? "" : reqConn.toLowerCase();
+            respConn = respConn == null ? "" : respConn.toLowerCase();
+            persistent = ( isHttp11 ? reqConn.indexOf( "close" ) < 0
+                                    : reqConn.indexOf( "keep-alive" ) >= 0 )
+                      && respConn.indexOf( "close" ) < 0;
+        }
+        response.protocol_ = isHttp11 ? "HTTP/1.1" : "HTTP/1.0";
+        response.connection_ = isHttp11 ? ( persistent ? null : "close" )
+                                        : ( persistent ? "keep-alive" : null );
+        return persistent;
+    }
+
+    /**
+     * Indicates whether a response has a status code which means that
+     * it never has a body (RFC 7230 sec 3.3.3).
+     *
+     * @param  response  response
+     * @return  true for 1xx, 204 and 304 responses
+     */
+    private static boolean hasNoBody( Response response ) {
+        int code = response.getStatusCode();
+        return ( code >= 100 && code < 200 ) || code == 204 || code == 304;
+    }
+
+    /**
+     * Turns a parsed request into a response and logs the result.
+     * If a response has already been generated because the request
+     * could not be parsed, that is logged and returned instead.
+     * If the handler defers its response, the {@link DeferredResponse}
+     * is returned as is; once it has been completed,
+     * its result must be passed to {@link #finishRequest}
+     * before it is sent.
+     *
+     * @param   request  parsed request, or null if parsing failed
+     * @param   errResponse  error response resulting from failed parsing,
+     *                       or null if <code>request</code> is present
+     * @return  response to send to the client, or deferred response
+     */
+    Response processRequest( Request request, Response errResponse ) {
 
         // If we have a request (and hence no error response) process it to
         // obtain a response object.
+        Response response = errResponse;
         if ( response == null ) {
             assert request != null;
             try {
@@ -292,10 +902,40 @@ public class HttpServer {
             catch ( Throwable e ) {
                 response = createErrorResponse( 500, e.toString(), e );
             }
+            if ( response instanceof DeferredResponse ) {
+                return response;
+            }
+        }
+        return finishRequest( request, response );
+    }
+
+    /**
+     * Prepares a response obtained for a request to be sent,
+     * compressing it if appropriate, and logs the result.
+     *
+     * @param   request  parsed request, or null if parsing failed
+     * @param   response  response to request, not deferred
+     * @return  response to send to the client
+     */
+    Response finishRequest( Request request, Response response ) {
+        if ( request != null ) {
+            if ( compressThreshold_ >= 0 ) {
+                try {
+                    response = encodeResponse( request, response );
+                }
+                catch ( IOException e ) {
+                    response = createErrorResponse( 500, e.toString(), e );
+                }
+                if ( "POST".equals( request.getMethod() ) ) {
+                    response.acceptEncoding_ = ContentEncoding.ACCEPT_VALUE;
+                }
+            }
         }
         final Level level;
         switch ( response.getStatusCode() ) {
             case 200:
+            case 206:
+            case 304:
                 level = Level.CONFIG;
                 break;
             case 404:
@@ -320,233 +960,165 @@ public class HttpServer {
                 .append( response.statusPhrase_ );
             logger_.log( level, sbuf.toString() );
         }
-
-        // Send the response back to the client.
-        BufferedOutputStream bos =
-            new BufferedOutputStream( sock.getOutputStream() );
-        try {
-            response.writeResponse( bos );
-            bos.flush();
-        }
-        finally {
-            try {
-                bos.close();
-            }
-            catch ( IOException e ) {
+        RequestListener[] listeners = requestListeners_;
+        if ( request != null && listeners.length > 0 ) {
+            long millis = System.currentTimeMillis() - request.startMillis_;
+            for ( int il = 0; il < listeners.length; il++ ) {
+                try {
+                    listeners[ il ].requestServed( request, response, millis );
+                }
+                catch ( RuntimeException e ) {
+                    logger_.log( Level.WARNING, "Request listener error", e );
+                }
             }
         }
+        return response;
     }
 
     /**
-     * Takes the input stream from a client connection and turns it into
-     * a Request object.
-     * As a special case, if the input stream has no content at all,
-     * null is returned.
+     * Returns a compressed version of a response if the client accepts
+     * one and it is worth doing, or otherwise the response unchanged.
+     * Moderately sized responses of known length are compressed into
+     * memory so that the compressed length can be declared;
+     * others are compressed as they are written.
+     * File responses are never compressed, so that they can be
+     * served by direct transfer from the file.
+     * Any entity tag is altered for the encoded representation,
+     * since it differs from the identity one.
      *
-     * @param   in   input stream
-     * @param   remoteAddress  address of requesting client
-     * @return  parsed request, or null
+     * @param  request  request
+     * @param  response  uncompressed response
+     * @return  response to send
      */
-    private static Request parseRequest( InputStream in,
-                                         SocketAddress remoteAddress )
+    private Response encodeResponse( Request request, final Response response )
             throws IOException {
-
-        // Read the pre-body part.
-        String[] hdrLines = readHeaderLines( in );
-
-        // No text at all?
-        if ( hdrLines == null ) {
-            return null;
+        Map respHdrs = response.getHeaderMap();
+        if ( response.getStatusCode() != 200 ||
+             response instanceof FileResponse ||
+             "HEAD".equals( request.getMethod() ) ||
+             respHdrs == null ||
+             getHeader( respHdrs, ContentEncoding.HDR_CONTENT_ENCODING )
+             != null ||
+             ! ContentEncoding
+              .isCompressible( getHeader( respHdrs, HDR_CONTENT_TYPE ) ) ) {
+            return response;
         }
-
-        // No header content?
-        if ( hdrLines.length == 0 ) {
-            throw new HttpException( 400, "Empty request" );
-        }
-
-        // HTTP/0.9 style simple request - probably rare.
-        Matcher simpleMatcher = SIMPLE_REQUEST_PATTERN.matcher( hdrLines[ 0 ] );
-        if ( simpleMatcher.matches() ) {
-            return new Request( "GET", simpleMatcher.group( 1 ),
-                                new HashMap(), remoteAddress, null );
-        }
-
-        // Normal HTTP/1.0 request.
-        // First parse the request line.
-        Matcher fullMatcher = REQUEST_LINE_PATTERN.matcher( hdrLines[ 0 ] );
-        if ( fullMatcher.matches() ) {
-            String method = fullMatcher.group( 1 );
-            String uri = fullMatcher.group( 2 );
-
-            // Then read and parse header lines.
-            HttpHeaderMap headerMap = new HttpHeaderMap();
-            int iLine = 1;
-            boolean headerEnd = false;
-            int contentLength = 0;
-            for ( ; iLine < hdrLines.length; iLine++ ) {
-                String line = hdrLines[ iLine ];
-                Matcher headerMatcher = HEADER_PATTERN.matcher( line );
-                if ( headerMatcher.matches() ) {
-                    String key = headerMatcher.group( 1 );
-                    String value = headerMatcher.group( 2 );
-
-                    // Cope with continuation lines.
-                    boolean cont = true;
-                    while ( iLine + 1 < hdrLines.length && cont ) {
-                        cont = false;
-                        String line1 = hdrLines[ iLine + 1 ];
-                        if ( line1.length() > 0 ) {
-                            char c1 = line1.charAt( 0 ); 
-                            if ( c1 == ' ' || c1 == '\t' ) {
-                                value += line1.trim();
-                                iLine++;
-                                cont = true;
-                            }
-                        }
-                    }
-
-                    // Store the header.
-                    headerMap.addHeader( key, value );
-
-                    // Iff we have a content-length line it means we can expect
-                    // a body later.
-                    if ( key.equalsIgnoreCase( HDR_CONTENT_LENGTH ) ) {
-                        try {
-                            contentLength =
-                                Integer.parseInt( value.trim() );
-                        }
-                        catch ( NumberFormatException e ) {
-                            throw new HttpException( 400, 
-                                                     "Failed to parse "
-                                                    + key + " header "
-                                                    + value );
-                        }
-                    }
-                }
+        String sleng = getHeader( respHdrs, HDR_CONTENT_LENGTH );
+        long leng = -1;
+        if ( sleng != null ) {
+            try {
+                leng = Long.parseLong( sleng.trim() );
             }
-
-            // Read body if there is one.
-            final byte[] body;
-            if ( contentLength > 0 ) {
-                body = new byte[ contentLength ];
-                int ib = 0;
-                while ( ib < contentLength ) {
-                    int nb = in.read( body, ib, contentLength - ib );
-                    if ( nb < 0 ) {
-                        throw new HttpException( 500,
-                            "Insufficient bytes for declared Content-Length: "
-                           + ib + "<" + contentLength );
-                    }
-                    ib += nb;
-                }
-                assert ib == contentLength;
+            catch ( NumberFormatException e ) {
+                return response;
             }
-            else {
-                body = null;
+            if ( leng < compressThreshold_ ) {
+                return response;
             }
- 
-            // Decode escaped characters in the requested URI.
-            uri = SampUtils.uriDecode( uri );
+        }
+        final String coding =
+            ContentEncoding
+           .negotiate( getHeader( request.getHeaderMap(),
+                                  ContentEncoding.HDR_ACCEPT_ENCODING ) );
+        if ( coding == null ) {
+            return response;
+        }
 
-            // Make sure it's a relative URI (probably not necessary
-            // at HTTP 1.1).
-            if ( uri.startsWith( "http://" ) ) {
-                String path;
-                try {
-                    URL url = new URL( uri );
-                    path = url.getPath();
-                    String query = url.getQuery();
-                    if ( query != null ) {
-                        path += '?' + query;
-                    }
-                    uri = path;
-                }
-                catch ( MalformedURLException e ) {
-                    // never mind
+        // The original header map may be shared between responses,
+        // so a modified copy is used.
+        Map hdrMap = new LinkedHashMap();
+        for ( Iterator it = respHdrs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = String.valueOf( entry.getKey() );
+            if ( HDR_ETAG.equalsIgnoreCase( key ) ) {
+                hdrMap.put( entry.getKey(),
+                            encodedEtag( String.valueOf( entry.getValue() ),
+                                         coding ) );
+            }
+            else if ( ! HDR_CONTENT_LENGTH.equalsIgnoreCase( key ) ) {
+                hdrMap.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        hdrMap.put( ContentEncoding.HDR_CONTENT_ENCODING, coding );
+        hdrMap.put( HDR_VARY, ContentEncoding.HDR_ACCEPT_ENCODING );
+        if ( leng < 0 || leng > MAX_COMPRESS_SIZE ) {
+            return new Response( response.getStatusCode(),
+                                 response.getStatusPhrase(), hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    DeflaterOutputStream encOut =
+                        ContentEncoding.createEncoder( out, coding );
+                    response.writeBody( encOut );
+                    encOut.finish();
                 }
+            };
+        }
+
+        // Encode the body into memory.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( (int) leng / 4 );
+        OutputStream encOut = ContentEncoding.createEncoder( bos, coding );
+        response.writeBody( encOut );
+        encOut.close();
+        final byte[] encBody = bos.toByteArray();
+        hdrMap.put( HDR_CONTENT_LENGTH, Integer.toString( encBody.length ) );
+        return new Response( response.getStatusCode(),
+                             response.getStatusPhrase(), hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( encBody );
             }
+        };
+    }
 
-            // Return the request.
-            return new Request( method, uri, headerMap, remoteAddress, body );
+    /**
+     * Returns the entity tag for a content-coded representation
+     * given that of the identity representation.
+     * The coding name is appended to the opaque tag, and the result
+     * is marked weak, as the encoded bytes are not guaranteed to be
+     * reproducible.
+     *
+     * @param  etag  identity entity tag header value
+     * @param  coding  content coding name
+     * @return  entity tag header value for encoded representation
+     */
+    static String encodedEtag( String etag, String coding ) {
+        String tag = etag.trim();
+        if ( tag.startsWith( "W/" ) ) {
+            tag = tag.substring( 2 );
         }
-
-        // Unrecognised.
-        else {
-            throw new HttpException( 400, "Bad request" );
+        if ( tag.length() >= 2 && tag.startsWith( "\"" ) &&
+             tag.endsWith( "\"" ) ) {
+            tag = tag.substring( 1, tag.length() - 1 );
         }
+        return "W/\"" + tag + "-" + coding + "\"";
     }
 
     /**
-     * Reads the header lines from an HTTP client connection input stream.
-     * All lines are read up to the first CRLF, which is when the body starts.
-     * The input stream is left in a state ready to read the first body line.
+     * Takes the input stream from a client connection and turns it into
+     * a Request object.
      * As a special case, if the input stream has no content at all,
      * null is returned.
+     * The body is not read here; the request's body stream reads it
+     * from the input stream on demand.
      *
-     * @param  is   socket input stream
-     * @return   array  of header lines (including initial request line);
-     *           the terminal blank line is not included, or null
+     * @param   in   input stream
+     * @param   remoteAddress  address of requesting client
+     * @param   parser   header parser, which will be reset
+     * @return  parsed request, or null
      */
-    private static String[] readHeaderLines( InputStream is )
+    static Request parseRequest( InputStream in, SocketAddress remoteAddress,
+                                 RequestParser parser )
             throws IOException {
-        List lineList = new ArrayList();
-        StringBuffer sbuf = new StringBuffer();
-        boolean hasChars = false;
-        for ( int c; ( c = is.read() ) >= 0; ) {
-            hasChars = true;
-            switch ( c ) {
-
-                // CRLF is the correct HTTP line terminator.
-                case '\r':
-                    if ( is.read() == '\n' ) {
-                        if ( sbuf.length() == 0 ) {
-                            return (String[])
-                                   lineList.toArray( new String[ 0 ] );
-                        }
-                        else {
-                            lineList.add( sbuf.toString() );
-                            sbuf.setLength( 0 );
-                        }
-                    }
-                    else {
-                        throw new HttpException( 400, "CR w/o LF" );
-                    }
-                    break;
-
-                // HTTP 1.1 recommends that a lone LF is also tolerated as a
-                // line terminator.
-                case '\n':
-                    if ( sbuf.length() == 0 ) {
-                        return (String[])
-                               lineList.toArray( new String[ 0 ] );
-                    }
-                    else {
-                        lineList.add( sbuf.toString() );
-                        sbuf.setLength( 0 );
-                    }
-                    break;
 
-                default:
-                   sbuf.append( (char) c );
-            }
-        }
-
-        // No input.
-        if ( ! hasChars ) {
+        // Read the pre-body part.
+        if ( ! parser.readHeader( in ) ) {
             return null;
         }
 
-        // Special case: can handle HTTP/0.9 type simple requests. 
-        // Probably very rare.
-        if ( lineList.size() == 1 ) {
-            String line = (String) lineList.get( 0 );
-            if ( SIMPLE_REQUEST_PATTERN.matcher( line ).matches() ) {
-                return new String[] { line };
-            }
-        }
-
-        // If it's got this far, there was no blank line.
-        throw new HttpException( 500, "No CRLF line" );
+        // Leave the body, if any, to be streamed from the input.
+        InputStream bodyIn =
+            parser.isChunked()
+                ? in
+                : new LengthInputStream( in, parser.getContentLength() );
+        return parser.createRequest( remoteAddress, bodyIn );
     }
 
     /**
@@ -598,7 +1170,44 @@ public class HttpServer {
      * @return   new response object
      */
     public static Response createErrorResponse( int code, String phrase ) {
-        return new Response( code, phrase, new HashMap() ) {
+        Map hdrMap = new HashMap();
+        hdrMap.put( HDR_CONTENT_LENGTH, "0" );
+        return new Response( code, phrase, hdrMap ) {
+            public void writeBody( OutputStream out ) {
+            }
+        };
+    }
+
+    /**
+     * Returns an error response suitable for a client whose request
+     * could not be parsed.
+     *
+     * @param  e  error encountered during request parsing
+     * @return   error response
+     */
+    static Response createParseErrorResponse( Throwable e ) {
+        if ( e instanceof HttpException ) {
+            return ((HttpException) e).createResponse();
+        }
+        else if ( e instanceof IOException ) {
+            return createErrorResponse( 400, "I/O error", e );
+        }
+        else {
+            return createErrorResponse( 500, "Server error", e );
+        }
+    }
+
+    /**
+     * Returns a response indicating that the server is too busy to
+     * handle a request at present.
+     *
+     * @return  503 response with Retry-After header
+     */
+    static Response createUnavailableResponse() {
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Retry-After", Integer.toString( RETRY_AFTER_SECS ) );
+        hdrMap.put( HDR_CONTENT_LENGTH, "0" );
+        return new Response( 503, "Service unavailable", hdrMap ) {
             public void writeBody( OutputStream out ) {
             }
         };
@@ -657,7 +1266,13 @@ public class HttpServer {
         private final String url_;
         private final Map headerMap_;
         private final SocketAddress remoteAddress_;
-        private final byte[] body_;
+        private final String protocol_;
+        private final int bodyLength_;
+        private byte[] body_;
+        private InputStream bodyIn_;
+        private InputStream rawBodyIn_;
+        private boolean isStreamTaken_;
+        final long startMillis_;
 
         /**
          * Constructor.
@@ -670,11 +1285,59 @@ public class HttpServer {
          */
         public Request( String method, String url, Map headerMap,
                         SocketAddress remoteAddress, byte[] body ) {
+            this( method, url, headerMap, remoteAddress, body, null );
+        }
+
+        /**
+         * Constructor with protocol version.
+         *
+         * @param  method  HTTP method string (GET, HEAD etc)
+         * @param  url     requested URL path (should start "/")
+         * @param  headerMap  map of HTTP request header key-value pairs
+         * @param  remoteAddress  address of the client making the request
+         * @param  body  bytes comprising request body, or null if none present
+         * @param  protocol  protocol version from the request line,
+         *                   for instance "HTTP/1.1", or null if not known
+         */
+        public Request( String method, String url, Map headerMap,
+                        SocketAddress remoteAddress, byte[] body,
+                        String protocol ) {
             method_ = method;
             url_ = url;
             headerMap_ = headerMap;
             remoteAddress_ = remoteAddress;
             body_ = body;
+            bodyLength_ = body == null ? 0 : body.length;
+            protocol_ = protocol;
+            startMillis_ = System.currentTimeMillis();
+        }
+
+        /**
+         * Constructor with a streamed body.
+         * The body is not read until it is requested by the handler.
+         *
+         * @param  method  HTTP method string (GET, HEAD etc)
+         * @param  url     requested URL path (should start "/")
+         * @param  headerMap  map of HTTP request header key-value pairs
+         * @param  remoteAddress  address of the client making the request
+         * @param  bodyIn  stream supplying exactly <code>bodyLength</code>
+         *                 body bytes
+         * @param  bodyLength  number of bytes in the body,
+         *                     or -1 if not known
+         * @param  protocol  protocol version from the request line,
+         *                   for instance "HTTP/1.1", or null if not known
+         */
+        public Request( String method, String url, Map headerMap,
+                        SocketAddress remoteAddress, InputStream bodyIn,
+                        int bodyLength, String protocol ) {
+            method_ = method;
+            url_ = url;
+            headerMap_ = headerMap;
+            remoteAddress_ = remoteAddress;
+            bodyIn_ = bodyIn;
+            bodyLength_ = bodyLength;
+            protocol_ = protocol;
+            startMillis_ = System.currentTimeMillis();
         }
 
         /**
@@ -719,13 +1382,142 @@ public class HttpServer {
 
         /**
          * Returns the body of the HTTP request if there was one.
+         * If the body is streamed, calling this method reads all of it
+         * into memory, so handlers which may receive large bodies should
+         * use {@link #getBodyStream} instead.
          *
          * @return  body bytes or null
+         * @throws  IllegalStateException  if the body stream has
+         *          already been taken
          */
         public byte[] getBody() {
+            if ( body_ == null && bodyIn_ != null ) {
+                if ( isStreamTaken_ ) {
+                    throw new IllegalStateException( "Body stream already "
+                                                   + "taken" );
+                }
+                byte[] body;
+                try {
+                    if ( bodyLength_ >= 0 ) {
+                        body = new byte[ bodyLength_ ];
+                        for ( int ib = 0; ib < bodyLength_; ) {
+                            int nb = bodyIn_.read( body, ib,
+                                                   bodyLength_ - ib );
+                            if ( nb < 0 ) {
+                                throw new EOFException( "Request body ended "
+                                                      + "after " + ib + "<"
+                                                      + bodyLength_
+                                                      + " bytes" );
+                            }
+                            ib += nb;
+                        }
+                    }
+                    else {
+                        ByteArrayOutputStream bos =
+                            new ByteArrayOutputStream();
+                        byte[] buf = new byte[ 4096 ];
+                        for ( int nb; ( nb = bodyIn_.read( buf ) ) >= 0; ) {
+                            bos.write( buf, 0, nb );
+                        }
+                        body = bos.toByteArray();
+                    }
+                }
+                catch ( IOException e ) {
+                    throw new RuntimeException( "Failed to read request body",
+                                                e );
+                }
+                body_ = body;
+                bodyIn_ = null;
+            }
             return body_;
         }
 
+        /**
+         * Returns a stream from which the body of the HTTP request can be
+         * read, if there was one.
+         * If the body has not already been read into memory by
+         * {@link #getBody}, the bytes come directly from the connection,
+         * and can only be read once; closing the stream does not close
+         * the connection.
+         *
+         * @return  body stream, or null if there is no body
+         */
+        public InputStream getBodyStream() {
+            if ( body_ != null ) {
+                return new ByteArrayInputStream( body_ );
+            }
+            else {
+                isStreamTaken_ = bodyIn_ != null;
+                return bodyIn_;
+            }
+        }
+
+        /**
+         * Returns a channel from which the body of the HTTP request can be
+         * read, if there was one.  This is a view of the
+         * {@link #getBodyStream body stream}.
+         *
+         * @return  body channel, or null if there is no body
+         */
+        public ReadableByteChannel getBodyChannel() {
+            InputStream in = getBodyStream();
+            return in == null ? null : Channels.newChannel( in );
+        }
+
+        /**
+         * Reads and discards any part of a streamed body which has not
+         * yet been read, so that the connection is positioned at the
+         * start of the next request.
+         *
+         * @return  true on success, false if the body could not be read
+         */
+        boolean discardBody() {
+            InputStream in = rawBodyIn_ != null ? rawBodyIn_ : bodyIn_;
+            if ( in != null ) {
+                byte[] buf = new byte[ 4096 ];
+                try {
+                    while ( in.read( buf ) >= 0 ) {
+                    }
+                }
+                catch ( IOException e ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sets the stream from which the body was originally read,
+         * if the body stream decodes it.
+         * This stream is used to discard any unread part of the body.
+         *
+         * @param  rawBodyIn  undecoded body stream
+         */
+        void setRawBodyStream( InputStream rawBodyIn ) {
+            rawBodyIn_ = rawBodyIn;
+        }
+
+        /**
+         * Returns the length of the HTTP request body.
+         * The length is not known in advance if the body was sent
+         * with a content coding; it is decoded as it is read.
+         *
+         * @return  number of bytes in the body, 0 if there is none,
+         *          or -1 if not known
+         */
+        public int getBodyLength() {
+            return bodyLength_;
+        }
+
+        /**
+         * Returns the protocol version given in the request line.
+         *
+         * @return   protocol version such as "HTTP/1.1", or null if not known
+         */
+        public String getProtocol() {
+            return protocol_;
+        }
+
         public String toString() {
             StringBuffer sbuf = new StringBuffer()
                 .append( method_ )
@@ -735,10 +1527,10 @@ public class HttpServer {
                 sbuf.append( "\n    " )
                     .append( headerMap_ );
             }
-            if ( body_ != null && body_.length > 0 ) {
+            if ( bodyLength_ > 0 ) {
                 sbuf.append( "\n    " )
                     .append( "body[" )
-                    .append( body_.length )
+                    .append( bodyLength_ )
                     .append( ']' );
             }
             return sbuf.toString();
@@ -752,6 +1544,10 @@ public class HttpServer {
         private final int statusCode_;
         private final String statusPhrase_;
         private final Map headerMap_;
+        private String protocol_ = "HTTP/1.0";
+        private String connection_;
+        private String acceptEncoding_;
+        private boolean chunked_;
 
         /**
          * Constructor.
@@ -815,12 +1611,18 @@ public class HttpServer {
          * replying to the client.
          * Status line and any headers are written, then {@link #writeBody}
          * is called.
+         * The protocol version in the status line and any
+         * <code>Connection</code> header are determined by the server
+         * according to whether the connection is to be kept open;
+         * if the server has determined that the body is to be chunked,
+         * a <code>Transfer-Encoding</code> header is added and the
+         * body is written in chunks.
          *
          * @param  out  destination stream
          */
         public void writeResponse( OutputStream out ) throws IOException {
             String statusLine = new StringBuffer()
-                .append( "HTTP/1.0" )
+                .append( protocol_ )
                 .append( ' ' )
                 .append( getStatusCode() )
                 .append( ' ' )
@@ -846,9 +1648,182 @@ public class HttpServer {
                     out.write( line.getBytes( "UTF-8" ) );
                 }
             }
+            if ( connection_ != null &&
+                 ( headerMap_ == null ||
+                   getHeader( headerMap_, HDR_CONNECTION ) == null ) ) {
+                out.write( ( HDR_CONNECTION + ": " + connection_ + "\r\n" )
+                          .getBytes( "UTF-8" ) );
+            }
+            if ( acceptEncoding_ != null &&
+                 ( headerMap_ == null ||
+                   getHeader( headerMap_,
+                              ContentEncoding.HDR_ACCEPT_ENCODING )
+                   == null ) ) {
+                out.write( ( ContentEncoding.HDR_ACCEPT_ENCODING + ": "
+                           + acceptEncoding_ + "\r\n" )
+                          .getBytes( "UTF-8" ) );
+            }
+            if ( chunked_ ) {
+                out.write( ( HDR_TRANSFER_ENCODING + ": chunked\r\n" )
+                          .getBytes( "UTF-8" ) );
+            }
             out.write( '\r' );
             out.write( '\n' );
-            writeBody( out );
+            if ( chunked_ ) {
+                ChunkedOutputStream cout =
+                    new ChunkedOutputStream( out, CHUNK_SIZE );
+                writeBody( cout );
+                cout.finish();
+            }
+            else {
+                writeBody( out );
+            }
+        }
+    }
+
+    /**
+     * Response returned by a handler which is not yet in a position
+     * to supply the real response.
+     * The handler returns this object straight away, and some other
+     * thread later supplies the real response by calling {@link #complete}.
+     * In the meantime the server keeps the connection open,
+     * but does not tie up a worker thread waiting for the result,
+     * so that many slow requests may be outstanding at once.
+     *
+     * <p>The status line of this object is a placeholder and is never
+     * sent to the client.  Headers may however be added to its header map,
+     * for instance by a server which decorates all its responses;
+     * any which the real response does not already have are added to it
+     * on completion.
+     */
+    public static class DeferredResponse extends Response {
+        private final List listeners_;
+        private Response response_;
+
+        /**
+         * Constructor.
+         */
+        public DeferredResponse() {
+            super( 102, "Processing", new LinkedHashMap() );
+            listeners_ = new ArrayList();
+        }
+
+        /**
+         * Supplies the real response.
+         * Any completion listeners are invoked on the calling thread.
+         * Only the first call of this method has any effect.
+         *
+         * @param  response  real response, not itself deferred
+         * @return  true if the response was accepted,
+         *          false if this object had already been completed
+         */
+        public boolean complete( Response response ) {
+            if ( response == null || response instanceof DeferredResponse ) {
+                throw new IllegalArgumentException( "Bad response "
+                                                  + response );
+            }
+            Runnable[] listeners;
+            synchronized ( this ) {
+                if ( response_ != null ) {
+                    return false;
+                }
+                response_ = mergeHeaders( response );
+                listeners = (Runnable[])
+                            listeners_.toArray( new Runnable[ 0 ] );
+                listeners_.clear();
+                notifyAll();
+            }
+            for ( int il = 0; il < listeners.length; il++ ) {
+                listeners[ il ].run();
+            }
+            return true;
+        }
+
+        /**
+         * Indicates whether the real response has been supplied.
+         *
+         * @return  true iff complete
+         */
+        public synchronized boolean isComplete() {
+            return response_ != null;
+        }
+
+        /**
+         * Returns the real response, if it has been supplied.
+         *
+         * @return  real response, or null if not yet complete
+         */
+        public synchronized Response getResponse() {
+            return response_;
+        }
+
+        /**
+         * Arranges for a listener to be invoked when this response
+         * has been completed.
+         * If it is already complete, the listener is invoked immediately
+         * on the calling thread; otherwise it will be invoked on the
+         * thread which completes it.
+         * Listeners should return quickly.
+         *
+         * @param  listener  completion listener
+         */
+        public void addCompletionListener( Runnable listener ) {
+            synchronized ( this ) {
+                if ( response_ == null ) {
+                    listeners_.add( listener );
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Writes the body of the real response.
+         * Servers send the real response in place of this one,
+         * so this is only useful for code which invokes handlers directly.
+         *
+         * @param  out  destination stream for body bytes
+         * @throws  IOException  if this response is not yet complete
+         */
+        public void writeBody( OutputStream out ) throws IOException {
+            Response response = getResponse();
+            if ( response == null ) {
+                throw new IOException( "Deferred response not complete" );
+            }
+            response.writeBody( out );
+        }
+
+        /**
+         * Returns a response like a given one but with any headers
+         * from this object's header map that it lacks.
+         *
+         * @param  response  real response
+         * @return  response to record as the real one
+         */
+        private Response mergeHeaders( final Response response ) {
+            Map extraHdrs = getHeaderMap();
+            if ( extraHdrs.isEmpty() ) {
+                return response;
+            }
+            Map respHdrs = response.getHeaderMap();
+            Map hdrMap = new LinkedHashMap();
+            if ( respHdrs != null ) {
+                hdrMap.putAll( respHdrs );
+            }
+            for ( Iterator it = extraHdrs.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                String key = String.valueOf( entry.getKey() );
+                if ( getHeader( hdrMap, key ) == null ) {
+                    hdrMap.put( key, entry.getValue() );
+                }
+            }
+            return new Response( response.getStatusCode(),
+                                 response.getStatusPhrase(), hdrMap ) {
+                public void writeBody( OutputStream out ) throws IOException {
+                    response.writeBody( out );
+                }
+            };
         }
     }
 
@@ -856,7 +1831,7 @@ public class HttpServer {
      * Convenience class for representing an error whose content should be
      * returned to the user as an HTTP erro response of some kind.
      */
-    private static class HttpException extends IOException {
+    static class HttpException extends IOException {
         private final int code_;
         private final String phrase_;
 
@@ -919,6 +1894,24 @@ public class HttpServer {
         }
     }
 
+    /**
+     * Receives notification of the requests served by a server.
+     */
+    public interface RequestListener {
+
+        /**
+         * Called when the response to a request is ready to be sent.
+         * This is invoked on the thread serving the request,
+         * so implementations should return quickly.
+         *
+         * @param  request  request
+         * @param  response  response about to be sent
+         * @param  millis  time in milliseconds between receipt of the
+         *                 request and readiness of the response
+         */
+        void requestServed( Request request, Response response, long millis );
+    }
+
     /**
      * Implemented to serve data for some URLs.
      */
@@ -937,4 +1930,23 @@ public class HttpServer {
          */
         Response serveRequest( Request request );
     }
+
+    /**
+     * Handler which only serves requests whose URL path starts with
+     * a fixed prefix.
+     * The server indexes such handlers by prefix, so that it does not
+     * need to consult them for requests outside their domain.
+     */
+    public interface PrefixHandler extends Handler {
+
+        /**
+         * Returns the path prefix for requests served by this handler.
+         * The {@link #serveRequest serveRequest} method must return null
+         * for any request whose URL does not start with this string.
+         * The value must not change while the handler is installed.
+         *
+         * @return  path prefix, starting "/"
+         */
+        String getPathPrefix();
+    }
 }
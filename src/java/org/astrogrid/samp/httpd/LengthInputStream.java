@@ -0,0 +1,82 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream which supplies an HTTP message body of known length
+ * from a connection's input stream.
+ * It is used both for request bodies read by the server and for
+ * response bodies read by the internal XML-RPC client.
+ * It ends after the declared number of bytes, so that a following
+ * message on the same connection is left unread,
+ * and closing it does not close the underlying stream.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class LengthInputStream extends InputStream {
+
+    private final InputStream in_;
+    private final int length_;
+    private int remaining_;
+
+    /**
+     * Constructor.
+     *
+     * @param  in  connection input stream, positioned at start of body
+     * @param  length  number of body bytes
+     */
+    public LengthInputStream( InputStream in, int length ) {
+        in_ = in;
+        length_ = length;
+        remaining_ = length;
+    }
+
+    public int read() throws IOException {
+        if ( remaining_ <= 0 ) {
+            return -1;
+        }
+        int b = in_.read();
+        if ( b < 0 ) {
+            throw createShortException();
+        }
+        remaining_--;
+        return b;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( remaining_ <= 0 ) {
+            return -1;
+        }
+        int nb = in_.read( b, off, Math.min( len, remaining_ ) );
+        if ( nb < 0 ) {
+            throw createShortException();
+        }
+        remaining_ -= nb;
+        return nb;
+    }
+
+    public int available() throws IOException {
+        return Math.min( in_.available(), remaining_ );
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Returns an exception indicating that the connection input
+     * ended before the whole body was read.
+     *
+     * @return  new exception
+     */
+    private IOException createShortException() {
+        return new HttpServer.HttpException( 500, "Insufficient bytes for "
+                                                + "declared Content-Length: "
+                                                + ( length_ - remaining_ )
+                                                + "<" + length_ );
+    }
+}
@@ -21,7 +21,8 @@ import java.util.Map;
  * @author   Mark Taylor
  * @since    21 Jul 2009
  */
-public class MultiURLMapperHandler implements HttpServer.Handler {
+public class MultiURLMapperHandler
+        implements HttpServer.PrefixHandler {
 
     private final HttpServer server_;
     private final String basePath_;
@@ -130,6 +131,10 @@ public class MultiURLMapperHandler implements HttpServer.Handler {
         urlMap_.remove( relPath );
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
 
         // Determine the source URL from which the data will be obtained.
@@ -144,6 +149,6 @@ public class MultiURLMapperHandler implements HttpServer.Handler {
         URL srcUrl = (URL) urlMap_.get( relPath );
 
         // Forward header and data from the source URL to the response.
-        return URLMapperHandler.mapUrlResponse( request.getMethod(), srcUrl );
+        return URLMapperHandler.mapUrlResponse( request, srcUrl );
     }
 }
@@ -0,0 +1,795 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector-based request processing engine for {@link HttpServer}.
+ * A single acceptor thread hands new connections to a small fixed
+ * number of I/O threads, each of which multiplexes reads from many
+ * connections using a {@link java.nio.channels.Selector}.
+ * When a complete request has been read, it is passed to the server's
+ * worker pool, whose threads invoke the server's handlers and write the
+ * response; if the pool is saturated, a 503 response is sent instead.
+ * Persistent connections are then handed back to their I/O thread
+ * to wait for the next request, and are closed if they remain idle
+ * for longer than the server's keep-alive timeout.
+ * If a handler defers its response, the worker thread is released
+ * and the connection is resumed by another one when the response
+ * is complete.
+ *
+ * @author   agent
+ * @since    14 Oct 2026
+ */
+class NioEngine {
+
+    private final HttpServer server_;
+    private final ServerSocketChannel serverChannel_;
+    private final boolean isDaemon_;
+    private final Reactor[] reactors_;
+    private final Thread[] ioThreads_;
+    private final WorkerPool workerPool_;
+    private volatile boolean stopped_;
+    private int iReactor_;
+
+    /** Number of I/O threads. */
+    public static final int IO_THREADS =
+        Math.max( 1, Math.min( 4, Runtime.getRuntime()
+                                         .availableProcessors() / 2 ) );
+
+    /** Maximum time to wait for a blocked socket write to progress. */
+    private static final long WRITE_TIMEOUT_MILLIS = 60 * 1000;
+
+    /** Interval at which I/O threads check for idle connections. */
+    private static final long SWEEP_MILLIS = 1000;
+
+    /** Maximum time to wait for I/O threads to finish when stopping. */
+    private static final long STOP_WAIT_MILLIS = 1000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( NioEngine.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  server   server whose requests this engine will process
+     * @param  serverChannel  listening channel
+     * @param  workerPool   pool which executes request handling tasks
+     * @param  isDaemon   whether engine threads are daemon threads
+     */
+    public NioEngine( HttpServer server, ServerSocketChannel serverChannel,
+                      WorkerPool workerPool, boolean isDaemon ) {
+        server_ = server;
+        serverChannel_ = serverChannel;
+        workerPool_ = workerPool;
+        isDaemon_ = isDaemon;
+        reactors_ = new Reactor[ IO_THREADS ];
+        ioThreads_ = new Thread[ IO_THREADS ];
+    }
+
+    /**
+     * Starts the acceptor and I/O threads.
+     */
+    public void start() {
+        for ( int ir = 0; ir < reactors_.length; ir++ ) {
+            Reactor reactor;
+            try {
+                reactor = new Reactor();
+            }
+            catch ( IOException e ) {
+                throw (IllegalStateException)
+                      new IllegalStateException( "Can't open selector" )
+                     .initCause( e );
+            }
+            reactors_[ ir ] = reactor;
+            Thread ioThread = new Thread( reactor, "HTTP I/O-" + ( ir + 1 ) );
+            ioThread.setDaemon( isDaemon_ );
+            ioThreads_[ ir ] = ioThread;
+            ioThread.start();
+        }
+        Thread acceptor = new Thread( "HTTP Server" ) {
+            public void run() {
+                try {
+                    acceptLoop();
+                }
+                finally {
+                    server_.stop();
+                }
+            }
+        };
+        acceptor.setDaemon( isDaemon_ );
+        acceptor.start();
+    }
+
+    /**
+     * Stops the I/O threads and prevents any further requests from being
+     * read.  Requests already passed to worker threads are completed.
+     * Requests which have arrived but not yet been dispatched are passed
+     * to the worker pool before this method returns, as long as the
+     * I/O threads finish within a short time.
+     * Closing the listening channel and shutting down the worker pool
+     * are the responsibility of the caller.
+     */
+    public void stop() {
+        stopped_ = true;
+        for ( int ir = 0; ir < reactors_.length; ir++ ) {
+            if ( reactors_[ ir ] != null ) {
+                reactors_[ ir ].selector_.wakeup();
+            }
+        }
+        long end = System.currentTimeMillis() + STOP_WAIT_MILLIS;
+        for ( int it = 0; it < ioThreads_.length; it++ ) {
+            Thread ioThread = ioThreads_[ it ];
+            long millis = end - System.currentTimeMillis();
+            if ( ioThread != null && ioThread != Thread.currentThread()
+                 && millis > 0 ) {
+                try {
+                    ioThread.join( millis );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts new connections until this engine is stopped,
+     * distributing them between the I/O threads.
+     */
+    private void acceptLoop() {
+        while ( ! stopped_ && serverChannel_.isOpen() ) {
+            try {
+                SocketChannel channel = serverChannel_.accept();
+                channel.configureBlocking( false );
+                Reactor reactor = reactors_[ iReactor_++ % reactors_.length ];
+                RequestParser parser =
+                    new RequestParser( server_.getMaxBodySize() );
+                reactor.register( new Connection( channel, reactor, parser ) );
+            }
+            catch ( IOException e ) {
+                if ( ! stopped_ ) {
+                    logger_.log( Level.WARNING, "Socket error", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes a completely read request to a worker thread for processing.
+     * If the worker pool is saturated, a 503 response is written
+     * without blocking and the connection is closed.
+     *
+     * @param  conn   connection state containing request bytes
+     */
+    private void dispatch( final Connection conn ) {
+        final SocketChannel channel = conn.channel_;
+        boolean accepted;
+        try {
+            accepted = workerPool_.offer( createServeTask( conn, null,
+                                                           null ) );
+        }
+        catch ( IllegalStateException e ) {
+            closeQuietly( channel );
+            return;
+        }
+        if ( ! accepted ) {
+            logger_.info( "Server " + server_.getBaseUrl()
+                        + " busy - refusing request" );
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try {
+                HttpServer.createUnavailableResponse().writeResponse( bout );
+                channel.write( ByteBuffer.wrap( bout.toByteArray() ) );
+            }
+            catch ( IOException e ) {
+            }
+            closeQuietly( channel );
+        }
+    }
+
+    /**
+     * Returns a task which serves a connection on a worker thread,
+     * closing it afterwards unless it has been retained.
+     *
+     * @param  conn   connection state containing request bytes
+     * @param  request  request whose response has been completed,
+     *                  or null to start by parsing a request
+     * @param  response  finished response to <code>request</code>,
+     *                   or null to start by parsing a request
+     * @return  task
+     */
+    private Runnable createServeTask( final Connection conn,
+                                      final HttpServer.Request request,
+                                      final HttpServer.Response response ) {
+        return new Runnable() {
+            public void run() {
+                boolean keep = false;
+                try {
+                    keep = serveConnection( conn, request, response );
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING, "Httpd error", e );
+                }
+                finally {
+                    if ( ! keep ) {
+                        closeQuietly( conn.channel_ );
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Parses and serves a request whose bytes have been read from
+     * a connection, writing the response back to the client.
+     * If the connection is persistent, any further requests already
+     * read are served in turn, and the connection is then handed back
+     * to its I/O thread.
+     * If a handler defers its response, the connection is retained
+     * and served again, starting with that response, when it is complete.
+     * Called from a worker thread.
+     *
+     * @param  conn   connection state containing request bytes
+     * @param  request  request whose response has been completed,
+     *                  or null to start by parsing a request
+     * @param  response  finished response to <code>request</code>,
+     *                   or null to start by parsing a request
+     * @return  true iff the connection has been retained for further
+     *          requests; if false, the caller should close it
+     */
+    private boolean serveConnection( Connection conn,
+                                     HttpServer.Request request,
+                                     HttpServer.Response response )
+            throws IOException {
+        SocketChannel channel = conn.channel_;
+        final ChannelOutputStream cout = new ChannelOutputStream( channel );
+        OutputStream out = new HttpOutputStream( cout, channel ) {
+            void awaitWritable() throws IOException {
+                cout.awaitWritable();
+            }
+        };
+        try {
+            while ( true ) {
+                if ( response == null ) {
+                    try {
+                        request = conn.createRequest();
+                        if ( request == null ) {
+                            return false;
+                        }
+                    }
+                    catch ( Throwable e ) {
+                        response = HttpServer.createParseErrorResponse( e );
+                    }
+                    response = server_.processRequest( request, response );
+                }
+                if ( response instanceof HttpServer.DeferredResponse ) {
+                    defer( conn, request,
+                           (HttpServer.DeferredResponse) response );
+                    return true;
+                }
+                boolean persistent =
+                    server_.preparePersistence( request, response )
+                    && conn.error_ == null && conn.isComplete()
+                    && ! conn.isEof_ && ! stopped_;
+                response.writeResponse( out );
+                out.flush();
+                if ( ! persistent ) {
+                    return false;
+                }
+                conn = conn.createNext();
+                if ( ! conn.isComplete() ) {
+                    conn.reactor_.register( conn );
+                    return true;
+                }
+                request = null;
+                response = null;
+            }
+        }
+        finally {
+            cout.closeSelector();
+        }
+    }
+
+    /**
+     * Arranges for a connection to be served again from a worker thread
+     * when a deferred response to one of its requests is complete.
+     *
+     * @param  conn   connection state for the deferred request
+     * @param  request  request
+     * @param  deferred  deferred response to request
+     */
+    private void defer( final Connection conn,
+                        final HttpServer.Request request,
+                        final HttpServer.DeferredResponse deferred ) {
+        deferred.addCompletionListener( new Runnable() {
+            public void run() {
+                server_.execute( new Runnable() {
+                    public void run() {
+                        HttpServer.Response response =
+                            server_.finishRequest( request,
+                                                   deferred.getResponse() );
+                        createServeTask( conn, request, response ).run();
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * Closes a channel, ignoring any errors.
+     *
+     * @param  channel  channel to close
+     */
+    private static void closeQuietly( SocketChannel channel ) {
+        try {
+            channel.close();
+        }
+        catch ( IOException e ) {
+        }
+    }
+
+    /**
+     * Runnable for an I/O thread.  It reads request bytes from any
+     * number of connections and dispatches requests when complete.
+     */
+    private class Reactor implements Runnable {
+        final Selector selector_;
+        final List pendingList_;
+
+        /**
+         * Constructor.
+         */
+        Reactor() throws IOException {
+            selector_ = Selector.open();
+            pendingList_ = new ArrayList();
+        }
+
+        /**
+         * Schedules a new or persistent connection for reading by
+         * this reactor.  May be called from any thread.
+         *
+         * @param  conn  connection with non-blocking channel
+         */
+        void register( Connection conn ) {
+            if ( stopped_ ) {
+                closeQuietly( conn.channel_ );
+                return;
+            }
+            synchronized ( pendingList_ ) {
+                pendingList_.add( conn );
+            }
+            selector_.wakeup();
+        }
+
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+            try {
+                while ( ! stopped_ ) {
+                    selector_.select( SWEEP_MILLIS );
+                    registerPending();
+                    readSelected();
+                    long now = System.currentTimeMillis();
+                    if ( now >= nextSweep ) {
+                        closeIdle( now );
+                        nextSweep = now + SWEEP_MILLIS;
+                    }
+                }
+
+                // Serve any requests which clients had already sent
+                // on persistent connections when the engine stopped.
+                registerPending();
+                selector_.selectNow();
+                readSelected();
+            }
+            catch ( Throwable e ) {
+                if ( ! stopped_ ) {
+                    logger_.log( Level.WARNING, "HTTP I/O error", e );
+                }
+            }
+            finally {
+                for ( Iterator it = selector_.keys().iterator();
+                      it.hasNext(); ) {
+                    closeQuietly( (SocketChannel)
+                                  ((SelectionKey) it.next()).channel() );
+                }
+                synchronized ( pendingList_ ) {
+                    for ( Iterator it = pendingList_.iterator();
+                          it.hasNext(); ) {
+                        closeQuietly( ((Connection) it.next()).channel_ );
+                    }
+                    pendingList_.clear();
+                }
+                try {
+                    selector_.close();
+                }
+                catch ( IOException e ) {
+                }
+            }
+        }
+
+        /**
+         * Registers any connections passed to this reactor with its selector.
+         * Must be called from the I/O thread.
+         */
+        private void registerPending() {
+            Connection[] conns;
+            synchronized ( pendingList_ ) {
+                conns = (Connection[])
+                        pendingList_.toArray( new Connection[ 0 ] );
+                pendingList_.clear();
+            }
+            for ( int ic = 0; ic < conns.length; ic++ ) {
+                Connection conn = conns[ ic ];
+                try {
+                    conn.channel_.register( selector_, SelectionKey.OP_READ,
+                                            conn );
+                }
+                catch ( IOException e ) {
+                    closeQuietly( conn.channel_ );
+                }
+            }
+        }
+
+        /**
+         * Reads from all the connections which the last selection
+         * found to be readable.
+         * Must be called from the I/O thread.
+         */
+        private void readSelected() {
+            for ( Iterator it = selector_.selectedKeys().iterator();
+                  it.hasNext(); ) {
+                SelectionKey key = (SelectionKey) it.next();
+                it.remove();
+                if ( key.isValid() && key.isReadable() ) {
+                    readKey( key );
+                }
+            }
+        }
+
+        /**
+         * Closes any connections which have had no input for longer
+         * than the server's keep-alive timeout.
+         * Must be called from the I/O thread.
+         *
+         * @param  now  current epoch time in milliseconds
+         */
+        private void closeIdle( long now ) {
+            long timeout = server_.getKeepAliveTimeout();
+            if ( timeout > 0 ) {
+                for ( Iterator it = selector_.keys().iterator();
+                      it.hasNext(); ) {
+                    SelectionKey key = (SelectionKey) it.next();
+                    Connection conn = (Connection) key.attachment();
+                    if ( key.isValid() &&
+                         now - conn.lastActive_ > timeout ) {
+                        key.cancel();
+                        closeQuietly( conn.channel_ );
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads available bytes from a readable connection,
+         * and dispatches the request if it is complete.
+         * Must be called from the I/O thread.
+         *
+         * @param  key  selection key for a readable connection
+         */
+        private void readKey( SelectionKey key ) {
+            Connection conn = (Connection) key.attachment();
+            int nr;
+            try {
+                nr = conn.read();
+            }
+            catch ( IOException e ) {
+                key.cancel();
+                closeQuietly( conn.channel_ );
+                return;
+            }
+            if ( nr < 0 ) {
+                key.cancel();
+                if ( conn.count_ == 0 ) {
+                    closeQuietly( conn.channel_ );
+                }
+                else {
+                    conn.isEof_ = true;
+                    dispatch( conn );
+                }
+            }
+            else if ( conn.isComplete() ) {
+                key.cancel();
+                dispatch( conn );
+            }
+        }
+    }
+
+    /**
+     * Accumulates the bytes of a request read from a connection.
+     * The header is parsed incrementally as bytes arrive.
+     * The request is complete when the header has been terminated by
+     * a blank line and as many body bytes as declared by the
+     * Content-Length header have arrived, or the final chunk of a
+     * chunked body has arrived, or when the request has been
+     * found to be malformed.
+     * The framing of a chunked body is followed as it arrives, but the
+     * body is only decoded when the request is read.
+     * Any bytes beyond the end of the request belong to the next
+     * request on a persistent connection.
+     */
+    private static class Connection {
+        final SocketChannel channel_;
+        final Reactor reactor_;
+        final RequestParser parser_;
+        byte[] buf_;
+        int count_;
+        int bodyStart_;
+        int contentLength_;
+        ChunkedInputStream.Scanner chunkScanner_;
+        int chunkScanned_;
+        HttpServer.HttpException error_;
+        long lastActive_;
+        boolean isEof_;
+
+        /**
+         * Constructor.
+         *
+         * @param  channel  non-blocking client connection channel
+         * @param  reactor  I/O thread responsible for reading from channel
+         * @param  parser   header parser, which will be reset
+         */
+        Connection( SocketChannel channel, Reactor reactor,
+                    RequestParser parser ) {
+            channel_ = channel;
+            reactor_ = reactor;
+            parser_ = parser;
+            parser_.reset();
+            buf_ = new byte[ 2048 ];
+            bodyStart_ = -1;
+            lastActive_ = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads whatever bytes are available from the channel into this
+         * connection's buffer.
+         *
+         * @return   number of bytes read, or -1 at end of stream
+         */
+        int read() throws IOException {
+            if ( count_ == buf_.length ) {
+                byte[] buf = new byte[ buf_.length * 2 ];
+                System.arraycopy( buf_, 0, buf, 0, count_ );
+                buf_ = buf;
+            }
+            int nr = channel_.read( ByteBuffer.wrap( buf_, count_,
+                                                     buf_.length - count_ ) );
+            if ( nr > 0 ) {
+                lastActive_ = System.currentTimeMillis();
+                int scanFrom = count_;
+                count_ += nr;
+                scan( scanFrom );
+            }
+            return nr;
+        }
+
+        /**
+         * Returns the buffer index just after the last byte of the
+         * request.  Only valid if the request is complete.
+         * For a chunked body, the content length is the length of
+         * the raw chunked bytes.
+         *
+         * @return  request length in bytes
+         */
+        int getRequestEnd() {
+            return bodyStart_ + contentLength_;
+        }
+
+        /**
+         * Returns a connection state for the next request on the same
+         * channel, containing any bytes already read beyond the end
+         * of this one.  Only valid if this request is complete.
+         *
+         * @return   new connection state
+         */
+        Connection createNext() {
+            Connection next = new Connection( channel_, reactor_, parser_ );
+            int iend = getRequestEnd();
+            int nleft = count_ - iend;
+            if ( nleft > 0 ) {
+                if ( nleft > next.buf_.length ) {
+                    next.buf_ = new byte[ nleft ];
+                }
+                System.arraycopy( buf_, iend, next.buf_, 0, nleft );
+                next.count_ = nleft;
+                next.scan( 0 );
+            }
+            return next;
+        }
+
+        /**
+         * Indicates whether a complete request has been read,
+         * or no more need be read because it is malformed.
+         *
+         * @return  true iff the header and all body bytes are present,
+         *          or the header is in error
+         */
+        boolean isComplete() {
+            return error_ != null
+                || ( bodyStart_ >= 0 &&
+                     ( chunkScanner_ == null
+                           ? count_ - bodyStart_ >= contentLength_
+                           : chunkScanner_.isComplete() ) );
+        }
+
+        /**
+         * Returns the request read by this connection.
+         * If the input ended before a request was complete,
+         * null is returned if nothing at all was read, and otherwise
+         * an exception is thrown.
+         *
+         * @return  request, or null
+         * @throws  HttpServer.HttpException  if the request is malformed
+         */
+        HttpServer.Request createRequest() throws HttpServer.HttpException {
+            if ( error_ != null ) {
+                throw error_;
+            }
+            if ( bodyStart_ < 0 ) {
+                parser_.endOfInput();
+                if ( ! parser_.isComplete() ) {
+                    return null;
+                }
+                bodyStart_ = count_;
+            }
+            if ( ! isComplete() ) {
+                throw new HttpServer.HttpException( 400, chunkScanner_ == null
+                                                       ? "Insufficient bytes "
+                                                       + "for declared "
+                                                       + "Content-Length"
+                                                       : "Incomplete chunked "
+                                                       + "request body" );
+            }
+            // The body is read directly from this connection's buffer,
+            // which is not reused for the next request.
+            InputStream bodyIn =
+                new ByteArrayInputStream( buf_, bodyStart_, contentLength_ );
+            return parser_.createRequest( channel_.socket()
+                                         .getRemoteSocketAddress(), bodyIn );
+        }
+
+        /**
+         * Passes newly read bytes to the header parser, if the header
+         * is not yet complete, and if it completes records the start
+         * position and declared length of the body.
+         * Bytes of a chunked body are passed to the chunk scanner.
+         *
+         * @param  scanFrom  buffer index of first unparsed byte
+         */
+        private void scan( int scanFrom ) {
+            if ( error_ != null ) {
+                return;
+            }
+            try {
+                if ( bodyStart_ < 0 ) {
+                    int nc = parser_.parse( buf_, scanFrom, count_ - scanFrom );
+                    if ( parser_.isComplete() ) {
+                        bodyStart_ = scanFrom + nc;
+                        contentLength_ = parser_.getContentLength();
+                        if ( parser_.isChunked() ) {
+                            chunkScanner_ =
+                                new ChunkedInputStream
+                                   .Scanner( parser_.getMaxBodySize() );
+                            chunkScanned_ = bodyStart_;
+                        }
+                    }
+                }
+                if ( chunkScanner_ != null ) {
+                    scanChunks();
+                }
+            }
+            catch ( HttpServer.HttpException e ) {
+                error_ = e;
+            }
+        }
+
+        /**
+         * Follows the framing of a chunked body through the bytes read
+         * so far, skipping chunk data.
+         * When the body is complete, its raw length is recorded as the
+         * content length.
+         */
+        private void scanChunks() throws HttpServer.HttpException {
+            while ( chunkScanned_ < count_ && ! chunkScanner_.isComplete() ) {
+                long remaining = chunkScanner_.getDataRemaining();
+                if ( remaining > 0 ) {
+                    int nd = (int) Math.min( remaining,
+                                             count_ - chunkScanned_ );
+                    chunkScanner_.consumeData( nd );
+                    chunkScanned_ += nd;
+                }
+                else {
+                    chunkScanned_ +=
+                        chunkScanner_.scan( buf_, chunkScanned_,
+                                            count_ - chunkScanned_ );
+                }
+            }
+            if ( chunkScanner_.isComplete() ) {
+                contentLength_ = chunkScanned_ - bodyStart_;
+            }
+        }
+    }
+
+    /**
+     * OutputStream which writes to a non-blocking socket channel,
+     * waiting if necessary until the channel can accept more bytes.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel_;
+        private Selector writeSelector_;
+
+        /**
+         * Constructor.
+         *
+         * @param  channel  non-blocking channel
+         */
+        ChannelOutputStream( SocketChannel channel ) {
+            channel_ = channel;
+        }
+
+        public void write( int b ) throws IOException {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            ByteBuffer bbuf = ByteBuffer.wrap( b, off, len );
+            while ( bbuf.hasRemaining() ) {
+                if ( channel_.write( bbuf ) == 0 ) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        /**
+         * Blocks until the channel is ready for writing.
+         */
+        void awaitWritable() throws IOException {
+            if ( writeSelector_ == null ) {
+                writeSelector_ = Selector.open();
+                channel_.register( writeSelector_, SelectionKey.OP_WRITE );
+            }
+            if ( writeSelector_.select( WRITE_TIMEOUT_MILLIS ) == 0 ) {
+                throw new InterruptedIOException( "Write timeout" );
+            }
+            writeSelector_.selectedKeys().clear();
+        }
+
+        /**
+         * Releases any resources used for waiting on the channel.
+         */
+        void closeSelector() {
+            if ( writeSelector_ != null ) {
+                try {
+                    writeSelector_.close();
+                }
+                catch ( IOException e ) {
+                }
+                writeSelector_ = null;
+            }
+        }
+    }
+}
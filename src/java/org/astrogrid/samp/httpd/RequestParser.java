@@ -0,0 +1,860 @@
+package org.astrogrid.samp.httpd;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import org.astrogrid.samp.SampUtils;
+
+/**
+ * Incremental parser for the request line and headers of an HTTP/1.x
+ * request.
+ * Bytes are fed in as they arrive, in chunks of any size, and are
+ * examined once each by a simple state machine; no regular expressions
+ * are used and no strings are created until the header is complete.
+ * The header bytes are copied into an internal buffer, and the positions
+ * of the request line parts and header names and values are recorded
+ * so that strings can be decoded from them when the request is built.
+ *
+ * <p>A parser may be reused for successive requests on the same
+ * connection by calling {@link #reset}; its buffers are retained.
+ * Instances are not thread-safe.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class RequestParser {
+
+    private final int maxBodySize_;
+    private final byte[] readBuf_;
+    private byte[] buf_;
+    private int count_;
+    private int[] spans_;
+    private int nSpan_;
+    private int state_;
+    private int methodEnd_;
+    private int uriStart_;
+    private int uriEnd_;
+    private int protoStart_;
+    private int protoEnd_;
+    private int valueEnd_;
+    private int nByte_;
+    private int contentLength_;
+    private boolean isChunked_;
+
+    /** Maximum permitted size of a request header in bytes. */
+    public static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /** Number of ints used to record each header line. */
+    private static final int SPAN_INTS = 4;
+
+    private static final byte[] CONTENT_LENGTH_BYTES =
+        toAsciiBytes( "content-length" );
+    private static final byte[] TRANSFER_ENCODING_BYTES =
+        toAsciiBytes( "transfer-encoding" );
+
+    private static final int S_START = 0;
+    private static final int S_METHOD = 1;
+    private static final int S_URI = 2;
+    private static final int S_PROTOCOL = 3;
+    private static final int S_REQUEST_CR = 4;
+    private static final int S_LINE_START = 5;
+    private static final int S_NAME = 6;
+    private static final int S_VALUE_SPACE = 7;
+    private static final int S_VALUE = 8;
+    private static final int S_BAD_LINE = 9;
+    private static final int S_LINE_CR = 10;
+    private static final int S_END_CR = 11;
+    private static final int S_DONE = 12;
+
+    /**
+     * Constructor.
+     *
+     * @param  maxBodySize  maximum permitted declared Content-Length;
+     *                      requests declaring more are rejected
+     */
+    public RequestParser( int maxBodySize ) {
+        maxBodySize_ = maxBodySize;
+        readBuf_ = new byte[ 1024 ];
+        buf_ = new byte[ 512 ];
+        spans_ = new int[ 16 * SPAN_INTS ];
+        reset();
+    }
+
+    /**
+     * Prepares this parser to read a new request.
+     */
+    public void reset() {
+        count_ = 0;
+        nByte_ = 0;
+        nSpan_ = 0;
+        state_ = S_START;
+        methodEnd_ = -1;
+        uriStart_ = -1;
+        uriEnd_ = -1;
+        protoStart_ = -1;
+        protoEnd_ = -1;
+        contentLength_ = 0;
+        isChunked_ = false;
+    }
+
+    /**
+     * Indicates whether any bytes of the current request have been seen.
+     * Leading blank lines, which are permitted before a request line,
+     * do not count.
+     *
+     * @return  true iff some request bytes have been parsed
+     */
+    public boolean hasInput() {
+        return state_ != S_START;
+    }
+
+    /**
+     * Indicates whether the request header has been completely parsed.
+     *
+     * @return  true iff the header is complete
+     */
+    public boolean isComplete() {
+        return state_ == S_DONE;
+    }
+
+    /**
+     * Returns the declared length of the request body.
+     * Only valid once the header is complete.
+     *
+     * @return  value of the Content-Length header, or zero if absent
+     *          or if the body is chunked
+     */
+    public int getContentLength() {
+        return contentLength_;
+    }
+
+    /**
+     * Returns the maximum permitted request body size.
+     *
+     * @return  maximum body size in bytes
+     */
+    public int getMaxBodySize() {
+        return maxBodySize_;
+    }
+
+    /**
+     * Indicates whether the request body uses the chunked transfer coding,
+     * in which case its length is not declared in advance.
+     * Only valid once the header is complete.
+     *
+     * @return  true iff the body is chunked
+     */
+    public boolean isChunked() {
+        return isChunked_;
+    }
+
+    /**
+     * Parses bytes of a request header.
+     * Bytes are consumed up to the end of the header, but no further;
+     * any remaining bytes belong to the request body or to a
+     * following request.
+     *
+     * @param  b  buffer containing input bytes
+     * @param  off  offset of first byte to parse
+     * @param  len  number of bytes available
+     * @return   number of bytes consumed
+     * @throws  HttpServer.HttpException  with an HTTP status code
+     *          if the request is malformed
+     */
+    public int parse( byte[] b, int off, int len )
+            throws HttpServer.HttpException {
+        int i = 0;
+        while ( i < len && state_ != S_DONE ) {
+            if ( ++nByte_ > MAX_HEADER_BYTES ) {
+                throw new HttpServer.HttpException( 400, "Request header "
+                                                       + "too large" );
+            }
+            byte c = b[ off + i++ ];
+            switch ( state_ ) {
+                case S_START:
+                    if ( c == '\r' || c == '\n' ) {
+                        break;
+                    }
+                    if ( ! isTokenChar( c ) ) {
+                        throw new HttpServer.HttpException( 400,
+                                                            "Bad request" );
+                    }
+                    append( c );
+                    state_ = S_METHOD;
+                    break;
+                case S_METHOD:
+                    if ( c == ' ' ) {
+                        methodEnd_ = count_;
+                        uriStart_ = count_;
+                        state_ = S_URI;
+                    }
+                    else if ( isTokenChar( c ) ) {
+                        append( c );
+                    }
+                    else {
+                        throw new HttpServer.HttpException( 400,
+                                                            "Bad request" );
+                    }
+                    break;
+                case S_URI:
+                    if ( c == ' ' ) {
+                        uriEnd_ = count_;
+                        protoStart_ = count_;
+                        state_ = S_PROTOCOL;
+                    }
+                    else if ( c == '\r' || c == '\n' ) {
+                        uriEnd_ = count_;
+                        endRequestLine( c );
+                    }
+                    else {
+                        append( c );
+                    }
+                    break;
+                case S_PROTOCOL:
+                    if ( c == '\r' || c == '\n' ) {
+                        protoEnd_ = count_;
+                        endRequestLine( c );
+                    }
+                    else if ( c == ' ' ) {
+                        throw new HttpServer.HttpException( 400,
+                                                            "Bad request" );
+                    }
+                    else {
+                        append( c );
+                    }
+                    break;
+                case S_REQUEST_CR:
+                    requireLf( c );
+                    finishRequestLine();
+                    break;
+                case S_LINE_START:
+                    if ( c == '\r' ) {
+                        state_ = S_END_CR;
+                    }
+                    else if ( c == '\n' ) {
+                        finishHeader();
+                    }
+                    else if ( c == ' ' || c == '\t' ) {
+
+                        // Continuation of the previous line; ignored if
+                        // there is no previous header.
+                        if ( nSpan_ > 0 ) {
+                            addSpan( -1, -1 );
+                            state_ = S_VALUE_SPACE;
+                        }
+                        else {
+                            state_ = S_BAD_LINE;
+                        }
+                    }
+                    else if ( c == ':' ) {
+                        state_ = S_BAD_LINE;
+                    }
+                    else {
+                        addSpan( count_, -1 );
+                        append( c );
+                        state_ = S_NAME;
+                    }
+                    break;
+                case S_NAME:
+                    if ( c == ':' ) {
+                        spans_[ ( nSpan_ - 1 ) * SPAN_INTS + 1 ] = count_;
+                        state_ = S_VALUE_SPACE;
+                    }
+                    else if ( c == '\r' || c == '\n' ||
+                              c == ' ' || c == '\t' ) {
+
+                        // Not a header line; forget it.
+                        nSpan_--;
+                        count_ = spans_[ nSpan_ * SPAN_INTS ];
+                        if ( c == '\r' || c == '\n' ) {
+                            endLine( c );
+                        }
+                        else {
+                            state_ = S_BAD_LINE;
+                        }
+                    }
+                    else {
+                        append( c );
+                    }
+                    break;
+                case S_VALUE_SPACE:
+                    if ( c == ' ' || c == '\t' ) {
+                        break;
+                    }
+                    spans_[ ( nSpan_ - 1 ) * SPAN_INTS + 2 ] = count_;
+                    valueEnd_ = count_;
+                    state_ = S_VALUE;
+                    // fall through
+                case S_VALUE:
+                    if ( c == '\r' || c == '\n' ) {
+                        spans_[ ( nSpan_ - 1 ) * SPAN_INTS + 3 ] = valueEnd_;
+                        endLine( c );
+                    }
+                    else {
+                        append( c );
+                        if ( c != ' ' && c != '\t' ) {
+                            valueEnd_ = count_;
+                        }
+                    }
+                    break;
+                case S_BAD_LINE:
+                    if ( c == '\r' || c == '\n' ) {
+                        endLine( c );
+                    }
+                    break;
+                case S_LINE_CR:
+                    requireLf( c );
+                    state_ = S_LINE_START;
+                    break;
+                case S_END_CR:
+                    requireLf( c );
+                    finishHeader();
+                    break;
+                default:
+                    throw new AssertionError( "Bad state " + state_ );
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Resets this parser and reads a request header from a stream.
+     * If the stream supports marks, it is read in blocks and then
+     * repositioned so that it is left at the start of the body;
+     * otherwise it is read a byte at a time.
+     *
+     * @param  in  input stream
+     * @return  true if a header was read, false if the stream ended
+     *          before any request bytes were seen
+     * @throws  HttpServer.HttpException  with an HTTP status code
+     *          if the request is malformed or incomplete
+     */
+    public boolean readHeader( InputStream in ) throws IOException {
+        reset();
+        if ( in.markSupported() ) {
+            while ( ! isComplete() ) {
+                in.mark( readBuf_.length );
+                int nr = in.read( readBuf_ );
+                if ( nr < 0 ) {
+                    break;
+                }
+                int nc = parse( readBuf_, 0, nr );
+                if ( nc < nr ) {
+                    in.reset();
+                    while ( nc > 0 ) {
+                        nc -= (int) in.skip( nc );
+                    }
+                }
+            }
+        }
+        else {
+            for ( int c; ! isComplete() && ( c = in.read() ) >= 0; ) {
+                readBuf_[ 0 ] = (byte) c;
+                parse( readBuf_, 0, 1 );
+            }
+        }
+        if ( ! isComplete() ) {
+            endOfInput();
+        }
+        return isComplete();
+    }
+
+    /**
+     * Called when the input ends.
+     * If the bytes so far constitute an HTTP/0.9-style simple request
+     * lacking its line terminator, the request is marked complete.
+     *
+     * @throws  HttpServer.HttpException  with an HTTP status code
+     *          if some, but not all, of a request has been read
+     */
+    public void endOfInput() throws HttpServer.HttpException {
+        if ( state_ == S_URI ) {
+            uriEnd_ = count_;
+            finishRequestLine();
+        }
+        if ( state_ != S_DONE && state_ != S_START ) {
+            throw new HttpServer.HttpException( 400, "Incomplete request "
+                                                   + "header" );
+        }
+    }
+
+    /**
+     * Constructs a request object from the parsed header.
+     * Only valid once the header is complete.
+     *
+     * If the body is chunked, the request supplies the dechunked body.
+     * If the body has a supported <code>Content-Encoding</code>,
+     * the request supplies the decoded body, and the header is removed.
+     *
+     * @param  remoteAddress  address of requesting client
+     * @param  bodyIn  stream supplying the {@link #getContentLength}
+     *                 bytes of the request body, or the raw chunked body
+     *                 if {@link #isChunked}; ignored if there is no body
+     * @return   new request
+     * @throws  HttpServer.HttpException  if the body's content coding
+     *          is not supported
+     */
+    public HttpServer.Request createRequest( SocketAddress remoteAddress,
+                                             InputStream bodyIn )
+            throws HttpServer.HttpException {
+        if ( state_ != S_DONE ) {
+            throw new IllegalStateException( "Header incomplete" );
+        }
+        String method = decode( 0, methodEnd_ );
+        String uri = normaliseUri( decode( uriStart_, uriEnd_ ) );
+
+        // HTTP/0.9 simple request.
+        if ( protoStart_ < 0 ) {
+            return new HttpServer.Request( method, uri, new HashMap(),
+                                           remoteAddress, (byte[]) null,
+                                           "HTTP/0.9" );
+        }
+
+        // Decode the headers.
+        String protocol = decode( protoStart_, protoEnd_ );
+        HttpServer.HttpHeaderMap headerMap = new HttpServer.HttpHeaderMap();
+        for ( int is = 0; is < nSpan_; ) {
+            int ispan = is * SPAN_INTS;
+            String key = decode( spans_[ ispan + 0 ], spans_[ ispan + 1 ] );
+            StringBuffer vbuf =
+                new StringBuffer( decode( spans_[ ispan + 2 ],
+                                          spans_[ ispan + 3 ] ) );
+            for ( is++; is < nSpan_ && spans_[ is * SPAN_INTS ] < 0; is++ ) {
+                int icont = is * SPAN_INTS;
+                if ( spans_[ icont + 3 ] > spans_[ icont + 2 ] ) {
+                    vbuf.append( ' ' )
+                        .append( decode( spans_[ icont + 2 ],
+                                         spans_[ icont + 3 ] ) );
+                }
+            }
+            headerMap.addHeader( key, vbuf.toString() );
+        }
+        if ( contentLength_ <= 0 && ! isChunked_ ) {
+            return new HttpServer.Request( method, uri, headerMap,
+                                           remoteAddress, (byte[]) null,
+                                           protocol );
+        }
+        int bodyLength = contentLength_;
+        if ( isChunked_ ) {
+            bodyIn = new ChunkedInputStream( bodyIn, maxBodySize_ );
+            bodyLength = -1;
+        }
+        String coding =
+            HttpServer.getHeader( headerMap,
+                                  ContentEncoding.HDR_CONTENT_ENCODING );
+        return coding == null
+             ? new HttpServer.Request( method, uri, headerMap, remoteAddress,
+                                       bodyIn, bodyLength, protocol )
+             : createDecodedRequest( method, uri, headerMap, remoteAddress,
+                                     bodyIn, coding, protocol );
+    }
+
+    /**
+     * Constructs a request whose body is to be decoded according to
+     * its content coding.
+     * The size of the decoded body is limited to the maximum body size.
+     *
+     * @param  method  HTTP method
+     * @param  uri  request path
+     * @param  headerMap  request headers
+     * @param  remoteAddress  address of requesting client
+     * @param  bodyIn  stream supplying the encoded body
+     * @param  coding  Content-Encoding header value
+     * @param  protocol  protocol version
+     * @return  new request
+     */
+    private HttpServer.Request
+            createDecodedRequest( String method, String uri,
+                                  HttpServer.HttpHeaderMap headerMap,
+                                  SocketAddress remoteAddress,
+                                  InputStream bodyIn, String coding,
+                                  String protocol )
+            throws HttpServer.HttpException {
+        if ( ! ContentEncoding.isSupported( coding ) ) {
+            throw new HttpServer.HttpException( 415, "Unsupported "
+                                              + "Content-Encoding "
+                                              + coding );
+        }
+        InputStream decodedIn;
+        try {
+            decodedIn = ContentEncoding.createDecoder( bodyIn, coding );
+        }
+        catch ( IOException e ) {
+            throw new HttpServer.HttpException( 400, "Bad " + coding
+                                                   + " request body" );
+        }
+        for ( Iterator it = headerMap.keySet().iterator(); it.hasNext(); ) {
+            if ( ContentEncoding.HDR_CONTENT_ENCODING
+                .equalsIgnoreCase( (String) it.next() ) ) {
+                it.remove();
+            }
+        }
+        HttpServer.Request request =
+            new HttpServer.Request( method, uri, headerMap, remoteAddress,
+                                    new LimitInputStream( decodedIn,
+                                                          maxBodySize_ ),
+                                    -1, protocol );
+        request.setRawBodyStream( bodyIn );
+        return request;
+    }
+
+    /**
+     * Handles the end of the request line.
+     *
+     * @param  c  line terminator character, CR or LF
+     */
+    private void endRequestLine( byte c ) throws HttpServer.HttpException {
+        if ( c == '\r' ) {
+            state_ = S_REQUEST_CR;
+        }
+        else {
+            finishRequestLine();
+        }
+    }
+
+    /**
+     * Checks the completed request line.
+     */
+    private void finishRequestLine() throws HttpServer.HttpException {
+        if ( uriEnd_ <= uriStart_ ) {
+            throw new HttpServer.HttpException( 400, "Bad request" );
+        }
+
+        // No protocol means a simple request, which consists only of
+        // the request line.
+        if ( protoStart_ < 0 ) {
+            if ( methodEnd_ == 3 && buf_[ 0 ] == 'G' && buf_[ 1 ] == 'E'
+                                 && buf_[ 2 ] == 'T' ) {
+                state_ = S_DONE;
+            }
+            else {
+                throw new HttpServer.HttpException( 400, "Bad request" );
+            }
+        }
+        else if ( isHttpVersion( protoStart_, protoEnd_ ) ) {
+            state_ = S_LINE_START;
+        }
+        else {
+            throw new HttpServer.HttpException( 400, "Bad request" );
+        }
+    }
+
+    /**
+     * Handles the end of a header line.
+     *
+     * @param  c  line terminator character, CR or LF
+     */
+    private void endLine( byte c ) {
+        state_ = c == '\r' ? S_LINE_CR : S_LINE_START;
+    }
+
+    /**
+     * Completes the header, and extracts the content length and
+     * transfer coding.
+     * As required by RFC 7230 sec 3.3.3, a chunked transfer coding
+     * overrides any Content-Length.
+     */
+    private void finishHeader() throws HttpServer.HttpException {
+        state_ = S_DONE;
+        for ( int is = 0; is < nSpan_; is++ ) {
+            int ispan = is * SPAN_INTS;
+            int nameStart = spans_[ ispan + 0 ];
+            if ( nameStart >= 0 &&
+                 equalsIgnoreCase( nameStart, spans_[ ispan + 1 ],
+                                   CONTENT_LENGTH_BYTES ) ) {
+                contentLength_ = parseLength( spans_[ ispan + 2 ],
+                                              spans_[ ispan + 3 ] );
+            }
+            else if ( nameStart >= 0 &&
+                      equalsIgnoreCase( nameStart, spans_[ ispan + 1 ],
+                                        TRANSFER_ENCODING_BYTES ) ) {
+                String te = decode( spans_[ ispan + 2 ],
+                                    spans_[ ispan + 3 ] ).trim()
+                           .toLowerCase();
+                if ( te.equals( "chunked" ) ) {
+                    isChunked_ = true;
+                }
+                else if ( ! te.equals( "identity" ) ) {
+                    throw new HttpServer.HttpException( 501, "Unsupported "
+                                                      + "Transfer-Encoding "
+                                                      + te );
+                }
+            }
+        }
+        if ( isChunked_ ) {
+            contentLength_ = 0;
+        }
+        if ( contentLength_ > maxBodySize_ ) {
+            throw new HttpServer.HttpException( 413, "Request body too large"
+                                              + " (" + contentLength_ + ">"
+                                              + maxBodySize_ + ")" );
+        }
+    }
+
+    /**
+     * Parses a Content-Length value from the buffer.
+     *
+     * @param  start  start index of value
+     * @param  end   end index of value
+     * @return  non-negative length
+     */
+    private int parseLength( int start, int end )
+            throws HttpServer.HttpException {
+        long leng = 0;
+        for ( int i = start; i < end; i++ ) {
+            byte c = buf_[ i ];
+            if ( c < '0' || c > '9' || leng > Integer.MAX_VALUE ) {
+                leng = -1;
+                break;
+            }
+            leng = leng * 10 + ( c - '0' );
+        }
+        if ( end <= start || leng < 0 || leng > Integer.MAX_VALUE ) {
+            throw new HttpServer.HttpException( 400, "Failed to parse "
+                                              + "Content-Length header "
+                                              + decode( start, end ) );
+        }
+        return (int) leng;
+    }
+
+    /**
+     * Checks that the byte following a CR is an LF.
+     *
+     * @param  c  byte
+     */
+    private static void requireLf( byte c ) throws HttpServer.HttpException {
+        if ( c != '\n' ) {
+            throw new HttpServer.HttpException( 400, "CR w/o LF" );
+        }
+    }
+
+    /**
+     * Appends a byte to the header buffer.
+     *
+     * @param  c  byte
+     */
+    private void append( byte c ) {
+        if ( count_ == buf_.length ) {
+            byte[] buf = new byte[ buf_.length * 2 ];
+            System.arraycopy( buf_, 0, buf, 0, count_ );
+            buf_ = buf;
+        }
+        buf_[ count_++ ] = c;
+    }
+
+    /**
+     * Records the start of a new header line.
+     * Continuation lines are recorded with a negative name start.
+     *
+     * @param  nameStart  buffer index of name start, or -1
+     * @param  nameEnd   buffer index of name end, or -1
+     */
+    private void addSpan( int nameStart, int nameEnd ) {
+        if ( ( nSpan_ + 1 ) * SPAN_INTS > spans_.length ) {
+            int[] spans = new int[ spans_.length * 2 ];
+            System.arraycopy( spans_, 0, spans, 0, spans_.length );
+            spans_ = spans;
+        }
+        int ispan = nSpan_++ * SPAN_INTS;
+        spans_[ ispan + 0 ] = nameStart;
+        spans_[ ispan + 1 ] = nameEnd;
+        spans_[ ispan + 2 ] = -1;
+        spans_[ ispan + 3 ] = -1;
+    }
+
+    /**
+     * Indicates whether a buffer range contains an HTTP version string
+     * of the form HTTP/d.d.
+     *
+     * @param  start  start index
+     * @param  end   end index
+     * @return  true iff the range is a protocol version
+     */
+    private boolean isHttpVersion( int start, int end ) {
+        if ( end - start < 8 ||
+             buf_[ start ] != 'H' || buf_[ start + 1 ] != 'T' ||
+             buf_[ start + 2 ] != 'T' || buf_[ start + 3 ] != 'P' ||
+             buf_[ start + 4 ] != '/' ) {
+            return false;
+        }
+        int nDot = 0;
+        int nDigit = 0;
+        for ( int i = start + 5; i < end; i++ ) {
+            byte c = buf_[ i ];
+            if ( c == '.' ) {
+                if ( nDigit == 0 || nDot++ > 0 ) {
+                    return false;
+                }
+                nDigit = 0;
+            }
+            else if ( c >= '0' && c <= '9' ) {
+                nDigit++;
+            }
+            else {
+                return false;
+            }
+        }
+        return nDot == 1 && nDigit > 0;
+    }
+
+    /**
+     * Compares a buffer range case-insensitively with lower-case
+     * ASCII bytes.
+     *
+     * @param  start  start index
+     * @param  end   end index
+     * @param  lower  lower-case bytes to compare with
+     * @return  true iff they match
+     */
+    private boolean equalsIgnoreCase( int start, int end, byte[] lower ) {
+        if ( end - start != lower.length ) {
+            return false;
+        }
+        for ( int i = 0; i < lower.length; i++ ) {
+            byte c = buf_[ start + i ];
+            if ( c >= 'A' && c <= 'Z' ) {
+                c += 'a' - 'A';
+            }
+            if ( c != lower[ i ] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a buffer range as ISO-8859-1 text.
+     *
+     * @param  start  start index
+     * @param  end   end index
+     * @return   string
+     */
+    private String decode( int start, int end ) {
+        int n = end - start;
+        char[] chrs = new char[ n ];
+        for ( int i = 0; i < n; i++ ) {
+            chrs[ i ] = (char) ( buf_[ start + i ] & 0xff );
+        }
+        return new String( chrs );
+    }
+
+    /**
+     * Indicates whether a byte may appear in an HTTP token,
+     * such as a method name.
+     *
+     * @param  c  byte
+     * @return  true iff c is a token character
+     */
+    private static boolean isTokenChar( byte c ) {
+        return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' )
+            || ( c >= '0' && c <= '9' )
+            || c == '_' || c == '.' || c == '-';
+    }
+
+    /**
+     * Decodes escaped characters in a requested URI, and turns an
+     * absolute http URI into a path.
+     *
+     * @param  uri  URI from request line
+     * @return  path part, possibly with query
+     */
+    private static String normaliseUri( String uri ) {
+        uri = SampUtils.uriDecode( uri );
+
+        // Make sure it's a relative URI (probably not necessary
+        // at HTTP 1.1).
+        if ( uri.startsWith( "http://" ) ) {
+            try {
+                URL url = new URL( uri );
+                String path = url.getPath();
+                String query = url.getQuery();
+                if ( query != null ) {
+                    path += '?' + query;
+                }
+                uri = path;
+            }
+            catch ( MalformedURLException e ) {
+                // never mind
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Converts an ASCII string to bytes.
+     *
+     * @param  txt  ASCII string
+     * @return  byte array
+     */
+    private static byte[] toAsciiBytes( String txt ) {
+        int n = txt.length();
+        byte[] bytes = new byte[ n ];
+        for ( int i = 0; i < n; i++ ) {
+            bytes[ i ] = (byte) txt.charAt( i );
+        }
+        return bytes;
+    }
+
+    /**
+     * Input stream which fails if more than a given number of bytes
+     * are read from it.
+     */
+    private static class LimitInputStream extends FilterInputStream {
+        private final int limit_;
+        private long remaining_;
+
+        /**
+         * Constructor.
+         *
+         * @param  in  base stream
+         * @param  limit  maximum number of bytes that may be read
+         */
+        LimitInputStream( InputStream in, int limit ) {
+            super( in );
+            limit_ = limit;
+            remaining_ = limit;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if ( b >= 0 && --remaining_ < 0 ) {
+                throw createTooLargeException();
+            }
+            return b;
+        }
+
+        public int read( byte[] buf, int off, int len ) throws IOException {
+            int nr = in.read( buf, off, len );
+            if ( nr > 0 && ( remaining_ -= nr ) < 0 ) {
+                throw createTooLargeException();
+            }
+            return nr;
+        }
+
+        public long skip( long n ) throws IOException {
+            byte[] buf = new byte[ (int) Math.min( n, 4096 ) ];
+            int nr = read( buf, 0, buf.length );
+            return nr < 0 ? 0 : nr;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Returns an exception indicating that the limit has been exceeded.
+         *
+         * @return  new exception
+         */
+        private IOException createTooLargeException() {
+            return new HttpServer.HttpException( 413, "Decoded request body "
+                                                    + "too large (>"
+                                                    + limit_ + ")" );
+        }
+    }
+}
@@ -18,7 +18,7 @@ import java.util.logging.Logger;
  * @author   Mark Taylor
  * @since    7 Jan 2009
  */
-public class ResourceHandler implements HttpServer.Handler {
+public class ResourceHandler implements HttpServer.PrefixHandler {
     private final String basePath_;
     private final URL serverUrl_;
     private final Map resourceMap_;
@@ -105,6 +105,10 @@ public class ResourceHandler implements HttpServer.Handler {
         }
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
         String path = request.getUrl();
         if ( ! path.startsWith( basePath_ ) ) {
@@ -1,5 +1,6 @@
 package org.astrogrid.samp.httpd;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,6 +9,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import org.astrogrid.samp.SampUtils;
 
 /**
  * Handler implementation which allows the server to serve resources which
@@ -19,7 +21,7 @@ import java.util.Map;
  * @author   Mark Taylor
  * @since    8 Jan 2009
  */
-public class URLMapperHandler implements HttpServer.Handler {
+public class URLMapperHandler implements HttpServer.PrefixHandler {
     private final String basePath_;
     private final URL baseUrl_;
     private final URL sourceUrl_;
@@ -65,6 +67,10 @@ public class URLMapperHandler implements HttpServer.Handler {
         return baseUrl_;
     }
 
+    public String getPathPrefix() {
+        return basePath_;
+    }
+
     public HttpServer.Response serveRequest( HttpServer.Request request ) {
 
         // Determine the source URL from which the data will be obtained.
@@ -93,12 +99,36 @@ public class URLMapperHandler implements HttpServer.Handler {
         }
 
         // Forward header and data from the source URL to the response.
-        return mapUrlResponse( request.getMethod(), srcUrl );
+        return mapUrlResponse( request, srcUrl );
+    }
+
+    /**
+     * Repackages a resource from a given target URL as an HTTP response
+     * to a given request.
+     * If the URL refers to a regular file in the local filesystem,
+     * it is served by a {@link FileResponse}, which supports
+     * conditional and range requests;
+     * otherwise this behaves like {@link #mapUrlResponse(String,URL)}.
+     *
+     * @param  request  HTTP request
+     * @param  targetUrl  URL containing the resource to forward
+     * @return   response redirecting to the given target URL
+     */
+    public static HttpServer.Response mapUrlResponse( HttpServer.Request
+                                                      request,
+                                                      URL targetUrl ) {
+        File file = SampUtils.urlToFile( targetUrl );
+        return file != null && file.isFile()
+             ? FileResponse.createResponse( request, file, null )
+             : mapUrlResponse( request.getMethod(), targetUrl );
     }
 
     /**
      * Repackages a resource from a given target URL as an HTTP response.
      * The data and relevant headers are copied straight through.
+     * The data are streamed without buffering; if the upstream length
+     * is not known, the HTTP server sends them to HTTP/1.1 clients
+     * using the chunked transfer coding.
      * GET and HEAD methods are served.
      *
      * @param  method  HTTP method
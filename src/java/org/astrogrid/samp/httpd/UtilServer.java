@@ -6,9 +6,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -50,6 +52,36 @@ public class UtilServer {
      */
     public static final String PORT_PROP = "jsamp.server.port";
 
+    /**
+     * System Property key indicating whether the default server
+     * uses the selector-based rather than the thread-per-connection
+     * request processing engine.
+     * Set it to "true" to use the selector-based engine.
+     * The property name is {@value}.
+     *
+     * @see  HttpServer#HttpServer(java.net.ServerSocket,boolean)
+     */
+    public static final String NIO_PROP = "jsamp.server.nio";
+
+    /**
+     * System Property key giving the maximum number of worker threads
+     * for the default server.
+     * The property name is {@value}.
+     *
+     * @see  HttpServer#setWorkerLimits
+     */
+    public static final String WORKERS_PROP = "jsamp.server.workers";
+
+    /**
+     * System Property key giving the maximum number of requests which
+     * may wait for a worker thread in the default server before
+     * further requests are refused.
+     * The property name is {@value}.
+     *
+     * @see  HttpServer#setWorkerLimits
+     */
+    public static final String QUEUE_PROP = "jsamp.server.queue";
+
     /** Buffer size for copy data from input to output stream. */
     private static int BUFSIZ = 16 * 1024;
 
@@ -217,12 +249,14 @@ public class UtilServer {
      */
     public static synchronized UtilServer getInstance() throws IOException {
         if ( instance_ == null ) {
+            boolean isNio = Boolean.valueOf( System.getProperty( NIO_PROP ) )
+                                   .booleanValue();
             ServerSocket sock = null;
             String sPort = System.getProperty( PORT_PROP );
             if ( sPort != null && sPort.length() > 0 ) {
                 int port = Integer.parseInt( sPort );
                 try {
-                    sock = new ServerSocket( port );
+                    sock = createServerSocket( port, isNio );
                 }
                 catch ( BindException e ) {
                     logger_.warning( "Can't open socket on port " + port
@@ -230,16 +264,46 @@ public class UtilServer {
                 }
             }
             if ( sock == null ) {
-                sock = new ServerSocket( 0 );
+                sock = createServerSocket( 0, isNio );
             }
-            HttpServer server = new HttpServer( sock );
+            HttpServer server = new HttpServer( sock, isNio );
             server.setDaemon( true );
+            server.setWorkerLimits(
+                Integer.getInteger( WORKERS_PROP,
+                                    HttpServer.DEFAULT_MAX_WORKERS )
+                       .intValue(),
+                Integer.getInteger( QUEUE_PROP,
+                                    HttpServer.DEFAULT_MAX_QUEUE )
+                       .intValue() );
             server.start();
             instance_ = new UtilServer( server );
         }
         return instance_;
     }
 
+    /**
+     * Returns a new server socket bound to a given port.
+     * If a channel is requested, the socket is obtained from a
+     * {@link java.nio.channels.ServerSocketChannel}, which makes it
+     * suitable for use with the selector-based HttpServer engine.
+     *
+     * @param  port  port number, or 0 for any free port
+     * @param  withChannel  whether the socket must have a channel
+     * @return  bound server socket
+     */
+    public static ServerSocket createServerSocket( int port,
+                                                   boolean withChannel )
+            throws IOException {
+        if ( withChannel ) {
+            ServerSocket sock = ServerSocketChannel.open().socket();
+            sock.bind( new InetSocketAddress( port ) );
+            return sock;
+        }
+        else {
+            return new ServerSocket( port );
+        }
+    }
+
     /**
      * Sets the default instance of this class.
      *
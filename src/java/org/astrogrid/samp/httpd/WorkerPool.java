@@ -0,0 +1,190 @@
+package org.astrogrid.samp.httpd;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.ExecutionMode;
+
+/**
+ * Bounded pool of worker threads which execute queued tasks.
+ * Threads are started on demand up to a fixed maximum,
+ * and exit again if they have been idle for a while.
+ * Tasks which cannot be started immediately wait in a queue of
+ * limited length; when that is full, further tasks are refused.
+ * Whether the workers are platform or virtual threads is determined
+ * by a supplied {@link org.astrogrid.samp.ExecutionMode}.
+ *
+ * @author   agent
+ * @since    14 Oct 2026
+ */
+public class WorkerPool {
+
+    private final String name_;
+    private final int maxThreads_;
+    private final int maxQueue_;
+    private final ExecutionMode execMode_;
+    private final boolean isDaemon_;
+    private final LinkedList queue_;
+    private int nThread_;
+    private int nIdle_;
+    private int iThread_;
+    private long nRejected_;
+    private boolean shutdown_;
+
+    /** Time in milliseconds an idle worker waits before exiting. */
+    private static final long IDLE_MILLIS = 60 * 1000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( WorkerPool.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  name   base name for worker threads
+     * @param  maxThreads  maximum number of concurrently running workers
+     * @param  maxQueue  maximum number of tasks waiting for a worker
+     * @param  execMode  determines the kind of worker thread
+     * @param  isDaemon   whether worker threads are daemon threads;
+     *                    ignored for virtual threads
+     */
+    public WorkerPool( String name, int maxThreads, int maxQueue,
+                       ExecutionMode execMode, boolean isDaemon ) {
+        name_ = name;
+        maxThreads_ = Math.max( 1, maxThreads );
+        maxQueue_ = Math.max( 0, maxQueue );
+        execMode_ = execMode;
+        isDaemon_ = isDaemon;
+        queue_ = new LinkedList();
+    }
+
+    /**
+     * Queues a task for execution by one of this pool's workers,
+     * if there is room for it.
+     * If no worker is idle and the maximum has not been reached,
+     * a new one is started.
+     * If all workers are busy and the queue is full, the task is
+     * refused and counted as rejected.
+     *
+     * @param  task  task to execute
+     * @return   true if the task was accepted, false if it was rejected
+     * @throws  IllegalStateException  if this pool has been shut down
+     */
+    public synchronized boolean offer( Runnable task ) {
+        if ( shutdown_ ) {
+            throw new IllegalStateException( "Pool " + name_ + " shut down" );
+        }
+        if ( queue_.size() >= nIdle_ + ( maxThreads_ - nThread_ )
+                                      + maxQueue_ ) {
+            nRejected_++;
+            return false;
+        }
+        queue_.addLast( task );
+        if ( nIdle_ < queue_.size() && nThread_ < maxThreads_ ) {
+            Runnable workLoop = new Runnable() {
+                public void run() {
+                    work();
+                }
+            };
+            Thread worker =
+                execMode_.createThread( workLoop, name_ + "-" + ++iThread_,
+                                        isDaemon_ );
+            nThread_++;
+            worker.start();
+        }
+        else {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether a task offered now would start running
+     * without waiting in the queue.
+     *
+     * @return  true iff there is an idle worker or room for a new one
+     */
+    public synchronized boolean hasSpareCapacity() {
+        return queue_.size() < nIdle_ + ( maxThreads_ - nThread_ );
+    }
+
+    /**
+     * Returns the number of accepted tasks waiting for a worker.
+     *
+     * @return  queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return Math.max( 0, queue_.size() - nIdle_ );
+    }
+
+    /**
+     * Returns the number of workers currently executing tasks.
+     *
+     * @return  busy worker count
+     */
+    public synchronized int getActiveCount() {
+        return nThread_ - nIdle_;
+    }
+
+    /**
+     * Returns the total number of tasks which have been refused
+     * because the pool was saturated.
+     *
+     * @return  rejection count
+     */
+    public synchronized long getRejectedCount() {
+        return nRejected_;
+    }
+
+    /**
+     * Prevents further tasks from being queued.
+     * Tasks already queued are still executed.
+     */
+    public synchronized void shutdown() {
+        shutdown_ = true;
+        notifyAll();
+    }
+
+    /**
+     * Main loop for worker threads.
+     */
+    private void work() {
+        for ( Runnable task; ( task = nextTask() ) != null; ) {
+            try {
+                task.run();
+            }
+            catch ( Throwable e ) {
+                logger_.log( Level.WARNING, name_ + " task error", e );
+            }
+        }
+    }
+
+    /**
+     * Waits for and returns the next task to execute.
+     * Null is returned if the calling worker should exit,
+     * in which case it is no longer counted as one of this pool's workers.
+     *
+     * @return  next task, or null
+     */
+    private synchronized Runnable nextTask() {
+        long idleEnd = System.currentTimeMillis() + IDLE_MILLIS;
+        while ( queue_.isEmpty() ) {
+            long millis = idleEnd - System.currentTimeMillis();
+            if ( shutdown_ || millis <= 0 ) {
+                nThread_--;
+                return null;
+            }
+            nIdle_++;
+            try {
+                wait( millis );
+            }
+            catch ( InterruptedException e ) {
+                nThread_--;
+                return null;
+            }
+            finally {
+                nIdle_--;
+            }
+        }
+        return (Runnable) queue_.removeFirst();
+    }
+}
@@ -0,0 +1,62 @@
+package org.astrogrid.samp.hub;
+
+import java.util.Map;
+import org.astrogrid.samp.Response;
+import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.client.SampException;
+
+/**
+ * HubConnection which can perform the synchronous <code>callAndWait</code>
+ * operation without blocking the calling thread.
+ * This allows hub profiles to service a large number of outstanding
+ * synchronous calls without devoting a thread to each one.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface AsyncHubConnection extends HubConnection {
+
+    /**
+     * Sends a message to a given client, and arranges for the response
+     * to be passed to a callback when it arrives.
+     * The semantics are those of
+     * {@link org.astrogrid.samp.client.HubConnection#callAndWait},
+     * except that this method returns as soon as the message has been
+     * sent, and the outcome is passed to the callback, possibly on
+     * another thread and possibly before this method returns.
+     * Exactly one of the callback methods will be invoked, unless
+     * this method throws an exception, in which case neither will be.
+     *
+     * @param  recipientId  public-id of client to receive message
+     * @param  msg  {@link org.astrogrid.samp.Message}-like map
+     * @param  timeout  timeout in seconds, or <code>&lt;=0</code>
+     *                  for no timeout
+     * @param  callback  receives the outcome of the call
+     */
+    void callAndWait( String recipientId, Map msg, int timeout,
+                      Callback callback )
+            throws SampException;
+
+    /**
+     * Receives the outcome of an asynchronously handled synchronous call.
+     * Implementations should return quickly, since they may be invoked
+     * from a thread used for other purposes.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the recipient has responded.
+         *
+         * @param  response  response from recipient
+         */
+        void completed( Response response );
+
+        /**
+         * Called if no response will be received,
+         * for instance because the call timed out.
+         *
+         * @param  error  reason for failure
+         */
+        void failed( SampException error );
+    }
+}
@@ -1,16 +1,23 @@
 package org.astrogrid.samp.hub;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.astrogrid.samp.ErrInfo;
+import org.astrogrid.samp.ExecutionMode;
 import org.astrogrid.samp.Message;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.RegInfo;
@@ -21,10 +28,31 @@ import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
 import org.astrogrid.samp.httpd.UtilServer;
+import org.astrogrid.samp.httpd.WorkerPool;
 
 /**
  * HubService implementation.
  *
+ * <p>Messages sent by clients to all subscribed clients
+ * (<code>notifyAll</code> and <code>callAll</code>) are not delivered
+ * on the sender's thread, but placed on a {@link DeliveryQueue} for
+ * each recipient, so that a slow or unresponsive client does not delay
+ * delivery to the others or the return to the sender.
+ * If a queued call cannot be delivered, the sender is sent an error
+ * response in its place.
+ * When a client unregisters, deliveries still waiting for it are
+ * discarded, and one already in progress is given a short time to
+ * complete, so that it does not arrive after the client has dismantled
+ * its callback endpoint.
+ * Hub event notifications (<code>samp.hub.event.*</code>) are however
+ * sent directly by the thread making the change they describe,
+ * so that they are dispatched in the same order as the changes,
+ * and before the method which caused them returns.
+ * Connections are {@link AsyncHubConnection}s, so that profiles can
+ * service synchronous calls without a thread waiting for each response.
+ * If {@link HubMetrics} are enabled, message deliveries and other
+ * activity are recorded there.
+ *
  * @author   Mark Taylor
  * @since    15 Jul 2008
  */
@@ -33,9 +61,17 @@ public class BasicHubService implements HubService {
     private final KeyGenerator keyGen_;
     private final ClientIdGenerator idGen_;
     private final Map waiterMap_;
+    private final Map queueMap_;
+    private final int deliveryQueueSize_;
+    private final long flushMillis_;
+    private final WorkerPool deliveryPool_;
+    private final SubscriptionIndex subsIndex_;
+    private final HubMetrics metrics_;
+    private final HubMetrics.Gauge[] gauges_;
     private ClientSet clientSet_;
     private HubClient serviceClient_;
     private HubConnection serviceClientConnection_;
+    private Timer timer_;
     private volatile boolean started_;
     private volatile boolean shutdown_;
     private static final char ID_DELIMITER = '_';
@@ -50,6 +86,12 @@ public class BasicHubService implements HubService {
         }
     };
 
+    /** Names of the gauges reported by this service to HubMetrics. */
+    private static final String[] GAUGE_NAMES = new String[] {
+        "hub.pendingSynchCalls",
+        "hub.deliveryQueueDepth",
+    };
+
     /** The maximum timeout for a synchronous call permitted in seconds.
      *  Default is 43200 = 12 hours. */
     public static int MAX_TIMEOUT = 12 * 60 * 60;
@@ -58,20 +100,82 @@ public class BasicHubService implements HubService {
      *  Default is 100. */
     public static int MAX_WAITERS = 100;
 
+    /** Default maximum number of messages waiting for delivery to
+     *  each client. */
+    public static final int DEFAULT_DELIVERY_QUEUE_SIZE = 1000;
+
+    /** Default number of pooled threads delivering broadcast messages. */
+    public static final int DEFAULT_DELIVERY_THREADS = 16;
+
+    /** Default time in milliseconds to wait for outstanding deliveries
+     *  when a client unregisters or the hub shuts down. */
+    public static final long DEFAULT_FLUSH_MILLIS = 2000;
+
     /**
-     * Constructor.
+     * Constructs a service with default delivery settings.
      *
      * @param  random   random number generator used for message tags etc
      */
     public BasicHubService( Random random ) {
+        this( random, DEFAULT_DELIVERY_QUEUE_SIZE, DEFAULT_DELIVERY_THREADS,
+              DEFAULT_FLUSH_MILLIS );
+    }
+
+    /**
+     * Constructs a service with given delivery settings.
+     *
+     * @param  random   random number generator used for message tags etc
+     * @param  deliveryQueueSize  maximum number of broadcast messages
+     *                            waiting for delivery to each client
+     * @param  deliveryThreads  number of pooled threads delivering
+     *                          broadcast messages
+     * @param  flushMillis  time in milliseconds to wait for outstanding
+     *                      deliveries to a client when it unregisters,
+     *                      and to all clients when the hub shuts down
+     */
+    public BasicHubService( Random random, int deliveryQueueSize,
+                            int deliveryThreads, long flushMillis ) {
+        deliveryQueueSize_ = deliveryQueueSize;
+        flushMillis_ = flushMillis;
 
         // Prepare ID generators.
         keyGen_ = new KeyGenerator( "m:", 16, random );
         idGen_ = new ClientIdGenerator( "c" );
 
         // Prepare the data structure which keeps track of pending synchronous
-        // calls.
-        waiterMap_ = Collections.synchronizedMap( new HashMap() );
+        // calls.  Since entries are added as calls are made, the iteration
+        // order of this map is oldest first.
+        waiterMap_ = new LinkedHashMap();
+
+        // Prepare the per-recipient queues for broadcast messages.
+        queueMap_ = new HashMap();
+        deliveryPool_ = new WorkerPool( "SAMP Hub Delivery", deliveryThreads,
+                                        0, ExecutionMode.getDefault(), true );
+
+        // Prepare the index used to find the clients subscribed to an MType.
+        subsIndex_ = new SubscriptionIndex();
+
+        // Prepare to record metrics, if enabled.
+        metrics_ = HubMetrics.getDefault();
+        gauges_ = new HubMetrics.Gauge[] {
+            new HubMetrics.Gauge() {
+                public long getValue() {
+                    synchronized ( waiterMap_ ) {
+                        return waiterMap_.size();
+                    }
+                }
+            },
+            new HubMetrics.Gauge() {
+                public long getValue() {
+                    DeliveryQueue[] queues = getDeliveryQueues();
+                    long depth = 0;
+                    for ( int iq = 0; iq < queues.length; iq++ ) {
+                        depth += queues[ iq ].getQueueDepth();
+                    }
+                    return depth;
+                }
+            },
+        };
     }
 
     public void start() {
@@ -103,7 +207,19 @@ public class BasicHubService implements HubService {
                                    createHubMessageHandlers() );
         serviceClient_.setCallable( hubCallable );
         serviceClient_.setSubscriptions( hubCallable.getSubscriptions() );
+        subsIndex_.setSubscriptions( serviceClient_,
+                                     serviceClient_.getSubscriptions() );
         clientSet_.add( serviceClient_ );
+        if ( metrics_ != null ) {
+            metrics_.addGauge( GAUGE_NAMES[ 0 ], gauges_[ 0 ] );
+            metrics_.addGauge( GAUGE_NAMES[ 1 ], gauges_[ 1 ] );
+            try {
+                metrics_.publish();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Can't publish hub metrics", e );
+            }
+        }
         started_ = true;
     }
 
@@ -113,7 +229,7 @@ public class BasicHubService implements HubService {
      * @return  client set 
      */
     protected ClientSet createClientSet() {
-        return new BasicClientSet( getIdComparator() ) {
+        return new SnapshotClientSet( getIdComparator() ) {
             public void add( HubClient client ) {
                 assert client.getId().indexOf( ID_DELIMITER ) < 0;
                 super.add( client );
@@ -121,6 +237,37 @@ public class BasicHubService implements HubService {
         };
     }
 
+    /**
+     * Factory method used to create the queue for messages broadcast
+     * to a given client.
+     * The default implementation uses the capacity given at
+     * construction time and the
+     * {@link OverflowPolicy#REJECT REJECT} policy.
+     *
+     * @param  recipient  client which will receive messages
+     * @param  pool   pool supplying dispatcher threads
+     * @return  new delivery queue
+     */
+    protected DeliveryQueue createDeliveryQueue( HubClient recipient,
+                                                 WorkerPool pool ) {
+        return new DeliveryQueue( recipient.getId(), deliveryQueueSize_,
+                                  OverflowPolicy.REJECT, pool );
+    }
+
+    /**
+     * Returns the queues currently in use for broadcast messages,
+     * one for each client that has been sent a broadcast since it
+     * registered.  These may be interrogated for monitoring purposes.
+     *
+     * @return  array of delivery queues
+     */
+    public DeliveryQueue[] getDeliveryQueues() {
+        synchronized ( queueMap_ ) {
+            return (DeliveryQueue[])
+                   queueMap_.values().toArray( new DeliveryQueue[ 0 ] );
+        }
+    }
+
     /**
      * Factory method used to create all the client objects which will
      * be used by this hub service.
@@ -206,7 +353,7 @@ public class BasicHubService implements HubService {
         final RegInfo regInfo = new RegInfo();
         regInfo.put( RegInfo.HUBID_KEY, serviceClient_.getId() );
         regInfo.put( RegInfo.SELFID_KEY, caller.getId() );
-        return new HubConnection() {
+        return new AsyncHubConnection() {
             public RegInfo getRegInfo() {
                 return regInfo;
             }
@@ -282,6 +429,13 @@ public class BasicHubService implements HubService {
                 return service.callAndWait( caller, recipientId, message,
                                             timeout );
             }
+            public void callAndWait( String recipientId, Map message,
+                                     int timeout, Callback callback )
+                    throws SampException {
+                checkCaller();
+                service.callAndWait( caller, recipientId, message, timeout,
+                                     callback );
+            }
 
             /**
              * Checks that this connection's client is able to make calls
@@ -304,7 +458,22 @@ public class BasicHubService implements HubService {
      * @see   org.astrogrid.samp.client.HubConnection#unregister
      */
     protected void unregister( HubClient caller ) throws SampException {
-        clientSet_.remove( caller );
+        DeliveryQueue queue = removeClient( caller );
+
+        // Let a delivery in progress finish before returning, since the
+        // client may tear down its callback endpoint once it has
+        // unregistered.
+        if ( queue != null ) {
+            try {
+                if ( ! queue.flush( flushMillis_ ) ) {
+                    logger_.info( "Delivery to " + caller
+                                + " still in progress at unregister" );
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
         hubEvent( new Message( "samp.hub.event.unregister" )
                      .addParam( "id", caller.getId() ) );
     }
@@ -369,10 +538,13 @@ public class BasicHubService implements HubService {
         Subscriptions subs = Subscriptions.asSubscriptions( subscriptions );
         subs.check();
         caller.setSubscriptions( subs );
+        subsIndex_.setSubscriptions( caller, subs );
+        if ( ! clientSet_.containsClient( caller ) ) {
+            subsIndex_.removeClient( caller );
+        }
         String callerId = caller.getId();
-        String serviceId = serviceClient_.getId();
         String mtype = "samp.hub.event.subscriptions";
-        HubClient[] recipients = clientSet_.getClients();
+        HubClient[] recipients = getSubscribers( mtype );
         for ( int ic = 0; ic < recipients.length; ic++ ) {
             HubClient recipient = recipients[ ic ];
             if ( recipient != serviceClient_ &&
@@ -382,15 +554,7 @@ public class BasicHubService implements HubService {
                 msg.addParam( "id", callerId );
                 msg.addParam( "subscriptions",
                               getSubscriptionsFor( recipient, subs ) );
-                try {
-                    recipient.getCallable()
-                             .receiveNotification( serviceId, msg );
-                }
-                catch ( Exception e ) {
-                    logger_.log( Level.WARNING,
-                                 "Notification " + caller + " -> " + recipient
-                               + " failed: " + e, e );
-                }
+                sendEvent( recipient, msg );
             }
         }
     }
@@ -443,11 +607,12 @@ public class BasicHubService implements HubService {
      */
     protected Map getSubscribedClients( HubClient caller, String mtype )
             throws SampException {
-        HubClient[] clients = clientSet_.getClients();
+        HubClient[] clients = getSubscribers( mtype );
         Map subMap = new TreeMap(); 
         for ( int ic = 0; ic < clients.length; ic++ ) {
             HubClient client = clients[ ic ];
-            if ( ! client.equals( caller ) ) {
+            if ( ! client.equals( caller ) &&
+                 clientSet_.containsClient( client ) ) {
                 Map sub = client.getSubscriptions().getSubscription( mtype );
                 if ( sub != null && canSend( caller, client, mtype ) ) {
                     subMap.put( client.getId(), sub );
@@ -468,13 +633,16 @@ public class BasicHubService implements HubService {
      */
     protected void notify( HubClient caller, String recipientId, Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = copyMessage( message );
         msg.check();
         String mtype = msg.getMType();
         HubClient recipient = getClient( recipientId );
         checkSend( caller, recipient, mtype );
+        long start = System.currentTimeMillis();
+        boolean success = false;
         try {
             recipient.getCallable().receiveNotification( caller.getId(), msg );
+            success = true;
         }
         catch ( SampException e ) {
             throw e;
@@ -482,6 +650,12 @@ public class BasicHubService implements HubService {
         catch ( Exception e ) {
             throw new SampException( e.getMessage(), e );
         }
+        finally {
+            if ( metrics_ != null ) {
+                metrics_.recordDelivery( HubMetrics.NOTIFY, caller, recipient,
+                                         mtype, start, success );
+            }
+        }
     }
 
     /**
@@ -498,14 +672,17 @@ public class BasicHubService implements HubService {
     protected String call( HubClient caller, String recipientId, String msgTag,
                            Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = copyMessage( message );
         msg.check();
         String mtype = msg.getMType();
         HubClient recipient = getClient( recipientId );
         String msgId = MessageId.encode( caller, msgTag, false );
         checkSend( caller, recipient, mtype );
+        long start = System.currentTimeMillis();
+        boolean success = false;
         try {
             recipient.getCallable().receiveCall( caller.getId(), msgId, msg );
+            success = true;
         }
         catch ( SampException e ) {
             throw e;
@@ -513,6 +690,12 @@ public class BasicHubService implements HubService {
         catch ( Exception e ) {
             throw new SampException( e.getMessage(), e );
         }
+        finally {
+            if ( metrics_ != null ) {
+                metrics_.recordDelivery( HubMetrics.CALL, caller, recipient,
+                                         mtype, start, success );
+            }
+        }
         return msgId;
     }
 
@@ -522,30 +705,26 @@ public class BasicHubService implements HubService {
      *
      * @param   caller   calling client
      * @param   message   message
-     * @return  list of public IDs for clients to which the notify will be sent
+     * @return  list of public IDs for clients to which the notification
+     *          has been queued for delivery; since delivery is
+     *          asynchronous, it may yet fail for some of them
      * @see  org.astrogrid.samp.client.HubConnection#notifyAll
      */
     protected List notifyAll( HubClient caller, Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = copyMessage( message );
         msg.check();
         String mtype = msg.getMType();
-        HubClient[] recipients = clientSet_.getClients();
+        HubClient[] recipients = getSubscribers( mtype );
         List sentList = new ArrayList();
+        long deadline = System.currentTimeMillis()
+                      + DeliveryQueue.DEFAULT_BLOCK_MILLIS;
         for ( int ic = 0; ic < recipients.length; ic++ ) {
             HubClient recipient = recipients[ ic ];
             if ( recipient != caller && canSend( caller, recipient, mtype ) &&
-                 clientSet_.containsClient( recipient ) ) {
-                try {
-                    recipient.getCallable()
-                             .receiveNotification( caller.getId(), msg );
-                    sentList.add( recipient.getId() );
-                }
-                catch ( Exception e ) {
-                    logger_.log( Level.WARNING, 
-                                 "Notification " + caller + " -> " + recipient
-                               + " failed: " + e, e );
-                }
+                 clientSet_.containsClient( recipient ) &&
+                 enqueueNotification( caller, recipient, msg, deadline ) ) {
+                sentList.add( recipient.getId() );
             }
         }
         return sentList;
@@ -564,26 +743,19 @@ public class BasicHubService implements HubService {
      */
     protected Map callAll( HubClient caller, String msgTag, Map message )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        Message msg = copyMessage( message );
         msg.check();
         String mtype = msg.getMType();
         String msgId = MessageId.encode( caller, msgTag, false );
-        HubClient[] recipients = clientSet_.getClients();
+        HubClient[] recipients = getSubscribers( mtype );
         Map sentMap = new HashMap();
+        long deadline = System.currentTimeMillis()
+                      + DeliveryQueue.DEFAULT_BLOCK_MILLIS;
         for ( int ic = 0; ic < recipients.length; ic++ ) {
             HubClient recipient = recipients[ ic ];
             if ( recipient != caller && canSend( caller, recipient, mtype ) &&
-                 clientSet_.containsClient( recipient ) ) {
-                try {
-                    recipient.getCallable()
-                             .receiveCall( caller.getId(), msgId, msg );
-                }
-                catch ( SampException e ) {
-                    throw e;
-                }
-                catch ( Exception e ) {
-                    throw new SampException( e.getMessage(), e );
-                }
+                 clientSet_.containsClient( recipient ) &&
+                 enqueueCall( caller, recipient, msgId, msg, deadline ) ) {
                 sentMap.put( recipient.getId(), msgId );
             }
         }
@@ -612,29 +784,30 @@ public class BasicHubService implements HubService {
         // waiting messages where it will get picked up and returned to
         // the sender as a callAndWait return value.
         if ( msgId.isSynch() ) {
+            PendingCall waiter;
             synchronized ( waiterMap_ ) {
-                if ( waiterMap_.containsKey( msgId ) ) {
-                    if ( waiterMap_.get( msgId ) == null ) {
-                         waiterMap_.put( msgId, response );
-                         waiterMap_.notifyAll();
-                    }
-                    else {
-                        throw new SampException(
-                            "Response ignored - you've already sent one" );
-                    }
-                }
-                else {
-                    throw new SampException(
-                        "Response ignored - synchronous call timed out" );
-                }
+                waiter = (PendingCall) waiterMap_.get( msgId );
+            }
+            int status = waiter == null ? PendingCall.EXPIRED
+                                        : waiter.complete( response );
+            if ( status == PendingCall.REPLIED ) {
+                throw new SampException(
+                    "Response ignored - you've already sent one" );
+            }
+            else if ( status != PendingCall.PENDING ) {
+                throw new SampException(
+                    "Response ignored - synchronous call timed out" );
             }
         }
 
         // Otherwise, just pass it to the sender using a callback.
         else {
+            long start = System.currentTimeMillis();
+            boolean success = false;
             try {
                 sender.getCallable()
                       .receiveResponse( caller.getId(), senderTag, response );
+                success = true;
             }
             catch ( SampException e ) {
                 throw e;
@@ -642,6 +815,12 @@ public class BasicHubService implements HubService {
             catch ( Exception e ) {
                 throw new SampException( e.getMessage(), e );
             }
+            finally {
+                if ( metrics_ != null ) {
+                    metrics_.recordDelivery( HubMetrics.RESPONSE, caller,
+                                             sender, null, start, success );
+                }
+            }
         }
     }
 
@@ -659,14 +838,105 @@ public class BasicHubService implements HubService {
     protected Response callAndWait( HubClient caller, String recipientId,
                                     Map message, int timeout )
             throws SampException {
-        Message msg = Message.asMessage( message );
+        PendingCall waiter =
+            startSynchCall( caller, recipientId, message, timeout );
+
+        // Wait until either the timeout expires, or the response to the
+        // message is passed to the waiter (on another thread by
+        // the reply() method).
+        try {
+            waiter.await();
+        }
+        catch ( InterruptedException e ) {
+            removeWaiter( waiter );
+            throw new SampException( "Wait interrupted", e );
+        }
+        removeWaiter( waiter );
+        return getSynchResult( waiter );
+    }
+
+    /**
+     * Does the work for the non-blocking <code>callAndWait</code> method
+     * of connections registered with this service.
+     * No thread waits for the response; the outcome is passed to the
+     * callback by the thread which supplies the response,
+     * or by a timer thread if it times out.
+     *
+     * @param   caller  calling client
+     * @param   recipientId  client ID of recipient
+     * @param   message  message
+     * @param   timeout  timeout in seconds
+     * @param   callback  receives the outcome
+     * @see   AsyncHubConnection#callAndWait
+     */
+    protected void callAndWait( HubClient caller, String recipientId,
+                                Map message, int timeout,
+                                final AsyncHubConnection.Callback callback )
+            throws SampException {
+        final PendingCall waiter =
+            startSynchCall( caller, recipientId, message, timeout );
+        final TimerTask expiry;
+        if ( waiter.finish_ < Long.MAX_VALUE ) {
+            expiry = new TimerTask() {
+                public void run() {
+                    waiter.finish( PendingCall.EXPIRED );
+                }
+            };
+            try {
+                getTimer().schedule( expiry, new Date( waiter.finish_ ) );
+            }
+            catch ( IllegalStateException e ) {
+                waiter.finish( PendingCall.ABORTED );
+            }
+        }
+        else {
+            expiry = null;
+        }
+        waiter.setListener( new Runnable() {
+            public void run() {
+                if ( expiry != null ) {
+                    expiry.cancel();
+                }
+                removeWaiter( waiter );
+                Response response;
+                try {
+                    response = getSynchResult( waiter );
+                }
+                catch ( SampException e ) {
+                    callback.failed( e );
+                    return;
+                }
+                callback.completed( response );
+            }
+        } );
+    }
+
+    /**
+     * Sends a message synchronously and registers a completion handle
+     * which will receive the response.
+     * The caller must ensure that the handle is eventually removed
+     * using {@link #removeWaiter}.
+     *
+     * @param   caller  calling client
+     * @param   recipientId  client ID of recipient
+     * @param   message  message
+     * @param   timeout  timeout in seconds
+     * @return   pending call handle
+     */
+    private PendingCall startSynchCall( HubClient caller, String recipientId,
+                                        Map message, int timeout )
+            throws SampException {
+        Message msg = copyMessage( message );
         msg.check();
         String mtype = msg.getMType();
         HubClient recipient = getClient( recipientId );
         MessageId hubMsgId =
             new MessageId( caller.getId(), keyGen_.next(), true );
-        long start = System.currentTimeMillis();
         checkSend( caller, recipient, mtype );
+        timeout = Math.min( Math.max( 0, timeout ),
+                            Math.max( 0, MAX_TIMEOUT ) );
+        PendingCall waiter = new PendingCall( hubMsgId, timeout );
+        List evicted = new ArrayList();
         synchronized ( waiterMap_ ) {
 
             // If the number of pending synchronous calls exceeds the 
@@ -674,92 +944,126 @@ public class BasicHubService implements HubService {
             // space for the new one.
             if ( MAX_WAITERS > 0 && waiterMap_.size() >= MAX_WAITERS ) {
                 int excess = waiterMap_.size() - MAX_WAITERS + 1;
-                List keyList = new ArrayList( waiterMap_.keySet() );
-                Collections.sort( keyList, MessageId.AGE_COMPARATOR );
                 logger_.warning( "Pending synchronous calls exceeds limit "
                                + MAX_WAITERS + " - giving up on " + excess
                                + " oldest" );
+                Iterator it = waiterMap_.values().iterator();
                 for ( int ie = 0; ie < excess; ie++ ) {
-                    Object removed = waiterMap_.remove( keyList.get( ie ) );
-                    assert removed != null;
+                    evicted.add( it.next() );
+                    it.remove();
                 }
-                waiterMap_.notifyAll();
             }
 
             // Place an entry for this synchronous call in the waiterMap.
-            waiterMap_.put( hubMsgId, null );
+            waiterMap_.put( hubMsgId, waiter );
+        }
+        for ( Iterator it = evicted.iterator(); it.hasNext(); ) {
+            ((PendingCall) it.next()).finish( PendingCall.ABORTED );
         }
 
         // Make the call asynchronously to the receiver.
+        long start = System.currentTimeMillis();
+        boolean success = false;
         try {
             recipient.getCallable()
                      .receiveCall( caller.getId(), hubMsgId.toString(), msg );
-        }
-        catch ( SampException e ) {
-            throw e;
+            success = true;
         }
         catch ( Exception e ) {
-            throw new SampException( e.getMessage(), e );
+            removeWaiter( waiter );
+            if ( e instanceof SampException ) {
+                throw (SampException) e;
+            }
+            else {
+                throw new SampException( e.getMessage(), e );
+            }
+        }
+        finally {
+            if ( metrics_ != null ) {
+                metrics_.recordDelivery( HubMetrics.CALL, caller, recipient,
+                                         mtype, start, success );
+            }
         }
+        return waiter;
+    }
 
-        // Wait until either the timeout expires, or the response to the
-        // message turns up in the waiter map (placed there on another
-        // thread by this the reply() method).
-        timeout = Math.min( Math.max( 0, timeout ),
-                            Math.max( 0, MAX_TIMEOUT ) );
-        long finish = timeout > 0
-                    ? System.currentTimeMillis() + timeout * 1000
-                    : Long.MAX_VALUE;  // 3e8 years
-        synchronized ( waiterMap_ ) {
-            while ( waiterMap_.containsKey( hubMsgId ) &&
-                    waiterMap_.get( hubMsgId ) == null &&
-                    System.currentTimeMillis() < finish ) {
-                long millis = finish - System.currentTimeMillis();
-                if ( millis > 0 ) {
-                    try {
-                        waiterMap_.wait( millis );
-                    }
-                    catch ( InterruptedException e ) {
-                        throw new SampException( "Wait interrupted", e );
-                    }
-                }
+    /**
+     * Returns the outcome of a synchronous call which is no longer pending.
+     *
+     * @param  waiter  completed call handle
+     * @return  response from the recipient
+     * @throws  SampException  if the call timed out or was aborted
+     */
+    private Response getSynchResult( PendingCall waiter )
+            throws SampException {
+        int status = waiter.getStatus();
+        if ( metrics_ != null ) {
+            metrics_.addLatency( "callAndWait",
+                                 System.currentTimeMillis() - waiter.start_ );
+            if ( status == PendingCall.EXPIRED ) {
+                metrics_.increment( "callAndWait.expired" );
+            }
+            else if ( status == PendingCall.ABORTED ) {
+                metrics_.increment( "callAndWait.aborted" );
             }
+        }
 
-            // If the response is there, return it to the caller of this
-            // method (the sender of the message).
-            if ( waiterMap_.containsKey( hubMsgId ) ) {
-                Response response =
-                    (Response) waiterMap_.remove( hubMsgId );
-                if ( response != null ) {
-                    return response;
-                }
+        // If the response is there, return it to the caller of this
+        // method (the sender of the message).
+        if ( status == PendingCall.REPLIED ) {
+            return waiter.getResponse();
+        }
 
-                // Otherwise, it must have timed out.  Exit with an error.
-                else {
-                    assert System.currentTimeMillis() >= finish;
-                    String millis =
-                        Long.toString( System.currentTimeMillis() - start );
-                    String emsg = new StringBuffer()
-                        .append( "Synchronous call timeout after " )
-                        .append( millis.substring( 0,
-                                                   millis.length() - 3 ) )
-                        .append( '.' )
-                        .append( millis.substring( millis.length() - 3 ) )
-                        .append( '/' )
-                        .append( timeout )
-                        .append( " sec" )
-                        .toString();
-                    throw new SampException( emsg );
-                }
-            }
-            else {
-                throw new SampException(
-                    "Synchronous call aborted"
-                  + " - server load exceeded maximum of " + MAX_WAITERS + "?" );
+        // Otherwise, it must have timed out.  Exit with an error.
+        else if ( status == PendingCall.EXPIRED ) {
+            String millis =
+                Long.toString( System.currentTimeMillis() - waiter.start_ );
+            String emsg = new StringBuffer()
+                .append( "Synchronous call timeout after " )
+                .append( millis.substring( 0, millis.length() - 3 ) )
+                .append( '.' )
+                .append( millis.substring( millis.length() - 3 ) )
+                .append( '/' )
+                .append( waiter.timeout_ )
+                .append( " sec" )
+                .toString();
+            throw new SampException( emsg );
+        }
+        else {
+            assert status == PendingCall.ABORTED;
+            throw new SampException(
+                "Synchronous call aborted"
+              + " - server load exceeded maximum of " + MAX_WAITERS + "?" );
+        }
+    }
+
+    /**
+     * Removes the entry for a synchronous call from the map of
+     * pending calls, if it is still present.
+     *
+     * @param  waiter  completion handle for the call
+     */
+    private void removeWaiter( PendingCall waiter ) {
+        synchronized ( waiterMap_ ) {
+            if ( waiterMap_.get( waiter.msgId_ ) == waiter ) {
+                waiterMap_.remove( waiter.msgId_ );
             }
         }
     }
 
+    /**
+     * Returns the timer used to expire synchronous calls which are
+     * not waited for by a thread.  It is created lazily.
+     *
+     * @return  timer
+     */
+    private synchronized Timer getTimer() {
+        if ( timer_ == null ) {
+            timer_ = new Timer( true );
+        }
+        return timer_;
+    }
+
     /**
      * Returns the HubConnection object used by the hub itself to send
      * and receive messages.
@@ -820,7 +1124,7 @@ public class BasicHubService implements HubService {
                                    + " failed", e );
                     }
                 }
-                clientSet_.remove( client );
+                removeClient( client );
             }
         }
 
@@ -840,23 +1144,277 @@ public class BasicHubService implements HubService {
             shutdown_ = true;
             if ( started_ ) {
                 hubEvent( new Message( "samp.hub.event.shutdown" ) );
+                flushDeliveries( flushMillis_ );
+            }
+            if ( timer_ != null ) {
+                timer_.cancel();
+            }
+            if ( metrics_ != null ) {
+                metrics_.removeGauge( GAUGE_NAMES[ 0 ], gauges_[ 0 ] );
+                metrics_.removeGauge( GAUGE_NAMES[ 1 ], gauges_[ 1 ] );
             }
             serviceClientConnection_ = null;
         }
     }
 
+    /**
+     * Returns a private copy of a message supplied by a client, for
+     * delivery to recipients.  Since the hub owns the copy, it cannot
+     * change while it is being delivered, which lets recipient proxies
+     * reuse its encoded form when it is sent to several clients.
+     *
+     * @param  message  message map
+     * @return  new message with the same content
+     */
+    private static Message copyMessage( Map message ) {
+        return message == null ? null : new Message( message );
+    }
+
     /**
      * Broadcast an event message to all subscribed clients.
      * The sender of this message is the hub application itself.
+     * Unlike client broadcasts, the message is sent to each recipient
+     * in turn before this method returns.
      *
      * @param  msg  message to broadcast
      */
     private void hubEvent( Message msg ) {
+        String mtype = msg.getMType();
+        HubClient[] recipients = getSubscribers( mtype );
+        for ( int ic = 0; ic < recipients.length; ic++ ) {
+            HubClient recipient = recipients[ ic ];
+            if ( recipient != serviceClient_ &&
+                 canSend( serviceClient_, recipient, mtype ) &&
+                 clientSet_.containsClient( recipient ) ) {
+                sendEvent( recipient, msg );
+            }
+        }
+    }
+
+    /**
+     * Sends a hub event notification to a client.
+     * Failure is logged but otherwise ignored.
+     *
+     * @param  recipient  receiving client
+     * @param  msg   event message
+     */
+    private void sendEvent( HubClient recipient, Message msg ) {
+        long start = System.currentTimeMillis();
+        boolean success = false;
         try {
-            notifyAll( serviceClient_, msg );
+            recipient.getCallable()
+                     .receiveNotification( serviceClient_.getId(), msg );
+            success = true;
+        }
+        catch ( Exception e ) {
+            logger_.log( Level.WARNING,
+                         "Notification " + serviceClient_ + " -> " + recipient
+                       + " failed: " + e, e );
+        }
+        finally {
+            if ( metrics_ != null ) {
+                metrics_.recordDelivery( HubMetrics.NOTIFY, serviceClient_,
+                                         recipient, msg.getMType(), start,
+                                         success );
+            }
+        }
+    }
+
+    /**
+     * Returns the clients whose subscriptions match a given MType,
+     * in the order of their public IDs.
+     * The result is taken from the subscription index, so it may include
+     * clients which are not callable or have just unregistered;
+     * {@link #canSend} and the client set should be checked
+     * before sending.
+     *
+     * @param  mtype  MType
+     * @return   candidate recipients
+     */
+    private HubClient[] getSubscribers( String mtype ) {
+        HubClient[] clients = subsIndex_.getSubscribers( mtype );
+        final Comparator idComparator = getIdComparator();
+        Arrays.sort( clients, new Comparator() {
+            public int compare( Object o1, Object o2 ) {
+                return idComparator.compare( ((HubClient) o1).getId(),
+                                             ((HubClient) o2).getId() );
+            }
+        } );
+        return clients;
+    }
+
+    /**
+     * Removes a client from this hub's client set, and discards any
+     * broadcast messages still waiting to be delivered to it.
+     *
+     * @param  client  client to remove
+     * @return  the client's closed delivery queue, or null if it had none
+     */
+    private DeliveryQueue removeClient( HubClient client ) {
+        clientSet_.remove( client );
+        subsIndex_.removeClient( client );
+        DeliveryQueue queue;
+        synchronized ( queueMap_ ) {
+            queue = (DeliveryQueue) queueMap_.remove( client );
+        }
+        if ( queue != null ) {
+            queue.close();
+        }
+        return queue;
+    }
+
+    /**
+     * Queues a notification for delivery to a client.
+     *
+     * @param  sender  sending client
+     * @param  recipient  receiving client
+     * @param  msg   message
+     * @param  deadline  time limit for waiting to queue the delivery
+     * @return  true iff the delivery was queued
+     */
+    private boolean enqueueNotification( final HubClient sender,
+                                         final HubClient recipient,
+                                         final Message msg, long deadline ) {
+        final long start = System.currentTimeMillis();
+        return enqueue( recipient, new DeliveryQueue.Delivery() {
+            public void deliver() throws Exception {
+                boolean success = false;
+                try {
+                    recipient.getCallable()
+                             .receiveNotification( sender.getId(), msg );
+                    success = true;
+                }
+                finally {
+                    if ( metrics_ != null ) {
+                        metrics_.recordDelivery( HubMetrics.NOTIFY, sender,
+                                                 recipient, msg.getMType(),
+                                                 start, success );
+                    }
+                }
+            }
+            public String toString() {
+                return "Notification " + sender + " -> " + recipient;
+            }
+        }, deadline );
+    }
+
+    /**
+     * Queues a call for delivery to a client.
+     * If the delivery fails, an error response is passed back to the
+     * sender as if from the recipient, since the sender has been told
+     * the call was sent and will otherwise wait for a reply.
+     *
+     * @param  sender  sending client
+     * @param  recipient  receiving client
+     * @param  msgId   message ID
+     * @param  msg   message
+     * @param  deadline  time limit for waiting to queue the delivery
+     * @return  true iff the delivery was queued
+     */
+    private boolean enqueueCall( final HubClient sender,
+                                 final HubClient recipient,
+                                 final String msgId, final Message msg,
+                                 long deadline ) {
+        final long start = System.currentTimeMillis();
+        return enqueue( recipient, new DeliveryQueue.Delivery() {
+            public void deliver() throws Exception {
+                boolean success = false;
+                try {
+                    recipient.getCallable()
+                             .receiveCall( sender.getId(), msgId, msg );
+                    success = true;
+                }
+                catch ( Exception e ) {
+                    replyFailure( recipient, msgId, e );
+                    throw e;
+                }
+                finally {
+                    if ( metrics_ != null ) {
+                        metrics_.recordDelivery( HubMetrics.CALL, sender,
+                                                 recipient, msg.getMType(),
+                                                 start, success );
+                    }
+                }
+            }
+            public String toString() {
+                return "Call " + sender + " -> " + recipient;
+            }
+        }, deadline );
+    }
+
+    /**
+     * Sends the sender of a call an error response reporting that
+     * the call could not be delivered.
+     *
+     * @param  recipient  client to which delivery failed
+     * @param  msgId   message ID
+     * @param  error   delivery failure
+     */
+    private void replyFailure( HubClient recipient, String msgId,
+                               Throwable error ) {
+        ErrInfo errInfo = new ErrInfo( error );
+        errInfo.setErrortxt( "Delivery to " + recipient.getId()
+                           + " failed: " + errInfo.getErrortxt() );
+        try {
+            reply( recipient, msgId, Response.createErrorResponse( errInfo ) );
         }
         catch ( SampException e ) {
-            assert false;
+            logger_.log( Level.WARNING,
+                         "Can't report delivery failure for " + msgId, e );
+        }
+    }
+
+    /**
+     * Queues a delivery to a registered client,
+     * creating its delivery queue if required.
+     *
+     * @param  recipient  receiving client
+     * @param  delivery   delivery
+     * @param  deadline  time limit for waiting to queue the delivery
+     * @return  true iff the delivery was queued
+     */
+    private boolean enqueue( HubClient recipient,
+                             DeliveryQueue.Delivery delivery,
+                             long deadline ) {
+        DeliveryQueue queue;
+        synchronized ( queueMap_ ) {
+            queue = (DeliveryQueue) queueMap_.get( recipient );
+            if ( queue == null ) {
+                if ( ! clientSet_.containsClient( recipient ) ) {
+                    return false;
+                }
+                queue = createDeliveryQueue( recipient, deliveryPool_ );
+                queueMap_.put( recipient, queue );
+            }
+        }
+        boolean isQueued = queue.offer( delivery, deadline );
+        if ( ! isQueued && metrics_ != null ) {
+            metrics_.increment( "delivery.rejected" );
+        }
+        return isQueued;
+    }
+
+    /**
+     * Waits for all queued broadcast messages to be delivered.
+     *
+     * @param  timeoutMillis  maximum total time to wait in milliseconds
+     */
+    private void flushDeliveries( long timeoutMillis ) {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        DeliveryQueue[] queues = getDeliveryQueues();
+        for ( int iq = 0; iq < queues.length; iq++ ) {
+            long millis = end - System.currentTimeMillis();
+            try {
+                if ( millis <= 0 || ! queues[ iq ].flush( millis ) ) {
+                    logger_.info( "Undelivered messages for "
+                                + queues[ iq ].getRecipientId()
+                                + " at shutdown" );
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
@@ -981,18 +1539,11 @@ public class BasicHubService implements HubService {
         private final String senderId_;
         private final String senderTag_;
         private final boolean isSynch_;
-        private final long birthday_;
 
         private static final String T_SYNCH_FLAG = "S";
         private static final String F_SYNCH_FLAG = "A";
         private static final int CHECK_SEED = (int) System.currentTimeMillis();
         private static final int CHECK_LENG = 4;
-        private static final Comparator AGE_COMPARATOR = new Comparator() {
-            public int compare( Object o1, Object o2 ) {
-                return (int) (((MessageId) o1).birthday_ -
-                              ((MessageId) o2).birthday_);
-            }
-        };
 
         /**
          * Constructor.
@@ -1005,7 +1556,6 @@ public class BasicHubService implements HubService {
             senderId_ = senderId;
             senderTag_ = senderTag;
             isSynch_ = isSynch;
-            birthday_ = System.currentTimeMillis();
         }
 
         /**
@@ -1146,6 +1696,165 @@ public class BasicHubService implements HubService {
         }
     }
 
+    /**
+     * Completion handle for a single pending synchronous call.
+     * A thread making a blocking call waits on this object's own monitor,
+     * so that a reply or eviction wakes only the thread concerned.
+     * Alternatively a listener may be set, which is invoked once the
+     * call is no longer pending, so that no thread need wait at all.
+     */
+    private static class PendingCall {
+
+        final MessageId msgId_;
+        final int timeout_;
+        final long start_;
+        final long finish_;
+        private int status_;
+        private Response response_;
+        private Runnable listener_;
+
+        /** Status: awaiting a response. */
+        static final int PENDING = 0;
+
+        /** Status: response received. */
+        static final int REPLIED = 1;
+
+        /** Status: discarded to make room for newer calls. */
+        static final int ABORTED = 2;
+
+        /** Status: no response arrived before the timeout. */
+        static final int EXPIRED = 3;
+
+        /**
+         * Constructor.
+         *
+         * @param  msgId  message ID used for the call
+         * @param  timeout  timeout in seconds, or 0 for none
+         */
+        PendingCall( MessageId msgId, int timeout ) {
+            msgId_ = msgId;
+            timeout_ = timeout;
+            start_ = System.currentTimeMillis();
+            finish_ = timeout > 0 ? start_ + timeout * 1000L
+                                  : Long.MAX_VALUE;  // 3e8 years
+        }
+
+        /**
+         * Supplies the response to this call if it is still pending.
+         *
+         * @param  response  response
+         * @return   status before this method was called;
+         *           the response was accepted only if it was PENDING
+         */
+        int complete( Response response ) {
+            int status;
+            Runnable listener = null;
+            synchronized ( this ) {
+                status = status_;
+                if ( status == PENDING ) {
+                    response_ = response;
+                    listener = setStatus( REPLIED );
+                }
+            }
+            if ( listener != null ) {
+                listener.run();
+            }
+            return status;
+        }
+
+        /**
+         * Marks this call as finished without a response,
+         * if it is still pending.
+         *
+         * @param  status   final status
+         */
+        void finish( int status ) {
+            Runnable listener = null;
+            synchronized ( this ) {
+                if ( status_ == PENDING ) {
+                    listener = setStatus( status );
+                }
+            }
+            if ( listener != null ) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Sets a listener to be invoked once this call is no longer
+         * pending.  If that is already the case, it is invoked immediately.
+         *
+         * @param  listener  listener
+         */
+        void setListener( Runnable listener ) {
+            synchronized ( this ) {
+                if ( status_ == PENDING ) {
+                    listener_ = listener;
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Waits until this call is no longer pending or its timeout
+         * is reached.  In the latter case it is marked as expired.
+         *
+         * @return  final status
+         */
+        synchronized int await() throws InterruptedException {
+            while ( status_ == PENDING ) {
+                long millis = finish_ - System.currentTimeMillis();
+                if ( millis <= 0 ) {
+                    status_ = EXPIRED;
+                }
+                else {
+                    try {
+                        wait( millis );
+                    }
+                    catch ( InterruptedException e ) {
+                        status_ = EXPIRED;
+                        throw e;
+                    }
+                }
+            }
+            return status_;
+        }
+
+        /**
+         * Returns the current status.
+         *
+         * @return  status
+         */
+        synchronized int getStatus() {
+            return status_;
+        }
+
+        /**
+         * Returns the response, if one has been received.
+         *
+         * @return  response or null
+         */
+        synchronized Response getResponse() {
+            return response_;
+        }
+
+        /**
+         * Sets the status of this pending call, waking any waiting thread.
+         * Must be called with this object's lock held.
+         *
+         * @param  status  new status
+         * @return  listener to invoke, without the lock held, or null
+         */
+        private Runnable setStatus( int status ) {
+            status_ = status;
+            notifyAll();
+            Runnable listener = listener_;
+            listener_ = null;
+            return listener;
+        }
+    }
+
     /**
      * Generates client public IDs.
      * These must be unique, but don't need to be hard to guess.
@@ -0,0 +1,353 @@
+package org.astrogrid.samp.hub;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.ExecutionMode;
+import org.astrogrid.samp.httpd.WorkerPool;
+
+/**
+ * Bounded, ordered queue of messages waiting to be delivered to a single
+ * hub client.
+ * Deliveries are made one at a time in the order they were queued,
+ * by a dispatcher which runs on a thread from a shared pool while there
+ * is work to do.  If the pool has no spare thread, a dedicated thread
+ * is started instead, so that a recipient which is slow to respond
+ * never holds up deliveries to other recipients.
+ *
+ * <p>What happens when a delivery is offered to a full queue is
+ * determined by the queue's {@link OverflowPolicy}.
+ * Counts of deliveries and the time they spend between being queued
+ * and completed are kept for monitoring.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class DeliveryQueue {
+
+    private final String recipientId_;
+    private final int capacity_;
+    private final OverflowPolicy policy_;
+    private final WorkerPool pool_;
+    private final LinkedList queue_;
+    private final Runnable dispatcher_;
+    private Thread dispatchThread_;
+    private boolean isScheduled_;
+    private boolean isClosed_;
+    private int maxDepth_;
+    private long nDelivered_;
+    private long nFailed_;
+    private long nDropped_;
+    private long totLatency_;
+    private long maxLatency_;
+
+    /** Time in milliseconds for which {@link #offer(Delivery)} may wait
+     *  with the {@link OverflowPolicy#BLOCK} policy. */
+    public static final long DEFAULT_BLOCK_MILLIS = 10 * 1000;
+
+    /** Number of deliveries a dispatcher makes before giving up its
+     *  pool thread to other queues. */
+    private static final int MAX_BATCH = 64;
+
+    private static final Logger logger_ =
+        Logger.getLogger( DeliveryQueue.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  recipientId  public ID of the recipient client
+     * @param  capacity   maximum number of waiting deliveries
+     * @param  policy   behaviour when a delivery is offered to a full queue
+     * @param  pool   pool supplying dispatcher threads
+     */
+    public DeliveryQueue( String recipientId, int capacity,
+                          OverflowPolicy policy, WorkerPool pool ) {
+        recipientId_ = recipientId;
+        capacity_ = Math.max( 1, capacity );
+        policy_ = policy;
+        pool_ = pool;
+        queue_ = new LinkedList();
+        dispatcher_ = new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        };
+    }
+
+    /**
+     * Queues a delivery, waiting for up to {@link #DEFAULT_BLOCK_MILLIS}
+     * if the queue is full and has the {@link OverflowPolicy#BLOCK} policy.
+     *
+     * @param  delivery  delivery to make
+     * @return  true if the delivery was queued,
+     *          false if it was refused
+     */
+    public boolean offer( Delivery delivery ) {
+        return offer( delivery,
+                      System.currentTimeMillis() + DEFAULT_BLOCK_MILLIS );
+    }
+
+    /**
+     * Queues a delivery, waiting until no later than a given time
+     * if the queue is full and has the {@link OverflowPolicy#BLOCK} policy.
+     * If the queue is full, the result depends on the overflow policy.
+     * A sender offering the same message to several queues can use
+     * a single deadline for all of them, so that its total wait is bounded.
+     *
+     * @param  delivery  delivery to make
+     * @param  deadline  system time in milliseconds after which
+     *                   a blocked offer gives up
+     * @return  true if the delivery was queued,
+     *          false if it was refused
+     */
+    public synchronized boolean offer( Delivery delivery, long deadline ) {
+        if ( queue_.size() >= capacity_ && ! isClosed_ ) {
+            if ( policy_ == OverflowPolicy.DROP_OLDEST ) {
+                Delivery dropped = (Delivery) queue_.removeFirst();
+                nDropped_++;
+                logger_.warning( "Queue full for " + recipientId_
+                               + " - dropped " + dropped );
+            }
+            else if ( policy_ == OverflowPolicy.BLOCK ) {
+                while ( queue_.size() >= capacity_ && ! isClosed_ ) {
+                    long millis = deadline - System.currentTimeMillis();
+                    if ( millis <= 0 ) {
+                        break;
+                    }
+                    try {
+                        wait( millis );
+                    }
+                    catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        if ( isClosed_ || queue_.size() >= capacity_ ) {
+            nDropped_++;
+            if ( ! isClosed_ ) {
+                logger_.warning( "Queue full for " + recipientId_
+                               + " - refused " + delivery );
+            }
+            return false;
+        }
+        delivery.queueTime_ = System.currentTimeMillis();
+        queue_.addLast( delivery );
+        maxDepth_ = Math.max( maxDepth_, queue_.size() );
+        if ( ! isScheduled_ ) {
+            isScheduled_ = true;
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all queued deliveries have been completed.
+     * If called from within a delivery made by this queue,
+     * it returns false immediately, since the wait could not succeed.
+     *
+     * @param  timeoutMillis  maximum time to wait in milliseconds
+     * @return  true if the queue was drained, false if the wait timed out
+     */
+    public synchronized boolean flush( long timeoutMillis )
+            throws InterruptedException {
+        if ( dispatchThread_ == Thread.currentThread() ) {
+            return false;
+        }
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while ( isScheduled_ ) {
+            long millis = end - System.currentTimeMillis();
+            if ( millis <= 0 ) {
+                return false;
+            }
+            wait( millis );
+        }
+        return true;
+    }
+
+    /**
+     * Discards any waiting deliveries and refuses future ones.
+     * A delivery already in progress is not interrupted.
+     */
+    public synchronized void close() {
+        isClosed_ = true;
+        nDropped_ += queue_.size();
+        queue_.clear();
+        notifyAll();
+    }
+
+    /**
+     * Returns the public ID of the client to which this queue delivers.
+     *
+     * @return  recipient ID
+     */
+    public String getRecipientId() {
+        return recipientId_;
+    }
+
+    /**
+     * Returns the maximum number of waiting deliveries.
+     *
+     * @return  capacity
+     */
+    public int getCapacity() {
+        return capacity_;
+    }
+
+    /**
+     * Returns the policy applied when a delivery is offered to a
+     * full queue.
+     *
+     * @return  overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return policy_;
+    }
+
+    /**
+     * Returns the number of deliveries currently waiting.
+     *
+     * @return  queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return queue_.size();
+    }
+
+    /**
+     * Returns the largest number of deliveries that have been waiting
+     * at once.
+     *
+     * @return  maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxDepth_;
+    }
+
+    /**
+     * Returns the number of deliveries completed successfully.
+     *
+     * @return  delivered count
+     */
+    public synchronized long getDeliveredCount() {
+        return nDelivered_;
+    }
+
+    /**
+     * Returns the number of deliveries attempted which failed.
+     *
+     * @return  failed count
+     */
+    public synchronized long getFailedCount() {
+        return nFailed_;
+    }
+
+    /**
+     * Returns the number of deliveries which were refused or discarded
+     * without being attempted.
+     *
+     * @return  dropped count
+     */
+    public synchronized long getDroppedCount() {
+        return nDropped_;
+    }
+
+    /**
+     * Returns the mean time between a delivery being queued and its
+     * completion, for all attempted deliveries.
+     *
+     * @return  mean latency in milliseconds, or NaN if none
+     */
+    public synchronized double getMeanLatencyMillis() {
+        long n = nDelivered_ + nFailed_;
+        return n > 0 ? totLatency_ / (double) n : Double.NaN;
+    }
+
+    /**
+     * Returns the longest time between a delivery being queued and its
+     * completion.
+     *
+     * @return  maximum latency in milliseconds
+     */
+    public synchronized long getMaxLatencyMillis() {
+        return maxLatency_;
+    }
+
+    public String toString() {
+        return "DeliveryQueue(" + recipientId_ + ")";
+    }
+
+    /**
+     * Arranges for the dispatcher to run.
+     * Must be called with this object's lock held.
+     */
+    private void schedule() {
+        if ( ! pool_.offer( dispatcher_ ) ) {
+            ExecutionMode.startThread( dispatcher_,
+                                       "SAMP delivery to " + recipientId_ );
+        }
+    }
+
+    /**
+     * Makes queued deliveries in order until the queue is empty,
+     * or until it has made enough that it should give other queues
+     * a turn with the pool thread.
+     */
+    private void dispatch() {
+        for ( int ib = 0; ib < MAX_BATCH; ib++ ) {
+            Delivery delivery;
+            synchronized ( this ) {
+                if ( queue_.isEmpty() ) {
+                    isScheduled_ = false;
+                    notifyAll();
+                    return;
+                }
+                delivery = (Delivery) queue_.removeFirst();
+                dispatchThread_ = Thread.currentThread();
+                notifyAll();
+            }
+            boolean ok;
+            try {
+                delivery.deliver();
+                ok = true;
+            }
+            catch ( Throwable e ) {
+                ok = false;
+                logger_.log( Level.WARNING,
+                             delivery + " failed: " + e, e );
+            }
+            long latency = System.currentTimeMillis() - delivery.queueTime_;
+            synchronized ( this ) {
+                dispatchThread_ = null;
+                if ( ok ) {
+                    nDelivered_++;
+                }
+                else {
+                    nFailed_++;
+                }
+                totLatency_ += latency;
+                maxLatency_ = Math.max( maxLatency_, latency );
+            }
+        }
+        synchronized ( this ) {
+            schedule();
+        }
+    }
+
+    /**
+     * A single message to be delivered to the recipient.
+     * The <code>toString</code> method should describe it for
+     * logging purposes.
+     */
+    public static abstract class Delivery {
+        private long queueTime_;
+
+        /**
+         * Makes the delivery.
+         * Called from a dispatcher thread.
+         *
+         * @throws  Exception  if the delivery failed
+         */
+        public abstract void deliver() throws Exception;
+    }
+}
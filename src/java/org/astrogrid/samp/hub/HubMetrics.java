@@ -0,0 +1,668 @@
+package org.astrogrid.samp.hub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.httpd.UtilServer;
+
+/**
+ * Collects statistics about the activity of a hub for monitoring purposes.
+ * The following are recorded:
+ * <ul>
+ * <li>message deliveries, counted by MType, sender and recipient,
+ *     and whether they failed</li>
+ * <li>latency histograms for each kind of delivery, for synchronous
+ *     call round trips and for HTTP requests</li>
+ * <li>named event counters</li>
+ * <li>gauges giving instantaneous values such as the number of pending
+ *     synchronous calls or of queued callbacks</li>
+ * </ul>
+ *
+ * <p>Collection is disabled unless the {@link #METRICS_PROP} system
+ * property is set to "<code>true</code>", or an instance is installed
+ * using {@link #setDefault}.  Instrumented code obtains the
+ * {@link #getDefault default} instance once, and does nothing if it
+ * is null, so the cost when disabled is negligible.
+ * Once {@link #publish published}, the metrics are available as
+ * a JMX MBean named {@link #OBJECT_NAME}, if JMX is present in the JVM.
+ * Since the metrics include client IDs and MTypes, they are only
+ * served in plain text and JSON form from the hub's HTTP server
+ * if this is explicitly enabled, using the {@link #METRICS_HTTP_PROP}
+ * system property or the {@link #serveHttp} method.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class HubMetrics implements HubMetricsMBean {
+
+    private final Map mtypeMap_;
+    private final Map senderMap_;
+    private final Map recipientMap_;
+    private final Map counterMap_;
+    private final Map latencyMap_;
+    private final Map gaugeMap_;
+    private long startMillis_;
+    private long deliveryCount_;
+    private long failureCount_;
+    private final int maxKeys_;
+    private boolean isPublished_;
+    private URL url_;
+
+    /** Name of system property which enables metrics collection. */
+    public static final String METRICS_PROP = "jsamp.hub.metrics";
+
+    /**
+     * Name of system property which causes published metrics to be
+     * served over HTTP.
+     */
+    public static final String METRICS_HTTP_PROP = "jsamp.hub.metrics.http";
+
+    /** JMX object name under which metrics are published. */
+    public static final String OBJECT_NAME =
+        "org.astrogrid.samp:type=HubMetrics";
+
+    /** Delivery kind for notifications. */
+    public static final String NOTIFY = "notify";
+
+    /** Delivery kind for calls. */
+    public static final String CALL = "call";
+
+    /** Delivery kind for responses to asynchronous calls. */
+    public static final String RESPONSE = "response";
+
+    /** Key under which MTypes or clients beyond the limit are counted. */
+    public static final String OTHER_KEY = "<other>";
+
+    /** Default maximum number of distinct keys counted separately. */
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    /** Upper bounds in milliseconds of latency histogram bins. */
+    private static final long[] BIN_BOUNDS = new long[] {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 60000,
+    };
+
+    private static HubMetrics default_;
+    private static boolean defaultInit_;
+    private static final Logger logger_ =
+        Logger.getLogger( HubMetrics.class.getName() );
+
+    /**
+     * Constructs an instance with the default key limit.
+     */
+    public HubMetrics() {
+        this( DEFAULT_MAX_KEYS );
+    }
+
+    /**
+     * Constructs an instance with a given key limit.
+     * Above this limit, further MTypes, client IDs or counter names
+     * are counted together under {@link #OTHER_KEY}, so that memory
+     * use is bounded however many clients come and go.
+     *
+     * @param  maxKeys  maximum number of distinct MTypes, client IDs
+     *                  and counter names counted separately in each category
+     */
+    public HubMetrics( int maxKeys ) {
+        maxKeys_ = maxKeys;
+        mtypeMap_ = new TreeMap();
+        senderMap_ = new TreeMap();
+        recipientMap_ = new TreeMap();
+        counterMap_ = new TreeMap();
+        latencyMap_ = new TreeMap();
+        gaugeMap_ = new TreeMap();
+        startMillis_ = System.currentTimeMillis();
+    }
+
+    /**
+     * Records an attempt to deliver a message or response to a client.
+     *
+     * @param  kind  delivery kind, {@link #NOTIFY}, {@link #CALL}
+     *               or {@link #RESPONSE}
+     * @param  sender  sending client
+     * @param  recipient  receiving client
+     * @param  mtype   MType, or null for a response
+     * @param  startMillis  time at which delivery was requested
+     * @param  success  true iff the recipient accepted the delivery
+     */
+    public void recordDelivery( String kind, HubClient sender,
+                                HubClient recipient, String mtype,
+                                long startMillis, boolean success ) {
+        long millis = System.currentTimeMillis() - startMillis;
+        synchronized ( this ) {
+            deliveryCount_++;
+            if ( ! success ) {
+                failureCount_++;
+            }
+            getLatency( "delivery." + kind ).add( millis );
+            if ( mtype != null ) {
+                long[] counts = getCounts( mtypeMap_, mtype, 2 );
+                counts[ 0 ]++;
+                if ( ! success ) {
+                    counts[ 1 ]++;
+                }
+            }
+            getCounts( senderMap_, sender.getId(), 1 )[ 0 ]++;
+            getCounts( recipientMap_, recipient.getId(), 1 )[ 0 ]++;
+        }
+    }
+
+    /**
+     * Adds a measurement to a named latency histogram.
+     *
+     * @param  name  histogram name
+     * @param  millis  latency in milliseconds
+     */
+    public synchronized void addLatency( String name, long millis ) {
+        getLatency( name ).add( millis );
+    }
+
+    /**
+     * Increments a named event counter.
+     *
+     * @param  name  counter name
+     */
+    public synchronized void increment( String name ) {
+        getCounts( counterMap_, name, 1 )[ 0 ]++;
+    }
+
+    /**
+     * Adds a gauge whose value will be reported with the other metrics.
+     * Any existing gauge with the same name is replaced.
+     *
+     * @param  name  gauge name
+     * @param  gauge  gauge
+     */
+    public synchronized void addGauge( String name, Gauge gauge ) {
+        gaugeMap_.put( name, gauge );
+    }
+
+    /**
+     * Removes a gauge previously added by {@link #addGauge}.
+     * Has no effect if it has since been replaced by a different gauge.
+     *
+     * @param  name  gauge name
+     * @param  gauge  gauge
+     */
+    public synchronized void removeGauge( String name, Gauge gauge ) {
+        if ( gaugeMap_.get( name ) == gauge ) {
+            gaugeMap_.remove( name );
+        }
+    }
+
+    /**
+     * Returns a listener which will record the timings and status codes
+     * of requests served by an HTTP server.
+     *
+     * @param  serverName  name distinguishing the server in the metrics
+     * @return  new listener
+     */
+    public HttpServer.RequestListener
+            createRequestListener( String serverName ) {
+        final String prefix = "http." + serverName;
+        return new HttpServer.RequestListener() {
+            public void requestServed( HttpServer.Request request,
+                                       HttpServer.Response response,
+                                       long millis ) {
+                synchronized ( HubMetrics.this ) {
+                    addLatency( prefix, millis );
+                    increment( prefix + ".status."
+                             + response.getStatusCode() );
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a snapshot of all the current metrics.
+     * The result is a map of strings and nested maps, with numeric values
+     * encoded as by {@link org.astrogrid.samp.SampUtils}.
+     *
+     * @return  metrics map
+     */
+    public Map getReport() {
+        Map report = new LinkedHashMap();
+        Map gauges;
+        synchronized ( this ) {
+            report.put( "uptimeMillis",
+                        SampUtils.encodeLong( getUptimeMillis() ) );
+            report.put( "deliveries", SampUtils.encodeLong( deliveryCount_ ) );
+            report.put( "failures", SampUtils.encodeLong( failureCount_ ) );
+            report.put( "counters", toReport( counterMap_, null ) );
+            report.put( "mtypes",
+                        toReport( mtypeMap_,
+                                  new String[] { "count", "failures" } ) );
+            report.put( "sent", toReport( senderMap_, null ) );
+            report.put( "received", toReport( recipientMap_, null ) );
+            Map latencies = new LinkedHashMap();
+            for ( Iterator it = latencyMap_.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                latencies.put( entry.getKey(),
+                               ((Latency) entry.getValue()).toReport() );
+            }
+            report.put( "latencies", latencies );
+            gauges = new TreeMap( gaugeMap_ );
+        }
+
+        // Gauges are evaluated without holding the lock, since they
+        // may need to acquire others.
+        Map gaugeReport = new LinkedHashMap();
+        for ( Iterator it = gauges.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            try {
+                long value = ((Gauge) entry.getValue()).getValue();
+                gaugeReport.put( entry.getKey(),
+                                 SampUtils.encodeLong( value ) );
+            }
+            catch ( RuntimeException e ) {
+                logger_.warning( "Gauge " + entry.getKey() + " failed: "
+                               + e );
+            }
+        }
+        report.put( "gauges", gaugeReport );
+        return report;
+    }
+
+    public synchronized long getUptimeMillis() {
+        return System.currentTimeMillis() - startMillis_;
+    }
+
+    public synchronized long getDeliveryCount() {
+        return deliveryCount_;
+    }
+
+    public synchronized long getFailureCount() {
+        return failureCount_;
+    }
+
+    public String getText() {
+        StringBuffer sbuf = new StringBuffer();
+        appendText( sbuf, "", getReport() );
+        return sbuf.toString();
+    }
+
+    public String getJson() {
+        return SampUtils.toJson( getReport(), true );
+    }
+
+    public synchronized void reset() {
+        mtypeMap_.clear();
+        senderMap_.clear();
+        recipientMap_.clear();
+        counterMap_.clear();
+        latencyMap_.clear();
+        deliveryCount_ = 0;
+        failureCount_ = 0;
+        startMillis_ = System.currentTimeMillis();
+    }
+
+    /**
+     * Makes these metrics available for external monitoring.
+     * They are registered with the platform MBean server if JMX is
+     * available, and if the {@link #METRICS_HTTP_PROP} system property
+     * is "<code>true</code>" they are also {@link #serveHttp served}
+     * over HTTP.
+     * Calls after the first have no further effect.
+     *
+     * @return  base URL for the HTTP metrics endpoints,
+     *          or null if they are not served
+     */
+    public synchronized URL publish() throws IOException {
+        if ( ! isPublished_ ) {
+            isPublished_ = true;
+            registerMBean();
+            boolean isHttp;
+            try {
+                isHttp = Boolean.valueOf( System
+                                         .getProperty( METRICS_HTTP_PROP ) )
+                        .booleanValue();
+            }
+            catch ( SecurityException e ) {
+                logger_.info( "Can't read " + METRICS_HTTP_PROP + ": " + e );
+                isHttp = false;
+            }
+            if ( isHttp ) {
+                serveHttp();
+            }
+        }
+        return url_;
+    }
+
+    /**
+     * Serves these metrics from the {@link UtilServer} HTTP server,
+     * whose request timings are also recorded.
+     * The server has no access control beyond that of the host,
+     * so this exposes the IDs of clients and the MTypes they use
+     * to any local process.
+     * Text and JSON versions are found by appending "<code>text</code>"
+     * and "<code>json</code>" respectively to the returned URL.
+     * Calls after the first have no further effect.
+     *
+     * @return  base URL for the HTTP metrics endpoints
+     */
+    public synchronized URL serveHttp() throws IOException {
+        if ( url_ == null ) {
+            UtilServer utilServer = UtilServer.getInstance();
+            HttpServer server = utilServer.getServer();
+            String path = utilServer.getBasePath( "/metrics/" );
+            server.addHandler( createHandler( path ) );
+            server.addRequestListener( createRequestListener( "util" ) );
+            url_ = new URL( server.getBaseUrl(), path );
+            logger_.info( "Hub metrics at " + url_ + "{text,json}" );
+        }
+        return url_;
+    }
+
+    /**
+     * Returns the default instance of this class.
+     * Unless it has been set explicitly, this is a new instance if the
+     * {@link #METRICS_PROP} system property is "<code>true</code>",
+     * and otherwise null.
+     *
+     * @return  default metrics registry, or null if metrics are disabled
+     */
+    public static synchronized HubMetrics getDefault() {
+        if ( ! defaultInit_ ) {
+            defaultInit_ = true;
+            try {
+                if ( Boolean.valueOf( System.getProperty( METRICS_PROP ) )
+                            .booleanValue() ) {
+                    default_ = new HubMetrics();
+                }
+            }
+            catch ( SecurityException e ) {
+                logger_.info( "Can't read " + METRICS_PROP + ": " + e );
+            }
+        }
+        return default_;
+    }
+
+    /**
+     * Sets the default instance of this class.
+     * This affects hub objects created subsequently.
+     *
+     * @param  metrics  new default registry, or null to disable metrics
+     */
+    public static synchronized void setDefault( HubMetrics metrics ) {
+        defaultInit_ = true;
+        default_ = metrics;
+    }
+
+    /**
+     * Registers this object with the platform MBean server,
+     * replacing any other registry previously registered.
+     * JMX is accessed by reflection, since it is not present in
+     * all the JVMs this library supports.
+     * Failure, for instance because JMX is not available in this JVM,
+     * is logged but otherwise ignored.
+     */
+    private void registerMBean() {
+        try {
+            Class factoryClazz =
+                Class.forName( "java.lang.management.ManagementFactory" );
+            Class serverClazz = Class.forName( "javax.management.MBeanServer" );
+            Class nameClazz = Class.forName( "javax.management.ObjectName" );
+            Object mbs = factoryClazz
+                        .getMethod( "getPlatformMBeanServer", new Class[ 0 ] )
+                        .invoke( null, new Object[ 0 ] );
+            Object name = nameClazz
+                         .getConstructor( new Class[] { String.class } )
+                         .newInstance( new Object[] { OBJECT_NAME } );
+            Object[] nameArgs = new Object[] { name };
+            Boolean isRegistered = (Boolean)
+                serverClazz.getMethod( "isRegistered",
+                                       new Class[] { nameClazz } )
+                           .invoke( mbs, nameArgs );
+            if ( isRegistered.booleanValue() ) {
+                serverClazz.getMethod( "unregisterMBean",
+                                       new Class[] { nameClazz } )
+                           .invoke( mbs, nameArgs );
+            }
+            serverClazz.getMethod( "registerMBean",
+                                   new Class[] { Object.class, nameClazz } )
+                       .invoke( mbs, new Object[] { this, name } );
+        }
+        catch ( InvocationTargetException e ) {
+            logger_.info( "Hub metrics not available by JMX: "
+                        + e.getTargetException() );
+        }
+        catch ( Exception e ) {
+            logger_.info( "Hub metrics not available by JMX: " + e );
+        }
+    }
+
+    /**
+     * Returns an HTTP handler which serves these metrics.
+     *
+     * @param  path  base path of served URLs
+     * @return  new handler
+     */
+    private HttpServer.PrefixHandler createHandler( final String path ) {
+        final String textPath = path + "text";
+        final String jsonPath = path + "json";
+        final HttpServer.Response response405 =
+            HttpServer.create405Response( new String[] { "HEAD", "GET", } );
+        return new HttpServer.PrefixHandler() {
+            public String getPathPrefix() {
+                return path;
+            }
+            public HttpServer.Response
+                    serveRequest( HttpServer.Request request ) {
+                String url = request.getUrl();
+                if ( ! url.startsWith( path ) ) {
+                    return null;
+                }
+                final String content;
+                final String contentType;
+                if ( url.equals( textPath ) ) {
+                    content = getText();
+                    contentType = "text/plain; charset=UTF-8";
+                }
+                else if ( url.equals( jsonPath ) ) {
+                    content = getJson();
+                    contentType = "application/json";
+                }
+                else {
+                    return HttpServer.createErrorResponse( 404,
+                                                           "Not found" );
+                }
+                final String method = request.getMethod();
+                if ( ! method.equals( "HEAD" ) && ! method.equals( "GET" ) ) {
+                    return response405;
+                }
+                final byte[] buf;
+                try {
+                    buf = content.getBytes( "UTF-8" );
+                }
+                catch ( IOException e ) {
+                    throw new RuntimeException( "No UTF-8??", e );
+                }
+                Map hdrMap = new LinkedHashMap();
+                hdrMap.put( HttpServer.HDR_CONTENT_TYPE, contentType );
+                hdrMap.put( "Content-Length", Integer.toString( buf.length ) );
+                return new HttpServer.Response( 200, "OK", hdrMap ) {
+                    public void writeBody( OutputStream out )
+                            throws IOException {
+                        if ( method.equals( "GET" ) ) {
+                            out.write( buf );
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the latency histogram with a given name,
+     * creating it if necessary.  Must be called with the lock held.
+     *
+     * @param  name  histogram name
+     * @return  histogram
+     */
+    private Latency getLatency( String name ) {
+        Latency latency = (Latency) latencyMap_.get( name );
+        if ( latency == null ) {
+            latency = new Latency();
+            latencyMap_.put( name, latency );
+        }
+        return latency;
+    }
+
+    /**
+     * Returns the array of counts for a given key in a count map,
+     * creating it if necessary.  If the map is full, the counts for
+     * {@link #OTHER_KEY} are returned instead of creating a new entry.
+     * Must be called with the lock held.
+     *
+     * @param  map  map from key to long[] count array
+     * @param  key  key
+     * @param  ncount  number of counts per key
+     * @return  count array
+     */
+    private long[] getCounts( Map map, String key, int ncount ) {
+        long[] counts = (long[]) map.get( key );
+        if ( counts == null ) {
+            if ( map.size() >= maxKeys_ ) {
+                key = OTHER_KEY;
+                counts = (long[]) map.get( key );
+            }
+            if ( counts == null ) {
+                counts = new long[ ncount ];
+                map.put( key, counts );
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Converts a count map to report form.
+     *
+     * @param  map  map from key to long[] count array
+     * @param  names  names of the counts in each array,
+     *                or null for single counts reported directly
+     * @return  report map
+     */
+    private static Map toReport( Map map, String[] names ) {
+        Map report = new LinkedHashMap();
+        for ( Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long[] counts = (long[]) entry.getValue();
+            if ( names == null ) {
+                report.put( entry.getKey(),
+                            SampUtils.encodeLong( counts[ 0 ] ) );
+            }
+            else {
+                Map countMap = new LinkedHashMap();
+                for ( int i = 0; i < names.length; i++ ) {
+                    countMap.put( names[ i ],
+                                  SampUtils.encodeLong( counts[ i ] ) );
+                }
+                report.put( entry.getKey(), countMap );
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Appends a report map to a buffer in text form, one line per value.
+     *
+     * @param  sbuf  buffer
+     * @param  prefix  prefix for names of values in the map
+     * @param  map   report map
+     */
+    private static void appendText( StringBuffer sbuf, String prefix,
+                                    Map map ) {
+        for ( Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String name = prefix + entry.getKey();
+            Object value = entry.getValue();
+            if ( value instanceof Map ) {
+                appendText( sbuf, name + ".", (Map) value );
+            }
+            else {
+                sbuf.append( name )
+                    .append( ' ' )
+                    .append( value )
+                    .append( '\n' );
+            }
+        }
+    }
+
+    /**
+     * Supplies an instantaneous value to be reported with the metrics.
+     */
+    public interface Gauge {
+
+        /**
+         * Returns the current value.
+         * This should be cheap to evaluate.
+         *
+         * @return  value
+         */
+        long getValue();
+    }
+
+    /**
+     * Histogram of latencies with fixed, roughly logarithmic, bins.
+     */
+    private static class Latency {
+        private final long[] bins_ = new long[ BIN_BOUNDS.length + 1 ];
+        private long count_;
+        private long total_;
+        private long max_;
+
+        /**
+         * Adds a measurement.
+         *
+         * @param  millis  latency in milliseconds
+         */
+        void add( long millis ) {
+            int ib = 0;
+            while ( ib < BIN_BOUNDS.length && millis > BIN_BOUNDS[ ib ] ) {
+                ib++;
+            }
+            bins_[ ib ]++;
+            count_++;
+            total_ += millis;
+            max_ = Math.max( max_, millis );
+        }
+
+        /**
+         * Returns the content of this histogram in report form.
+         * Bins are labelled "<code>lo-hi</code>", covering latencies
+         * greater than <code>lo</code> and at most <code>hi</code>
+         * milliseconds.
+         *
+         * @return  report map
+         */
+        Map toReport() {
+            Map report = new LinkedHashMap();
+            report.put( "count", SampUtils.encodeLong( count_ ) );
+            report.put( "meanMillis",
+                        SampUtils.encodeFloat( count_ > 0
+                                             ? total_ / (double) count_
+                                             : 0 ) );
+            report.put( "maxMillis", SampUtils.encodeLong( max_ ) );
+            Map binMap = new LinkedHashMap();
+            long lo = 0;
+            for ( int ib = 0; ib < bins_.length; ib++ ) {
+                String hi = ib < BIN_BOUNDS.length
+                          ? Long.toString( BIN_BOUNDS[ ib ] )
+                          : "";
+                binMap.put( lo + "-" + hi,
+                            SampUtils.encodeLong( bins_[ ib ] ) );
+                lo = ib < BIN_BOUNDS.length ? BIN_BOUNDS[ ib ] : lo;
+            }
+            report.put( "bins", binMap );
+            return report;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.astrogrid.samp.hub;
+
+/**
+ * JMX management interface for {@link HubMetrics}.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface HubMetricsMBean {
+
+    /**
+     * Returns the time since metrics collection started or was last reset.
+     *
+     * @return  elapsed time in milliseconds
+     */
+    long getUptimeMillis();
+
+    /**
+     * Returns the number of message deliveries attempted.
+     *
+     * @return  delivery count
+     */
+    long getDeliveryCount();
+
+    /**
+     * Returns the number of message deliveries which failed.
+     *
+     * @return  failed delivery count
+     */
+    long getFailureCount();
+
+    /**
+     * Returns all the current metrics in plain text form.
+     *
+     * @return  one "name value" line per metric
+     */
+    String getText();
+
+    /**
+     * Returns all the current metrics in JSON form.
+     *
+     * @return  JSON object
+     */
+    String getJson();
+
+    /**
+     * Clears all accumulated counts and latency statistics.
+     */
+    void reset();
+}
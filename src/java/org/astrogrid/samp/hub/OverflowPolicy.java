@@ -0,0 +1,42 @@
+package org.astrogrid.samp.hub;
+
+/**
+ * Determines what happens when a message is offered to a full
+ * {@link DeliveryQueue}.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class OverflowPolicy {
+
+    private final String name_;
+
+    /** The new delivery is refused; queued deliveries are unaffected. */
+    public static final OverflowPolicy REJECT =
+        new OverflowPolicy( "reject" );
+
+    /** The oldest queued delivery is discarded to make room. */
+    public static final OverflowPolicy DROP_OLDEST =
+        new OverflowPolicy( "drop-oldest" );
+
+    /**
+     * The sender waits until there is room, up to a deadline given
+     * when the delivery is offered; if there is still no room
+     * the new delivery is refused.
+     */
+    public static final OverflowPolicy BLOCK =
+        new OverflowPolicy( "block" );
+
+    /**
+     * Constructor.
+     *
+     * @param  name  policy name
+     */
+    private OverflowPolicy( String name ) {
+        name_ = name;
+    }
+
+    public String toString() {
+        return name_;
+    }
+}
@@ -0,0 +1,102 @@
+package org.astrogrid.samp.hub;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ClientSet implementation optimised for frequent reads.
+ * The hub consults its client set every time a message is sent,
+ * but clients register and unregister comparatively rarely.
+ * This implementation therefore keeps an immutable snapshot of the
+ * current membership, which is replaced wholesale (copy-on-write)
+ * each time a client is added or removed.
+ * Lookups use the current snapshot without locking or copying.
+ *
+ * <p>The array returned by {@link #getClients} is a new copy of the
+ * snapshot's client list, so callers may modify it.
+ * Its elements are in the order defined by
+ * the client ID comparator supplied at construction time.
+ * Membership as tested by {@link #containsClient} is by identity:
+ * a client is only contained if it is the same object as the one
+ * registered under its public ID.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class SnapshotClientSet implements ClientSet {
+
+    private final Comparator idComparator_;
+    private volatile Snapshot snapshot_;
+
+    /**
+     * Constructor.
+     *
+     * @param  clientIdComparator  comparator for client IDs
+     */
+    public SnapshotClientSet( Comparator clientIdComparator ) {
+        idComparator_ = clientIdComparator;
+        snapshot_ = new Snapshot( new TreeMap( clientIdComparator ) );
+    }
+
+    public synchronized void add( HubClient client ) {
+        Map sortedMap = createSortedMap();
+        sortedMap.put( client.getId(), client );
+        snapshot_ = new Snapshot( sortedMap );
+    }
+
+    public synchronized void remove( HubClient client ) {
+        if ( snapshot_.idMap_.containsKey( client.getId() ) ) {
+            Map sortedMap = createSortedMap();
+            sortedMap.remove( client.getId() );
+            snapshot_ = new Snapshot( sortedMap );
+        }
+    }
+
+    public HubClient getFromPublicId( String publicId ) {
+        return (HubClient) snapshot_.idMap_.get( publicId );
+    }
+
+    public HubClient[] getClients() {
+        return (HubClient[]) snapshot_.clients_.clone();
+    }
+
+    public boolean containsClient( HubClient client ) {
+        return client != null
+            && snapshot_.idMap_.get( client.getId() ) == client;
+    }
+
+    /**
+     * Returns a new mutable sorted map containing the contents of the
+     * current snapshot.
+     *
+     * @return  new map from public ID to HubClient
+     */
+    private Map createSortedMap() {
+        Map map = new TreeMap( idComparator_ );
+        map.putAll( snapshot_.idMap_ );
+        return map;
+    }
+
+    /**
+     * Immutable record of the clients in the set at a given moment.
+     */
+    private static class Snapshot {
+        final Map idMap_;
+        final HubClient[] clients_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sortedMap  map from public ID to HubClient,
+         *                    iterating in client ID order
+         */
+        Snapshot( Map sortedMap ) {
+            idMap_ = Collections.unmodifiableMap( new HashMap( sortedMap ) );
+            clients_ = (HubClient[])
+                       sortedMap.values().toArray( new HubClient[ 0 ] );
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.astrogrid.samp.hub;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the MType subscriptions of all the clients registered with
+ * a hub, which allows the clients subscribed to a given MType to be
+ * found without examining every subscription of every client.
+ *
+ * <p>Subscription keys are stored in a tree keyed by the dot-separated
+ * atoms of the MType.  Each node records the clients subscribed to
+ * exactly the MType it represents, and those subscribed using a wildcard
+ * ending in that MType's atoms, so that a lookup only needs to visit
+ * one node per atom of the query.  Wildcards are matched as by
+ * {@link org.astrogrid.samp.Subscriptions#matchLevel}:
+ * "<code>*</code>" matches everything and
+ * "<code>x.y.*</code>" matches "<code>x.y</code>" and
+ * any MType starting "<code>x.y.</code>".
+ *
+ * <p>The index is updated incrementally as each client's subscriptions
+ * change.  Nodes which no longer record any clients or lead to any
+ * that do are removed, so the tree's size is bounded by the number
+ * of atoms in the subscription keys currently declared.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class SubscriptionIndex {
+
+    private final Node root_;
+    private final Map clientKeys_;
+
+    /**
+     * Constructor.
+     */
+    public SubscriptionIndex() {
+        root_ = new Node();
+        clientKeys_ = new HashMap();
+    }
+
+    /**
+     * Records the current subscriptions of a client, replacing any
+     * previously recorded for it.
+     *
+     * @param  client  client
+     * @param  subs   subscription map; only the keys are used
+     */
+    public synchronized void setSubscriptions( HubClient client, Map subs ) {
+        removeClient( client );
+        if ( subs != null && ! subs.isEmpty() ) {
+            String[] keys =
+                (String[]) subs.keySet().toArray( new String[ 0 ] );
+            for ( int ik = 0; ik < keys.length; ik++ ) {
+                getEntrySet( keys[ ik ], true ).add( client );
+            }
+            clientKeys_.put( client, keys );
+        }
+    }
+
+    /**
+     * Removes all record of a client's subscriptions.
+     *
+     * @param  client  client
+     */
+    public synchronized void removeClient( HubClient client ) {
+        String[] keys = (String[]) clientKeys_.remove( client );
+        if ( keys != null ) {
+            for ( int ik = 0; ik < keys.length; ik++ ) {
+                removeEntry( keys[ ik ], client );
+            }
+        }
+    }
+
+    /**
+     * Returns the clients with a subscription matching a given MType.
+     * The order of the result is undefined.
+     *
+     * @param  mtype  unwildcarded MType
+     * @return   array of subscribed clients
+     */
+    public synchronized HubClient[] getSubscribers( String mtype ) {
+        Set clients = new HashSet();
+        Node node = root_;
+        clients.addAll( node.wildcards_ );
+        int start = 0;
+        while ( node != null && start <= mtype.length() ) {
+            int end = mtype.indexOf( '.', start );
+            if ( end < 0 ) {
+                end = mtype.length();
+            }
+            node = (Node) node.children_.get( mtype.substring( start, end ) );
+            if ( node != null ) {
+                clients.addAll( node.wildcards_ );
+                if ( end == mtype.length() ) {
+                    clients.addAll( node.exacts_ );
+                }
+            }
+            start = end + 1;
+        }
+        return (HubClient[]) clients.toArray( new HubClient[ 0 ] );
+    }
+
+    /**
+     * Returns the number of nodes in this index's tree, including the root.
+     * This is intended for monitoring and testing.
+     *
+     * @return  node count
+     */
+    public synchronized int getNodeCount() {
+        return countNodes( root_ );
+    }
+
+    /**
+     * Removes a client from the tree node corresponding to a given
+     * subscription key, and removes that node and any of its
+     * ancestors which are left empty.
+     *
+     * @param  key  subscription key, possibly wildcarded
+     * @param  client  client to remove
+     */
+    private void removeEntry( String key, HubClient client ) {
+        if ( "*".equals( key ) ) {
+            root_.wildcards_.remove( client );
+            return;
+        }
+        boolean isWild = key.endsWith( ".*" );
+        String path = isWild ? key.substring( 0, key.length() - 2 ) : key;
+        String[] atoms = path.split( "\\.", -1 );
+        Node[] nodes = new Node[ atoms.length + 1 ];
+        nodes[ 0 ] = root_;
+        for ( int ia = 0; ia < atoms.length; ia++ ) {
+            nodes[ ia + 1 ] = (Node) nodes[ ia ].children_.get( atoms[ ia ] );
+            if ( nodes[ ia + 1 ] == null ) {
+                return;
+            }
+        }
+        Node leaf = nodes[ atoms.length ];
+        ( isWild ? leaf.wildcards_ : leaf.exacts_ ).remove( client );
+        for ( int ia = atoms.length - 1; ia >= 0 && nodes[ ia + 1 ].isEmpty();
+              ia-- ) {
+            nodes[ ia ].children_.remove( atoms[ ia ] );
+        }
+    }
+
+    /**
+     * Returns the number of nodes in a subtree.
+     *
+     * @param  node  root of subtree
+     * @return  node count including <code>node</code>
+     */
+    private static int countNodes( Node node ) {
+        int n = 1;
+        for ( Iterator it = node.children_.values().iterator();
+              it.hasNext(); ) {
+            n += countNodes( (Node) it.next() );
+        }
+        return n;
+    }
+
+    /**
+     * Returns the set of clients at the tree node corresponding to
+     * a given subscription key.
+     *
+     * @param  key  subscription key, possibly wildcarded
+     * @param  create  whether to create the node if it does not exist
+     * @return   mutable client set, or null if it does not exist and
+     *           <code>create</code> is false
+     */
+    private Set getEntrySet( String key, boolean create ) {
+        boolean isWild;
+        String path;
+        if ( "*".equals( key ) ) {
+            return root_.wildcards_;
+        }
+        else if ( key.endsWith( ".*" ) ) {
+            isWild = true;
+            path = key.substring( 0, key.length() - 2 );
+        }
+        else {
+            isWild = false;
+            path = key;
+        }
+        Node node = root_;
+        int start = 0;
+        while ( start <= path.length() ) {
+            int end = path.indexOf( '.', start );
+            if ( end < 0 ) {
+                end = path.length();
+            }
+            String atom = path.substring( start, end );
+            Node child = (Node) node.children_.get( atom );
+            if ( child == null ) {
+                if ( ! create ) {
+                    return null;
+                }
+                child = new Node();
+                node.children_.put( atom, child );
+            }
+            node = child;
+            start = end + 1;
+        }
+        return isWild ? node.wildcards_ : node.exacts_;
+    }
+
+    /**
+     * Tree node representing an MType or MType prefix.
+     */
+    private static class Node {
+        final Map children_ = new HashMap();
+        final Set exacts_ = new HashSet();
+        final Set wildcards_ = new HashSet();
+
+        /**
+         * Indicates whether this node records no clients and has
+         * no children.
+         *
+         * @return  true iff this node can be removed
+         */
+        boolean isEmpty() {
+            return children_.isEmpty() && exacts_.isEmpty()
+                && wildcards_.isEmpty();
+        }
+    }
+}
@@ -12,11 +12,13 @@ import org.astrogrid.samp.client.SampException;
 
 /**
  * HubConnection implementation that delegates all calls to a base instance.
+ * The non-blocking <code>callAndWait</code> method is passed on if the
+ * base instance supports it, and otherwise performed using the blocking one.
  *
  * @author   Mark Taylor
  * @since    3 Feb 2011
  */
-class WrapperHubConnection implements HubConnection {
+class WrapperHubConnection implements AsyncHubConnection {
 
     private final HubConnection base_;
 
@@ -92,6 +94,26 @@ class WrapperHubConnection implements HubConnection {
         return base_.callAndWait( recipientId, msg, timeout );
     }
 
+    public void callAndWait( String recipientId, Map msg, int timeout,
+                             Callback callback )
+            throws SampException {
+        if ( base_ instanceof AsyncHubConnection ) {
+            ((AsyncHubConnection) base_)
+                .callAndWait( recipientId, msg, timeout, callback );
+        }
+        else {
+            Response response;
+            try {
+                response = base_.callAndWait( recipientId, msg, timeout );
+            }
+            catch ( SampException e ) {
+                callback.failed( e );
+                return;
+            }
+            callback.completed( response );
+        }
+    }
+
     public void reply( String msgId, Map response ) throws SampException {
         base_.reply( msgId, response );
     }
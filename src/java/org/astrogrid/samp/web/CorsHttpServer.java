@@ -91,7 +91,23 @@ public class CorsHttpServer extends HttpServer {
      */
     public CorsHttpServer( ServerSocket socket, OriginAuthorizer authorizer )
             throws IOException {
-        super( socket );
+        this( socket, authorizer, false );
+    }
+
+    /**
+     * Constructor with a choice of request processing engine.
+     *
+     * @param  socket  socket hosting the service
+     * @param  authorizer   defines which domains requests will be
+     *                      permitted from
+     * @param  isNio   true for the selector-based engine,
+     *                 false for the thread-per-connection engine
+     * @see   HttpServer#HttpServer(java.net.ServerSocket,boolean)
+     */
+    public CorsHttpServer( ServerSocket socket, OriginAuthorizer authorizer,
+                           boolean isNio )
+            throws IOException {
+        super( socket, isNio );
         authorizer_ = authorizer;
     }
 
@@ -35,13 +35,27 @@ public class LoggingCorsHttpServer extends CorsHttpServer {
     }
 
     public Response serve( Request request ) {
-        int iseq;
+        final int iseq;
         synchronized ( this ) {
             iseq = ++iSeq_;
         }
         logRequest( request, iseq );
-        return new LoggedResponse( super.serve( request ), iseq,
-                                   "POST".equals( request.getMethod() ) );
+        final boolean isPost = "POST".equals( request.getMethod() );
+        Response response = super.serve( request );
+        if ( response instanceof DeferredResponse ) {
+            final DeferredResponse base = (DeferredResponse) response;
+            final DeferredResponse logged = new DeferredResponse();
+            base.addCompletionListener( new Runnable() {
+                public void run() {
+                    logged.complete( new LoggedResponse( base.getResponse(),
+                                                         iseq, isPost ) );
+                }
+            } );
+            return logged;
+        }
+        else {
+            return new LoggedResponse( response, iseq, isPost );
+        }
     }
 
     /**
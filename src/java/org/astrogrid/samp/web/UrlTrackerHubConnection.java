@@ -15,16 +15,20 @@ import org.astrogrid.samp.Subscriptions;
 import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
+import org.astrogrid.samp.hub.AsyncHubConnection;
 
 /**
  * HubConnection wrapper implementation which intercepts all incoming 
  * and outgoing communications, scans them for URLs in the payload,
  * and notifies a supplied UrlTracker object.
+ * The non-blocking <code>callAndWait</code> method is passed on if the
+ * base connection supports it, and otherwise performed using the
+ * blocking one.
  *
  * @author   Mark Taylor
  * @since    22 Jul 2011
  */
-class UrlTrackerHubConnection implements HubConnection {
+class UrlTrackerHubConnection implements AsyncHubConnection {
 
     private final HubConnection base_;
     private final UrlTracker urlTracker_;
@@ -166,6 +170,36 @@ class UrlTrackerHubConnection implements HubConnection {
                                                 timeout ) );
     }
 
+    public void callAndWait( String recipientId, Map msg, int timeout,
+                             final Callback callback )
+            throws SampException {
+        if ( base_ instanceof AsyncHubConnection ) {
+            Callback scanCallback = new Callback() {
+                public void completed( Response response ) {
+                    scanIncoming( response );
+                    callback.completed( response );
+                }
+                public void failed( SampException error ) {
+                    callback.failed( error );
+                }
+            };
+            ((AsyncHubConnection) base_)
+                .callAndWait( recipientId, scanOutgoing( msg ), timeout,
+                              scanCallback );
+        }
+        else {
+            Response response;
+            try {
+                response = callAndWait( recipientId, msg, timeout );
+            }
+            catch ( SampException e ) {
+                callback.failed( e );
+                return;
+            }
+            callback.completed( response );
+        }
+    }
+
     public void reply( String msgId, Map response ) throws SampException {
         base_.reply( msgId, scanOutgoing( response ) );
     }
@@ -101,6 +101,17 @@ class WebCallableClient implements CallableClient {
         }
     }
 
+    /**
+     * Returns the number of callbacks waiting to be pulled.
+     *
+     * @return  queue depth
+     */
+    public int getQueueDepth() {
+        synchronized ( queue_ ) {
+            return queue_.size();
+        }
+    }
+
     /**
      * Adds a new callback to the queue which can be passed out via the
      * {@link #pullCallbacks} method.
@@ -8,6 +8,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.SerialExecutor;
 import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.SampException;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
@@ -66,11 +67,15 @@ class WebHubConnection extends XmlRpcHubConnection {
      * Thread that performs repeated long polls to pull callbacks from the
      * hub and passes them on to this connection's CallableClient for
      * execution.
+     * Each callback is executed in a new thread, except that notifications
+     * from the hub are executed one at a time in the order they were
+     * pulled, since they report changes to the hub's state.
      */
     private static class CallWorker extends Thread {
 
         private final XmlRpcHubConnection xconn_;
         private final CallableClient client_;
+        private final SerialExecutor hubNotifier_;
         private final int timeoutSec_ = 60 * 10;
         private final long minWaitMillis_ = 5 * 1000;
         private volatile boolean stopped_;
@@ -87,6 +92,8 @@ class WebHubConnection extends XmlRpcHubConnection {
             super( "Web Profile Callback Puller for " + appName );
             xconn_ = xconn;
             client_ = client;
+            hubNotifier_ =
+                new SerialExecutor( "Web Profile Hub Notification" );
             setDaemon( true );
         }
 
@@ -122,7 +129,7 @@ class WebHubConnection extends XmlRpcHubConnection {
                             try {
                                 final Callback cb =
                                     new Callback( (Map) it.next() );
-                                new Thread( "Web Profile Callback" ) {
+                                Runnable task = new Runnable() {
                                     public void run() {
                                         try {
                                             ClientCallbackOperation
@@ -134,7 +141,14 @@ class WebHubConnection extends XmlRpcHubConnection {
                                                        + e.getMessage(), e );
                                         }
                                     }
-                                }.start();
+                                };
+                                if ( isHubNotification( cb ) ) {
+                                    hubNotifier_.execute( task );
+                                }
+                                else {
+                                    new Thread( task, "Web Profile Callback" )
+                                       .start();
+                                }
                             }
                             catch ( Throwable e ) {
                                 logger_.log( Level.WARNING, e.getMessage(), e );
@@ -149,6 +163,20 @@ class WebHubConnection extends XmlRpcHubConnection {
             }
         }
 
+        /**
+         * Indicates whether a callback is a notification from the hub.
+         *
+         * @param  cb  callback
+         * @return  true iff <code>cb</code> is a hub notification
+         */
+        private boolean isHubNotification( Callback cb ) {
+            List params = cb.getParams();
+            return ( WebClientProfile.WEBSAMP_CLIENT_PREFIX
+                   + "receiveNotification" ).equals( cb.getMethodName() )
+                && params != null && params.size() > 0
+                && xconn_.getRegInfo().getHubId().equals( params.get( 0 ) );
+        }
+
         /**
          * Invoked if there is a serious (non-timeout) error when polling
          * for callbacks.  This currently stops the polling for good.
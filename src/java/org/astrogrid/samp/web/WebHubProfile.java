@@ -10,6 +10,7 @@ import javax.swing.SwingUtilities;
 import org.astrogrid.samp.client.ClientProfile;
 import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.hub.ConfigHubProfile;
+import org.astrogrid.samp.hub.HubMetrics;
 import org.astrogrid.samp.hub.HubProfile;
 import org.astrogrid.samp.hub.KeyGenerator;
 import org.astrogrid.samp.hub.MessageRestriction;
@@ -34,10 +35,18 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
     private MessageRestriction mrestrict_;
     private boolean controlUrls_;
     private InternalServer xServer_;
+    private HubMetrics metrics_;
+    private HubMetrics.Gauge[] gauges_;
     private JToggleButton.ToggleButtonModel[] configModels_;
     private static final Logger logger_ =
         Logger.getLogger( WebHubProfile.class.getName() );
 
+    /** Names of the gauges reported by this profile to HubMetrics. */
+    private static final String[] GAUGE_NAMES = new String[] {
+        "web.callbackQueueDepth",
+        "web.maxCallbackQueueDepth",
+    };
+
     /**
      * Constructs a profile with configuration options.
      *
@@ -99,6 +108,13 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
                     + mrestrict_ );
         xServer_.addHandler( wxHandler );
         hServer.addHandler( wxHandler.getUrlTranslationHandler() );
+        metrics_ = HubMetrics.getDefault();
+        if ( metrics_ != null ) {
+            gauges_ = createGauges( wxHandler );
+            for ( int ig = 0; ig < GAUGE_NAMES.length; ig++ ) {
+                metrics_.addGauge( GAUGE_NAMES[ ig ], gauges_[ ig ] );
+            }
+        }
         hServer.start();
         if ( configModels_ != null ) {
             SwingUtilities.invokeLater( configDisabler_ );
@@ -116,6 +132,13 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
         }
         xServer_.getHttpServer().stop();
         xServer_ = null;
+        if ( metrics_ != null ) {
+            for ( int ig = 0; ig < GAUGE_NAMES.length; ig++ ) {
+                metrics_.removeGauge( GAUGE_NAMES[ ig ], gauges_[ ig ] );
+            }
+            metrics_ = null;
+            gauges_ = null;
+        }
         if ( configModels_ != null ) {
             SwingUtilities.invokeLater( configEnabler_ );
         }
@@ -128,6 +151,29 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
         return configModels_;
     }
 
+    /**
+     * Returns gauges reporting the callback queues of a running handler,
+     * in the order of {@link #GAUGE_NAMES}.
+     *
+     * @param  wxHandler  web hub handler
+     * @return  gauge array
+     */
+    private static HubMetrics.Gauge[]
+            createGauges( final WebHubXmlRpcHandler wxHandler ) {
+        return new HubMetrics.Gauge[] {
+            new HubMetrics.Gauge() {
+                public long getValue() {
+                    return wxHandler.getCallbackQueueDepth( false );
+                }
+            },
+            new HubMetrics.Gauge() {
+                public long getValue() {
+                    return wxHandler.getCallbackQueueDepth( true );
+                }
+            },
+        };
+    }
+
     /**
      * Creates and returns some toggle models for configuration.
      * They are only enabled when the profile is not running.
@@ -325,6 +371,11 @@ public class WebHubProfile implements HubProfile, ConfigHubProfile {
                             + "Silverlight-style cross-domain access" );
             }
             hServer.setDaemon( true );
+            HubMetrics metrics = HubMetrics.getDefault();
+            if ( metrics != null ) {
+                hServer.addRequestListener( metrics
+                                           .createRequestListener( "web" ) );
+            }
             if ( "rpc".equals( logType ) ) {
                 return new RpcLoggingInternalServer( hServer, path, logOut );
             }
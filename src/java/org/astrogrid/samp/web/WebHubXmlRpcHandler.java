@@ -13,6 +13,7 @@ import java.util.Set;
 import java.util.logging.Logger;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.RegInfo;
+import org.astrogrid.samp.Response;
 import org.astrogrid.samp.Subscriptions;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.client.ClientProfile;
@@ -20,8 +21,10 @@ import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
 import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.httpd.URLMapperHandler;
+import org.astrogrid.samp.hub.AsyncHubConnection;
 import org.astrogrid.samp.hub.KeyGenerator;
 import org.astrogrid.samp.xmlrpc.ActorHandler;
+import org.astrogrid.samp.xmlrpc.DeferredResult;
 
 /**
  * SampXmlRpcHandler implementation which passes Web Profile-type XML-RPC calls
@@ -50,10 +53,29 @@ public class WebHubXmlRpcHandler extends ActorHandler {
     public WebHubXmlRpcHandler( ClientProfile profile, ClientAuthorizer auth,
                                 KeyGenerator keyGen, URL baseUrl,
                                 UrlTracker urlTracker ) {
-        super( WebClientProfile.WEBSAMP_HUB_PREFIX, WebHubActor.class,
-               new WebHubActorImpl( profile, auth, keyGen, baseUrl,
-                                    urlTracker ) );
-        impl_ = (WebHubActorImpl) getActor();
+        this( new WebHubActorImpl( profile, auth, keyGen, baseUrl,
+                                   urlTracker ) );
+    }
+
+    /**
+     * Constructs a handler given its implementation object.
+     * Synchronous calls are handled without holding the request thread
+     * while the response is awaited, if the server permits it.
+     *
+     * @param  impl  hub actor implementation
+     */
+    private WebHubXmlRpcHandler( final WebHubActorImpl impl ) {
+        super( WebClientProfile.WEBSAMP_HUB_PREFIX, WebHubActor.class, impl,
+               DeferringWebHubActor.class, new DeferringWebHubActor() {
+                   public Object callAndWait( String privateKey,
+                                              String recipientId, Map msg,
+                                              String timeout )
+                           throws SampException {
+                       return impl.deferCallAndWait( privateKey, recipientId,
+                                                     msg, timeout );
+                   }
+               } );
+        impl_ = impl;
     }
 
     public Object handleCall( String fqName, List params, Object reqObj )
@@ -96,11 +118,46 @@ public class WebHubXmlRpcHandler extends ActorHandler {
         return impl_.getUrlTranslationHandler();
     }
 
+    /**
+     * Returns the number of callbacks waiting to be pulled by
+     * clients registered through this handler.
+     *
+     * @param  isMax  if true, the largest number queued for any one
+     *                client; if false, the total for all clients
+     * @return  callback count
+     */
+    public int getCallbackQueueDepth( boolean isMax ) {
+        return impl_.getCallbackQueueDepth( isMax );
+    }
+
     protected Object invokeMethod( Method method, Object obj, Object[] args )
             throws IllegalAccessException, InvocationTargetException {
         return method.invoke( obj, args );
     }
 
+    /**
+     * Defines Web Profile hub XML-RPC methods which may supply
+     * their results later.
+     */
+    interface DeferringWebHubActor {
+
+        /**
+         * Sends a message synchronously to a client, without blocking
+         * if possible.
+         *
+         * @param  privateKey  calling client private key
+         * @param  recipientId  public-id of client to receive message
+         * @param  msg {@link org.astrogrid.samp.Message}-like map
+         * @param  timeout  timeout in seconds encoded as a SAMP int
+         * @return  {@link org.astrogrid.samp.xmlrpc.DeferredResult}
+         *          which will yield a
+         *          {@link org.astrogrid.samp.Response}-like map,
+         *          or the map itself
+         */
+        Object callAndWait( String privateKey, String recipientId, Map msg,
+                            String timeout ) throws SampException;
+    }
+
     /**
      * WebHubActor implementation.
      */
@@ -148,6 +205,31 @@ public class WebHubXmlRpcHandler extends ActorHandler {
             return urlTranslator_;
         }
 
+        /**
+         * Returns the number of callbacks waiting to be pulled by
+         * registered clients.
+         *
+         * @param  isMax  if true, the largest number queued for any one
+         *                client; if false, the total for all clients
+         * @return  callback count
+         */
+        public int getCallbackQueueDepth( boolean isMax ) {
+            Registration[] regs;
+            synchronized ( regMap_ ) {
+                regs = (Registration[])
+                       regMap_.values().toArray( new Registration[ 0 ] );
+            }
+            int depth = 0;
+            for ( int i = 0; i < regs.length; i++ ) {
+                WebCallableClient callable = regs[ i ].callable_;
+                if ( callable != null ) {
+                    int d = callable.getQueueDepth();
+                    depth = isMax ? Math.max( depth, d ) : depth + d;
+                }
+            }
+            return depth;
+        }
+
         /**
          * Attempt client registration.  An exception is thrown if registration
          * fails for any reason.
@@ -289,6 +371,42 @@ public class WebHubXmlRpcHandler extends ActorHandler {
                                 SampUtils.decodeInt( timeout ) );
         }
 
+        /**
+         * Performs the work of the <code>callAndWait</code> method
+         * without blocking, if the connection permits it.
+         *
+         * @param  clientKey  private key
+         * @param  recipientId  public ID of recipient
+         * @param  msg   message
+         * @param  timeout  timeout in seconds as a SAMP int
+         * @return  deferred result, or the response if the call
+         *          had to be made synchronously
+         */
+        Object deferCallAndWait( String clientKey, String recipientId,
+                                 Map msg, String timeout )
+                throws SampException {
+            HubConnection connection = getConnection( clientKey );
+            int timeoutSec = SampUtils.decodeInt( timeout );
+            if ( connection instanceof AsyncHubConnection ) {
+                final DeferredResult result = new DeferredResult();
+                AsyncHubConnection.Callback callback =
+                    new AsyncHubConnection.Callback() {
+                        public void completed( Response response ) {
+                            result.completed( response );
+                        }
+                        public void failed( SampException error ) {
+                            result.failed( error );
+                        }
+                    };
+                ((AsyncHubConnection) connection)
+                    .callAndWait( recipientId, msg, timeoutSec, callback );
+                return result;
+            }
+            else {
+                return connection.callAndWait( recipientId, msg, timeoutSec );
+            }
+        }
+
         public void reply( String clientKey, String msgId, Map response )
                 throws SampException {
             getConnection( clientKey ).reply( msgId, response );
@@ -343,7 +461,8 @@ public class WebHubXmlRpcHandler extends ActorHandler {
      * HTTP handler which provides URL translation services for sandboxed
      * clients.
      */
-    private static class URLTranslationHandler implements HttpServer.Handler {
+    private static class URLTranslationHandler
+            implements HttpServer.PrefixHandler {
         private final String basePath_;
         private final Set keySet_;
         private final UrlTracker urlTracker_;
@@ -382,6 +501,10 @@ public class WebHubXmlRpcHandler extends ActorHandler {
             return basePath_ + privateKey + "?";
         }
 
+        public String getPathPrefix() {
+            return basePath_;
+        }
+
         public HttpServer.Response serveRequest( HttpServer.Request request ) {
 
             // Ignore requests outside this handler's domain.
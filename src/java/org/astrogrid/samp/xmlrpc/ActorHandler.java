@@ -22,6 +22,13 @@ import org.astrogrid.samp.DataException;
  * <code>execute</code> requests.  This insulates the implementation object
  * from having to worry about any XML-RPC specifics.
  *
+ * <p>Optionally, a second interface and implementation object may be
+ * supplied which provide alternative implementations of some of
+ * the methods that can return a {@link DeferredResult} rather than
+ * blocking until the result is known.  These are used in preference
+ * for calls from servers which are able to {@link #canDefer defer}
+ * their responses.
+ *
  * @author   Mark Taylor
  * @since    15 Jul 2008
  */
@@ -29,7 +36,9 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
 
     private final String prefix_;
     private final Object actor_;
-    private final Map methodMap_;
+    private final Object deferActor_;
+    private final Map dispatchMap_;
+    private final Map deferMap_;
     private final Logger logger_ =
         Logger.getLogger( ActorHandler.class.getName() );
 
@@ -43,25 +52,33 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
      * @param  actor     object implementing <code>actorType</code>
      */
     public ActorHandler( String prefix, Class actorType, Object actor ) {
+        this( prefix, actorType, actor, null, null );
+    }
+
+    /**
+     * Constructs a handler some of whose methods may defer their results.
+     * Each method of the <code>deferType</code> interface has the same
+     * name and parameter types as a method of <code>actorType</code>,
+     * but may return a {@link DeferredResult} instead of the result itself.
+     *
+     * @param  prefix  string prepended to every method name in the
+     *         <code>actorType</code> interface to form the XML-RPC
+     *         <code>methodName</code> element
+     * @param  actorType  interface defining the XML-RPC methods
+     * @param  actor     object implementing <code>actorType</code>
+     * @param  deferType  interface defining deferrable versions of some
+     *         XML-RPC methods, or null
+     * @param  deferActor  object implementing <code>deferType</code>,
+     *         or null
+     */
+    public ActorHandler( String prefix, Class actorType, Object actor,
+                         Class deferType, Object deferActor ) {
         prefix_ = prefix;
         actor_ = actor;
-        methodMap_ = new HashMap();
-
-        // Construct a map keyed by method signature of the known methods.
-        Method[] methods = actorType.getDeclaredMethods();
-        for ( int im = 0; im < methods.length; im++ ) {
-            Method method = methods[ im ];
-            if ( Modifier.isPublic( method.getModifiers() ) ) {
-                String name = method.getName();
-                Class[] clazzes = method.getParameterTypes();
-                SampType[] types = new SampType[ clazzes.length ];
-                for ( int ic = 0; ic < clazzes.length; ic++ ) {
-                    types[ ic ] = SampType.getClassType( clazzes[ ic ] );
-                }
-                Signature sig = new Signature( prefix_ + name, types );
-                methodMap_.put( sig, method );
-            }
-        }
+        deferActor_ = deferActor;
+        dispatchMap_ = createDispatchMap( prefix, actorType );
+        deferMap_ = deferType == null ? new HashMap()
+                                      : createDispatchMap( prefix, deferType );
     }
 
     public boolean canHandleCall( String fqName ) {
@@ -74,56 +91,40 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
             throw new IllegalArgumentException( "No I can't" );
         }
 
-        // Work out the signature for this method and see if it is recognised.
-        String name = fqName.substring( prefix_.length() );
-        List typeList = new ArrayList();
-        for ( Iterator it = params.iterator(); it.hasNext(); ) {
-            typeList.add( SampType.getParamType( it.next() ) );
+        // See if the method name and signature are recognised.
+        Dispatch dispatch = (Dispatch) dispatchMap_.get( fqName );
+        if ( dispatch == null ) {
+            throw new UnsupportedOperationException( "Unknown method "
+                                                   + fqName );
+        }
+
+        // Use a deferring implementation if there is one and the
+        // server can make use of it.
+        Dispatch deferDispatch = (Dispatch) deferMap_.get( fqName );
+        if ( deferDispatch != null && canDefer( reqInfo ) ) {
+            Signature deferSig = deferDispatch.getSignature( params );
+            if ( deferSig != null ) {
+                return invoke( deferSig, deferActor_, params );
+            }
         }
-        SampType[] types = (SampType[]) typeList.toArray( new SampType[ 0 ] );
-        Signature sig = new Signature( fqName, types );
-        Method method = (Method) methodMap_.get( sig );
+        Signature sig = dispatch.getSignature( params );
 
         // If the signature is recognised, invoke the relevant method
         // on the implementation object.
-        if ( method != null ) {
-            Object result;
-            Throwable error;
-            try {
-                result = invokeMethod( method, actor_, params.toArray() );
-            }
-            catch ( InvocationTargetException e ) {
-                Throwable e2 = e.getCause();
-                if ( e2 instanceof Error ) {
-                    throw (Error) e2;
-                }
-                else {
-                    throw (Exception) e2;
-                }
-            }
-            catch ( Exception e ) {
-                throw e;
-            }
-            catch ( Error e ) {
-                throw e;
-            }
-            return result == null ? "" : result;
+        if ( sig != null ) {
+            return invoke( sig, actor_, params );
         }
 
         // If the signature is not recognised, but the method name is,
         // try to make a helpful comment.
         else {
-            for ( Iterator it = methodMap_.keySet().iterator();
-                  it.hasNext(); ) {
-                Signature foundSig = (Signature) it.next();
-                if ( foundSig.name_.equals( fqName ) ) {
-                    throw new IllegalArgumentException(
-                            "Bad arguments: " + foundSig + " got "
-                          + sig.typeList_ );
-                }
+            List typeList = new ArrayList();
+            for ( Iterator it = params.iterator(); it.hasNext(); ) {
+                typeList.add( SampType.getParamType( it.next() ) );
             }
-            throw new UnsupportedOperationException( "Unknown method "
-                                                   + fqName );
+            throw new IllegalArgumentException( "Bad arguments: "
+                                              + dispatch.sigs_[ 0 ]
+                                              + " got " + typeList );
         }
     }
 
@@ -136,6 +137,90 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
         return actor_;
     }
 
+    /**
+     * Indicates whether the server from which a call was received
+     * can make use of a {@link DeferredResult}.
+     * The default implementation returns true only if the request
+     * information is a {@link DeferrableRequest}.
+     *
+     * @param  reqInfo  request information supplied with the call
+     * @return  true iff a deferring method implementation may be used
+     */
+    protected boolean canDefer( Object reqInfo ) {
+        return reqInfo instanceof DeferrableRequest;
+    }
+
+    /**
+     * Invokes the method for a signature on an implementation object.
+     *
+     * @param  sig  signature matching the call parameters
+     * @param  actor  object on which to invoke the method
+     * @param  params  call parameters
+     * @return  call result, not null
+     */
+    private Object invoke( Signature sig, Object actor, List params )
+            throws Exception {
+        Object result;
+        try {
+            result = invokeMethod( sig.method_, actor, params.toArray() );
+        }
+        catch ( InvocationTargetException e ) {
+            Throwable e2 = e.getCause();
+            if ( e2 instanceof Error ) {
+                throw (Error) e2;
+            }
+            else {
+                throw (Exception) e2;
+            }
+        }
+        return result == null ? "" : result;
+    }
+
+    /**
+     * Prepares a table for dispatching calls to the methods
+     * of an interface.
+     *
+     * @param  prefix  string prepended to every method name to form the
+     *                 XML-RPC <code>methodName</code>
+     * @param  type   interface defining the XML-RPC methods
+     * @return  map from XML-RPC method name to Dispatch object
+     */
+    private static Map createDispatchMap( String prefix, Class type ) {
+
+        // Group the known methods by fully qualified name.
+        Map sigListMap = new HashMap();
+        Method[] methods = type.getDeclaredMethods();
+        for ( int im = 0; im < methods.length; im++ ) {
+            Method method = methods[ im ];
+            if ( Modifier.isPublic( method.getModifiers() ) ) {
+                String fqName = prefix + method.getName();
+                Class[] clazzes = method.getParameterTypes();
+                SampType[] types = new SampType[ clazzes.length ];
+                for ( int ic = 0; ic < clazzes.length; ic++ ) {
+                    types[ ic ] = SampType.getClassType( clazzes[ ic ] );
+                }
+                List sigList = (List) sigListMap.get( fqName );
+                if ( sigList == null ) {
+                    sigList = new ArrayList();
+                    sigListMap.put( fqName, sigList );
+                }
+                sigList.add( new Signature( fqName, types, method ) );
+            }
+        }
+
+        // Turn each group into a table indexed by arity, so that a call
+        // can be dispatched with one hash lookup and no allocation.
+        Map dispatchMap = new HashMap();
+        for ( Iterator it = sigListMap.entrySet().iterator();
+              it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Signature[] sigs = (Signature[])
+                ((List) entry.getValue()).toArray( new Signature[ 0 ] );
+            dispatchMap.put( entry.getKey(), new Dispatch( sigs ) );
+        }
+        return dispatchMap;
+    }
+
     /**
      * Invokes a method reflectively on an object.
      * This method should be implemented in the obvious way, that is
@@ -200,6 +285,16 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
             return clazz_;
         }
 
+        /**
+         * Indicates whether a given object is of this type.
+         *
+         * @param  param  object
+         * @return  true iff <code>param</code> is an instance of this type
+         */
+        public boolean isInstance( Object param ) {
+            return clazz_.isInstance( param );
+        }
+
         /**
          * Returns the SAMP name for this type.
          *
@@ -254,45 +349,100 @@ public abstract class ActorHandler implements SampXmlRpcHandler {
     }
 
     /**
-     * Characterises a method signature.
-     * The <code>equals</code> and <code>hashCode</code> methods are
-     * implemented sensibly.
+     * Characterises a method signature and the method which implements it.
      */
     private static class Signature {
         private final String name_;
-        private final List typeList_;
+        private final SampType[] types_;
+        private final Method method_;
 
         /**
          * Constructor.
          *
          * @param  name   method name
          * @param  types  types of method arguments
+         * @param  method  implementing method
          */
-        Signature( String name, SampType[] types ) {
+        Signature( String name, SampType[] types, Method method ) {
             name_ = name;
-            typeList_ = new ArrayList( Arrays.asList( types ) );
+            types_ = types;
+            method_ = method;
         }
 
-        public boolean equals( Object o ) {
-            if ( o instanceof Signature ) {
-                Signature other = (Signature) o;
-                return this.name_.equals( other.name_ )
-                    && this.typeList_.equals( other.typeList_ );
-            }
-            else {
-                return false;
+        /**
+         * Indicates whether a list of call parameters matches this signature.
+         * The list must have the same length as this signature's type array.
+         *
+         * @param  params  call parameters
+         * @return  true iff the parameter types match
+         */
+        boolean matches( List params ) {
+            for ( int ip = 0; ip < types_.length; ip++ ) {
+                if ( ! types_[ ip ].isInstance( params.get( ip ) ) ) {
+                    return false;
+                }
             }
+            return true;
         }
 
-        public int hashCode() {
-            int code = 999;
-            code = 23 * code + name_.hashCode();
-            code = 23 * code + typeList_.hashCode();
-            return code;
+        public String toString() {
+            return name_ + Arrays.asList( types_ );
         }
+    }
 
-        public String toString() {
-            return name_ + typeList_;
+    /**
+     * Dispatch table for all the signatures sharing a method name,
+     * indexed by arity.
+     */
+    private static class Dispatch {
+        private final Signature[] sigs_;
+        private final Signature[][] arityTable_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sigs  non-empty array of signatures with the same name
+         */
+        Dispatch( Signature[] sigs ) {
+            sigs_ = sigs;
+            int maxArity = 0;
+            for ( int is = 0; is < sigs.length; is++ ) {
+                maxArity = Math.max( maxArity, sigs[ is ].types_.length );
+            }
+            List[] lists = new List[ maxArity + 1 ];
+            for ( int is = 0; is < sigs.length; is++ ) {
+                int arity = sigs[ is ].types_.length;
+                if ( lists[ arity ] == null ) {
+                    lists[ arity ] = new ArrayList();
+                }
+                lists[ arity ].add( sigs[ is ] );
+            }
+            arityTable_ = new Signature[ maxArity + 1 ][];
+            for ( int ia = 0; ia <= maxArity; ia++ ) {
+                arityTable_[ ia ] = lists[ ia ] == null
+                                  ? new Signature[ 0 ]
+                                  : (Signature[])
+                                    lists[ ia ].toArray( new Signature[ 0 ] );
+            }
+        }
+
+        /**
+         * Returns the signature matching a given list of call parameters.
+         *
+         * @param  params  call parameters
+         * @return  matching signature, or null if there is none
+         */
+        Signature getSignature( List params ) {
+            int arity = params.size();
+            if ( arity < arityTable_.length ) {
+                Signature[] sigs = arityTable_[ arity ];
+                for ( int is = 0; is < sigs.length; is++ ) {
+                    if ( sigs[ is ].matches( params ) ) {
+                        return sigs[ is ];
+                    }
+                }
+            }
+            return null;
         }
     }
 }
@@ -7,8 +7,10 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.astrogrid.samp.ErrInfo;
+import org.astrogrid.samp.ExecutionMode;
 import org.astrogrid.samp.Message;
 import org.astrogrid.samp.Response;
+import org.astrogrid.samp.SerialExecutor;
 import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.HubConnection;
 
@@ -16,6 +18,10 @@ import org.astrogrid.samp.client.HubConnection;
  * SampXmlRpcHandler implementation which passes Standard Profile-like XML-RPC
  * calls to one or more {@link CallableClient}s to provide client callbacks
  * from the hub.
+ * Each callback is processed in a new thread, created according to the
+ * default {@link org.astrogrid.samp.ExecutionMode}, except that
+ * notifications from the hub are processed one at a time in the order
+ * they arrive, since they report changes to the hub's state.
  *
  * @author   Mark Taylor
  * @since    16 Jul 2008
@@ -87,7 +93,7 @@ class ClientXmlRpcHandler extends ActorHandler {
             final Message message = Message.asMessage( msg );
             final String label = "Notify " + senderId + " "
                                + message.getMType();
-            new Thread( label ) {
+            Runnable task = new Runnable() {
                 public void run() {
                     try {
                         callable.receiveNotification( senderId, message );
@@ -96,7 +102,14 @@ class ClientXmlRpcHandler extends ActorHandler {
                         logger_.log( Level.INFO, label + " error", e );
                     }
                 }
-            }.start();
+            };
+            if ( senderId.equals( entry.connection_.getRegInfo()
+                                                   .getHubId() ) ) {
+                entry.hubNotifier_.execute( task );
+            }
+            else {
+                ExecutionMode.startThread( task, label );
+            }
         }
 
         public void receiveCall( String privateKey, final String senderId,
@@ -107,7 +120,7 @@ class ClientXmlRpcHandler extends ActorHandler {
             final HubConnection connection = entry.connection_;
             final Message message = Message.asMessage( msg );
             final String label = "Call " + senderId + " " + message.getMType();
-            new Thread( label ) {
+            ExecutionMode.startThread( new Runnable() {
                 public void run() {
                     try {
                         callable.receiveCall( senderId, msgId, message );
@@ -125,7 +138,7 @@ class ClientXmlRpcHandler extends ActorHandler {
                         }
                     }
                 }
-            }.start();
+            }, label );
         }
 
         public void receiveResponse( String privateKey,
@@ -136,7 +149,7 @@ class ClientXmlRpcHandler extends ActorHandler {
             final CallableClient callable = entry.callable_;
             final Response response = Response.asResponse( resp );
             final String label = "Reply " + responderId;
-            new Thread( label ) {
+            ExecutionMode.startThread( new Runnable() {
                 public void run() {
                     try {
                         callable.receiveResponse( responderId, msgTag,
@@ -146,7 +159,7 @@ class ClientXmlRpcHandler extends ActorHandler {
                         logger_.log( Level.INFO, label + " error replying", e );
                     }
                 }
-            }.start();
+            }, label );
         }
 
         /**
@@ -173,6 +186,7 @@ class ClientXmlRpcHandler extends ActorHandler {
     private static class Entry {
         final HubConnection connection_;
         final CallableClient callable_;
+        final SerialExecutor hubNotifier_;
 
         /**
          * Constructor.
@@ -183,6 +197,7 @@ class ClientXmlRpcHandler extends ActorHandler {
         Entry( HubConnection connection, CallableClient callable ) {
             connection_ = connection;
             callable_ = callable;
+            hubNotifier_ = new SerialExecutor( "Notify hub" );
         }
     }
 }
@@ -0,0 +1,16 @@
+package org.astrogrid.samp.xmlrpc;
+
+/**
+ * Marker interface for the <code>reqInfo</code> object passed to
+ * {@link SampXmlRpcHandler#handleCall handleCall} by servers which can
+ * make use of a {@link DeferredResult}.
+ * Such servers release their request thread while the result is
+ * outstanding, so handlers receiving request information which
+ * implements this interface may return a deferred result
+ * rather than blocking.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface DeferrableRequest {
+}
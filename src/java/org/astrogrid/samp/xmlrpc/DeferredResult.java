@@ -0,0 +1,150 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Placeholder for the result of an XML-RPC call which is not yet available.
+ * A {@link SampXmlRpcHandler} may return an instance of this class from
+ * its <code>handleCall</code> method instead of blocking until the
+ * result is known, and later supply the outcome by calling one of the
+ * {@link SampXmlRpcCallback} methods on it.
+ *
+ * <p>Only some servers can make use of this without tying up a thread
+ * while the call is outstanding.  Handlers should therefore only
+ * return a deferred result when the <code>reqInfo</code> argument is a
+ * {@link DeferrableRequest}, as supplied for instance by
+ * {@link org.astrogrid.samp.xmlrpc.internal.InternalServer},
+ * which is able to release the HTTP request thread until the result
+ * is ready.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class DeferredResult implements SampXmlRpcCallback {
+
+    private boolean isDone_;
+    private Object result_;
+    private IOException error_;
+    private SampXmlRpcCallback callback_;
+
+    /**
+     * Constructor.
+     */
+    public DeferredResult() {
+    }
+
+    /**
+     * Supplies a successful result.
+     * Has no effect if an outcome has already been supplied.
+     *
+     * @param  result  XML-RPC call return value (SAMP-compatible)
+     */
+    public void completed( Object result ) {
+        finish( result, null );
+    }
+
+    /**
+     * Supplies a failure outcome.
+     * Has no effect if an outcome has already been supplied.
+     *
+     * @param  error  reason for failure
+     */
+    public void failed( IOException error ) {
+        finish( null, error );
+    }
+
+    /**
+     * Indicates whether the outcome of the call is known.
+     *
+     * @return  true iff complete
+     */
+    public synchronized boolean isDone() {
+        return isDone_;
+    }
+
+    /**
+     * Sets the callback which will be informed of the outcome.
+     * If it is already known, the callback is invoked immediately
+     * on the calling thread; otherwise it will be invoked on the
+     * thread which supplies it.
+     * Only one callback may be set.
+     *
+     * @param  callback  callback
+     */
+    public void setCallback( SampXmlRpcCallback callback ) {
+        synchronized ( this ) {
+            if ( callback_ != null ) {
+                throw new IllegalStateException( "Callback already set" );
+            }
+            callback_ = callback;
+            if ( ! isDone_ ) {
+                return;
+            }
+        }
+        notifyCallback( callback );
+    }
+
+    /**
+     * Waits until the outcome is known and returns the result.
+     * This is for use by servers which are unable to defer their
+     * responses.
+     *
+     * @return  XML-RPC call return value (SAMP-compatible)
+     * @throws  IOException  if the call failed, or the wait was interrupted
+     */
+    public synchronized Object getResult() throws IOException {
+        while ( ! isDone_ ) {
+            try {
+                wait();
+            }
+            catch ( InterruptedException e ) {
+                throw (IOException)
+                      new InterruptedIOException( "Interrupted" )
+                     .initCause( e );
+            }
+        }
+        if ( error_ != null ) {
+            throw error_;
+        }
+        return result_;
+    }
+
+    /**
+     * Records the outcome if it has not already been supplied,
+     * and notifies any callback.
+     *
+     * @param  result  result, or null for failure
+     * @param  error   error, or null for success
+     */
+    private void finish( Object result, IOException error ) {
+        SampXmlRpcCallback callback;
+        synchronized ( this ) {
+            if ( isDone_ ) {
+                return;
+            }
+            isDone_ = true;
+            result_ = result;
+            error_ = error;
+            callback = callback_;
+            notifyAll();
+        }
+        if ( callback != null ) {
+            notifyCallback( callback );
+        }
+    }
+
+    /**
+     * Passes the known outcome to a callback.
+     *
+     * @param  callback  callback
+     */
+    private void notifyCallback( SampXmlRpcCallback callback ) {
+        if ( error_ != null ) {
+            callback.failed( error_ );
+        }
+        else {
+            callback.completed( result_ );
+        }
+    }
+}
@@ -11,10 +11,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.astrogrid.samp.RegInfo;
+import org.astrogrid.samp.Response;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.client.ClientProfile;
 import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
+import org.astrogrid.samp.hub.AsyncHubConnection;
 import org.astrogrid.samp.hub.KeyGenerator;
 
 /**
@@ -26,6 +28,8 @@ import org.astrogrid.samp.hub.KeyGenerator;
  */
 class HubXmlRpcHandler extends ActorHandler {
 
+    private final HubActorImpl impl_;
+
     /**
      * Constructor.
      *
@@ -36,8 +40,28 @@ class HubXmlRpcHandler extends ActorHandler {
     public HubXmlRpcHandler( SampXmlRpcClientFactory xClientFactory,
                              ClientProfile profile, String secret,
                              KeyGenerator keyGen ) {
-        super( "samp.hub.", HubActor.class,
-               new HubActorImpl( xClientFactory, profile, secret, keyGen ) );
+        this( new HubActorImpl( xClientFactory, profile, secret, keyGen ) );
+    }
+
+    /**
+     * Constructs a handler given its implementation object.
+     * Synchronous calls are handled without holding the request thread
+     * while the response is awaited, if the server permits it.
+     *
+     * @param  impl  hub actor implementation
+     */
+    private HubXmlRpcHandler( final HubActorImpl impl ) {
+        super( "samp.hub.", HubActor.class, impl,
+               DeferringHubActor.class, new DeferringHubActor() {
+                   public Object callAndWait( String privateKey,
+                                              String recipientId, Map msg,
+                                              String timeout )
+                           throws SampException {
+                       return impl.deferCallAndWait( privateKey, recipientId,
+                                                     msg, timeout );
+                   }
+               } );
+        impl_ = impl;
     }
 
     protected Object invokeMethod( Method method, Object obj, Object[] args )
@@ -45,6 +69,28 @@ class HubXmlRpcHandler extends ActorHandler {
         return method.invoke( obj, args );
     }
 
+    /**
+     * Defines Standard Profile hub XML-RPC methods which may supply
+     * their results later.
+     */
+    interface DeferringHubActor {
+
+        /**
+         * Sends a message synchronously to a client, without blocking
+         * if possible.
+         *
+         * @param  privateKey  calling client private key
+         * @param  recipientId  public-id of client to receive message
+         * @param  msg {@link org.astrogrid.samp.Message}-like map
+         * @param  timeout  timeout in seconds encoded as a SAMP int
+         * @return  {@link DeferredResult} which will yield a
+         *          {@link org.astrogrid.samp.Response}-like map,
+         *          or the map itself
+         */
+        Object callAndWait( String privateKey, String recipientId, Map msg,
+                            String timeout ) throws SampException;
+    }
+
     /**
      * Implementation of the {@link HubActor} interface which does 
      * the work for this class.
@@ -183,16 +229,44 @@ class HubXmlRpcHandler extends ActorHandler {
         public Map callAndWait( String privateKey, String recipientId, Map msg,
                                 String timeoutStr ) 
                 throws SampException {
-            int timeout;
-            try {
-                timeout = SampUtils.decodeInt( timeoutStr );
+            return getConnection( privateKey )
+                  .callAndWait( recipientId, msg, decodeTimeout( timeoutStr ) );
+        }
+
+        /**
+         * Performs the work of the <code>callAndWait</code> method
+         * without blocking, if the connection permits it.
+         *
+         * @param  privateKey  private key
+         * @param  recipientId  public ID of recipient
+         * @param  msg   message
+         * @param  timeoutStr  timeout in seconds as a SAMP int
+         * @return  deferred result, or the response if the call
+         *          had to be made synchronously
+         */
+        Object deferCallAndWait( String privateKey, String recipientId,
+                                 Map msg, String timeoutStr )
+                throws SampException {
+            HubConnection connection = getConnection( privateKey );
+            int timeout = decodeTimeout( timeoutStr );
+            if ( connection instanceof AsyncHubConnection ) {
+                final DeferredResult result = new DeferredResult();
+                AsyncHubConnection.Callback callback =
+                    new AsyncHubConnection.Callback() {
+                        public void completed( Response response ) {
+                            result.completed( response );
+                        }
+                        public void failed( SampException error ) {
+                            result.failed( error );
+                        }
+                    };
+                ((AsyncHubConnection) connection)
+                    .callAndWait( recipientId, msg, timeout, callback );
+                return result;
             }
-            catch ( Exception e ) {
-                throw new SampException( "Bad timeout format"
-                                       + " (should be SAMP int)", e );
+            else {
+                return connection.callAndWait( recipientId, msg, timeout );
             }
-            return getConnection( privateKey )
-                  .callAndWait( recipientId, msg, timeout );
         }
 
         public void reply( String privateKey, String msgId, Map response ) 
@@ -206,6 +280,22 @@ class HubXmlRpcHandler extends ActorHandler {
             }
         }
 
+        /**
+         * Decodes the timeout argument of a <code>callAndWait</code> call.
+         *
+         * @param  timeoutStr  timeout in seconds as a SAMP int
+         * @return  timeout in seconds
+         */
+        private int decodeTimeout( String timeoutStr ) throws SampException {
+            try {
+                return SampUtils.decodeInt( timeoutStr );
+            }
+            catch ( Exception e ) {
+                throw new SampException( "Bad timeout format"
+                                       + " (should be SAMP int)", e );
+            }
+        }
+
         /**
          * Returns the HubConnection associated with a private key used
          * by this hub actor.
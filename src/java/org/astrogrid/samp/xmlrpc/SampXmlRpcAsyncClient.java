@@ -0,0 +1,32 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Optional interface which may be implemented by a {@link SampXmlRpcClient}
+ * to make calls without blocking the calling thread until the
+ * response arrives.
+ * The result is passed to a callback instead.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface SampXmlRpcAsyncClient {
+
+    /**
+     * Sends a call and returns without waiting for the response.
+     * When the response is available, or if it cannot be obtained,
+     * the supplied callback is informed.
+     * The callback may be invoked on a different thread,
+     * and possibly before this method returns.
+     *
+     * @param  method    XML-RPC method name
+     * @param  params    parameters for XML-RPC call (SAMP-compatible)
+     * @param  callback  receives the call's outcome
+     * @throws  IOException  if the call could not be sent;
+     *                       in this case the callback is not invoked
+     */
+    void callAsync( String method, List params, SampXmlRpcCallback callback )
+            throws IOException;
+}
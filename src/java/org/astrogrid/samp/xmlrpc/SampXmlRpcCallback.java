@@ -0,0 +1,31 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of an XML-RPC call made using a
+ * {@link SampXmlRpcAsyncClient}.
+ * Exactly one of the methods will be called for each call.
+ * Implementations should return quickly, since they may be invoked
+ * from a thread shared with other calls.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface SampXmlRpcCallback {
+
+    /**
+     * Called when the call has completed successfully.
+     *
+     * @param  result  XML-RPC call return value (SAMP-compatible)
+     */
+    void completed( Object result );
+
+    /**
+     * Called if the call failed, either because no response could be
+     * obtained or because the server returned a fault.
+     *
+     * @param  error  reason for failure
+     */
+    void failed( IOException error );
+}
@@ -0,0 +1,31 @@
+package org.astrogrid.samp.xmlrpc;
+
+import java.io.IOException;
+
+/**
+ * Optional interface which may be implemented by a {@link SampXmlRpcClient}
+ * to allow a parameter value to be encoded once and then sent in
+ * several calls.
+ * This saves work when the same message is delivered to many clients,
+ * since only the per-recipient parameters then need to be encoded
+ * for each call.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public interface SampXmlRpcPreEncoder {
+
+    /**
+     * Returns an object which may be used in place of a given
+     * SAMP-friendly value as a call parameter.
+     * The returned object may be passed to the call methods of this
+     * client, or of any other client of the same class.
+     * It is immutable; later changes to <code>value</code> are not
+     * reflected in it.
+     *
+     * @param  value  SAMP-friendly (string, list, map only) object
+     * @return  object which can be used as a parameter in place of
+     *          <code>value</code>
+     */
+    Object preEncode( Object value ) throws IOException;
+}
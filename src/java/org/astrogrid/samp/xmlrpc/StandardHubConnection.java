@@ -54,9 +54,16 @@ class StandardHubConnection extends XmlRpcHubConnection {
     }
 
     public void unregister() throws SampException {
-        if ( callableServer_ != null ) {
-            callableServer_.removeClient( this );
+
+        // Unregister before removing the callback handler, so that the
+        // hub does not try to call back to a handler which has gone.
+        try {
+            super.unregister();
+        }
+        finally {
+            if ( callableServer_ != null ) {
+                callableServer_.removeClient( this );
+            }
         }
-        super.unregister();
     }
 }
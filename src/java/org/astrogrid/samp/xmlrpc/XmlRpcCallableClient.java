@@ -13,6 +13,15 @@ import org.astrogrid.samp.client.SampException;
  * CallableClient implementation used to communicate with XML-RPC-based
  * callable clients.
  *
+ * <p>If the XML-RPC client implements {@link SampXmlRpcPreEncoder},
+ * messages are encoded in advance, and the most recently encoded message
+ * is remembered for each thread.  When the hub delivers the same
+ * message instance to several clients in turn, as it does for
+ * <code>notifyAll</code> and <code>callAll</code>, the message
+ * is therefore encoded only once.
+ * This relies on the hub not modifying a message instance
+ * once it has been sent.
+ *
  * @author   Mark Taylor
  * @since    28 Jan 2011
  */
@@ -21,6 +30,7 @@ class XmlRpcCallableClient implements CallableClient {
     private final SampXmlRpcClient xClient_;
     private final String privateKey_;
     private static volatile boolean isShutdown_;
+    private static final ThreadLocal lastEncodedLocal_ = new ThreadLocal();
     static {
         ShutdownManager.getInstance()
                        .registerHook( XmlRpcCallableClient.class,
@@ -45,12 +55,14 @@ class XmlRpcCallableClient implements CallableClient {
 
     public void receiveCall( String senderId, String msgId, Message msg )
             throws SampException {
-        exec( "receiveCall", new Object[] { senderId, msgId, msg, } );
+        exec( "receiveCall",
+              new Object[] { senderId, msgId, encodeMessage( msg ), } );
     }
 
     public void receiveNotification( String senderId, Message msg )
             throws SampException {
-        exec( "receiveNotification", new Object[] { senderId, msg, } );
+        exec( "receiveNotification",
+              new Object[] { senderId, encodeMessage( msg ), } );
     }
 
     public void receiveResponse( String responderId, String msgTag,
@@ -60,6 +72,37 @@ class XmlRpcCallableClient implements CallableClient {
               new Object[] { responderId, msgTag, response, } );
     }
 
+    /**
+     * Returns the object to send as the message parameter of a call.
+     * If possible this is a pre-encoded form of the message, reused
+     * from a previous call if the same message was last encoded
+     * by this thread for a client of the same type.
+     *
+     * @param  msg  message
+     * @return  message or equivalent pre-encoded object
+     */
+    private Object encodeMessage( Message msg ) throws SampException {
+        if ( ! ( xClient_ instanceof SampXmlRpcPreEncoder ) ) {
+            return msg;
+        }
+        Class clientClazz = xClient_.getClass();
+        EncodedMessage last = (EncodedMessage) lastEncodedLocal_.get();
+        if ( last != null && last.msg_ == msg &&
+             last.clientClazz_ == clientClazz ) {
+            return last.encoded_;
+        }
+        Object encoded;
+        try {
+            encoded = ((SampXmlRpcPreEncoder) xClient_).preEncode( msg );
+        }
+        catch ( IOException e ) {
+            throw new SampException( e.getMessage(), e );
+        }
+        lastEncodedLocal_.set( new EncodedMessage( msg, clientClazz,
+                                                   encoded ) );
+        return encoded;
+    }
+
     /**
      * Makes an XML-RPC call to the SAMP callable client represented
      * by this receiver.
@@ -105,4 +148,26 @@ class XmlRpcCallableClient implements CallableClient {
             xClient_.callAndForget( fqName, paramList );
         }
     }
+
+    /**
+     * Records the pre-encoded form of a message.
+     */
+    private static class EncodedMessage {
+        final Message msg_;
+        final Class clientClazz_;
+        final Object encoded_;
+
+        /**
+         * Constructor.
+         *
+         * @param  msg  message
+         * @param  clientClazz  class of XML-RPC client which encoded it
+         * @param  encoded   pre-encoded form
+         */
+        EncodedMessage( Message msg, Class clientClazz, Object encoded ) {
+            msg_ = msg;
+            clientClazz_ = clientClazz;
+            encoded_ = encoded;
+        }
+    }
 }
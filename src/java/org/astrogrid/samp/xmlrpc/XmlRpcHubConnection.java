@@ -3,9 +3,11 @@ package org.astrogrid.samp.xmlrpc;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
+import org.astrogrid.samp.ExecutionMode;
 import org.astrogrid.samp.Metadata;
 import org.astrogrid.samp.RegInfo;
 import org.astrogrid.samp.Response;
@@ -23,16 +25,25 @@ import org.astrogrid.samp.client.SampException;
  * with the Standard Profile, are made about the way that XML-RPC
  * calls are mapped on to SAMP hub interface calls.
  *
+ * <p>Several hub calls may be made in a single HTTP request using the
+ * {@link #execBatch} method.  This relies on the hub's XML-RPC server
+ * supporting <code>system.multicall</code>; if it does not, the calls
+ * are made one at a time instead.
+ *
  * @author   Mark Taylor
  * @author   Sylvain Lafrasse
  * @since    16 Jul 2008
  */
 public abstract class XmlRpcHubConnection implements HubConnection {
 
+    /** Name of the XML-RPC method used to pack several calls into one. */
+    public static final String MULTICALL = "system.multicall";
+
     private final SampXmlRpcClient xClient_;
     private final String prefix_;
     private final RegInfo regInfo_;
     private boolean unregistered_;
+    private volatile boolean noMulticall_;
     private static final Logger logger_ =
         Logger.getLogger( XmlRpcHubConnection.class.getName() );
 
@@ -188,6 +199,195 @@ public abstract class XmlRpcHubConnection implements HubConnection {
         }
     }
 
+    /**
+     * Makes several XML-RPC calls to the SAMP hub represented by this
+     * connection, in a single request if possible.
+     * The result of {@link #getClientKey} is passed as the first argument
+     * of each call.
+     *
+     * @param  methodNames  unqualified SAMP hub API method names
+     * @param  paramArrays  arrays of method parameters, one for each
+     *                      method name
+     * @return  array with one element for each call, containing either
+     *          its return value or a {@link SampException} describing
+     *          its failure
+     * @see   #rawExecBatch
+     */
+    public Object[] execBatch( String[] methodNames, Object[][] paramArrays ) {
+        int nc = methodNames.length;
+        String[] fqNames = new String[ nc ];
+        List[] paramLists = new List[ nc ];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            Object[] params = paramArrays[ ic ];
+            List paramList = new ArrayList( params.length + 1 );
+            paramList.add( getClientKey() );
+            for ( int ip = 0; ip < params.length; ip++ ) {
+                paramList.add( params[ ip ] );
+            }
+            fqNames[ ic ] = prefix_ + methodNames[ ic ];
+            paramLists[ ic ] = paramList;
+        }
+        return rawExecBatch( fqNames, paramLists );
+    }
+
+    /**
+     * Actually makes several XML-RPC calls to the SAMP hub represented by
+     * this connection, in a single request if possible.
+     * The calls are packed into a single <code>system.multicall</code>
+     * request.  If the hub turns out not to support that, the calls are
+     * made one by one, and multicall is not attempted again for this
+     * connection.
+     * Failure of one call does not prevent the others from being made.
+     *
+     * @param  fqNames  fully qualified SAMP hub API method names
+     * @param  paramLists  lists of method parameters, one for each
+     *                     method name
+     * @return  array with one element for each call, containing either
+     *          its return value or a {@link SampException} describing
+     *          its failure
+     */
+    public Object[] rawExecBatch( String[] fqNames, List[] paramLists ) {
+        int nc = fqNames.length;
+        if ( nc > 1 && ! noMulticall_ ) {
+            List callList = new ArrayList( nc );
+            for ( int ic = 0; ic < nc; ic++ ) {
+                Map callMap = new LinkedHashMap();
+                callMap.put( "methodName", fqNames[ ic ] );
+                callMap.put( "params", paramLists[ ic ] );
+                callList.add( callMap );
+            }
+            Object multiResult;
+            try {
+                multiResult =
+                    xClient_.callAndWait( MULTICALL,
+                                          Collections
+                                         .singletonList( callList ) );
+            }
+            catch ( IOException e ) {
+                logger_.config( MULTICALL + " failed (" + e
+                              + ") - calls will be made singly" );
+                multiResult = null;
+            }
+            if ( multiResult instanceof List &&
+                 ((List) multiResult).size() == nc ) {
+                return unpackMulticall( (List) multiResult );
+            }
+            else {
+                if ( multiResult != null ) {
+                    logger_.warning( "Bad " + MULTICALL
+                                   + " result - calls will be made singly" );
+                }
+                noMulticall_ = true;
+            }
+        }
+        Object[] results = new Object[ nc ];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            try {
+                results[ ic ] = rawExec( fqNames[ ic ], paramLists[ ic ] );
+            }
+            catch ( SampException e ) {
+                results[ ic ] = e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Turns the result of a <code>system.multicall</code> call into
+     * an array of per-call results.
+     *
+     * @param  multiResult  list with one entry per call, each either
+     *                      a one-element list or a fault map
+     * @return  array of return values or SampExceptions
+     */
+    private static Object[] unpackMulticall( List multiResult ) {
+        int nc = multiResult.size();
+        Object[] results = new Object[ nc ];
+        for ( int ic = 0; ic < nc; ic++ ) {
+            Object item = multiResult.get( ic );
+            if ( item instanceof List && ((List) item).size() == 1 ) {
+                results[ ic ] = ((List) item).get( 0 );
+            }
+            else if ( item instanceof Map ) {
+                Map faultMap = (Map) item;
+                results[ ic ] =
+                    new SampException( "XML-RPC Fault ("
+                                     + faultMap.get( "faultCode" ) + ": "
+                                     + faultMap.get( "faultString" ) + ")" );
+            }
+            else {
+                results[ ic ] =
+                    new SampException( "Bad " + MULTICALL + " result entry" );
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Makes an XML-RPC call to the SAMP hub represented by this connection
+     * without waiting for the result.
+     * The result of {@link #getClientKey} is passed as the first argument
+     * of the XML-RPC call.
+     * This can be used for hub queries such as <code>getMetadata</code>
+     * from threads, such as GUI threads, which must not block.
+     *
+     * @param  methodName  unqualified SAMP hub API method name
+     * @param  params   array of method parameters
+     * @param  callback  receives the XML-RPC call return value,
+     *                   possibly on a different thread
+     */
+    public void execAsync( String methodName, Object[] params,
+                           SampXmlRpcCallback callback ) {
+        List paramList = new ArrayList();
+        paramList.add( getClientKey() );
+        for ( int ip = 0; ip < params.length; ip++ ) {
+            paramList.add( params[ ip ] );
+        }
+        rawExecAsync( prefix_ + methodName, paramList, callback );
+    }
+
+    /**
+     * Actually makes an XML-RPC call to the SAMP hub represented by this
+     * connection without waiting for the result.
+     * If the XML-RPC client is a {@link SampXmlRpcAsyncClient} it is
+     * used directly, otherwise the call is made synchronously on a
+     * new thread.
+     * Failure to send the call is reported to the callback,
+     * not thrown.
+     *
+     * @param  fqName  fully qualified SAMP hub API method name
+     * @param  paramList   list of method parameters
+     * @param  callback  receives the XML-RPC call return value,
+     *                   possibly on a different thread
+     */
+    public void rawExecAsync( final String fqName, final List paramList,
+                              final SampXmlRpcCallback callback ) {
+        if ( xClient_ instanceof SampXmlRpcAsyncClient ) {
+            try {
+                ((SampXmlRpcAsyncClient) xClient_)
+                    .callAsync( fqName, paramList, callback );
+            }
+            catch ( IOException e ) {
+                callback.failed( e );
+            }
+        }
+        else {
+            ExecutionMode.startThread( new Runnable() {
+                public void run() {
+                    Object result;
+                    try {
+                        result = xClient_.callAndWait( fqName, paramList );
+                    }
+                    catch ( IOException e ) {
+                        callback.failed( e );
+                        return;
+                    }
+                    callback.completed( result );
+                }
+            }, "XML-RPC " + fqName );
+        }
+    }
+
     /**
      * Unregisters if not already unregistered.
      * May harmlessly be called multiple times.
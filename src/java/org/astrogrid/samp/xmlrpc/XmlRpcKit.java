@@ -6,7 +6,7 @@ import java.util.logging.Logger;
 
 /**
  * Encapsulates the provision of XML-RPC client and server capabilities.
- * Two implementations are provided in the JSAMP package;
+ * Several implementations are provided in the JSAMP package;
  * the pluggable architecture allows others to be provided.
  *
  * @author   Mark Taylor
@@ -26,6 +26,12 @@ public abstract class XmlRpcKit {
     /** Internal implementation variant with verbose logging of RPC calls. */
     public static final XmlRpcKit RPC_LOGGING;
 
+    /**
+     * In-JVM implementation which makes calls without using the network.
+     * Only usable when servers and their clients share a JVM.
+     */
+    public static final XmlRpcKit LOOPBACK;
+
     /** Array of available known implementations of this class. */
     public static XmlRpcKit[] KNOWN_IMPLS = {
         INTERNAL = createReflectionKit(
@@ -45,6 +51,10 @@ public abstract class XmlRpcKit {
             "org.astrogrid.samp.xmlrpc.internal"
                        + ".RpcLoggingInternalServerFactory" ),
         APACHE = createApacheKit( "apache" ),
+        LOOPBACK = createReflectionKit(
+            "loopback",
+            "org.astrogrid.samp.xmlrpc.internal.LoopbackClientFactory",
+            "org.astrogrid.samp.xmlrpc.internal.LoopbackServerFactory" ),
     };
 
     /**
@@ -56,6 +66,7 @@ public abstract class XmlRpcKit {
      * <li>xml-log</li>
      * <li>rpc-log</li>
      * <li>apache</li>
+     * <li>loopback</li>
      * </ul>
      * Alternatively, it may be the classname of a class which implements
      * {@link org.astrogrid.samp.xmlrpc.XmlRpcKit} 
@@ -110,6 +121,8 @@ public abstract class XmlRpcKit {
      *     Apache XML-RPC library</li>
      * <li><code>internal</code>: implementation which requires no libraries
      *     beyond JSAMP itself</li>
+     * <li><code>loopback</code>: in-JVM implementation for use when
+     *     hub and clients all run in the same JVM</li>
      * <li>the classname of an implementation of this class which has a 
      *     no-arg constructor</li>
      * </ul>
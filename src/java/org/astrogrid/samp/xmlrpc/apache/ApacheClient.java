@@ -1,11 +1,16 @@
 package org.astrogrid.samp.xmlrpc.apache;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.List;
 import java.util.Vector;
+import org.apache.xmlrpc.AsyncCallback;
 import org.apache.xmlrpc.XmlRpcClient;
 import org.apache.xmlrpc.XmlRpcException;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcAsyncClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcCallback;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcPreEncoder;
 
 /**
  * SampXmlRpcClient implementation based on Apache XMLRPC classes.
@@ -13,7 +18,9 @@ import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
  * @author   Mark Taylor
  * @since    16 Sep 2008
  */
-public class ApacheClient implements SampXmlRpcClient {
+public class ApacheClient
+        implements SampXmlRpcClient, SampXmlRpcAsyncClient,
+                   SampXmlRpcPreEncoder {
 
     private final XmlRpcClient xmlrpcClient_;
 
@@ -38,6 +45,38 @@ public class ApacheClient implements SampXmlRpcClient {
         }
     }
 
+    /**
+     * Returns the value converted once to Apache XML-RPC form.
+     * The Apache classes provide no way to insert pre-serialized XML
+     * into a call, so the value's XML is still written for each call,
+     * but the conversion of its structure is not repeated.
+     */
+    public Object preEncode( Object value ) {
+        return new ApacheUtils.PreEncoded( value );
+    }
+
+    /**
+     * Uses the Apache asynchronous call mechanism, which waits for the
+     * response on a new thread for each call.
+     */
+    public void callAsync( String method, List params,
+                           final SampXmlRpcCallback callback ) {
+        xmlrpcClient_
+            .executeAsync( method, (Vector) ApacheUtils.toApache( params ),
+                           new AsyncCallback() {
+            public void handleResult( Object result, URL url, String meth ) {
+                callback.completed( result );
+            }
+            public void handleError( Exception error, URL url, String meth ) {
+                callback.failed( error instanceof IOException
+                               ? (IOException) error
+                               : (IOException)
+                                 new IOException( error.getMessage() )
+                                .initCause( error ) );
+            }
+        } );
+    }
+
     public void callAndForget( String method, List params )
             throws IOException {
 
@@ -1,7 +1,9 @@
 package org.astrogrid.samp.xmlrpc.apache;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,6 +28,9 @@ public class ApacheServer implements SampXmlRpcServer {
     private final URL endpoint_;
     private final List handlerList_;
 
+    /** Maximum time to wait for the listener to open its socket. */
+    private static final long BIND_WAIT_MILLIS = 5000;
+
     /**
      * Private constructor used by all other constructors.
      * Uses the private LabelledServer class to aggregate the required 
@@ -112,9 +117,12 @@ public class ApacheServer implements SampXmlRpcServer {
             throws IOException {
         int port = SampUtils.getUnusedPort( 2300 );
         WebServer server = new WebServer( port ) {
+            private boolean bound_;
 
             // Same as superclass implementation except that the listener
-            // thread is marked as a daemon.
+            // thread is marked as a daemon, and that it does not return
+            // until the listener has opened its server socket.
+            // Otherwise clients which connect straight away may be refused.
             public void start() {
                 if ( this.listener == null ) {
                     this.listener =
@@ -122,6 +130,31 @@ public class ApacheServer implements SampXmlRpcServer {
                     this.listener.setDaemon( isDaemon );
                     this.listener.start();
                 }
+                long end = System.currentTimeMillis() + BIND_WAIT_MILLIS;
+                synchronized ( this ) {
+                    for ( long wait; ! bound_ &&
+                          ( wait = end - System.currentTimeMillis() ) > 0; ) {
+                        try {
+                            wait( wait );
+                        }
+                        catch ( InterruptedException e ) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // Called from the listener thread.
+            protected ServerSocket createServerSocket( int port, int backlog,
+                                                       InetAddress addr )
+                    throws Exception {
+                ServerSocket sock =
+                    super.createServerSocket( port, backlog, addr );
+                synchronized ( this ) {
+                    bound_ = true;
+                    notifyAll();
+                }
+                return sock;
             }
         };
         return new LabelledServer( server, getServerEndpoint( port ) );
@@ -32,7 +32,10 @@ class ApacheUtils {
      * @return   XML-RPC data structure suitable for use within Apache
      */
     public static Object toApache( Object obj ) {
-        if ( obj instanceof List ) {
+        if ( obj instanceof PreEncoded ) {
+            return ((PreEncoded) obj).apacheValue_;
+        }
+        else if ( obj instanceof List ) {
             Vector vec = new Vector();
             for ( Iterator it = ((List) obj).iterator(); it.hasNext(); ) {
                 vec.add( toApache( it.next() ) );
@@ -70,4 +73,22 @@ class ApacheUtils {
     public static Object fromApache( Object data ) {
         return data;
     }
+
+    /**
+     * Holds an object which has already been converted to Apache XML-RPC
+     * form.  {@link #toApache} returns the held object as it is.
+     * The held object is shared between calls and must not be modified.
+     */
+    static class PreEncoded {
+        private final Object apacheValue_;
+
+        /**
+         * Constructor.
+         *
+         * @param  obj  XML-RPC data structure suitable for use within JSAMP
+         */
+        PreEncoded( Object obj ) {
+            apacheValue_ = toApache( obj );
+        }
+    }
 }
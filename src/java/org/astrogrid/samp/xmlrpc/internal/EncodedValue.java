@@ -0,0 +1,53 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+/**
+ * Holds the serialized form of an XML-RPC <code>value</code> element,
+ * ready to be copied into a <code>methodCall</code> document,
+ * and optionally the equivalent JSON text for calls sent using
+ * {@link JsonRpc}.
+ * Instances are created by {@link InternalClient#preEncode}, and
+ * recognised by {@link XmlWriter#sampValue} and
+ * {@link JsonRpc#encodeCall}.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class EncodedValue {
+
+    private final byte[] bytes_;
+    private final String json_;
+
+    /**
+     * Constructor.
+     *
+     * @param  bytes  UTF-8 encoded <code>value</code> element;
+     *                not copied, so must not be changed later
+     * @param  json   JSON text for the same value, or null if not required
+     */
+    EncodedValue( byte[] bytes, String json ) {
+        bytes_ = bytes;
+        json_ = json;
+    }
+
+    /**
+     * Returns the encoded bytes.  The returned array must not be modified.
+     *
+     * @return  UTF-8 encoded <code>value</code> element
+     */
+    byte[] getBytes() {
+        return bytes_;
+    }
+
+    /**
+     * Returns the value serialized as compact JSON, if available.
+     *
+     * @return  JSON text, or null
+     */
+    String getJson() {
+        return json_;
+    }
+
+    public String toString() {
+        return "EncodedValue(" + bytes_.length + " bytes)";
+    }
+}
@@ -0,0 +1,731 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+import org.astrogrid.samp.httpd.ChunkedInputStream;
+import org.astrogrid.samp.httpd.LengthInputStream;
+
+/**
+ * Manages persistent HTTP/1.1 connections for XML-RPC clients,
+ * so that successive calls to the same server can reuse a socket
+ * rather than setting up and tearing down a TCP connection each time.
+ *
+ * <p>Connections are pooled per host (host name and port).
+ * At most a fixed number of pooled connections to a given host
+ * may be open at once; calls made while that many are busy
+ * use a one-off connection which is closed after use,
+ * so that nested calls can never deadlock waiting for a free connection.
+ * Pooled connections which have been idle for longer than a timeout
+ * are closed.  An idle connection is checked before it is reused,
+ * and discarded if the server has closed it.
+ * A request is never sent more than once, since XML-RPC calls are not
+ * idempotent; if sending it or reading the response fails,
+ * the error is passed to the caller.
+ *
+ * <p>Connections are opened with a timeout, and each exchange may
+ * specify a read timeout, so that an unresponsive server does not hold
+ * up the caller indefinitely.
+ *
+ * <p>Only the plain <code>http</code> scheme is supported, and
+ * connections are always made directly to the server.
+ * Callers should check {@link #isProxied} and use some other mechanism
+ * for URLs which the standard <code>http.proxyHost</code>
+ * system properties route through a proxy.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class HttpConnectionPool {
+
+    private final int maxPerHost_;
+    private final long idleMillis_;
+    private final int connectMillis_;
+    private final Map hostMap_;
+    private Timer reaper_;
+
+    /** Default maximum number of pooled connections per host. */
+    public static final int DEFAULT_MAX_PER_HOST = 8;
+
+    /**
+     * Default idle timeout in milliseconds.
+     * This is shorter than the default keep-alive timeout of the
+     * JSAMP HTTP server, so that the client normally gives up on a
+     * connection before the server does.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 10 * 1000;
+
+    /** Default connection timeout in milliseconds. */
+    public static final int DEFAULT_CONNECT_MILLIS = 30 * 1000;
+
+    /**
+     * Hosts which are reached directly if the <code>http.nonProxyHosts</code>
+     * system property is not set.  This is the same as the JRE's default.
+     */
+    private static final String DEFAULT_NON_PROXY_HOSTS =
+        "localhost|127.*|[::1]|0.0.0.0|[::0]";
+
+    private static HttpConnectionPool instance_;
+    private static final Logger logger_ =
+        Logger.getLogger( HttpConnectionPool.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  maxPerHost  maximum number of pooled connections per host
+     * @param  idleMillis  time after which an unused connection is closed
+     * @param  connectMillis  timeout in milliseconds for opening
+     *                        a connection; zero means no timeout
+     */
+    public HttpConnectionPool( int maxPerHost, long idleMillis,
+                               int connectMillis ) {
+        maxPerHost_ = maxPerHost;
+        idleMillis_ = idleMillis;
+        connectMillis_ = connectMillis;
+        hostMap_ = new HashMap();
+    }
+
+    /**
+     * Returns the pool shared by default between all internal clients.
+     *
+     * @return  default pool instance
+     */
+    public static synchronized HttpConnectionPool getInstance() {
+        if ( instance_ == null ) {
+            instance_ = new HttpConnectionPool( DEFAULT_MAX_PER_HOST,
+                                                DEFAULT_IDLE_MILLIS,
+                                                DEFAULT_CONNECT_MILLIS );
+        }
+        return instance_;
+    }
+
+    /**
+     * Sends an HTTP POST request.
+     * The response may be read from the returned exchange object,
+     * which must be {@link Exchange#close closed} after use.
+     *
+     * @param  url   destination URL; must use the http scheme
+     * @param  hdrMap  map of additional request header key-value pairs
+     * @param  body   request body
+     * @param  readMillis  maximum time in milliseconds to wait for
+     *                     response data to arrive; zero means no timeout
+     * @return   exchange from which the response can be read
+     */
+    public Exchange post( URL url, Map hdrMap, byte[] body, int readMillis )
+            throws IOException {
+        Exchange exch = new Exchange( url, createRequest( url, hdrMap, body ),
+                                      readMillis );
+        exch.send();
+        return exch;
+    }
+
+    /**
+     * Returns the number of pooled connections currently open to a given
+     * host, whether busy or idle.
+     *
+     * @param  url   URL identifying host
+     * @return   open connection count
+     */
+    public synchronized int getOpenCount( URL url ) {
+        HostPool hpool = (HostPool) hostMap_.get( getHostKey( url ) );
+        return hpool == null ? 0 : hpool.nOpen_;
+    }
+
+    /**
+     * Obtains a connection to a given host, reusing an idle one if possible.
+     *
+     * @param  url  URL identifying host
+     * @return  connection
+     */
+    private Conn acquire( URL url ) throws IOException {
+        String key = getHostKey( url );
+        boolean isPooled;
+        synchronized ( this ) {
+            HostPool hpool = (HostPool) hostMap_.get( key );
+            if ( hpool == null ) {
+                hpool = new HostPool();
+                hostMap_.put( key, hpool );
+            }
+            hpool.closeIdle( System.currentTimeMillis() - idleMillis_ );
+            while ( ! hpool.idleList_.isEmpty() ) {
+                Conn conn = (Conn) hpool.idleList_.removeLast();
+                if ( conn.isStale() ) {
+                    logger_.info( "Stale connection to " + url
+                                + " - discarding" );
+                    conn.close();
+                    hpool.nOpen_--;
+                }
+                else {
+                    return conn;
+                }
+            }
+            isPooled = hpool.nOpen_ < maxPerHost_;
+            if ( isPooled ) {
+                hpool.nOpen_++;
+            }
+        }
+        try {
+            return new Conn( key, url.getHost(), getPort( url ), isPooled,
+                             connectMillis_ );
+        }
+        catch ( IOException e ) {
+            if ( isPooled ) {
+                discarded( key );
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection which is no longer in use.
+     *
+     * @param  conn  connection
+     * @param  reusable  true iff the connection is in a state in which
+     *                   it may be used for another request
+     */
+    private void release( Conn conn, boolean reusable ) {
+        if ( reusable && conn.isPooled_ ) {
+            synchronized ( this ) {
+                HostPool hpool = (HostPool) hostMap_.get( conn.key_ );
+                conn.idleSince_ = System.currentTimeMillis();
+                hpool.idleList_.addLast( conn );
+                if ( reaper_ == null ) {
+                    startReaper();
+                }
+            }
+        }
+        else {
+            conn.close();
+            if ( conn.isPooled_ ) {
+                discarded( conn.key_ );
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections to a given host.
+     * Called when one of them has been found to be unusable,
+     * since the others are likely to be in the same state.
+     *
+     * @param  key   host key
+     */
+    private synchronized void closeAllIdle( String key ) {
+        HostPool hpool = (HostPool) hostMap_.get( key );
+        if ( hpool != null ) {
+            hpool.closeIdle( Long.MAX_VALUE );
+        }
+    }
+
+    /**
+     * Records that a pooled connection has been closed.
+     *
+     * @param  key  host key
+     */
+    private synchronized void discarded( String key ) {
+        ((HostPool) hostMap_.get( key )).nOpen_--;
+    }
+
+    /**
+     * Starts a daemon timer which periodically closes connections
+     * that have exceeded the idle timeout.
+     */
+    private void startReaper() {
+        reaper_ = new Timer( true );
+        reaper_.schedule( new TimerTask() {
+            public void run() {
+                long cutoff = System.currentTimeMillis() - idleMillis_;
+                synchronized ( HttpConnectionPool.this ) {
+                    for ( Iterator it = hostMap_.values().iterator();
+                          it.hasNext(); ) {
+                        ((HostPool) it.next()).closeIdle( cutoff );
+                    }
+                }
+            }
+        }, idleMillis_, idleMillis_ );
+    }
+
+    /**
+     * Serializes the header and body of a POST request.
+     *
+     * @param  url   destination URL
+     * @param  hdrMap  additional header key-value pairs
+     * @param  body   request body
+     * @return   request bytes
+     */
+    private static byte[] createRequest( URL url, Map hdrMap, byte[] body )
+            throws IOException {
+        String path = url.getFile();
+        StringBuffer sbuf = new StringBuffer()
+            .append( "POST " )
+            .append( path.length() == 0 ? "/" : path )
+            .append( " HTTP/1.1\r\n" )
+            .append( "Host: " )
+            .append( url.getHost() );
+        if ( url.getPort() >= 0 ) {
+            sbuf.append( ':' )
+                .append( url.getPort() );
+        }
+        sbuf.append( "\r\n" );
+        for ( Iterator it = hdrMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            sbuf.append( entry.getKey() )
+                .append( ": " )
+                .append( entry.getValue() )
+                .append( "\r\n" );
+        }
+        sbuf.append( "Content-Length: " )
+            .append( body.length )
+            .append( "\r\n" )
+            .append( "\r\n" );
+        byte[] hdrBuf = sbuf.toString().getBytes( "ISO-8859-1" );
+        byte[] reqBuf = new byte[ hdrBuf.length + body.length ];
+        System.arraycopy( hdrBuf, 0, reqBuf, 0, hdrBuf.length );
+        System.arraycopy( body, 0, reqBuf, hdrBuf.length, body.length );
+        return reqBuf;
+    }
+
+    /**
+     * Indicates whether the standard proxy system properties
+     * direct requests for a given URL through a proxy.
+     * That is the case if <code>http.proxyHost</code> is set
+     * (or <code>java.net.useSystemProxies</code> is true)
+     * and the URL's host does not match <code>http.nonProxyHosts</code>.
+     *
+     * @param  url  URL
+     * @return  true iff the URL should not be reached directly
+     */
+    public static boolean isProxied( URL url ) {
+        String proxyHost = getProperty( "http.proxyHost" );
+        String sysProxies = getProperty( "java.net.useSystemProxies" );
+        if ( ( proxyHost == null || proxyHost.trim().length() == 0 ) &&
+             ! "true".equalsIgnoreCase( sysProxies ) ) {
+            return false;
+        }
+        String nonProxyHosts = getProperty( "http.nonProxyHosts" );
+        if ( nonProxyHosts == null ) {
+            nonProxyHosts = DEFAULT_NON_PROXY_HOSTS;
+        }
+        String host = url.getHost().toLowerCase();
+        String[] patterns = nonProxyHosts.toLowerCase().split( "\\|" );
+        for ( int i = 0; i < patterns.length; i++ ) {
+            String pattern = patterns[ i ].trim();
+            int leng = pattern.length();
+            if ( leng == 0 ) {
+                continue;
+            }
+            boolean match;
+            if ( pattern.charAt( 0 ) == '*' ) {
+                match = host.endsWith( pattern.substring( 1 ) );
+            }
+            else if ( pattern.charAt( leng - 1 ) == '*' ) {
+                match = host.startsWith( pattern.substring( 0, leng - 1 ) );
+            }
+            else {
+                match = host.equals( pattern );
+            }
+            if ( match ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a system property, or null if it is not set
+     * or cannot be read.
+     *
+     * @param  name  property name
+     * @return  property value, or null
+     */
+    private static String getProperty( String name ) {
+        try {
+            return System.getProperty( name );
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key identifying the host part of a URL.
+     *
+     * @param  url  URL
+     * @return   host:port string
+     */
+    private static String getHostKey( URL url ) {
+        return url.getHost().toLowerCase() + ":" + getPort( url );
+    }
+
+    /**
+     * Returns the port number for a URL, taking account of defaults.
+     *
+     * @param  url  URL
+     * @return  port number
+     */
+    private static int getPort( URL url ) {
+        int port = url.getPort();
+        return port >= 0 ? port : url.getDefaultPort();
+    }
+
+    /**
+     * Reads a CRLF- or LF-terminated line from an HTTP response header.
+     *
+     * @param  in  input stream
+     * @return   line without terminator, or null at end of stream
+     *           if no characters have been read
+     */
+    private static String readLine( InputStream in ) throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        for ( int c; ( c = in.read() ) >= 0; ) {
+            if ( c == '\n' ) {
+                int leng = sbuf.length();
+                if ( leng > 0 && sbuf.charAt( leng - 1 ) == '\r' ) {
+                    sbuf.setLength( leng - 1 );
+                }
+                return sbuf.toString();
+            }
+            sbuf.append( (char) c );
+        }
+        if ( sbuf.length() == 0 ) {
+            return null;
+        }
+        throw new EOFException( "Unterminated HTTP header line" );
+    }
+
+    /**
+     * Represents a single request-response exchange with a server.
+     */
+    class Exchange {
+        private final URL url_;
+        private final byte[] request_;
+        private final int readMillis_;
+        private Conn conn_;
+        private int status_;
+        private String phrase_;
+        private Map hdrMap_;
+        private InputStream body_;
+        private boolean reusable_;
+
+        /**
+         * Constructor.
+         *
+         * @param  url  destination URL
+         * @param  request  serialized request header and body
+         * @param  readMillis  read timeout in milliseconds, or zero
+         */
+        Exchange( URL url, byte[] request, int readMillis ) {
+            url_ = url;
+            request_ = request;
+            readMillis_ = readMillis;
+        }
+
+        /**
+         * Writes the request to the server.
+         */
+        void send() throws IOException {
+            conn_ = acquire( url_ );
+            try {
+                conn_.write( request_ );
+            }
+            catch ( IOException e ) {
+                String key = conn_.key_;
+                abort();
+                closeAllIdle( key );
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the response status and headers.
+         *
+         * @return  HTTP status code
+         */
+        int readResponse() throws IOException {
+            if ( body_ != null ) {
+                return status_;
+            }
+            try {
+                conn_.socket_.setSoTimeout( readMillis_ );
+                readHead();
+            }
+            catch ( IOException e ) {
+                abort();
+                throw e;
+            }
+            return status_;
+        }
+
+        /**
+         * Returns the status phrase.  Only valid after
+         * {@link #readResponse}.
+         *
+         * @return  status phrase
+         */
+        String getStatusPhrase() {
+            return phrase_;
+        }
+
+        /**
+         * Returns the value of a response header.  Only valid after
+         * {@link #readResponse}.
+         *
+         * @param  name  header name, case-insensitive
+         * @return  header value, or null if absent
+         */
+        String getHeader( String name ) {
+            return hdrMap_ == null ? null
+                                   : (String) hdrMap_.get( name.toLowerCase() );
+        }
+
+        /**
+         * Returns a stream containing the response body.  Only valid after
+         * {@link #readResponse}.  Closing this stream has no effect;
+         * {@link #close} must be called instead.
+         *
+         * @return   body input stream
+         */
+        InputStream getBodyStream() {
+            return body_;
+        }
+
+        /**
+         * Finishes with this exchange.  Any unread part of the response
+         * body is consumed, and the connection returned to the pool
+         * if possible.  Calling this method more than once has no effect.
+         */
+        void close() {
+            if ( conn_ != null ) {
+                boolean reuse = false;
+                if ( body_ != null && reusable_ ) {
+                    try {
+                        byte[] buf = new byte[ 1024 ];
+                        while ( body_.read( buf ) >= 0 ) {}
+                        reuse = true;
+                    }
+                    catch ( IOException e ) {
+                    }
+                }
+                release( conn_, reuse );
+                conn_ = null;
+            }
+        }
+
+        /**
+         * Closes and discards the current connection.
+         */
+        private void abort() {
+            if ( conn_ != null ) {
+                release( conn_, false );
+                conn_ = null;
+            }
+        }
+
+        /**
+         * Reads the status line and headers, and prepares the body stream.
+         */
+        private void readHead() throws IOException {
+            InputStream in = conn_.in_;
+            String version;
+            Map hdrMap;
+            do {
+                String statusLine = readLine( in );
+                if ( statusLine == null ) {
+                    throw new EOFException( "No HTTP response" );
+                }
+                String[] words = statusLine.split( " ", 3 );
+                if ( words.length < 2 || ! words[ 0 ].startsWith( "HTTP/" ) ) {
+                    throw new IOException( "Bad HTTP status line: "
+                                         + statusLine );
+                }
+                version = words[ 0 ];
+                try {
+                    status_ = Integer.parseInt( words[ 1 ] );
+                }
+                catch ( NumberFormatException e ) {
+                    throw new IOException( "Bad HTTP status line: "
+                                         + statusLine );
+                }
+                phrase_ = words.length > 2 ? words[ 2 ] : "";
+                hdrMap = new HashMap();
+                for ( String line; ( line = readLine( in ) ) != null
+                                   && line.length() > 0; ) {
+                    int icolon = line.indexOf( ':' );
+                    if ( icolon > 0 ) {
+                        hdrMap.put( line.substring( 0, icolon ).trim()
+                                        .toLowerCase(),
+                                    line.substring( icolon + 1 ).trim() );
+                    }
+                }
+            } while ( status_ / 100 == 1 );
+            hdrMap_ = hdrMap;
+
+            // Work out whether the connection can be reused.
+            String connHdr = (String) hdrMap.get( "connection" );
+            connHdr = connHdr == null ? "" : connHdr.toLowerCase();
+            reusable_ = "HTTP/1.0".equals( version )
+                      ? connHdr.indexOf( "keep-alive" ) >= 0
+                      : connHdr.indexOf( "close" ) < 0;
+
+            // Work out how the end of the body is delimited.
+            String teHdr = (String) hdrMap.get( "transfer-encoding" );
+            String clHdr = (String) hdrMap.get( "content-length" );
+            if ( status_ == 204 || status_ == 304 ) {
+                body_ = new LengthInputStream( in, 0 );
+            }
+            else if ( teHdr != null &&
+                      teHdr.toLowerCase().indexOf( "chunked" ) >= 0 ) {
+                body_ = new ChunkedInputStream( in, Integer.MAX_VALUE );
+            }
+            else if ( clHdr != null ) {
+                int leng;
+                try {
+                    leng = Integer.parseInt( clHdr );
+                }
+                catch ( NumberFormatException e ) {
+                    throw new IOException( "Bad Content-Length " + clHdr );
+                }
+                if ( leng < 0 ) {
+                    throw new IOException( "Bad Content-Length " + clHdr );
+                }
+                body_ = new LengthInputStream( in, leng );
+            }
+            else {
+                reusable_ = false;
+                body_ = new FilterInputStream( in ) {
+                    public void close() {
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * Records the idle and busy connections to a single host.
+     */
+    private static class HostPool {
+        final LinkedList idleList_ = new LinkedList();
+        int nOpen_;
+
+        /**
+         * Closes idle connections which have been unused since before
+         * a given time.
+         *
+         * @param  cutoff  epoch time in milliseconds
+         */
+        void closeIdle( long cutoff ) {
+            for ( Iterator it = idleList_.iterator(); it.hasNext(); ) {
+                Conn conn = (Conn) it.next();
+                if ( conn.idleSince_ < cutoff ) {
+                    it.remove();
+                    conn.close();
+                    nOpen_--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Represents an open socket connection to an HTTP server.
+     */
+    private static class Conn {
+        final String key_;
+        final boolean isPooled_;
+        final SocketChannel channel_;
+        final Socket socket_;
+        final InputStream in_;
+        final OutputStream out_;
+        long idleSince_;
+
+        /**
+         * Constructor.  Opens the socket.
+         *
+         * @param  key  host key
+         * @param  host  host name
+         * @param  port  port number
+         * @param  isPooled  true iff this connection counts towards the
+         *                   host's pooled connection limit
+         * @param  connectMillis  connection timeout in milliseconds, or zero
+         */
+        Conn( String key, String host, int port, boolean isPooled,
+              int connectMillis )
+                throws IOException {
+            key_ = key;
+            isPooled_ = isPooled;
+            channel_ = SocketChannel.open();
+            socket_ = channel_.socket();
+            try {
+                socket_.connect( new InetSocketAddress( host, port ),
+                                 connectMillis );
+            }
+            catch ( IOException e ) {
+                channel_.close();
+                throw e;
+            }
+            socket_.setTcpNoDelay( true );
+            in_ = new BufferedInputStream( socket_.getInputStream() );
+            out_ = new BufferedOutputStream( socket_.getOutputStream() );
+        }
+
+        /**
+         * Writes and flushes bytes to the server.
+         *
+         * @param  buf  bytes to write
+         */
+        void write( byte[] buf ) throws IOException {
+            out_.write( buf );
+            out_.flush();
+        }
+
+        /**
+         * Indicates whether this idle connection is unfit for reuse.
+         * That is the case if the server has closed it, or has sent
+         * something unsolicited.  This test does not block.
+         *
+         * @return  true iff this connection should be discarded
+         */
+        boolean isStale() {
+            try {
+                if ( in_.available() > 0 ) {
+                    return true;
+                }
+                channel_.configureBlocking( false );
+                try {
+                    return channel_.read( ByteBuffer.allocate( 1 ) ) != 0;
+                }
+                finally {
+                    channel_.configureBlocking( true );
+                }
+            }
+            catch ( IOException e ) {
+                return true;
+            }
+        }
+
+        /**
+         * Closes the socket, ignoring errors.
+         */
+        void close() {
+            try {
+                socket_.close();
+            }
+            catch ( IOException e ) {
+            }
+        }
+    }
+}
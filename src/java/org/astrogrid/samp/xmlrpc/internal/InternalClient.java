@@ -8,32 +8,80 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.httpd.ContentEncoding;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcAsyncClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcCallback;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcPreEncoder;
 
 /**
  * XML-RPC client implementation suitable for use with SAMP.
  * This implementation is completely freestanding and requires no other
  * libraries.
+ * For <code>http</code> endpoints, calls are made over persistent
+ * HTTP/1.1 connections drawn from a pool shared between clients,
+ * so that repeated calls to the same server do not each require
+ * a new TCP connection.
+ * Pooled connections are made directly, so endpoints which the
+ * standard <code>http.proxyHost</code>/<code>http.nonProxyHosts</code>
+ * system properties route through a proxy are instead called using
+ * {@link java.net.HttpURLConnection}, which honours those settings.
+ * Pooled calls time out if no response arrives within
+ * {@link #READ_TIMEOUT_MILLIS}, extended for methods such as
+ * <code>callAndWait</code> which legitimately block for a
+ * caller-specified time.
+ * Compressed responses are accepted, and request bodies above the
+ * {@link org.astrogrid.samp.httpd.ContentEncoding#getDefaultThreshold
+ * compression threshold} are compressed once the server has indicated
+ * that it can decode them.
+ * Similarly, calls are sent in the more compact JSON-RPC form
+ * once the server has indicated that it accepts it
+ * (see {@link #JSON_PROP}).
  *
  * @author   Mark Taylor
  * @since    26 Aug 2008
  */
-public class InternalClient implements SampXmlRpcClient {
+public class InternalClient
+        implements SampXmlRpcClient, SampXmlRpcAsyncClient,
+                   SampXmlRpcPreEncoder {
 
     private final URL endpoint_;
     private final String userAgent_;
+    private final HttpConnectionPool connectionPool_;
+    private final Map hdrMap_;
+    private final int compressThreshold_;
+    private volatile Map codedHdrMap_;
+    private volatile Map jsonHdrMap_;
+    private volatile Map codedJsonHdrMap_;
+    private final XmlRpcDecoder decoder_;
     private static final Logger logger_ =
         Logger.getLogger( InternalClient.class.getName() );
 
+    /**
+     * Name of system property which controls whether calls may be sent
+     * as JSON-RPC to servers which advertise support for it.
+     * Set it to "false" to always use XML-RPC.
+     */
+    public static final String JSON_PROP = "jsamp.xmlrpc.json";
+
+    /**
+     * Time in milliseconds to wait for the response to a pooled call
+     * before giving up.  Calls which may legitimately block, such as
+     * <code>callAndWait</code> and <code>pullCallbacks</code>,
+     * wait for this time in addition to their own timeout parameter.
+     */
+    public static final int READ_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    private static final boolean JSON_ENABLED = isJsonEnabledByDefault();
+
     /**
      * Constructor.
      *
@@ -42,61 +90,114 @@ public class InternalClient implements SampXmlRpcClient {
     public InternalClient( URL endpoint ) {
         endpoint_ = endpoint;
         userAgent_ = "JSAMP/" + SampUtils.getSoftwareVersion();
+        connectionPool_ = "http".equalsIgnoreCase( endpoint.getProtocol() )
+                       && ! HttpConnectionPool.isProxied( endpoint )
+                        ? HttpConnectionPool.getInstance()
+                        : null;
+        hdrMap_ = new LinkedHashMap();
+        hdrMap_.put( "Content-Type", "text/xml" );
+        hdrMap_.put( "User-Agent", userAgent_ );
+        decoder_ = XmlRpcDecoder.getInstance();
+        compressThreshold_ = ContentEncoding.getDefaultThreshold();
+        if ( compressThreshold_ >= 0 ) {
+            hdrMap_.put( ContentEncoding.HDR_ACCEPT_ENCODING,
+                         ContentEncoding.ACCEPT_VALUE );
+        }
     }
 
     public Object callAndWait( String method, List params )
             throws IOException {
-        HttpURLConnection connection =
-            (HttpURLConnection) endpoint_.openConnection();
-        byte[] callBuf = serializeCall( method, params );
-        connection.setDoOutput( true );
-        connection.setDoInput( true );
-        connection.setRequestMethod( "POST" );
-        connection.setRequestProperty( "Content-Type", "text/xml" );
-        connection.setRequestProperty( "Content-Length",
-                                       Integer.toString( callBuf.length ) );
-        connection.setRequestProperty( "User-Agent", userAgent_ );
-        connection.connect();
-        OutputStream out = connection.getOutputStream();
-        out.write( callBuf );
-        out.flush();
-        out.close();
-        int responseCode = connection.getResponseCode();
-        if ( responseCode != HttpURLConnection.HTTP_OK ) {
-            throw new IOException( responseCode + " "
-                                 + connection.getResponseMessage() );
+        EncodedCall call = encodeCall( method, params );
+        if ( connectionPool_ != null ) {
+            return readResult( connectionPool_.post( endpoint_, call.hdrMap_,
+                                                     call.body_,
+                                                     call.readMillis_ ) );
         }
-        InputStream in = new BufferedInputStream( connection.getInputStream() );
-        Object result = deserializeResponse( in );
-        connection.disconnect();
-        return result;
+        else {
+            return readResult( postUrlConnection( call ) );
+        }
+    }
+
+    /**
+     * The request is written on the calling thread, and the response
+     * is read and decoded by a pool of worker threads shared with
+     * {@link #callAndForget}; the callback is invoked from that pool.
+     * If the pool is saturated, the response is read and the callback
+     * invoked on the calling thread before this method returns.
+     */
+    public void callAsync( String method, List params,
+                           final SampXmlRpcCallback callback )
+            throws IOException {
+        EncodedCall call = encodeCall( method, params );
+        final HttpConnectionPool.Exchange exch;
+        final HttpURLConnection connection;
+        if ( connectionPool_ != null ) {
+            exch = connectionPool_.post( endpoint_, call.hdrMap_,
+                                         call.body_, call.readMillis_ );
+            connection = null;
+        }
+        else {
+            exch = null;
+            connection = postUrlConnection( call );
+        }
+        ResponseDrainer.getInstance().drain( new Runnable() {
+            public void run() {
+                Object result;
+                try {
+                    result = exch != null ? readResult( exch )
+                                          : readResult( connection );
+                }
+                catch ( IOException e ) {
+                    callback.failed( e );
+                    return;
+                }
+                callback.completed( result );
+            }
+        } );
     }
 
     // NOTE: if this method is invoked from a shutdownHook thread,
-    // the call may not complete because it is completed from a new thread.
-    public void callAndForget( String method, List params )
+    // the call may not complete because it is completed from a
+    // worker thread.
+    public void callAndForget( final String method, List params )
             throws IOException {
-        final HttpURLConnection connection =
-            (HttpURLConnection) endpoint_.openConnection();
-        byte[] callBuf = serializeCall( method, params );
-        connection.setDoOutput( true );
-        connection.setDoInput( true );
-        connection.setRequestMethod( "POST" );
-        connection.setRequestProperty( "Content-Type", "text/xml" );
-        connection.setRequestProperty( "Content-Length",
-                                       Integer.toString( callBuf.length ) );
-        connection.setRequestProperty( "User-Agent", userAgent_ );
-        connection.connect();
-        OutputStream out = connection.getOutputStream();
-        out.write( callBuf );
-        out.flush();
-        out.close();
+        EncodedCall call = encodeCall( method, params );
+
+        // The request is written on this thread, so that calls are sent
+        // in order and connection failures are reported to the caller.
+        // The response has to be read anyway, so that the connection
+        // can be reused; that is done asynchronously by the shared drainer.
+        if ( connectionPool_ != null ) {
+            final HttpConnectionPool.Exchange exch =
+                connectionPool_.post( endpoint_, call.hdrMap_, call.body_,
+                                      call.readMillis_ );
+            ResponseDrainer.getInstance().drain( new Runnable() {
+                public void run() {
+                    try {
+                        int responseCode = exch.readResponse();
+                        if ( responseCode != HttpURLConnection.HTTP_OK ) {
+                            logger_.warning( responseCode + " "
+                                           + exch.getStatusPhrase() );
+                        }
+                        learnCapabilities( exch );
+                    }
+                    catch ( IOException e ) {
+                        logDrainFailure( method, e );
+                    }
+                    finally {
+                        exch.close();
+                    }
+                }
+            } );
+            return;
+        }
+        final HttpURLConnection connection = postUrlConnection( call );
 
         // It would be nice to just not read the input stream at all.
         // However, connection.setDoInput(false) and doing no reads causes
         // trouble - probably the call doesn't complete at the other end or
         // something.  So read it to the end asynchronously.
-        new Thread() {
+        ResponseDrainer.getInstance().drain( new Runnable() {
             public void run() {
                 try {
                     InputStream in =
@@ -107,14 +208,365 @@ public class InternalClient implements SampXmlRpcClient {
                         logger_.warning( responseCode + " " +
                                          connection.getResponseMessage() );
                     }
+                    learnCapabilities( connection );
                 }
                 catch ( IOException e ) {
+                    logDrainFailure( method, e );
                 }
                 finally {
                     connection.disconnect();
                 }
             }
-        }.start();
+        } );
+    }
+
+    /**
+     * Returns the number of calls made using {@link #callAndForget}
+     * or {@link #callAsync} by any client of this class whose responses
+     * have not yet been completely read.
+     *
+     * @return  in-flight call count
+     */
+    public static int getInFlightCount() {
+        return ResponseDrainer.getInstance().getInFlightCount();
+    }
+
+    /**
+     * Returns the number of responses to {@link #callAndForget}
+     * or {@link #callAsync} calls by any client of this class
+     * which are waiting for a thread to read them.
+     *
+     * @return  queued response count
+     */
+    public static int getDrainQueueDepth() {
+        return ResponseDrainer.getInstance().getQueueDepth();
+    }
+
+    /**
+     * Logs a failure to read the response to a forgotten call.
+     *
+     * @param  method  XML-RPC method name
+     * @param  error   error
+     */
+    private void logDrainFailure( String method, IOException error ) {
+        logger_.info( "No response from " + endpoint_ + " for " + method
+                    + ": " + error );
+    }
+
+    /**
+     * Reads and decodes the response to a call sent on a pooled connection.
+     * The exchange is closed on exit.
+     *
+     * @param  exch  exchange on which a call has been sent
+     * @return   XML-RPC call return value
+     */
+    private Object readResult( HttpConnectionPool.Exchange exch )
+            throws IOException {
+        try {
+            int responseCode = exch.readResponse();
+            if ( responseCode != HttpURLConnection.HTTP_OK ) {
+                throw new IOException( responseCode + " "
+                                     + exch.getStatusPhrase() );
+            }
+            learnCapabilities( exch );
+            InputStream in =
+                ContentEncoding
+               .createDecoder( exch.getBodyStream(),
+                               exch.getHeader( ContentEncoding
+                                              .HDR_CONTENT_ENCODING ) );
+            return JsonRpc.isJsonType( exch.getHeader( "Content-Type" ) )
+                 ? JsonRpc.decodeResponse( in )
+                 : deserializeResponse( in );
+        }
+        finally {
+            exch.close();
+        }
+    }
+
+    /**
+     * Reads and decodes the response to a call sent on a one-off
+     * URL connection.  The connection is disconnected on successful exit.
+     *
+     * @param  connection  connection on which a call has been sent
+     * @return   XML-RPC call return value
+     */
+    private Object readResult( HttpURLConnection connection )
+            throws IOException {
+        int responseCode = connection.getResponseCode();
+        if ( responseCode != HttpURLConnection.HTTP_OK ) {
+            throw new IOException( responseCode + " "
+                                 + connection.getResponseMessage() );
+        }
+        learnCapabilities( connection );
+        InputStream in =
+            ContentEncoding
+           .createDecoder( new BufferedInputStream( connection
+                                                   .getInputStream() ),
+                           connection.getContentEncoding() );
+        Object result = JsonRpc.isJsonType( connection.getContentType() )
+                      ? JsonRpc.decodeResponse( in )
+                      : deserializeResponse( in );
+        connection.disconnect();
+        return result;
+    }
+
+    /**
+     * Opens a one-off URL connection to this client's endpoint and
+     * writes a POST request to it.
+     * Used for endpoints which the connection pool cannot handle.
+     *
+     * @param  call   encoded call
+     * @return   connection ready for reading the response
+     */
+    private HttpURLConnection postUrlConnection( EncodedCall call )
+            throws IOException {
+        byte[] callBuf = call.body_;
+        Map hdrMap = call.hdrMap_;
+        HttpURLConnection connection =
+            (HttpURLConnection) endpoint_.openConnection();
+        connection.setDoOutput( true );
+        connection.setDoInput( true );
+        connection.setRequestMethod( "POST" );
+        for ( Iterator it = hdrMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            connection.setRequestProperty( (String) entry.getKey(),
+                                           (String) entry.getValue() );
+        }
+        connection.setRequestProperty( "Content-Length",
+                                       Integer.toString( callBuf.length ) );
+        connection.connect();
+        OutputStream out = connection.getOutputStream();
+        out.write( callBuf );
+        out.flush();
+        out.close();
+        return connection;
+    }
+
+    /**
+     * Serializes a call ready for sending.
+     * JSON-RPC is used if the server is known to accept it,
+     * otherwise XML-RPC.
+     *
+     * @param  method  XML-RPC method name
+     * @param  params  parameters for XML-RPC call
+     * @return   request body and headers
+     */
+    private EncodedCall encodeCall( String method, List params )
+            throws IOException {
+        boolean isJson = jsonHdrMap_ != null && hasJsonForm( params );
+        byte[] callBuf = isJson ? JsonRpc.encodeCall( method, params )
+                                : serializeCall( method, params );
+        Map hdrMap = getCallHeaders( callBuf.length, isJson );
+        return new EncodedCall( encodeBody( callBuf, hdrMap ), hdrMap,
+                                getReadTimeout( method, params ) );
+    }
+
+    /**
+     * Returns the time to wait for the response to a given call.
+     * Methods which block until a caller-specified SAMP timeout
+     * (given in seconds as the final parameter) has expired get
+     * that much extra time; if the SAMP timeout is absent or
+     * non-positive, such calls may block indefinitely and
+     * no read timeout is applied.
+     *
+     * @param  method  XML-RPC method name
+     * @param  params  parameters for XML-RPC call
+     * @return   read timeout in milliseconds, or 0 for none
+     */
+    private static int getReadTimeout( String method, List params ) {
+        if ( method.endsWith( "callAndWait" ) ||
+             method.endsWith( "pullCallbacks" ) ) {
+            Object last = params.isEmpty() ? null
+                                           : params.get( params.size() - 1 );
+            int timeoutSec;
+            try {
+                timeoutSec = last instanceof String
+                           ? SampUtils.decodeInt( (String) last )
+                           : 0;
+            }
+            catch ( RuntimeException e ) {
+                timeoutSec = 0;
+            }
+            long millis = timeoutSec * 1000L + READ_TIMEOUT_MILLIS;
+            return timeoutSec > 0 && millis < Integer.MAX_VALUE
+                 ? (int) millis
+                 : 0;
+        }
+        else {
+            return READ_TIMEOUT_MILLIS;
+        }
+    }
+
+    /**
+     * Returns the headers to send with a request body of a given size.
+     * If the body is worth compressing and the server is known to
+     * accept compressed requests, the returned map will include a
+     * <code>Content-Encoding</code> header.
+     *
+     * @param  leng  unencoded body length in bytes
+     * @param  isJson  true for a JSON-RPC body, false for XML-RPC
+     * @return  request header map
+     */
+    private Map getCallHeaders( int leng, boolean isJson ) {
+        Map codedHdrMap = isJson ? codedJsonHdrMap_ : codedHdrMap_;
+        return codedHdrMap != null && leng >= compressThreshold_
+             ? codedHdrMap
+             : ( isJson ? jsonHdrMap_ : hdrMap_ );
+    }
+
+    /**
+     * Encodes a request body as required by its headers.
+     *
+     * @param  callBuf  unencoded request body
+     * @param  hdrMap   request headers, as returned by
+     *                  {@link #getCallHeaders}
+     * @return  request body to send
+     */
+    private static byte[] encodeBody( byte[] callBuf, Map hdrMap )
+            throws IOException {
+        String coding =
+            (String) hdrMap.get( ContentEncoding.HDR_CONTENT_ENCODING );
+        if ( coding == null ) {
+            return callBuf;
+        }
+        ByteArrayOutputStream bos =
+            new ByteArrayOutputStream( callBuf.length / 4 );
+        OutputStream out = ContentEncoding.createEncoder( bos, coding );
+        out.write( callBuf );
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Records what the server has advertised in the headers of a response
+     * on a pooled connection.
+     *
+     * @param  exch  exchange whose response headers have been read
+     */
+    private void learnCapabilities( HttpConnectionPool.Exchange exch ) {
+        if ( codedHdrMap_ == null ) {
+            learnCodings( exch.getHeader( ContentEncoding
+                                         .HDR_ACCEPT_ENCODING ) );
+        }
+        if ( jsonHdrMap_ == null ) {
+            learnRpc( exch.getHeader( JsonRpc.HDR_ACCEPT_RPC ) );
+        }
+    }
+
+    /**
+     * Records what the server has advertised in the headers of a response
+     * on a one-off URL connection.
+     *
+     * @param  connection  connection whose response headers have been read
+     */
+    private void learnCapabilities( HttpURLConnection connection ) {
+        if ( codedHdrMap_ == null ) {
+            learnCodings( connection
+                         .getHeaderField( ContentEncoding
+                                         .HDR_ACCEPT_ENCODING ) );
+        }
+        if ( jsonHdrMap_ == null ) {
+            learnRpc( connection.getHeaderField( JsonRpc.HDR_ACCEPT_RPC ) );
+        }
+    }
+
+    /**
+     * Records the content codings which the server has advertised
+     * that it accepts for request bodies.
+     *
+     * @param  acceptEncoding  value of the Accept-Encoding response header,
+     *                         may be null
+     */
+    private synchronized void learnCodings( String acceptEncoding ) {
+        if ( codedHdrMap_ == null && compressThreshold_ >= 0 ) {
+            String coding = ContentEncoding.negotiate( acceptEncoding );
+            if ( coding != null ) {
+                Map codedHdrMap = new LinkedHashMap( hdrMap_ );
+                codedHdrMap.put( ContentEncoding.HDR_CONTENT_ENCODING,
+                                 coding );
+                if ( jsonHdrMap_ != null ) {
+                    codedJsonHdrMap_ = toJsonHeaders( codedHdrMap );
+                }
+                codedHdrMap_ = codedHdrMap;
+            }
+        }
+    }
+
+    /**
+     * Records whether the server has advertised that it accepts
+     * JSON-RPC calls.  Once it has, subsequent calls will use JSON-RPC
+     * if this client {@link #isJsonEnabled permits} it.
+     *
+     * @param  acceptRpc  value of the JSON-RPC capability response header,
+     *                    may be null
+     */
+    private synchronized void learnRpc( String acceptRpc ) {
+        if ( jsonHdrMap_ == null && JsonRpc.acceptsJson( acceptRpc ) &&
+             isJsonEnabled() ) {
+            if ( codedHdrMap_ != null ) {
+                codedJsonHdrMap_ = toJsonHeaders( codedHdrMap_ );
+            }
+            jsonHdrMap_ = toJsonHeaders( hdrMap_ );
+        }
+    }
+
+    /**
+     * Returns a copy of a request header map with the content type
+     * changed to JSON.
+     *
+     * @param  hdrMap  XML-RPC request headers
+     * @return   JSON-RPC request headers
+     */
+    private static Map toJsonHeaders( Map hdrMap ) {
+        Map jsonHdrMap = new LinkedHashMap( hdrMap );
+        jsonHdrMap.put( "Content-Type", JsonRpc.CONTENT_TYPE );
+        return jsonHdrMap;
+    }
+
+    /**
+     * Indicates whether all the pre-encoded parameters in a list,
+     * if any, have a JSON form available.
+     *
+     * @param  params  call parameters
+     * @return  true iff the parameters can be written as JSON
+     */
+    private static boolean hasJsonForm( List params ) {
+        for ( Iterator it = params.iterator(); it.hasNext(); ) {
+            Object param = it.next();
+            if ( param instanceof EncodedValue &&
+                 ((EncodedValue) param).getJson() == null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether this client may send calls as JSON-RPC
+     * to servers which accept it.
+     * The default implementation returns true unless the
+     * {@link #JSON_PROP} system property is set to "false".
+     *
+     * @return  true iff JSON-RPC may be used
+     */
+    protected boolean isJsonEnabled() {
+        return JSON_ENABLED;
+    }
+
+    /**
+     * Determines the default JSON-RPC policy from the {@link #JSON_PROP}
+     * system property.
+     *
+     * @return  true unless JSON-RPC has been disabled
+     */
+    private static boolean isJsonEnabledByDefault() {
+        try {
+            return ! "false".equalsIgnoreCase( System
+                                              .getProperty( JSON_PROP ) );
+        }
+        catch ( SecurityException e ) {
+            return true;
+        }
     }
 
     /**
@@ -127,8 +579,22 @@ public class InternalClient implements SampXmlRpcClient {
      */
     protected byte[] serializeCall( String method, List paramList )
             throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        XmlWriter xout = new XmlWriter( bos, 2 );
+        return writeCall( method, paramList, getXmlIndent() );
+    }
+
+    /**
+     * Generates an XML <code>methodCall</code> document with a given
+     * indentation.
+     *
+     * @param   method  methodName  string
+     * @param   paramList  list of XML-RPC parameters
+     * @param   indent  XML indent, or negative for compact
+     * @return   XML document as byte array
+     */
+    static byte[] writeCall( String method, List paramList, int indent )
+            throws IOException {
+        ByteArrayOutputStream bos = XmlWriter.getScratchBuffer();
+        XmlWriter xout = new XmlWriter( bos, indent );
         xout.start( "methodCall" );
         xout.inline( "methodName", method );
         if ( ! paramList.isEmpty() ) {
@@ -142,43 +608,47 @@ public class InternalClient implements SampXmlRpcClient {
         }
         xout.end( "methodCall" );
         xout.close();
-        return bos.toByteArray();
+        return XmlWriter.releaseScratchBuffer( bos );
+    }
+
+    /**
+     * Returns an {@link EncodedValue} holding the serialized form of
+     * the value, suitable for use as a parameter of
+     * {@link #serializeCall}.
+     * If this client may use JSON-RPC, the JSON form is included too.
+     */
+    public Object preEncode( Object value ) throws IOException {
+
+        // Call parameter values sit at level 3:
+        // methodCall/params/param/value.
+        byte[] bytes = XmlWriter.encodeValue( value, getXmlIndent(), 3 );
+        String json = isJsonEnabled() ? JsonRpc.toJson( value ) : null;
+        return new EncodedValue( bytes, json );
+    }
+
+    /**
+     * Returns the number of spaces by which each element level is
+     * indented in serialized XML-RPC documents.
+     * The default implementation returns a negative value,
+     * which means no indentation or newlines are written.
+     *
+     * @return  indent, or negative for compact output
+     */
+    protected int getXmlIndent() {
+        return XmlWriter.COMPACT;
     }
 
     /**
      * Deserializes an XML-RPC <code>methodResponse</code> document to a
      * Java object.
+     * The {@link XmlRpcDecoder#getInstance default decoder} is used.
      *
      * @param   in  input stream containing response document
      */
     protected Object deserializeResponse( InputStream in )
             throws IOException {
         try {
-            Document doc = XmlUtils.createDocumentBuilder().parse( in );
-            Element top =
-                XmlUtils.getChild( XmlUtils.getChild( doc, "methodResponse" ) );
-            String topName = top.getTagName();
-            if ( "fault".equals( topName ) ) {
-                Element value = XmlUtils.getChild( top, "value" );
-                XmlUtils.getChild( value, "struct" );
-                Map faultMap = (Map) XmlUtils.parseSampValue( value );
-                Object fcode = faultMap.get( "faultCode" );
-                Object fmsg = faultMap.get( "faultString" );
-                int code = fcode instanceof Integer
-                         ? ((Integer) fcode).intValue()
-                         : -9999;
-                final String msg = String.valueOf( fmsg );
-                throw new XmlRpcFault( code, msg );
-            }
-            else if ( "params".equals( topName ) ) {
-                Element value =
-                    XmlUtils.getChild( XmlUtils.getChild( top, "param" ),
-                                       "value" );
-                return XmlUtils.parseSampValue( value );
-            }
-            else {
-                throw new XmlRpcFormatException( "Not <fault> or <params>?" );
-            }
+            return decoder_.decodeResponse( in );
         }
         catch ( ParserConfigurationException e ) {
             throw (IOException) new IOException( "Trouble with XML parsing" )
@@ -195,11 +665,25 @@ public class InternalClient implements SampXmlRpcClient {
     }
 
     /**
-     * IOException representing an incoming XML-RPC fault.
+     * Holds a serialized call ready for sending.
      */
-    private static class XmlRpcFault extends IOException {
-        public XmlRpcFault( int code, String msg ) {
-            super( "XML-RPC Fault (" + code + ": " + msg + ")" );
+    private static class EncodedCall {
+        final byte[] body_;
+        final Map hdrMap_;
+        final int readMillis_;
+
+        /**
+         * Constructor.
+         *
+         * @param  body  request body, content-encoded if required
+         * @param  hdrMap  request headers
+         * @param  readMillis  response read timeout in milliseconds,
+         *                     or 0 for none
+         */
+        EncodedCall( byte[] body, Map hdrMap, int readMillis ) {
+            body_ = body;
+            hdrMap_ = hdrMap;
+            readMillis_ = readMillis;
         }
     }
 }
@@ -1,12 +1,12 @@
 package org.astrogrid.samp.xmlrpc.internal;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
+import java.nio.channels.ReadableByteChannel;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,16 +19,29 @@ import java.util.logging.Logger;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.httpd.HttpServer;
 import org.astrogrid.samp.httpd.UtilServer;
+import org.astrogrid.samp.xmlrpc.DeferrableRequest;
+import org.astrogrid.samp.xmlrpc.DeferredResult;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcCallback;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcServer;
-import org.w3c.dom.Document;
 
 /**
  * SampXmlRpcServer implementation without external dependencies.
  * The <code>reqInfo</code> argument passed to the
  * {@link SampXmlRpcHandler#handleCall handleCall} method of registered
  * <code>SampXmlRpcHandler</code>s is the associated
- * {@link org.astrogrid.samp.httpd.HttpServer.Request}.
+ * {@link org.astrogrid.samp.httpd.HttpServer.Request};
+ * it also implements {@link org.astrogrid.samp.xmlrpc.DeferrableRequest}.
+ * Large results are streamed to the client as they are serialized,
+ * without a declared length, rather than being assembled in memory.
+ * Calls may also be made using JSON-RPC, by POSTing a request with
+ * a JSON content type; responses advertise this capability so that
+ * {@link InternalClient} can take advantage of it.
+ * The conventional <code>system.multicall</code> method is supported,
+ * so that several calls can be made in a single HTTP request.
+ * Handlers may return a {@link org.astrogrid.samp.xmlrpc.DeferredResult}
+ * for calls which take a long time to complete; the HTTP request thread
+ * is then released until the result is available.
  *
  * @author   Mark Taylor
  * @since    27 Aug 2008
@@ -39,11 +52,21 @@ public class InternalServer implements SampXmlRpcServer {
     private final URL endpoint_;
     private final List handlerList_;
     private final HttpServer.Handler serverHandler_;
+    private final XmlRpcDecoder decoder_;
     private static final HttpServer.Response GET_RESPONSE =
         createInfoResponse( true );
     private static final HttpServer.Response HEAD_RESPONSE =
         createInfoResponse( false );
 
+    /** Name of the XML-RPC method which packs several calls into one. */
+    public static final String MULTICALL = "system.multicall";
+
+    /** Largest serialized result which will be sent with a known length. */
+    private static final int MAX_BUFFERED_RESULT = 64 * 1024;
+
+    /** Per-thread reusable buffer for serialized results. */
+    private static final ThreadLocal resultBufLocal_ = new ThreadLocal();
+
     private static final Logger logger_ =
         Logger.getLogger( InternalServer.class.getName() );
 
@@ -59,7 +82,11 @@ public class InternalServer implements SampXmlRpcServer {
         server_ = httpServer;
         endpoint_ = new URL( server_.getBaseUrl(), path );
         handlerList_ = Collections.synchronizedList( new ArrayList() );
-        serverHandler_ = new HttpServer.Handler() {
+        decoder_ = XmlRpcDecoder.getInstance();
+        serverHandler_ = new HttpServer.PrefixHandler() {
+            public String getPathPrefix() {
+                return path;
+            }
             public HttpServer.Response serveRequest( HttpServer.Request req ) {
                 if ( req.getUrl().equals( path ) ) {
                     String method = req.getMethod();
@@ -131,31 +158,155 @@ public class InternalServer implements SampXmlRpcServer {
      * Any error should be handled by returning a fault-type methodResponse
      * element rather than by throwing an exception.
      *
+     * <p>The result is first serialized into a bounded buffer.
+     * If it does not fit, the response is sent without a Content-Length
+     * (hence chunked for HTTP/1.1 clients) and the result is serialized
+     * again directly to the connection.
+     *
+     * <p>If the request has a JSON content type and this server
+     * {@link #isJsonAccepted accepts} JSON-RPC,
+     * the call is decoded and the response encoded using JSON-RPC instead.
+     *
+     * <p>If the handler returns a
+     * {@link org.astrogrid.samp.xmlrpc.DeferredResult},
+     * a {@link org.astrogrid.samp.httpd.HttpServer.DeferredResponse}
+     * is returned, which is completed when the result is available.
+     * The response is prepared and sent by one of the HTTP server's
+     * worker threads, so the thread which supplies the result
+     * does not wait for it to be written.
+     *
      * @param  request  POSTed HTTP request
      * @return  XML-RPC response (possibly fault)
      */
     protected HttpServer.Response
               getXmlRpcResponse( HttpServer.Request request ) {
-        byte[] rbuf;
+        final boolean isJson =
+            isJsonAccepted() &&
+            JsonRpc.isJsonType( HttpServer
+                               .getHeader( request.getHeaderMap(),
+                                           "Content-Type" ) );
+        String id = null;
+        Object result;
         try {
-            rbuf = getResultBytes( getXmlRpcResult( request ) );
+            XmlRpcCall call = decodeCall( request, isJson );
+            if ( isJson ) {
+                id = ((JsonRpc.Call) call).getId();
+            }
+            result = getXmlRpcResult( call, request );
         }
         catch ( Throwable e ) {
-            boolean isSerious = e instanceof Error;
-            logger_.log( isSerious ? Level.WARNING : Level.INFO,
-                         "XML-RPC fault return", e );
-            try {
-                rbuf = getFaultBytes( e );
+            return createFaultResponse( e, isJson, id );
+        }
+        final String jsonId = id;
+        if ( result instanceof DeferredResult ) {
+            final HttpServer.DeferredResponse response =
+                new HttpServer.DeferredResponse();
+            ((DeferredResult) result).setCallback( new SampXmlRpcCallback() {
+                public void completed( final Object res ) {
+                    server_.execute( new Runnable() {
+                        public void run() {
+                            response.complete( createResultResponse( res,
+                                                                     isJson,
+                                                                     jsonId ) );
+                        }
+                    } );
+                }
+                public void failed( final IOException error ) {
+                    server_.execute( new Runnable() {
+                        public void run() {
+                            response.complete( createFaultResponse( error,
+                                                                    isJson,
+                                                                    jsonId ) );
+                        }
+                    } );
+                }
+            } );
+            return response;
+        }
+        else {
+            return createResultResponse( result, isJson, jsonId );
+        }
+    }
+
+    /**
+     * Returns the HTTP response object for a successful call.
+     *
+     * @param  result  SAMP-friendly call result
+     * @param  isJson  true for a JSON-RPC response, false for XML-RPC
+     * @param  jsonId  JSON text of the JSON-RPC request id, or null
+     * @return  HTTP response
+     */
+    private HttpServer.Response createResultResponse( Object result,
+                                                      boolean isJson,
+                                                      String jsonId ) {
+        byte[] rbuf;
+        try {
+            if ( isJson ) {
+                return createBufferedResponse( JsonRpc.encodeResult( result,
+                                                                     jsonId ),
+                                               JsonRpc.CONTENT_TYPE );
             }
-            catch ( IOException e2 ) {
-                return HttpServer.createErrorResponse( 500, "Server error",
-                                                       e2 );
+            BoundedOutputStream bout =
+                (BoundedOutputStream) resultBufLocal_.get();
+            if ( bout == null ) {
+                bout = new BoundedOutputStream( MAX_BUFFERED_RESULT );
+                resultBufLocal_.set( bout );
             }
+            bout.reset();
+            writeResult( result, bout, getXmlIndent() );
+            rbuf = bout.toByteArray();
+        }
+        catch ( BufferOverflowException e ) {
+            return createStreamedResponse( result, getXmlIndent() );
+        }
+        catch ( Throwable e ) {
+            return createFaultResponse( e, isJson, jsonId );
         }
-        final byte[] replyBuf = rbuf;
+        return createBufferedResponse( rbuf, "text/xml" );
+    }
+
+    /**
+     * Returns the HTTP response object for a failed call.
+     *
+     * @param  error  reason for failure
+     * @param  isJson  true for a JSON-RPC response, false for XML-RPC
+     * @param  jsonId  JSON text of the JSON-RPC request id, or null
+     * @return  HTTP response
+     */
+    private HttpServer.Response createFaultResponse( Throwable error,
+                                                     boolean isJson,
+                                                     String jsonId ) {
+        boolean isSerious = error instanceof Error;
+        logger_.log( isSerious ? Level.WARNING : Level.INFO,
+                     isJson ? "JSON-RPC error return"
+                            : "XML-RPC fault return", error );
+        try {
+            return isJson
+                 ? createBufferedResponse( JsonRpc.encodeFault( error,
+                                                                jsonId ),
+                                           JsonRpc.CONTENT_TYPE )
+                 : createBufferedResponse( getFaultBytes( error,
+                                                          getXmlIndent() ),
+                                           "text/xml" );
+        }
+        catch ( IOException e2 ) {
+            return HttpServer.createErrorResponse( 500, "Server error", e2 );
+        }
+    }
+
+    /**
+     * Returns a response with a body which has already been serialized.
+     *
+     * @param  replyBuf  response body
+     * @param  contentType  MIME type of body
+     * @return  HTTP response
+     */
+    private HttpServer.Response createBufferedResponse( final byte[] replyBuf,
+                                                        String contentType ) {
         Map hdrMap = new LinkedHashMap();
         hdrMap.put( "Content-Length", Integer.toString( replyBuf.length ) );
-        hdrMap.put( "Content-Type", "text/xml" );
+        hdrMap.put( "Content-Type", contentType );
+        addCapabilityHeaders( hdrMap );
         return new HttpServer.Response( 200, "OK", hdrMap ) {
             public void writeBody( OutputStream out ) throws IOException {
                 out.write( replyBuf );
@@ -163,29 +314,140 @@ public class InternalServer implements SampXmlRpcServer {
         };
     }
 
+    /**
+     * Adds headers advertising optional capabilities of this server
+     * to a response header map.
+     *
+     * @param  hdrMap  response header map
+     */
+    private void addCapabilityHeaders( Map hdrMap ) {
+        if ( isJsonAccepted() ) {
+            hdrMap.put( JsonRpc.HDR_ACCEPT_RPC, JsonRpc.CONTENT_TYPE );
+        }
+    }
+
+    /**
+     * Decodes the call contained in a request directly from the
+     * request stream.
+     *
+     * @param  request  POSTed HTTP request
+     * @param  isJson  true if the request body is JSON-RPC,
+     *                 false for XML-RPC
+     * @return  decoded call; a {@link JsonRpc.Call} if <code>isJson</code>
+     * @throws  Exception  if the request is badly formed
+     *                     (will become XML-RPC fault)
+     */
+    private XmlRpcCall decodeCall( HttpServer.Request request,
+                                   boolean isJson )
+            throws Exception {
+        InputStream bodyIn = request.getBodyStream();
+        if ( bodyIn == null || request.getBodyLength() == 0 ) {
+            throw new XmlRpcFormatException( "No body in POSTed request" );
+        }
+        return isJson ? JsonRpc.decodeCall( bodyIn )
+                      : decoder_.decodeCall( bodyIn );
+    }
+
     /**
      * Returns the SAMP-friendly (string, list and map only) object representing
-     * the reply to an XML-RPC request given by a request.
+     * the reply to an XML-RPC call.
      *
+     * @param  call  decoded call
      * @param  request  POSTed HTTP request
      * @return   SAMP-friendly object
      * @throws  Exception  in case of error (will become XML-RPC fault)
      */ 
-    private Object getXmlRpcResult( HttpServer.Request request )
+    private Object getXmlRpcResult( XmlRpcCall call,
+                                    HttpServer.Request request )
             throws Exception {
-        byte[] body = request.getBody();
+        String methodName = call.getMethodName();
+        List paramList = call.getParams();
+        if ( MULTICALL.equals( methodName ) ) {
+            return getMulticallResult( paramList, request );
+        }
+        else {
+            return dispatchCall( methodName, paramList, request );
+        }
+    }
 
-        // Parse body as XML document.
-        if ( body == null || body.length == 0 ) {
-            throw new XmlRpcFormatException( "No body in POSTed request" );
+    /**
+     * Executes the calls packed into a <code>system.multicall</code>
+     * request, and returns their results.
+     * The parameter list has a single element, a list of maps each with
+     * entries <code>methodName</code> and <code>params</code>.
+     * The result has one element per call, either a single-element list
+     * containing the call result, or a map with entries
+     * <code>faultCode</code> and <code>faultString</code>.
+     * Failure of one call does not affect the others.
+     * Deferred results are waited for, so that results can be
+     * returned in order.
+     *
+     * @param  paramList  multicall parameter list
+     * @param  request  HTTP request from which this call originated
+     * @return   SAMP-friendly list of per-call results
+     */
+    private List getMulticallResult( List paramList,
+                                     HttpServer.Request request )
+            throws XmlRpcFormatException {
+        if ( paramList.size() != 1 ||
+             ! ( paramList.get( 0 ) instanceof List ) ) {
+            throw new XmlRpcFormatException( MULTICALL
+                                           + " takes a single list parameter" );
         }
-        Document doc = XmlUtils.createDocumentBuilder()
-                      .parse( new ByteArrayInputStream( body ) );
+        List callList = (List) paramList.get( 0 );
+        List resultList = new ArrayList( callList.size() );
+        for ( Iterator it = callList.iterator(); it.hasNext(); ) {
+            Object callObj = it.next();
+            Object result;
+            try {
+                if ( ! ( callObj instanceof Map ) ) {
+                    throw new XmlRpcFormatException( MULTICALL
+                                                   + " entry not a map" );
+                }
+                Map callMap = (Map) callObj;
+                Object name = callMap.get( "methodName" );
+                Object params = callMap.get( "params" );
+                if ( ! ( name instanceof String ) ||
+                     ! ( params instanceof List ) ) {
+                    throw new XmlRpcFormatException( "Bad " + MULTICALL
+                                                   + " entry" );
+                }
+                if ( MULTICALL.equals( name ) ) {
+                    throw new XmlRpcFormatException( "Recursive "
+                                                   + MULTICALL );
+                }
+                Object callResult =
+                    dispatchCall( (String) name, (List) params, request );
+                if ( callResult instanceof DeferredResult ) {
+                    callResult = ((DeferredResult) callResult).getResult();
+                }
+                result = Collections.singletonList( callResult );
+            }
+            catch ( Throwable e ) {
+                boolean isSerious = e instanceof Error;
+                logger_.log( isSerious ? Level.WARNING : Level.INFO,
+                             MULTICALL + " fault", e );
+                Map faultMap = new LinkedHashMap();
+                faultMap.put( "faultCode", "1" );
+                faultMap.put( "faultString", e.toString() );
+                result = faultMap;
+            }
+            resultList.add( result );
+        }
+        return resultList;
+    }
 
-        // Extract XML-RPC information from DOM.
-        XmlRpcCall call = XmlRpcCall.createCall( doc );
-        String methodName = call.getMethodName();
-        List paramList = call.getParams();
+    /**
+     * Passes a single decoded call to the appropriate registered handler.
+     *
+     * @param  methodName  XML-RPC method name
+     * @param  paramList  list of parameters to XML-RPC call
+     * @param  request  HTTP request from which this call originated
+     * @return   SAMP-friendly object
+     */
+    private Object dispatchCall( String methodName, List paramList,
+                                 HttpServer.Request request )
+            throws Exception {
 
         // Find one of the registered handlers to handle this request.
         SampXmlRpcHandler handler = null;
@@ -220,7 +482,51 @@ public class InternalServer implements SampXmlRpcServer {
     protected Object handleCall( SampXmlRpcHandler handler, String methodName,
                                  List paramList, HttpServer.Request request )
             throws Exception {
-        return handler.handleCall( methodName, paramList, request );
+        return handler.handleCall( methodName, paramList,
+                                   new DeferrableHttpRequest( request ) );
+    }
+
+    /**
+     * Returns the number of spaces by which each element level is
+     * indented in serialized XML-RPC documents.
+     * The default implementation returns a negative value,
+     * which means no indentation or newlines are written.
+     *
+     * @return  indent, or negative for compact output
+     */
+    protected int getXmlIndent() {
+        return XmlWriter.COMPACT;
+    }
+
+    /**
+     * Indicates whether this server accepts calls in JSON-RPC form
+     * as well as XML-RPC.
+     * The default implementation returns true.
+     *
+     * @return  true iff JSON-RPC calls are accepted and advertised
+     */
+    protected boolean isJsonAccepted() {
+        return true;
+    }
+
+    /**
+     * Returns a response which serializes an XML-RPC result directly
+     * to the client as the body is written.
+     *
+     * @param  result  SAMP-friendly object
+     * @param  indent  XML indent, or negative for compact
+     * @return  HTTP response with no declared length
+     */
+    private HttpServer.Response
+            createStreamedResponse( final Object result, final int indent ) {
+        Map hdrMap = new LinkedHashMap();
+        hdrMap.put( "Content-Type", "text/xml" );
+        addCapabilityHeaders( hdrMap );
+        return new HttpServer.Response( 200, "OK", hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                writeResult( result, out, indent );
+            }
+        };
     }
 
     /**
@@ -231,9 +537,34 @@ public class InternalServer implements SampXmlRpcServer {
      * @return   XML methodResponse document as byte array
      */
     public static byte[] getResultBytes( Object result ) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BufferedOutputStream bout = new BufferedOutputStream( out );
-        XmlWriter xout = new XmlWriter( bout, 2 );
+        ByteArrayOutputStream out = XmlWriter.getScratchBuffer();
+        writeResult( result, out );
+        return XmlWriter.releaseScratchBuffer( out );
+    }
+
+    /**
+     * Writes an XML-RPC methodResponse document representing a
+     * SAMP-friendly (string, list, map only) object to a stream.
+     * The stream is flushed but not closed.
+     *
+     * @param  result  SAMP-friendly object
+     * @param  out   destination stream
+     */
+    public static void writeResult( Object result, OutputStream out )
+            throws IOException {
+        writeResult( result, out, XmlWriter.COMPACT );
+    }
+
+    /**
+     * Writes an XML-RPC methodResponse document with a given indentation.
+     *
+     * @param  result  SAMP-friendly object
+     * @param  out   destination stream
+     * @param  indent  XML indent, or negative for compact
+     */
+    static void writeResult( Object result, OutputStream out, int indent )
+            throws IOException {
+        XmlWriter xout = new XmlWriter( out, indent );
         xout.start( "methodResponse" );
         xout.start( "params" );
         xout.start( "param" );
@@ -241,8 +572,7 @@ public class InternalServer implements SampXmlRpcServer {
         xout.end( "param" );
         xout.end( "params" );
         xout.end( "methodResponse" );
-        xout.close();
-        return out.toByteArray();
+        xout.flush();
     }
 
     /**
@@ -253,15 +583,27 @@ public class InternalServer implements SampXmlRpcServer {
      * @return   XML methodResponse document as byte array
      */
     public static byte[] getFaultBytes( Throwable error ) throws IOException {
+        return getFaultBytes( error, XmlWriter.COMPACT );
+    }
+
+    /**
+     * Turns an exception into an XML-RPC fault document with a given
+     * indentation.
+     *
+     * @param  error  throwable
+     * @param  indent  XML indent, or negative for compact
+     * @return   XML methodResponse document as byte array
+     */
+    static byte[] getFaultBytes( Throwable error, int indent )
+            throws IOException {
         int faultCode = 1;
         String faultString = error.toString();
 
         // Write the method response element.  We can't use the XmlWriter
         // sampValue method to do the grunt-work here since the faultCode
         // contains an <int>, which is not a known SAMP type.
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BufferedOutputStream bout = new BufferedOutputStream( out );
-        XmlWriter xout = new XmlWriter( bout, 2 );
+        ByteArrayOutputStream out = XmlWriter.getScratchBuffer();
+        XmlWriter xout = new XmlWriter( out, indent );
         xout.start( "methodResponse" );
         xout.start( "fault" );
         xout.start( "value" );
@@ -281,7 +623,7 @@ public class InternalServer implements SampXmlRpcServer {
         xout.end( "fault" );
         xout.end( "methodResponse" );
         xout.close();
-        return out.toByteArray();
+        return XmlWriter.releaseScratchBuffer( out );
     }
 
     /**
@@ -325,4 +667,82 @@ public class InternalServer implements SampXmlRpcServer {
             }
         };
     }
+
+    /**
+     * ByteArrayOutputStream which refuses to grow beyond a given size.
+     */
+    private static class BoundedOutputStream extends ByteArrayOutputStream {
+        private final int maxSize_;
+
+        /**
+         * Constructor.
+         *
+         * @param  maxSize  maximum number of bytes which may be written
+         */
+        BoundedOutputStream( int maxSize ) {
+            maxSize_ = maxSize;
+        }
+
+        public void write( int b ) {
+            checkSpace( 1 );
+            super.write( b );
+        }
+
+        public void write( byte[] b, int off, int len ) {
+            checkSpace( len );
+            super.write( b, off, len );
+        }
+
+        /**
+         * Checks that a given number of bytes may be written.
+         *
+         * @param  n  number of bytes
+         * @throws  BufferOverflowException  if not
+         */
+        private void checkSpace( int n ) {
+            if ( count + n > maxSize_ ) {
+                throw new BufferOverflowException();
+            }
+        }
+    }
+
+    /**
+     * Unchecked exception thrown when a BoundedOutputStream is full.
+     */
+    private static class BufferOverflowException extends RuntimeException {
+    }
+
+    /**
+     * HTTP request passed to handlers as request information,
+     * indicating that this server can make use of deferred results.
+     * It presents the same request as the one received by the
+     * HTTP server, and reads any remaining body from it.
+     */
+    private static class DeferrableHttpRequest extends HttpServer.Request
+                                                implements DeferrableRequest {
+        private final HttpServer.Request base_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  request received by the HTTP server
+         */
+        DeferrableHttpRequest( HttpServer.Request base ) {
+            super( base.getMethod(), base.getUrl(), base.getHeaderMap(),
+                   base.getRemoteAddress(), null );
+            base_ = base;
+        }
+
+        public byte[] getBody() {
+            return base_.getBody();
+        }
+
+        public InputStream getBodyStream() {
+            return base_.getBodyStream();
+        }
+
+        public ReadableByteChannel getBodyChannel() {
+            return base_.getBodyChannel();
+        }
+    }
 }
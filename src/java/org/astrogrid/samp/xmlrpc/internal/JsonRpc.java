@@ -0,0 +1,656 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.DataException;
+
+/**
+ * Encodes and decodes calls and responses in JSON-RPC form,
+ * as an alternative wire format to XML-RPC for the internal
+ * client and server.
+ *
+ * <p>The documents follow JSON-RPC 2.0.  Call parameters and results
+ * are restricted to SAMP-friendly JSON (strings, lists and objects only),
+ * but request ids may be any JSON scalar, and are echoed unchanged
+ * in the response; error codes are integers.
+ * Since each HTTP exchange carries exactly one call, ids are not used
+ * to match responses to requests.
+ *
+ * <p>A server which accepts JSON-RPC calls says so by including the
+ * {@link #HDR_ACCEPT_RPC} header in its responses, so that a client
+ * can start with XML-RPC and switch to JSON-RPC once it knows that
+ * the server understands it.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class JsonRpc {
+
+    /** MIME type for JSON-RPC request and response bodies. */
+    public static final String CONTENT_TYPE = "application/json";
+
+    /** Response header listing additional accepted request MIME types. */
+    public static final String HDR_ACCEPT_RPC = "X-RPC-Accept";
+
+    private static final String VERSION = "2.0";
+    private static final String CALL_ID = "1";
+    private static final int FAULT_CODE = 1;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private JsonRpc() {
+    }
+
+    /**
+     * Indicates whether a Content-Type header value denotes JSON.
+     *
+     * @param  contentType  Content-Type header value, may be null
+     * @return  true iff JSON-RPC decoding should be used
+     */
+    public static boolean isJsonType( String contentType ) {
+        return contentType != null
+            && contentType.trim().toLowerCase().startsWith( CONTENT_TYPE );
+    }
+
+    /**
+     * Indicates whether the value of an {@link #HDR_ACCEPT_RPC} header
+     * shows that JSON-RPC requests are accepted.
+     *
+     * @param  acceptRpc  header value, may be null
+     * @return  true iff JSON-RPC calls may be sent
+     */
+    public static boolean acceptsJson( String acceptRpc ) {
+        return acceptRpc != null
+            && acceptRpc.toLowerCase().indexOf( CONTENT_TYPE ) >= 0;
+    }
+
+    /**
+     * Serializes a method call.
+     * Parameters which have been prepared by
+     * {@link InternalClient#preEncode} are written in their
+     * JSON form without re-encoding.
+     *
+     * @param  method  method name
+     * @param  params  list of SAMP-friendly parameters
+     * @return  UTF-8 encoded JSON document
+     */
+    public static byte[] encodeCall( String method, List params )
+            throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        sbuf.append( "{\"jsonrpc\":\"" )
+            .append( VERSION )
+            .append( "\",\"method\":" )
+            .append( toJson( method ) )
+            .append( ",\"params\":[" );
+        for ( Iterator it = params.iterator(); it.hasNext(); ) {
+            Object param = it.next();
+            sbuf.append( param instanceof EncodedValue
+                             ? ((EncodedValue) param).getJson()
+                             : toJson( param ) );
+            if ( it.hasNext() ) {
+                sbuf.append( ',' );
+            }
+        }
+        sbuf.append( "],\"id\":" )
+            .append( toJson( CALL_ID ) )
+            .append( '}' );
+        return sbuf.toString().getBytes( "UTF-8" );
+    }
+
+    /**
+     * Deserializes a method call.
+     *
+     * @param  in  input stream containing JSON document
+     * @return  call object
+     */
+    public static Call decodeCall( InputStream in ) throws IOException {
+        Map callMap = asMap( readJson( in ), "call" );
+        Object method = callMap.get( "method" );
+        if ( ! ( method instanceof String ) ) {
+            throw new XmlRpcFormatException( "No method name in JSON-RPC "
+                                           + "call" );
+        }
+        Object params = callMap.get( "params" );
+        if ( params == null ) {
+            params = new ArrayList();
+        }
+        else if ( ! ( params instanceof List ) ) {
+            throw new XmlRpcFormatException( "JSON-RPC params not a list" );
+        }
+        checkFriendly( params, "params" );
+        Object id = callMap.get( "id" );
+        if ( id instanceof List || id instanceof Map ) {
+            throw new XmlRpcFormatException( "JSON-RPC id not a scalar" );
+        }
+        String idJson = id instanceof String ? toJson( id )
+                      : ( id == null ? null : id.toString() );
+        return new Call( (String) method, (List) params, idJson );
+    }
+
+    /**
+     * Serializes a successful result.
+     *
+     * @param  result  SAMP-friendly result object
+     * @param  id   JSON text of the request id, or null if unknown
+     * @return  UTF-8 encoded JSON document
+     */
+    public static byte[] encodeResult( Object result, String id )
+            throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        sbuf.append( "{\"jsonrpc\":\"" )
+            .append( VERSION )
+            .append( "\",\"result\":" );
+        appendJson( sbuf, result );
+        appendId( sbuf, id );
+        return sbuf.toString().getBytes( "UTF-8" );
+    }
+
+    /**
+     * Serializes an error response.
+     *
+     * @param  error  error
+     * @param  id   JSON text of the request id, or null if unknown
+     * @return  UTF-8 encoded JSON document
+     */
+    public static byte[] encodeFault( Throwable error, String id )
+            throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        sbuf.append( "{\"jsonrpc\":\"" )
+            .append( VERSION )
+            .append( "\",\"error\":{\"code\":" )
+            .append( FAULT_CODE )
+            .append( ",\"message\":" );
+        appendString( sbuf, error.toString() );
+        sbuf.append( '}' );
+        appendId( sbuf, id );
+        return sbuf.toString().getBytes( "UTF-8" );
+    }
+
+    /**
+     * Appends the id member and closing brace of a response to a buffer.
+     *
+     * @param  sbuf  destination buffer
+     * @param  id   JSON text of the request id, or null if unknown
+     */
+    private static void appendId( StringBuffer sbuf, String id ) {
+        sbuf.append( ",\"id\":" )
+            .append( id == null ? "null" : id )
+            .append( '}' );
+    }
+
+    /**
+     * Deserializes a response, returning the result or throwing an
+     * exception corresponding to an error response.
+     *
+     * @param  in  input stream containing JSON document
+     * @return  SAMP-friendly result object
+     * @throws  IOException  if the response is an error, or is badly formed
+     */
+    public static Object decodeResponse( InputStream in ) throws IOException {
+        Map respMap = asMap( readJson( in ), "response" );
+        Object error = respMap.get( "error" );
+        if ( error != null ) {
+            Map errMap = asMap( error, "error" );
+            throw new IOException( "JSON-RPC Fault (" + errMap.get( "code" )
+                                 + ": " + errMap.get( "message" ) + ")" );
+        }
+        if ( ! respMap.containsKey( "result" ) ) {
+            throw new XmlRpcFormatException( "No result in JSON-RPC "
+                                           + "response" );
+        }
+        Object result = respMap.get( "result" );
+        checkFriendly( result, "result" );
+        return result;
+    }
+
+    /**
+     * Serializes a SAMP-friendly object as compact JSON.
+     * Unlike {@link SampUtils#toJson}, string content is not checked
+     * against the SAMP character set, since the XML-RPC encoding does
+     * not check it either, and quotes, backslashes and control
+     * characters are escaped.
+     *
+     * @param  value  value
+     * @return  JSON text
+     */
+    static String toJson( Object value ) {
+        StringBuffer sbuf = new StringBuffer();
+        appendJson( sbuf, value );
+        return sbuf.toString();
+    }
+
+    /**
+     * Appends the compact JSON serialization of a SAMP-friendly object
+     * to a buffer.
+     *
+     * @param  sbuf  destination buffer
+     * @param  value  value
+     */
+    private static void appendJson( StringBuffer sbuf, Object value ) {
+        if ( value instanceof String ) {
+            appendString( sbuf, (String) value );
+        }
+        else if ( value instanceof List ) {
+            sbuf.append( '[' );
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                appendJson( sbuf, it.next() );
+                if ( it.hasNext() ) {
+                    sbuf.append( ',' );
+                }
+            }
+            sbuf.append( ']' );
+        }
+        else if ( value instanceof Map ) {
+            sbuf.append( '{' );
+            for ( Iterator it = ((Map) value).entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Object key = entry.getKey();
+                if ( ! ( key instanceof String ) ) {
+                    throw new DataException( "Non-string key in map: "
+                                           + key );
+                }
+                appendString( sbuf, (String) key );
+                sbuf.append( ':' );
+                appendJson( sbuf, entry.getValue() );
+                if ( it.hasNext() ) {
+                    sbuf.append( ',' );
+                }
+            }
+            sbuf.append( '}' );
+        }
+        else {
+            throw new DataException( "Illegal data type " + value );
+        }
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string to a buffer.
+     *
+     * @param  sbuf  destination buffer
+     * @param  txt  string content
+     */
+    private static void appendString( StringBuffer sbuf, String txt ) {
+        sbuf.append( '"' );
+        int nc = txt.length();
+        for ( int ic = 0; ic < nc; ic++ ) {
+            char c = txt.charAt( ic );
+            switch ( c ) {
+                case '"':
+                    sbuf.append( "\\\"" );
+                    break;
+                case '\\':
+                    sbuf.append( "\\\\" );
+                    break;
+                case '\n':
+                    sbuf.append( "\\n" );
+                    break;
+                case '\r':
+                    sbuf.append( "\\r" );
+                    break;
+                case '\t':
+                    sbuf.append( "\\t" );
+                    break;
+                default:
+                    if ( c < 0x20 ) {
+                        String hex = Integer.toHexString( c );
+                        sbuf.append( "\\u" )
+                            .append( "0000".substring( hex.length() ) )
+                            .append( hex );
+                    }
+                    else {
+                        sbuf.append( c );
+                    }
+            }
+        }
+        sbuf.append( '"' );
+    }
+
+    /**
+     * Reads a JSON document from a UTF-8 encoded stream.
+     * The stream is read to the end but not closed.
+     * Strings, lists and objects are returned as for SAMP;
+     * other scalars (numbers, booleans and null) are returned as
+     * {@link Scalar} objects.
+     *
+     * @param  in  input stream
+     * @return  parsed object
+     */
+    private static Object readJson( InputStream in ) throws IOException {
+        Parser parser =
+            new Parser( new BufferedReader( new InputStreamReader( in,
+                                                                "UTF-8" ) ) );
+        Object value = parser.readValue();
+        if ( parser.skipSpace() >= 0 ) {
+            throw new XmlRpcFormatException( "Bad JSON: trailing content" );
+        }
+        return value;
+    }
+
+    /**
+     * Checks that a parsed value is SAMP-friendly, that is contains
+     * no scalars other than strings.
+     *
+     * @param  value  parsed value
+     * @param  name  name of value for error message
+     */
+    private static void checkFriendly( Object value, String name )
+            throws XmlRpcFormatException {
+        if ( value instanceof List ) {
+            for ( Iterator it = ((List) value).iterator(); it.hasNext(); ) {
+                checkFriendly( it.next(), name );
+            }
+        }
+        else if ( value instanceof Map ) {
+            for ( Iterator it = ((Map) value).values().iterator();
+                  it.hasNext(); ) {
+                checkFriendly( it.next(), name );
+            }
+        }
+        else if ( ! ( value instanceof String ) ) {
+            throw new XmlRpcFormatException( "Non-string scalar in JSON-RPC "
+                                           + name );
+        }
+    }
+
+    /**
+     * Casts an object to a map, or throws a format exception.
+     *
+     * @param  obj  object
+     * @param  name  name of object for error message
+     * @return  obj as a map
+     */
+    private static Map asMap( Object obj, String name )
+            throws XmlRpcFormatException {
+        if ( obj instanceof Map ) {
+            return (Map) obj;
+        }
+        else {
+            throw new XmlRpcFormatException( "JSON-RPC " + name
+                                           + " not an object" );
+        }
+    }
+
+    /**
+     * Method call decoded from a JSON-RPC request.
+     */
+    public static class Call extends XmlRpcCall {
+
+        private final String id_;
+
+        /**
+         * Constructor.
+         *
+         * @param  methodName  method name
+         * @param  params  SAMP-friendly parameter list
+         * @param  id   JSON text of the request id, or null if absent
+         */
+        Call( String methodName, List params, String id ) {
+            super( methodName, params );
+            id_ = id;
+        }
+
+        /**
+         * Returns the request id, to be echoed in the response.
+         *
+         * @return  JSON text of the request id, or null if absent
+         */
+        public String getId() {
+            return id_;
+        }
+    }
+
+    /**
+     * Non-string JSON scalar, which is not SAMP-friendly.
+     */
+    private static class Scalar {
+
+        private final String txt_;
+
+        /**
+         * Constructor.
+         *
+         * @param  txt  JSON text of value
+         */
+        Scalar( String txt ) {
+            txt_ = txt;
+        }
+
+        /**
+         * Returns the JSON text of this value.
+         */
+        public String toString() {
+            return txt_;
+        }
+    }
+
+    /**
+     * Parses JSON text from a character stream.
+     * This reads the stream directly rather than accumulating it
+     * first, unlike {@link org.astrogrid.samp.SampUtils#fromJson}.
+     * Objects and arrays are returned as maps and lists, strings
+     * as strings, and other scalars as {@link Scalar}s;
+     * the caller must check for the latter where only SAMP-friendly
+     * values are allowed.
+     */
+    private static class Parser {
+
+        private final Reader rdr_;
+        private int c_;
+
+        /**
+         * Constructor.
+         *
+         * @param  rdr  reader supplying JSON text
+         */
+        Parser( Reader rdr ) throws IOException {
+            rdr_ = rdr;
+            c_ = rdr.read();
+        }
+
+        /**
+         * Reads a JSON value.
+         *
+         * @return  parsed value
+         */
+        Object readValue() throws IOException {
+            int c = skipSpace();
+            if ( c == '{' ) {
+                advance();
+                return readObject();
+            }
+            else if ( c == '[' ) {
+                advance();
+                return readArray();
+            }
+            else if ( c == '"' ) {
+                advance();
+                return readString();
+            }
+            else {
+                return new Scalar( readLiteral() );
+            }
+        }
+
+        /**
+         * Skips whitespace.
+         *
+         * @return  next non-space character, or -1 at end of input
+         */
+        int skipSpace() throws IOException {
+            while ( c_ == ' ' || c_ == '\t' || c_ == '\n' || c_ == '\r' ) {
+                advance();
+            }
+            return c_;
+        }
+
+        /**
+         * Reads the members of an object following its opening brace.
+         *
+         * @return  map
+         */
+        private Map readObject() throws IOException {
+            Map map = new LinkedHashMap();
+            if ( skipSpace() == '}' ) {
+                advance();
+                return map;
+            }
+            while ( true ) {
+                if ( skipSpace() != '"' ) {
+                    throw error( "Missing/illegal object key" );
+                }
+                advance();
+                String key = readString();
+                if ( skipSpace() != ':' ) {
+                    throw error( "Missing colon in JSON object" );
+                }
+                advance();
+                map.put( key, readValue() );
+                int c = skipSpace();
+                advance();
+                if ( c == '}' ) {
+                    return map;
+                }
+                else if ( c != ',' ) {
+                    throw error( "Unexpected character in JSON object" );
+                }
+            }
+        }
+
+        /**
+         * Reads the elements of an array following its opening bracket.
+         *
+         * @return  list
+         */
+        private List readArray() throws IOException {
+            List list = new ArrayList();
+            if ( skipSpace() == ']' ) {
+                advance();
+                return list;
+            }
+            while ( true ) {
+                list.add( readValue() );
+                int c = skipSpace();
+                advance();
+                if ( c == ']' ) {
+                    return list;
+                }
+                else if ( c != ',' ) {
+                    throw error( "Unexpected character in JSON array" );
+                }
+            }
+        }
+
+        /**
+         * Reads the content of a string following its opening quote.
+         *
+         * @return  string content
+         */
+        private String readString() throws IOException {
+            StringBuffer sbuf = new StringBuffer();
+            while ( true ) {
+                int c = c_;
+                advance();
+                if ( c < 0 ) {
+                    throw error( "Unterminated JSON string" );
+                }
+                else if ( c == '"' ) {
+                    return sbuf.toString();
+                }
+                else if ( c == '\\' ) {
+                    int e = c_;
+                    advance();
+                    switch ( e ) {
+                        case 'b': sbuf.append( '\b' ); break;
+                        case 'f': sbuf.append( '\f' ); break;
+                        case 'n': sbuf.append( '\n' ); break;
+                        case 'r': sbuf.append( '\r' ); break;
+                        case 't': sbuf.append( '\t' ); break;
+                        case 'u': sbuf.append( readUnicode() ); break;
+                        case '"':
+                        case '\\':
+                        case '/':
+                            sbuf.append( (char) e );
+                            break;
+                        default:
+                            throw error( "Bad escape in JSON string" );
+                    }
+                }
+                else {
+                    sbuf.append( (char) c );
+                }
+            }
+        }
+
+        /**
+         * Reads the four hex digits of a unicode escape.
+         *
+         * @return  escaped character
+         */
+        private char readUnicode() throws IOException {
+            int value = 0;
+            for ( int i = 0; i < 4; i++ ) {
+                int digit = Character.digit( (char) c_, 16 );
+                if ( c_ < 0 || digit < 0 ) {
+                    throw error( "Bad unicode escape in JSON string" );
+                }
+                value = ( value << 4 ) + digit;
+                advance();
+            }
+            return (char) value;
+        }
+
+        /**
+         * Reads an unquoted scalar (number, boolean or null).
+         *
+         * @return  JSON text of scalar
+         */
+        private String readLiteral() throws IOException {
+            StringBuffer sbuf = new StringBuffer();
+            while ( ( c_ >= '0' && c_ <= '9' ) ||
+                    ( c_ >= 'a' && c_ <= 'z' ) ||
+                    c_ == '-' || c_ == '+' || c_ == '.' || c_ == 'E' ) {
+                sbuf.append( (char) c_ );
+                advance();
+            }
+            String txt = sbuf.toString();
+            if ( txt.length() == 0 ||
+                 ( Character.isLetter( txt.charAt( 0 ) ) &&
+                   ! ( txt.equals( "true" ) || txt.equals( "false" ) ||
+                       txt.equals( "null" ) ) ) ) {
+                throw error( c_ < 0 ? "Unexpected end of JSON input"
+                                    : "Unexpected character '" + (char) c_
+                                    + "'" );
+            }
+            return txt;
+        }
+
+        /**
+         * Moves on to the next input character.
+         */
+        private void advance() throws IOException {
+            if ( c_ >= 0 ) {
+                c_ = rdr_.read();
+            }
+        }
+
+        /**
+         * Returns a format exception for badly-formed input.
+         *
+         * @param  msg  message
+         * @return  new exception
+         */
+        private static XmlRpcFormatException error( String msg ) {
+            return new XmlRpcFormatException( "Bad JSON: " + msg );
+        }
+    }
+}
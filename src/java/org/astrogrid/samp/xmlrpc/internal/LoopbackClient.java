@@ -0,0 +1,297 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcAsyncClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcCallback;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcPreEncoder;
+import org.xml.sax.SAXException;
+
+/**
+ * SampXmlRpcClient implementation which talks to a {@link LoopbackServer}
+ * in the same JVM without using the network.
+ * Calls are passed to the server's handlers in one of several ways,
+ * determined by a {@link Codec}: directly, or after a round trip through
+ * the XML-RPC or JSON-RPC serialization used on the wire by
+ * {@link InternalClient} and {@link InternalServer}.
+ * The direct route is the fastest, but means that parameter and result
+ * objects are shared between caller and handler, so neither side must
+ * modify them.  The others are useful for measuring the cost of
+ * the codecs in isolation from network effects.
+ *
+ * <p>Synchronous calls run the handler on the calling thread.
+ * Asynchronous and fire-and-forget calls run it on the worker pool
+ * used for reading the responses of such calls in
+ * {@link InternalClient}.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class LoopbackClient implements SampXmlRpcClient,
+                                       SampXmlRpcAsyncClient,
+                                       SampXmlRpcPreEncoder {
+
+    private final URL endpoint_;
+    private final Codec codec_;
+    private static final Logger logger_ =
+        Logger.getLogger( LoopbackClient.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  endpoint  endpoint of a loopback server
+     * @param  codec   determines how calls are passed to the server
+     */
+    LoopbackClient( URL endpoint, Codec codec ) {
+        endpoint_ = endpoint;
+        codec_ = codec;
+    }
+
+    public Object callAndWait( String method, List params )
+            throws IOException {
+        return codec_.call( getServer(), method, params );
+    }
+
+    /**
+     * The handler is invoked and the callback called from a worker thread,
+     * or on the calling thread if the pool is saturated.
+     */
+    public void callAsync( final String method, final List params,
+                           final SampXmlRpcCallback callback )
+            throws IOException {
+        final LoopbackServer server = getServer();
+        ResponseDrainer.getInstance().drain( new Runnable() {
+            public void run() {
+                Object result;
+                try {
+                    result = codec_.call( server, method, params );
+                }
+                catch ( IOException e ) {
+                    callback.failed( e );
+                    return;
+                }
+                callback.completed( result );
+            }
+        } );
+    }
+
+    public void callAndForget( final String method, final List params )
+            throws IOException {
+        final LoopbackServer server = getServer();
+        ResponseDrainer.getInstance().drain( new Runnable() {
+            public void run() {
+                try {
+                    codec_.call( server, method, params );
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING,
+                                 "Loopback call " + method + " failed", e );
+                }
+            }
+        } );
+    }
+
+    public Object preEncode( Object value ) throws IOException {
+        return codec_.preEncode( value );
+    }
+
+    /**
+     * Returns the server this client talks to.
+     *
+     * @return  server
+     * @throws  IOException  if there is no reachable server at the
+     *          endpoint
+     */
+    private LoopbackServer getServer() throws IOException {
+        LoopbackServer server = LoopbackServer.getServer( endpoint_ );
+        if ( server == null ) {
+            throw new IOException( "No loopback XML-RPC server at "
+                                 + endpoint_ );
+        }
+        return server;
+    }
+
+    /**
+     * Turns an exception thrown by a handler into the exception
+     * reported to the caller.
+     *
+     * @param  error  handler exception
+     * @return   exception for caller
+     */
+    private static IOException toFault( Throwable error ) {
+        return (IOException) new IOException( "XML-RPC Fault (1: "
+                                            + error + ")" )
+                            .initCause( error );
+    }
+
+    /**
+     * Returns an input stream reading from a byte array.
+     *
+     * @param  buf  buffer
+     * @return  input stream
+     */
+    private static InputStream toStream( byte[] buf ) {
+        return new ByteArrayInputStream( buf );
+    }
+
+    /**
+     * Serializes a value as the content of an XML-RPC call parameter.
+     *
+     * @param  value  SAMP-friendly value
+     * @return   UTF-8 encoded <code>value</code> element
+     */
+    private static byte[] encodeParam( Object value ) throws IOException {
+
+        // Call parameter values sit at level 3:
+        // methodCall/params/param/value.
+        return XmlWriter.encodeValue( value, XmlWriter.COMPACT, 3 );
+    }
+
+    /**
+     * Determines how a call is passed from a loopback client to
+     * a loopback server.
+     */
+    public static abstract class Codec {
+
+        /** Passes call parameters and results by reference. */
+        public static final Codec DIRECT = new Codec( "direct" ) {
+            Object call( LoopbackServer server, String method, List params )
+                    throws IOException {
+                try {
+                    return server.handleCall( method, params );
+                }
+                catch ( Throwable e ) {
+                    throw toFault( e );
+                }
+            }
+            Object preEncode( Object value ) {
+                return value;
+            }
+        };
+
+        /** Serializes and deserializes calls and results as XML-RPC. */
+        public static final Codec XML = new Codec( "xml" ) {
+            Object call( LoopbackServer server, String method, List params )
+                    throws IOException {
+                byte[] callBuf =
+                    InternalClient.writeCall( method, params,
+                                              XmlWriter.COMPACT );
+                XmlRpcDecoder decoder = XmlRpcDecoder.getInstance();
+                byte[] respBuf;
+                try {
+                    XmlRpcCall call = decoder.decodeCall( toStream( callBuf ) );
+                    Object result = server.handleCall( call.getMethodName(),
+                                                       call.getParams() );
+                    respBuf = InternalServer.getResultBytes( result );
+                }
+                catch ( Throwable e ) {
+                    respBuf = InternalServer.getFaultBytes( e );
+                }
+                try {
+                    return decoder.decodeResponse( toStream( respBuf ) );
+                }
+                catch ( SAXException e ) {
+                    throw (IOException)
+                          new IOException( "Trouble with XML parsing" )
+                         .initCause( e );
+                }
+                catch ( ParserConfigurationException e ) {
+                    throw (IOException)
+                          new IOException( "Trouble with XML parsing" )
+                         .initCause( e );
+                }
+            }
+            Object preEncode( Object value ) throws IOException {
+                return new EncodedValue( encodeParam( value ), null );
+            }
+        };
+
+        /** Serializes and deserializes calls and results as JSON-RPC. */
+        public static final Codec JSON = new Codec( "json" ) {
+            Object call( LoopbackServer server, String method, List params )
+                    throws IOException {
+                byte[] callBuf = JsonRpc.encodeCall( method, params );
+                byte[] respBuf;
+                String id = null;
+                try {
+                    JsonRpc.Call call =
+                        JsonRpc.decodeCall( toStream( callBuf ) );
+                    id = call.getId();
+                    Object result = server.handleCall( call.getMethodName(),
+                                                       call.getParams() );
+                    respBuf = JsonRpc.encodeResult( result, id );
+                }
+                catch ( Throwable e ) {
+                    respBuf = JsonRpc.encodeFault( e, id );
+                }
+                return JsonRpc.decodeResponse( toStream( respBuf ) );
+            }
+            Object preEncode( Object value ) throws IOException {
+                return new EncodedValue( encodeParam( value ),
+                                         JsonRpc.toJson( value ) );
+            }
+        };
+
+        private static final Codec[] CODECS = { DIRECT, XML, JSON, };
+
+        private final String name_;
+
+        /**
+         * Constructor.
+         *
+         * @param  name  codec name
+         */
+        private Codec( String name ) {
+            name_ = name;
+        }
+
+        /**
+         * Makes a call to a loopback server.
+         *
+         * @param  server  server
+         * @param  method  method name
+         * @param  params  parameter list
+         * @return   call result
+         * @throws  IOException  if the call failed
+         */
+        abstract Object call( LoopbackServer server, String method,
+                              List params )
+                throws IOException;
+
+        /**
+         * Prepares a value to be passed as a call parameter several times.
+         *
+         * @param  value  SAMP-friendly value
+         * @return   object which may be used in place of <code>value</code>
+         */
+        abstract Object preEncode( Object value ) throws IOException;
+
+        /**
+         * Returns the codec with a given name.
+         *
+         * @param  name  codec name (case-insensitive)
+         * @return  codec
+         * @throws  IllegalArgumentException  if there is no such codec
+         */
+        public static Codec getCodec( String name ) {
+            for ( int ic = 0; ic < CODECS.length; ic++ ) {
+                if ( CODECS[ ic ].name_.equalsIgnoreCase( name ) ) {
+                    return CODECS[ ic ];
+                }
+            }
+            throw new IllegalArgumentException( "Unknown loopback codec \""
+                                              + name + "\"" );
+        }
+
+        public String toString() {
+            return name_;
+        }
+    }
+}
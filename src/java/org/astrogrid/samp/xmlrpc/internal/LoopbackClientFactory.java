@@ -0,0 +1,83 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.logging.Logger;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+
+/**
+ * SampXmlRpcClientFactory implementation which supplies in-JVM
+ * clients for {@link LoopbackServer} endpoints.
+ * Clients for any other endpoint are {@link InternalClient}s,
+ * so that servers outside the JVM can still be reached.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class LoopbackClientFactory implements SampXmlRpcClientFactory {
+
+    private final LoopbackClient.Codec codec_;
+
+    /**
+     * Property which determines how loopback calls are passed to the
+     * server by default.  Values are
+     * <code>direct</code> (no serialization, the default),
+     * <code>xml</code> or <code>json</code>.
+     * The property name is {@value}.
+     */
+    public static final String CODEC_PROP = "jsamp.xmlrpc.loopback.codec";
+
+    private static final Logger logger_ =
+        Logger.getLogger( LoopbackClientFactory.class.getName() );
+
+    /**
+     * Constructs a factory with a given codec.
+     *
+     * @param  codec  determines how calls are passed to the server
+     */
+    public LoopbackClientFactory( LoopbackClient.Codec codec ) {
+        codec_ = codec;
+    }
+
+    /**
+     * Constructs a factory with the codec determined by the
+     * {@link #CODEC_PROP} system property.
+     */
+    public LoopbackClientFactory() {
+        this( getDefaultCodec() );
+    }
+
+    public SampXmlRpcClient createClient( URL endpoint ) throws IOException {
+        return LoopbackServer.isLoopbackUrl( endpoint )
+             ? (SampXmlRpcClient) new LoopbackClient( endpoint, codec_ )
+             : (SampXmlRpcClient) new InternalClient( endpoint );
+    }
+
+    /**
+     * Returns the codec determined by the {@link #CODEC_PROP}
+     * system property.
+     *
+     * @return  default codec
+     */
+    private static LoopbackClient.Codec getDefaultCodec() {
+        String name;
+        try {
+            name = System.getProperty( CODEC_PROP );
+        }
+        catch ( SecurityException e ) {
+            name = null;
+        }
+        if ( name == null ) {
+            return LoopbackClient.Codec.DIRECT;
+        }
+        try {
+            return LoopbackClient.Codec.getCodec( name );
+        }
+        catch ( IllegalArgumentException e ) {
+            logger_.warning( e.getMessage() + " - use "
+                           + LoopbackClient.Codec.DIRECT );
+            return LoopbackClient.Codec.DIRECT;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcServer;
+
+/**
+ * SampXmlRpcServer implementation which is only visible within the
+ * current JVM.
+ * No network connection is involved; calls are passed directly to the
+ * registered handlers by a {@link LoopbackClient}.
+ * The endpoint is an HTTP URL on a host which cannot be resolved,
+ * so it can be written to a lockfile and read back by other parts of
+ * the same JVM, but is useless elsewhere.
+ * The <code>reqInfo</code> argument passed to the
+ * {@link SampXmlRpcHandler#handleCall handleCall} method of registered
+ * handlers is null.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class LoopbackServer implements SampXmlRpcServer {
+
+    private final URL endpoint_;
+    private final List handlerList_;
+
+    /** Host name used for the endpoints of all loopback servers. */
+    public static final String LOOPBACK_HOST = "jsamp-loopback.invalid";
+
+    private static final Map serverMap_ = new HashMap();
+    private static int iServer_;
+
+    /**
+     * Constructor.
+     */
+    public LoopbackServer() {
+        int iserv;
+        synchronized ( serverMap_ ) {
+            iserv = ++iServer_;
+        }
+        try {
+            endpoint_ = new URL( "http://" + LOOPBACK_HOST + "/xmlrpc/"
+                               + iserv );
+        }
+        catch ( MalformedURLException e ) {
+            throw (Error) new AssertionError( "Bad URL" ).initCause( e );
+        }
+        handlerList_ = Collections.synchronizedList( new ArrayList() );
+    }
+
+    public URL getEndpoint() {
+        return endpoint_;
+    }
+
+    /**
+     * The server becomes reachable from loopback clients when the
+     * first handler is added.
+     */
+    public void addHandler( SampXmlRpcHandler handler ) {
+        synchronized ( handlerList_ ) {
+            if ( handlerList_.isEmpty() ) {
+                synchronized ( serverMap_ ) {
+                    serverMap_.put( endpoint_.toString(), this );
+                }
+            }
+            handlerList_.add( handler );
+        }
+    }
+
+    /**
+     * The server ceases to be reachable from loopback clients when the
+     * last handler is removed.
+     */
+    public void removeHandler( SampXmlRpcHandler handler ) {
+        synchronized ( handlerList_ ) {
+            handlerList_.remove( handler );
+            if ( handlerList_.isEmpty() ) {
+                synchronized ( serverMap_ ) {
+                    serverMap_.remove( endpoint_.toString() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes a call to the appropriate registered handler.
+     *
+     * @param  methodName  XML-RPC method name
+     * @param  paramList  list of SAMP-friendly parameters
+     * @return   SAMP-friendly result
+     * @throws  Exception  in case of error (equivalent to XML-RPC fault)
+     */
+    Object handleCall( String methodName, List paramList ) throws Exception {
+        SampXmlRpcHandler[] handlers =
+            (SampXmlRpcHandler[])
+            handlerList_.toArray( new SampXmlRpcHandler[ 0 ] );
+        for ( int ih = 0; ih < handlers.length; ih++ ) {
+            SampXmlRpcHandler handler = handlers[ ih ];
+            if ( handler.canHandleCall( methodName ) ) {
+                return handler.handleCall( methodName, paramList, null );
+            }
+        }
+        throw new XmlRpcFormatException( "Unknown XML-RPC method "
+                                       + methodName );
+    }
+
+    /**
+     * Indicates whether a URL is in the form used for loopback server
+     * endpoints.
+     *
+     * @param  endpoint  URL
+     * @return   true iff <code>endpoint</code> could refer to a
+     *           loopback server
+     */
+    public static boolean isLoopbackUrl( URL endpoint ) {
+        return LOOPBACK_HOST.equalsIgnoreCase( endpoint.getHost() );
+    }
+
+    /**
+     * Returns the currently reachable server with a given endpoint.
+     *
+     * @param  endpoint  endpoint URL
+     * @return   server, or null if there is none
+     */
+    static LoopbackServer getServer( URL endpoint ) {
+        synchronized ( serverMap_ ) {
+            return (LoopbackServer) serverMap_.get( endpoint.toString() );
+        }
+    }
+}
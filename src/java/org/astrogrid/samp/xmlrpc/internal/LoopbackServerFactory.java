@@ -0,0 +1,17 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import org.astrogrid.samp.xmlrpc.SampXmlRpcServer;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcServerFactory;
+
+/**
+ * SampXmlRpcServerFactory implementation which supplies servers
+ * reachable only from {@link LoopbackClient}s in the same JVM.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public class LoopbackServerFactory implements SampXmlRpcServerFactory {
+    public SampXmlRpcServer getServer() {
+        return new LoopbackServer();
+    }
+}
@@ -0,0 +1,182 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.ExecutionMode;
+
+/**
+ * Reads the responses to XML-RPC calls whose callers do not wait for them,
+ * using a bounded set of worker threads shared by all clients.
+ * Workers are started on demand up to a fixed maximum, and exit again
+ * if they have been idle for a while.
+ * If the workers are all busy and the queue of waiting responses is full,
+ * the response is read on the calling thread instead, so that a burst of
+ * calls slows the caller down rather than piling up unbounded work.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class ResponseDrainer {
+
+    private final String name_;
+    private final int maxThreads_;
+    private final int maxQueue_;
+    private final LinkedList queue_;
+    private int nThread_;
+    private int nIdle_;
+    private int iThread_;
+    private int nInFlight_;
+
+    /** Maximum number of concurrently active drain threads. */
+    public static final int MAX_THREADS = 16;
+
+    /** Maximum number of responses waiting for a drain thread. */
+    public static final int MAX_QUEUE = 1024;
+
+    /** Time in milliseconds an idle drain thread waits before exiting. */
+    private static final long IDLE_MILLIS = 60 * 1000;
+
+    private static ResponseDrainer instance_;
+    private static final Logger logger_ =
+        Logger.getLogger( ResponseDrainer.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  name  base name for worker threads
+     * @param  maxThreads  maximum number of concurrently active workers
+     * @param  maxQueue   maximum number of responses waiting for a worker
+     */
+    ResponseDrainer( String name, int maxThreads, int maxQueue ) {
+        name_ = name;
+        maxThreads_ = Math.max( 1, maxThreads );
+        maxQueue_ = Math.max( 0, maxQueue );
+        queue_ = new LinkedList();
+    }
+
+    /**
+     * Arranges for a response to be read.
+     * The task should handle its own I/O errors.
+     *
+     * @param  task  reads a response; runs on a worker thread,
+     *               or on the calling thread if the workers are saturated
+     */
+    public void drain( final Runnable task ) {
+        Runnable drainer = new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized ( ResponseDrainer.this ) {
+                        nInFlight_--;
+                    }
+                }
+            }
+        };
+        synchronized ( this ) {
+            nInFlight_++;
+            if ( queue_.size() < nIdle_ + ( maxThreads_ - nThread_ )
+                                        + maxQueue_ ) {
+                queue_.addLast( drainer );
+                if ( nIdle_ < queue_.size() && nThread_ < maxThreads_ ) {
+                    startWorker();
+                }
+                else {
+                    notify();
+                }
+                return;
+            }
+        }
+        drainer.run();
+    }
+
+    /**
+     * Returns the number of calls whose responses have not yet
+     * been completely read.
+     *
+     * @return  in-flight call count
+     */
+    public synchronized int getInFlightCount() {
+        return nInFlight_;
+    }
+
+    /**
+     * Returns the number of responses waiting for a worker thread.
+     *
+     * @return  queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return Math.max( 0, queue_.size() - nIdle_ );
+    }
+
+    /**
+     * Starts a new worker thread.
+     * Must be called while holding this object's lock.
+     */
+    private void startWorker() {
+        Runnable workLoop = new Runnable() {
+            public void run() {
+                for ( Runnable task; ( task = nextTask() ) != null; ) {
+                    try {
+                        task.run();
+                    }
+                    catch ( Throwable e ) {
+                        logger_.log( Level.WARNING, name_ + " task error",
+                                     e );
+                    }
+                }
+            }
+        };
+        Thread worker =
+            ExecutionMode.getDefault()
+                         .createThread( workLoop, name_ + "-" + ++iThread_,
+                                        true );
+        nThread_++;
+        worker.start();
+    }
+
+    /**
+     * Waits for and returns the next response to read.
+     * Null is returned if the calling worker should exit,
+     * in which case it is no longer counted as one of the workers.
+     *
+     * @return  next task, or null
+     */
+    private synchronized Runnable nextTask() {
+        long idleEnd = System.currentTimeMillis() + IDLE_MILLIS;
+        while ( queue_.isEmpty() ) {
+            long millis = idleEnd - System.currentTimeMillis();
+            if ( millis <= 0 ) {
+                nThread_--;
+                return null;
+            }
+            nIdle_++;
+            try {
+                wait( millis );
+            }
+            catch ( InterruptedException e ) {
+                nThread_--;
+                return null;
+            }
+            finally {
+                nIdle_--;
+            }
+        }
+        return (Runnable) queue_.removeFirst();
+    }
+
+    /**
+     * Returns the instance shared by all internal XML-RPC clients.
+     *
+     * @return  shared instance
+     */
+    public static synchronized ResponseDrainer getInstance() {
+        if ( instance_ == null ) {
+            instance_ = new ResponseDrainer( "XML-RPC Response Drain",
+                                             MAX_THREADS, MAX_QUEUE );
+        }
+        return instance_;
+    }
+}
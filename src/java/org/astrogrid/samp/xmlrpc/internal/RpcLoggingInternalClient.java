@@ -30,6 +30,21 @@ public class RpcLoggingInternalClient extends InternalClient {
         out_ = out;
     }
 
+    /**
+     * Returns the value unchanged, so that logged parameters are legible.
+     */
+    public Object preEncode( Object value ) {
+        return value;
+    }
+
+    /**
+     * Returns false, since calls are logged as they are serialized
+     * to XML-RPC.
+     */
+    protected boolean isJsonEnabled() {
+        return false;
+    }
+
     protected byte[] serializeCall( String method, List paramList )
             throws IOException {
         String paramString = SampUtils.formatObject( paramList, 2 );
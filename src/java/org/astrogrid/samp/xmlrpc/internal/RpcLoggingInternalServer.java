@@ -5,6 +5,7 @@ import java.io.PrintStream;
 import java.util.List;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.xmlrpc.DeferredResult;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
 
 /**
@@ -54,10 +55,13 @@ public class RpcLoggingInternalServer extends InternalServer {
             out_.println( paramString );
             out_.println();
         }
-        final Object result;
+        Object result;
         try {
             result = super.handleCall( handler, methodName, paramList,
                                        request );
+            if ( result instanceof DeferredResult ) {
+                result = ((DeferredResult) result).getResult();
+            }
         }
         catch ( Throwable e ) {
             synchronized ( out_ ) {
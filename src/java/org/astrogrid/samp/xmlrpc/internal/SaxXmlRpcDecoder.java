@@ -0,0 +1,557 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * XmlRpcDecoder implementation which builds SAMP values directly from
+ * SAX events, without constructing a DOM.
+ * Each element is represented while it is open by a frame on a stack,
+ * whose role (value, array, struct member, ...) is determined by its
+ * name and its parent's role; completed values are passed up to the
+ * parent frame when the element ends.
+ * The checks made, and the exception messages, follow those of
+ * {@link XmlUtils#parseSampValue} and {@link XmlRpcCall#createCall}.
+ *
+ * <p>SAX parsers are reused between documents parsed by the same thread.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+class SaxXmlRpcDecoder extends XmlRpcDecoder {
+
+    private final ThreadLocal readerLocal_;
+    private static SAXParserFactory spFact_;
+    private static final Logger logger_ =
+        Logger.getLogger( SaxXmlRpcDecoder.class.getName() );
+
+    private static final int R_VALUE = 1;
+    private static final int R_ARRAY = 2;
+    private static final int R_DATA = 3;
+    private static final int R_STRUCT = 4;
+    private static final int R_MEMBER = 5;
+    private static final int R_SCALAR = 6;
+    private static final int R_TEXT = 7;
+    private static final int R_IGNORE = 8;
+    private static final int R_METHOD_CALL = 9;
+    private static final int R_CALL_PARAMS = 10;
+    private static final int R_PARAM = 11;
+    private static final int R_METHOD_RESPONSE = 12;
+    private static final int R_RESPONSE_PARAMS = 13;
+    private static final int R_FAULT = 14;
+
+    /**
+     * Constructor.
+     */
+    SaxXmlRpcDecoder() {
+        readerLocal_ = new ThreadLocal();
+    }
+
+    public String getName() {
+        return "stream";
+    }
+
+    public XmlRpcCall decodeCall( InputStream in )
+            throws IOException, SAXException, ParserConfigurationException {
+        Handler handler = new Handler( "methodCall", R_METHOD_CALL );
+        parse( in, handler );
+        return (XmlRpcCall) handler.result_;
+    }
+
+    public Object decodeResponse( InputStream in )
+            throws IOException, SAXException, ParserConfigurationException {
+        Handler handler = new Handler( "methodResponse", R_METHOD_RESPONSE );
+        parse( in, handler );
+        if ( handler.isFault_ ) {
+            throw createFault( (Map) handler.result_ );
+        }
+        return handler.result_;
+    }
+
+    /**
+     * Parses a document from a stream.
+     * An XmlRpcFormatException raised by the handler is rethrown as such.
+     *
+     * @param  in  input stream
+     * @param  handler  handler
+     */
+    private void parse( InputStream in, Handler handler )
+            throws IOException, SAXException, ParserConfigurationException {
+        XMLReader reader = (XMLReader) readerLocal_.get();
+        if ( reader == null ) {
+            reader = createSaxParserFactory().newSAXParser().getXMLReader();
+            readerLocal_.set( reader );
+        }
+        reader.setContentHandler( handler );
+        reader.setErrorHandler( handler );
+        try {
+            reader.parse( new InputSource( in ) );
+        }
+        catch ( SAXException e ) {
+            Exception e1 = e.getException();
+            if ( e1 instanceof XmlRpcFormatException ) {
+                throw (XmlRpcFormatException) e1;
+            }
+            throw e;
+        }
+        finally {
+            reader.setContentHandler( null );
+            reader.setErrorHandler( null );
+        }
+    }
+
+    /**
+     * Returns a SAX parser factory with default characteristics.
+     *
+     * @return  factory
+     */
+    private static synchronized SAXParserFactory createSaxParserFactory() {
+        if ( spFact_ == null ) {
+            spFact_ = SAXParserFactory.newInstance();
+        }
+        return spFact_;
+    }
+
+    /**
+     * Returns a SAXException wrapping an XmlRpcFormatException.
+     *
+     * @param  msg  message
+     * @return  exception to throw
+     */
+    private static SAXException formatError( String msg ) {
+        return new SAXException( new XmlRpcFormatException( msg ) );
+    }
+
+    /**
+     * Records the state of an open element.
+     */
+    private static class Frame {
+        int role_;
+        String name_;
+        final StringBuffer text_ = new StringBuffer();
+        int nChild_;
+        String childName_;
+        Object value_;
+        List list_;
+        Map map_;
+        Object key_;
+        Object memberValue_;
+        Object methodName_;
+
+        /**
+         * Prepares this frame for a newly opened element.
+         *
+         * @param  role  role code
+         * @param  name  element name
+         */
+        void init( int role, String name ) {
+            role_ = role;
+            name_ = name;
+            text_.setLength( 0 );
+            nChild_ = 0;
+            childName_ = null;
+            value_ = null;
+            list_ = role == R_DATA || role == R_CALL_PARAMS
+                  ? new ArrayList()
+                  : null;
+            map_ = role == R_STRUCT ? new HashMap() : null;
+            key_ = null;
+            memberValue_ = null;
+            methodName_ = null;
+        }
+
+        /**
+         * Indicates whether character content is significant for
+         * this frame in its current state.
+         *
+         * @return  true iff text should be accumulated
+         */
+        boolean wantsText() {
+            return role_ == R_SCALAR || role_ == R_TEXT
+                || ( role_ == R_VALUE && nChild_ == 0 );
+        }
+    }
+
+    /**
+     * SAX handler which decodes an XML-RPC document.
+     */
+    private static class Handler extends DefaultHandler {
+
+        private final String rootName_;
+        private final int rootRole_;
+        private Frame[] stack_;
+        private int depth_;
+        Object result_;
+        boolean isFault_;
+
+        /**
+         * Constructor.
+         *
+         * @param  rootName  required name of the document element
+         * @param  rootRole  role code for the document element
+         */
+        Handler( String rootName, int rootRole ) {
+            rootName_ = rootName;
+            rootRole_ = rootRole;
+            stack_ = new Frame[ 16 ];
+        }
+
+        public void startElement( String uri, String localName,
+                                  String qName, Attributes atts )
+                throws SAXException {
+            final int role;
+            if ( depth_ == 0 ) {
+                if ( ! rootName_.equals( qName ) ) {
+                    throw formatError( "Unexpected child of #document: "
+                                     + qName + " is not " + rootName_ );
+                }
+                role = rootRole_;
+            }
+            else {
+                role = getChildRole( stack_[ depth_ - 1 ], qName );
+            }
+            if ( depth_ == stack_.length ) {
+                Frame[] stack = new Frame[ depth_ * 2 ];
+                System.arraycopy( stack_, 0, stack, 0, depth_ );
+                stack_ = stack;
+            }
+            if ( stack_[ depth_ ] == null ) {
+                stack_[ depth_ ] = new Frame();
+            }
+            stack_[ depth_++ ].init( role, qName );
+        }
+
+        public void characters( char[] ch, int start, int length ) {
+            Frame frame = stack_[ depth_ - 1 ];
+            if ( frame.wantsText() ) {
+                frame.text_.append( ch, start, length );
+            }
+        }
+
+        public void endElement( String uri, String localName, String qName )
+                throws SAXException {
+            Frame frame = stack_[ --depth_ ];
+            if ( depth_ > 0 ) {
+                Frame parent = stack_[ depth_ - 1 ];
+                if ( parent.role_ == R_FAULT ) {
+                    if ( frame.nChild_ == 0 ) {
+                        throw formatError( "No child element of "
+                                         + frame.name_ );
+                    }
+                    else if ( ! "struct".equals( frame.childName_ ) ) {
+                        throw formatError( "Unexpected child of "
+                                         + frame.name_ + ": "
+                                         + frame.childName_
+                                         + " is not struct" );
+                    }
+                }
+            }
+            Object value = getValue( frame );
+            if ( depth_ > 0 ) {
+                acceptChild( stack_[ depth_ - 1 ], frame, value );
+            }
+        }
+
+        /**
+         * Determines the role of a newly opened element, checking that
+         * it is permitted by its parent.
+         *
+         * @param  parent  frame of parent element
+         * @param  name   element name
+         * @return  role code for new element
+         */
+        private int getChildRole( Frame parent, String name )
+                throws SAXException {
+            switch ( parent.role_ ) {
+                case R_VALUE:
+                    if ( ++parent.nChild_ > 1 ) {
+                        throw formatError( "Multiple children of "
+                                         + parent.name_ );
+                    }
+                    parent.childName_ = name;
+                    parent.text_.setLength( 0 );
+
+                    // A fault value must be a struct; anything else is
+                    // skipped here and reported when the value ends.
+                    if ( depth_ > 1 && stack_[ depth_ - 2 ].role_ == R_FAULT
+                         && ! "struct".equals( name ) ) {
+                        return R_IGNORE;
+                    }
+                    return getValueRole( name );
+                case R_ARRAY:
+                    return getSoleChildRole( parent, name, "data", R_DATA );
+                case R_DATA:
+                    return R_VALUE;
+                case R_STRUCT:
+                    if ( ! "member".equals( name ) ) {
+                        throw formatError( "Non-<member> child of <struct>: "
+                                         + name );
+                    }
+                    return R_MEMBER;
+                case R_MEMBER:
+                    return "name".equals( name )
+                         ? R_TEXT
+                         : "value".equals( name ) ? R_VALUE : R_IGNORE;
+                case R_SCALAR:
+                case R_TEXT:
+                    throw formatError( "Unexpected node [" + name
+                                     + ": null] in " + parent.name_
+                                     + " content" );
+                case R_IGNORE:
+                    return R_IGNORE;
+                case R_METHOD_CALL:
+                    return "methodName".equals( name )
+                         ? R_TEXT
+                         : "params".equals( name ) ? R_CALL_PARAMS
+                                                   : R_IGNORE;
+                case R_CALL_PARAMS:
+                    if ( ! "param".equals( name ) ) {
+                        throw formatError( "Non-param child of params" );
+                    }
+                    return R_PARAM;
+                case R_PARAM:
+                    return getSoleChildRole( parent, name, "value", R_VALUE );
+                case R_METHOD_RESPONSE:
+                    if ( ++parent.nChild_ > 1 ) {
+                        throw formatError( "Multiple children of "
+                                         + parent.name_ );
+                    }
+                    parent.childName_ = name;
+                    if ( "fault".equals( name ) ) {
+                        return R_FAULT;
+                    }
+                    else if ( "params".equals( name ) ) {
+                        return R_RESPONSE_PARAMS;
+                    }
+                    else {
+                        throw formatError( "Not <fault> or <params>?" );
+                    }
+                case R_RESPONSE_PARAMS:
+                    return getSoleChildRole( parent, name, "param", R_PARAM );
+                case R_FAULT:
+                    return getSoleChildRole( parent, name, "value", R_VALUE );
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        /**
+         * Returns the role of an element which is the sole child of
+         * a parent which permits only one child with a given name.
+         *
+         * @param  parent  parent frame
+         * @param  name  element name
+         * @param  reqName  required element name
+         * @param  role   role code to return
+         * @return  <code>role</code>
+         */
+        private int getSoleChildRole( Frame parent, String name,
+                                      String reqName, int role )
+                throws SAXException {
+            if ( ++parent.nChild_ > 1 ) {
+                throw formatError( "Multiple children of " + parent.name_ );
+            }
+            if ( ! reqName.equals( name ) ) {
+                throw formatError( "Unexpected child of " + parent.name_
+                                 + ": " + name + " is not " + reqName );
+            }
+            return role;
+        }
+
+        /**
+         * Returns the role of an element which is the child of a value.
+         *
+         * @param  name  element name
+         * @return  role code
+         */
+        private int getValueRole( String name ) throws SAXException {
+            if ( "array".equals( name ) ) {
+                return R_ARRAY;
+            }
+            else if ( "struct".equals( name ) ) {
+                return R_STRUCT;
+            }
+            else if ( "string".equals( name ) ||
+                      "i4".equals( name ) || "int".equals( name ) ||
+                      "boolean".equals( name ) || "double".equals( name ) ) {
+                return R_SCALAR;
+            }
+            else if ( "dateTime.iso8601".equals( name ) ||
+                      "base64".equals( name ) ) {
+                throw formatError( name + " not used in SAMP" );
+            }
+            else {
+                throw formatError( "Unknown XML-RPC element "
+                                 + "<" + name + ">" );
+            }
+        }
+
+        /**
+         * Returns the value represented by a completed element.
+         *
+         * @param  frame  frame of element which has just ended
+         * @return  value, or null if it does not represent a value
+         */
+        private Object getValue( Frame frame ) throws SAXException {
+            switch ( frame.role_ ) {
+                case R_VALUE:
+                    return frame.nChild_ == 0 ? frame.text_.toString()
+                                              : frame.value_;
+                case R_ARRAY:
+                case R_PARAM:
+                case R_RESPONSE_PARAMS:
+                case R_FAULT:
+                    if ( frame.nChild_ == 0 ) {
+                        throw formatError( "No child element of "
+                                         + frame.name_ );
+                    }
+                    return frame.value_;
+                case R_DATA:
+                case R_CALL_PARAMS:
+                    return frame.list_;
+                case R_STRUCT:
+                    return frame.map_;
+                case R_MEMBER:
+                    if ( frame.key_ == null ) {
+                        throw formatError( "<name> missing"
+                                         + " in struct member" );
+                    }
+                    if ( frame.memberValue_ == null ) {
+                        throw formatError( "<value> missing"
+                                         + " in struct member" );
+                    }
+                    return null;
+                case R_SCALAR:
+                    return parseScalar( frame.name_, frame.text_.toString() );
+                case R_TEXT:
+                    return frame.text_.toString();
+                case R_IGNORE:
+                    return null;
+                case R_METHOD_CALL:
+                    if ( frame.methodName_ == null ) {
+                        throw formatError( "No methodName element" );
+                    }
+                    result_ =
+                        new XmlRpcCall( (String) frame.methodName_,
+                                        frame.list_ == null ? new ArrayList()
+                                                            : frame.list_ );
+                    return null;
+                case R_METHOD_RESPONSE:
+                    if ( frame.nChild_ == 0 ) {
+                        throw formatError( "No child element of "
+                                         + frame.name_ );
+                    }
+                    result_ = frame.value_;
+                    isFault_ = "fault".equals( frame.childName_ );
+                    return null;
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        /**
+         * Passes the value of a completed element to its parent.
+         *
+         * @param  parent  parent frame
+         * @param  child   frame of completed child element
+         * @param  value   value of child
+         */
+        private void acceptChild( Frame parent, Frame child, Object value ) {
+            switch ( parent.role_ ) {
+                case R_VALUE:
+                case R_ARRAY:
+                case R_PARAM:
+                case R_RESPONSE_PARAMS:
+                case R_FAULT:
+                case R_METHOD_RESPONSE:
+                    parent.value_ = value;
+                    break;
+                case R_DATA:
+                case R_CALL_PARAMS:
+                    parent.list_.add( value );
+                    break;
+                case R_STRUCT:
+                    Object key = child.key_;
+                    if ( parent.map_.containsKey( key ) ) {
+                        logger_.warning( "Re-used key " + key + " in map" );
+                    }
+                    parent.map_.put( key, child.memberValue_ );
+                    break;
+                case R_MEMBER:
+                    if ( child.role_ == R_TEXT ) {
+                        parent.key_ = value;
+                    }
+                    else if ( child.role_ == R_VALUE ) {
+                        parent.memberValue_ = value;
+                    }
+                    break;
+                case R_METHOD_CALL:
+                    if ( child.role_ == R_TEXT ) {
+                        parent.methodName_ = value;
+                    }
+                    else if ( child.role_ == R_CALL_PARAMS ) {
+                        parent.list_ = (List) value;
+                    }
+                    break;
+                case R_IGNORE:
+                    break;
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        /**
+         * Parses the text content of a scalar-valued element.
+         *
+         * @param  name  element name
+         * @param  text  text content
+         * @return   value
+         */
+        private static Object parseScalar( String name, String text )
+                throws SAXException {
+            if ( "string".equals( name ) ) {
+                return text;
+            }
+            else if ( "i4".equals( name ) || "int".equals( name ) ) {
+                try {
+                    return Integer.valueOf( text );
+                }
+                catch ( NumberFormatException e ) {
+                    throw formatError( "Bad int " + text );
+                }
+            }
+            else if ( "boolean".equals( name ) ) {
+                if ( "0".equals( text ) ) {
+                    return Boolean.FALSE;
+                }
+                else if ( "1".equals( text ) ) {
+                    return Boolean.TRUE;
+                }
+                else {
+                    throw formatError( "Bad boolean " + text );
+                }
+            }
+            else {
+                assert "double".equals( name );
+                try {
+                    return Double.valueOf( text );
+                }
+                catch ( NumberFormatException e ) {
+                    throw formatError( "Bad double " + text );
+                }
+            }
+        }
+    }
+}
@@ -42,6 +42,20 @@ public class XmlLoggingInternalClient extends InternalClient {
         return buf;
     }
 
+    /**
+     * Returns an indent of 2 so that logged documents are readable.
+     */
+    protected int getXmlIndent() {
+        return 2;
+    }
+
+    /**
+     * Returns false, so that only XML-RPC documents are logged.
+     */
+    protected boolean isJsonEnabled() {
+        return false;
+    }
+
     protected Object deserializeResponse( InputStream in )
             throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -54,7 +54,37 @@ public class XmlLoggingInternalServer extends InternalServer {
             }
             out_.println();
         }
-        return new LoggingResponse( super.getXmlRpcResponse( request ) );
+        HttpServer.Response response = super.getXmlRpcResponse( request );
+        if ( response instanceof HttpServer.DeferredResponse ) {
+            final HttpServer.DeferredResponse base =
+                (HttpServer.DeferredResponse) response;
+            final HttpServer.DeferredResponse logged =
+                new HttpServer.DeferredResponse();
+            base.addCompletionListener( new Runnable() {
+                public void run() {
+                    logged.complete( new LoggingResponse( base
+                                                         .getResponse() ) );
+                }
+            } );
+            return logged;
+        }
+        else {
+            return new LoggingResponse( response );
+        }
+    }
+
+    /**
+     * Returns an indent of 2 so that logged documents are readable.
+     */
+    protected int getXmlIndent() {
+        return 2;
+    }
+
+    /**
+     * Returns false, so that clients keep sending XML-RPC for logging.
+     */
+    protected boolean isJsonAccepted() {
+        return false;
     }
 
     private class LoggingResponse extends HttpServer.Response {
@@ -0,0 +1,174 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * Turns XML-RPC <code>methodCall</code> and <code>methodResponse</code>
+ * documents into SAMP-friendly Java objects.
+ * Two implementations are provided:
+ * {@link #DOM}, which builds a W3C DOM and then walks it,
+ * and {@link #STREAM}, which builds the values directly from
+ * SAX events in a single pass over the input.
+ * They have the same semantics, and report non-compliant documents
+ * in the same way, with an <code>XmlRpcFormatException</code>.
+ *
+ * @author   agent
+ * @since    15 Oct 2026
+ */
+public abstract class XmlRpcDecoder {
+
+    /** Decoder which parses documents to a DOM. */
+    public static final XmlRpcDecoder DOM = new DomDecoder();
+
+    /** Decoder which streams documents through a SAX parser. */
+    public static final XmlRpcDecoder STREAM = new SaxXmlRpcDecoder();
+
+    /**
+     * Name of the system property which selects the default decoder
+     * ({@value}).  It may be "<code>dom</code>" or "<code>stream</code>";
+     * the default is <code>dom</code>.
+     */
+    public static final String DECODER_PROP = "jsamp.xmlrpc.decoder";
+
+    private static XmlRpcDecoder defaultInstance_;
+    private static final Logger logger_ =
+        Logger.getLogger( XmlRpcDecoder.class.getName() );
+
+    /**
+     * Returns the name of this decoder.
+     *
+     * @return  name
+     */
+    public abstract String getName();
+
+    /**
+     * Decodes an XML-RPC <code>methodCall</code> document.
+     *
+     * @param  in  input stream containing call document
+     * @return  call
+     * @throws  IOException  in case of I/O trouble, or an
+     *          <code>XmlRpcFormatException</code> if the document does not
+     *          have the expected form
+     */
+    public abstract XmlRpcCall decodeCall( InputStream in )
+            throws IOException, SAXException, ParserConfigurationException;
+
+    /**
+     * Decodes an XML-RPC <code>methodResponse</code> document.
+     * If the document represents a fault, an IOException describing
+     * the fault is thrown.
+     *
+     * @param  in  input stream containing response document
+     * @return  SAMP-friendly object contained in the response
+     * @throws  IOException  in case of I/O trouble, an
+     *          <code>XmlRpcFormatException</code> if the document does not
+     *          have the expected form, or an exception representing
+     *          an XML-RPC fault
+     */
+    public abstract Object decodeResponse( InputStream in )
+            throws IOException, SAXException, ParserConfigurationException;
+
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Returns the default decoder.
+     * This is determined by the {@link #DECODER_PROP} system property.
+     *
+     * @return  default instance
+     */
+    public static XmlRpcDecoder getInstance() {
+        if ( defaultInstance_ == null ) {
+            String name;
+            try {
+                name = System.getProperty( DECODER_PROP );
+            }
+            catch ( SecurityException e ) {
+                name = null;
+            }
+            XmlRpcDecoder decoder = DOM;
+            if ( STREAM.getName().equalsIgnoreCase( name ) ) {
+                decoder = STREAM;
+            }
+            else if ( name != null &&
+                      ! DOM.getName().equalsIgnoreCase( name ) ) {
+                logger_.warning( "Unknown " + DECODER_PROP + " value \""
+                               + name + "\" - use " + DOM );
+            }
+            defaultInstance_ = decoder;
+        }
+        return defaultInstance_;
+    }
+
+    /**
+     * Returns an exception representing an XML-RPC fault.
+     *
+     * @param  faultMap  content of the fault <code>value</code> element
+     * @return  exception
+     */
+    static IOException createFault( Map faultMap ) {
+        Object fcode = faultMap.get( "faultCode" );
+        Object fmsg = faultMap.get( "faultString" );
+        int code = fcode instanceof Integer
+                 ? ((Integer) fcode).intValue()
+                 : -9999;
+        return new XmlRpcFault( code, String.valueOf( fmsg ) );
+    }
+
+    /**
+     * Decoder implementation which uses a DOM.
+     */
+    private static class DomDecoder extends XmlRpcDecoder {
+
+        public String getName() {
+            return "dom";
+        }
+
+        public XmlRpcCall decodeCall( InputStream in )
+                throws IOException, SAXException,
+                       ParserConfigurationException {
+            Document doc = XmlUtils.createDocumentBuilder().parse( in );
+            return XmlRpcCall.createCall( doc );
+        }
+
+        public Object decodeResponse( InputStream in )
+                throws IOException, SAXException,
+                       ParserConfigurationException {
+            Document doc = XmlUtils.createDocumentBuilder().parse( in );
+            Element top =
+                XmlUtils.getChild( XmlUtils.getChild( doc, "methodResponse" ) );
+            String topName = top.getTagName();
+            if ( "fault".equals( topName ) ) {
+                Element value = XmlUtils.getChild( top, "value" );
+                XmlUtils.getChild( value, "struct" );
+                throw createFault( (Map) XmlUtils.parseSampValue( value ) );
+            }
+            else if ( "params".equals( topName ) ) {
+                Element value =
+                    XmlUtils.getChild( XmlUtils.getChild( top, "param" ),
+                                       "value" );
+                return XmlUtils.parseSampValue( value );
+            }
+            else {
+                throw new XmlRpcFormatException( "Not <fault> or <params>?" );
+            }
+        }
+    }
+
+    /**
+     * IOException representing an incoming XML-RPC fault.
+     */
+    private static class XmlRpcFault extends IOException {
+        public XmlRpcFault( int code, String msg ) {
+            super( "XML-RPC Fault (" + code + ": " + msg + ")" );
+        }
+    }
+}
@@ -65,11 +65,11 @@ public class XmlUtils {
         }
         else if ( els.length == 0 ) {
             throw new XmlRpcFormatException( "No child element of "
-                                           + ((Element) parent).getTagName() );
+                                           + parent.getNodeName() );
         }
         else {
             throw new XmlRpcFormatException( "Multiple children of "
-                                           + ((Element) parent).getTagName() );
+                                           + parent.getNodeName() );
         }
     }
 
@@ -88,7 +88,7 @@ public class XmlUtils {
         Element child = getChild( parent );
         if ( ! tagName.equals( child.getTagName() ) ) {
             throw new XmlRpcFormatException( "Unexpected child of "
-                                           + ((Element) parent).getTagName()
+                                           + parent.getNodeName()
                                            + ": " + child.getTagName()
                                            + " is not " + tagName );
         }
@@ -1,10 +1,9 @@
 package org.astrogrid.samp.xmlrpc.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.BufferedWriter;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -12,38 +11,82 @@ import java.util.Map;
 /**
  * Utility class for writing XML.
  *
+ * <p>Output is UTF-8 encoded directly into an internal byte buffer,
+ * rather than going through a character Writer.
+ * The tags used by XML-RPC are held pre-encoded, and text
+ * consisting only of ASCII characters which need no escaping
+ * is copied straight into the buffer.
+ * If the indent is {@link #COMPACT}, no indentation or newlines are
+ * written, which gives the smallest output for the wire.
+ *
  * @author   Mark Taylor
  * @since    26 Aug 2008
  */
 class XmlWriter {
-    private final Writer out_;
+    private final OutputStream out_;
     private final int indent_;
+    private final byte[] buf_;
+    private int count_;
     private int iLevel_;
     private static final String ENCODING = "UTF-8";
 
+    /** Indent value which requests output with no added whitespace. */
+    public static final int COMPACT = -1;
+
+    private static final int BUFSIZ = 4096;
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private static final Map startTags_ = new HashMap();
+    private static final Map endTags_ = new HashMap();
+    private static final ThreadLocal scratchLocal_ = new ThreadLocal();
+    static {
+        String[] tags = new String[] {
+            "methodCall", "methodName", "methodResponse", "params", "param",
+            "fault", "value", "string", "int", "array", "data",
+            "struct", "member", "name",
+        };
+        for ( int i = 0; i < tags.length; i++ ) {
+            String tag = tags[ i ];
+            startTags_.put( tag, toAscii( "<" + tag + ">" ) );
+            endTags_.put( tag, toAscii( "</" + tag + ">" ) );
+        }
+    }
+
     /**
      * Constructor.
      *
      * @param   out  destination stream
-     * @param   indent  number of spaces to indent each element level
+     * @param   indent  number of spaces to indent each element level,
+     *                  or {@link #COMPACT}
      */
     public XmlWriter( OutputStream out, int indent ) throws IOException {
-        out_ = new BufferedWriter( new OutputStreamWriter( out, ENCODING ) );
-        indent_ = indent;
+        this( out, indent, 0 );
         literal( "<?xml version='1.0' encoding='" + ENCODING + "'?>" );
         newline();
     }
 
-    /** 
+    /**
+     * Constructs a writer for a document fragment, with no XML declaration.
+     *
+     * @param   out  destination stream
+     * @param   indent  number of spaces to indent each element level,
+     *                  or {@link #COMPACT}
+     * @param   level  initial element level
+     */
+    private XmlWriter( OutputStream out, int indent, int level ) {
+        out_ = out;
+        indent_ = indent;
+        buf_ = new byte[ BUFSIZ ];
+        iLevel_ = level;
+    }
+
+    /**
      * Start an element.
-     * 
+     *
      * @param  element  tag name
      */
     public void start( String element ) throws IOException {
         pad( iLevel_++ );
-        out_.write( '<' );
-        out_.write( element );
-        out_.write( '>' );
+        startTag( element );
         newline();
     }
 
@@ -54,9 +97,7 @@ class XmlWriter {
      */
     public void end( String element ) throws IOException {
         pad( --iLevel_ );
-        out_.write( "</" );
-        out_.write( element );
-        out_.write( '>' );
+        endTag( element );
         newline();
     }
 
@@ -68,13 +109,9 @@ class XmlWriter {
      */
     public void inline( String element, String content ) throws IOException {
         pad( iLevel_ );
-        out_.write( '<' );
-        out_.write( element );
-        out_.write( '>' );
+        startTag( element );
         text( content );
-        out_.write( "</" );
-        out_.write( element );
-        out_.write( '>' );
+        endTag( element );
         newline();
     }
 
@@ -86,20 +123,51 @@ class XmlWriter {
      */
     public void text( String txt ) throws IOException {
         int leng = txt.length();
-        for ( int i = 0; i < leng; i++ ) {
+
+        // Fast path: copy ASCII characters which need no escaping
+        // straight into the buffer.
+        int i = 0;
+        while ( i < leng ) {
+            if ( count_ == buf_.length ) {
+                drain();
+            }
+            int n = Math.min( leng - i, buf_.length - count_ );
+            int j = 0;
+            for ( ; j < n; j++ ) {
+                char c = txt.charAt( i + j );
+                if ( c >= 0x80 || c == '&' || c == '<' || c == '>' ) {
+                    break;
+                }
+                buf_[ count_ + j ] = (byte) c;
+            }
+            count_ += j;
+            i += j;
+            if ( j < n ) {
+                break;
+            }
+        }
+
+        // Slow path for the rest.
+        for ( ; i < leng; i++ ) {
             char c = txt.charAt( i );
             switch ( c ) {
                 case '&':
-                    out_.write( "&amp;" );
+                    writeAscii( "&amp;" );
                     break;
                 case '<':
-                    out_.write( "&lt;" );
+                    writeAscii( "&lt;" );
                     break;
                 case '>':
-                    out_.write( "&gt;" );
+                    writeAscii( "&gt;" );
                     break;
                 default:
-                    out_.write( c );
+                    if ( isHighSurrogate( c ) && i + 1 < leng &&
+                         isLowSurrogate( txt.charAt( i + 1 ) ) ) {
+                        writeSurrogatePair( c, txt.charAt( ++i ) );
+                    }
+                    else {
+                        writeChar( c );
+                    }
             }
         }
     }
@@ -110,14 +178,27 @@ class XmlWriter {
      * @param  txt  raw text to output
      */
     public void literal( String txt ) throws IOException {
-        out_.write( txt );
+        int leng = txt.length();
+        for ( int i = 0; i < leng; i++ ) {
+            char c = txt.charAt( i );
+            if ( isHighSurrogate( c ) && i + 1 < leng &&
+                 isLowSurrogate( txt.charAt( i + 1 ) ) ) {
+                writeSurrogatePair( c, txt.charAt( ++i ) );
+            }
+            else {
+                writeChar( c );
+            }
+        }
     }
 
     /**
      * Writes a new line character.
+     * Has no effect in compact mode.
      */
     public void newline() throws IOException {
-        out_.write( '\n' );
+        if ( indent_ >= 0 ) {
+            writeByte( '\n' );
+        }
     }
 
     /**
@@ -126,7 +207,10 @@ class XmlWriter {
      * @param  value  object to serialize; must be a string, list or map
      */
     public void sampValue( Object value ) throws IOException {
-        if ( value instanceof String ) {
+        if ( value instanceof EncodedValue ) {
+            writeBytes( ((EncodedValue) value).getBytes() );
+        }
+        else if ( value instanceof String ) {
             inline( "value", (String) value );
         }
         else if ( value instanceof List ) {
@@ -163,13 +247,80 @@ class XmlWriter {
         }
     }
 
+    /**
+     * Flushes any buffered output to the stream, without closing it.
+     */
+    public void flush() throws IOException {
+        drain();
+        out_.flush();
+    }
+
     /**
      * Closes the stream.
      */
     public void close() throws IOException {
+        drain();
         out_.close();
     }
 
+    /**
+     * Serializes a SAMP-friendly object as an XML-RPC <code>value</code>
+     * element, for use in an {@link EncodedValue}.
+     * The result includes any padding and newlines required
+     * to fit in at the given element level.
+     *
+     * @param  value  object to serialize; must be a string, list or map
+     * @param  indent  number of spaces to indent each element level,
+     *                 or {@link #COMPACT}
+     * @param  level  element level at which the value will be written
+     * @return  UTF-8 encoded <code>value</code> element
+     */
+    static byte[] encodeValue( Object value, int indent, int level )
+            throws IOException {
+        ByteArrayOutputStream bout = getScratchBuffer();
+        XmlWriter xout = new XmlWriter( bout, indent, level );
+        xout.sampValue( value );
+        xout.flush();
+        return releaseScratchBuffer( bout );
+    }
+
+    /**
+     * Returns an empty byte array output stream which may be used
+     * as the destination of a document to be turned into a byte array.
+     * The same stream is returned on each call from a given thread,
+     * so that its buffer need not be grown afresh for every document;
+     * it must be passed to {@link #releaseScratchBuffer} when done with.
+     *
+     * @return  empty output stream for use by the current thread
+     */
+    static ByteArrayOutputStream getScratchBuffer() {
+        ByteArrayOutputStream bout =
+            (ByteArrayOutputStream) scratchLocal_.get();
+        if ( bout == null ) {
+            bout = new ByteArrayOutputStream( BUFSIZ );
+            scratchLocal_.set( bout );
+        }
+        bout.reset();
+        return bout;
+    }
+
+    /**
+     * Returns the content of a stream acquired from
+     * {@link #getScratchBuffer}, and makes it available for reuse.
+     * Streams which have grown unusually large are not retained.
+     *
+     * @param  bout  scratch stream
+     * @return  copy of the bytes written to <code>bout</code>
+     */
+    static byte[] releaseScratchBuffer( ByteArrayOutputStream bout ) {
+        byte[] bytes = bout.toByteArray();
+        bout.reset();
+        if ( bytes.length > MAX_RETAINED_BUFFER ) {
+            scratchLocal_.set( null );
+        }
+        return bytes;
+    }
+
     /**
      * Outputs start-of-line padding for a given level of indentation.
      *
@@ -178,7 +329,168 @@ class XmlWriter {
     private void pad( int level ) throws IOException {
         int npad = level * indent_;
         for ( int i = 0; i < npad; i++ ) {
-            out_.write( ' ' );
+            writeByte( ' ' );
+        }
+    }
+
+    /**
+     * Writes a start tag.
+     *
+     * @param  element  tag name
+     */
+    private void startTag( String element ) throws IOException {
+        byte[] tag = (byte[]) startTags_.get( element );
+        if ( tag != null ) {
+            writeBytes( tag );
+        }
+        else {
+            writeByte( '<' );
+            literal( element );
+            writeByte( '>' );
+        }
+    }
+
+    /**
+     * Writes an end tag.
+     *
+     * @param  element  tag name
+     */
+    private void endTag( String element ) throws IOException {
+        byte[] tag = (byte[]) endTags_.get( element );
+        if ( tag != null ) {
+            writeBytes( tag );
+        }
+        else {
+            writeByte( '<' );
+            writeByte( '/' );
+            literal( element );
+            writeByte( '>' );
+        }
+    }
+
+    /**
+     * Writes a string known to contain only ASCII characters.
+     *
+     * @param  txt  ASCII text
+     */
+    private void writeAscii( String txt ) throws IOException {
+        int leng = txt.length();
+        for ( int i = 0; i < leng; i++ ) {
+            writeByte( txt.charAt( i ) );
+        }
+    }
+
+    /**
+     * Writes the UTF-8 encoding of a character from the Basic
+     * Multilingual Plane.  Unpaired surrogates are written as '?',
+     * as an OutputStreamWriter would.
+     *
+     * @param  c  character
+     */
+    private void writeChar( char c ) throws IOException {
+        if ( c < 0x80 ) {
+            writeByte( c );
+        }
+        else if ( c < 0x800 ) {
+            writeByte( 0xc0 | ( c >> 6 ) );
+            writeByte( 0x80 | ( c & 0x3f ) );
+        }
+        else if ( isHighSurrogate( c ) || isLowSurrogate( c ) ) {
+            writeByte( '?' );
+        }
+        else {
+            writeByte( 0xe0 | ( c >> 12 ) );
+            writeByte( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+            writeByte( 0x80 | ( c & 0x3f ) );
+        }
+    }
+
+    /**
+     * Writes the UTF-8 encoding of a supplementary character given
+     * as a surrogate pair.
+     *
+     * @param  hi  high surrogate
+     * @param  lo  low surrogate
+     */
+    private void writeSurrogatePair( char hi, char lo ) throws IOException {
+        int cp = 0x10000 + ( ( hi - 0xd800 ) << 10 ) + ( lo - 0xdc00 );
+        writeByte( 0xf0 | ( cp >> 18 ) );
+        writeByte( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+        writeByte( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+        writeByte( 0x80 | ( cp & 0x3f ) );
+    }
+
+    /**
+     * Writes a single byte to the buffer.
+     *
+     * @param  b  byte value
+     */
+    private void writeByte( int b ) throws IOException {
+        if ( count_ == buf_.length ) {
+            drain();
+        }
+        buf_[ count_++ ] = (byte) b;
+    }
+
+    /**
+     * Writes an array of bytes to the buffer.
+     *
+     * @param  bytes  byte array
+     */
+    private void writeBytes( byte[] bytes ) throws IOException {
+        if ( bytes.length > buf_.length - count_ ) {
+            drain();
+        }
+        if ( bytes.length > buf_.length ) {
+            out_.write( bytes );
+        }
+        else {
+            System.arraycopy( bytes, 0, buf_, count_, bytes.length );
+            count_ += bytes.length;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the output stream.
+     */
+    private void drain() throws IOException {
+        if ( count_ > 0 ) {
+            out_.write( buf_, 0, count_ );
+            count_ = 0;
+        }
+    }
+
+    /**
+     * Indicates whether a character is a UTF-16 high surrogate.
+     *
+     * @param  c  character
+     * @return  true iff <code>c</code> is a high surrogate
+     */
+    private static boolean isHighSurrogate( char c ) {
+        return c >= 0xd800 && c <= 0xdbff;
+    }
+
+    /**
+     * Indicates whether a character is a UTF-16 low surrogate.
+     *
+     * @param  c  character
+     * @return  true iff <code>c</code> is a low surrogate
+     */
+    private static boolean isLowSurrogate( char c ) {
+        return c >= 0xdc00 && c <= 0xdfff;
+    }
+
+    /**
+     * Encodes an ASCII string as bytes.
+     *
+     * @param  txt  ASCII text
+     * @return  byte array
+     */
+    private static byte[] toAscii( String txt ) {
+        byte[] bytes = new byte[ txt.length() ];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            bytes[ i ] = (byte) txt.charAt( i );
         }
+        return bytes;
     }
 }
@@ -90,10 +90,15 @@ public abstract class TestProfile implements ClientProfile {
             XmlRpcKit.INTERNAL.getClientFactory();
         SampXmlRpcServerFactory iServ =
             XmlRpcKit.INTERNAL.getServerFactory();
+        SampXmlRpcClientFactory lClient =
+            XmlRpcKit.LOOPBACK.getClientFactory();
+        SampXmlRpcServerFactory lServ =
+            XmlRpcKit.LOOPBACK.getServerFactory();
         return new TestProfile[] {
             new StandardTestProfile( random, aClient, aServ, iClient, iServ ),
             new StandardTestProfile( random, iClient, iServ, aClient, aServ ),
             new StandardTestProfile( random, iClient, iServ, iClient, iServ ),
+            new StandardTestProfile( random, lClient, lServ, lClient, lServ ),
             new WebTestProfile( random, true, null ),
         };
     }
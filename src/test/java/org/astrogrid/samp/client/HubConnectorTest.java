@@ -233,6 +233,9 @@ public class HubConnectorTest extends TestCase {
         assertTrue( th4.getResponse( id2 ).isOK() );
         assertTrue( th5.getResponse( id2 ).isOK() );
 
+        // Let the timed-out calls finish before the hub goes away,
+        // so that their replies are not sent to a stopped hub.
+        echo.waitTillIdle();
         profile.stopHub();
     }
 
@@ -260,9 +263,26 @@ public class HubConnectorTest extends TestCase {
     }
 
     private static class TestMessageHandler extends AbstractMessageHandler {
+        private int nActive_;
         TestMessageHandler() {
             super( ECHO_MTYPE );
         }
+        public void receiveCall( HubConnection conn, String senderId,
+                                 String msgId, Message msg )
+                throws SampException {
+            synchronized ( this ) {
+                nActive_++;
+            }
+            try {
+                super.receiveCall( conn, senderId, msgId, msg );
+            }
+            finally {
+                synchronized ( this ) {
+                    nActive_--;
+                    notifyAll();
+                }
+            }
+        }
         public Map processCall( HubConnection conn, String senderId,
                                 Message msg ) {
             String waitParam = (String) msg.getParam( "waitMillis" );
@@ -272,6 +292,16 @@ public class HubConnectorTest extends TestCase {
             }
             return msg.getParams();
         }
+        synchronized void waitTillIdle() {
+            while ( nActive_ > 0 ) {
+                try {
+                    wait();
+                }
+                catch ( InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+        }
     }
 
     private static class TestResultHandler implements ResultHandler {
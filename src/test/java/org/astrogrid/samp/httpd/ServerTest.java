@@ -1,14 +1,22 @@
 package org.astrogrid.samp.httpd;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import junit.framework.TestCase;
+import org.astrogrid.samp.ExecutionMode;
 
 public class ServerTest extends TestCase {
 
@@ -77,4 +85,771 @@ public class ServerTest extends TestCase {
         assertEquals( "CC, DD, EE", HttpServer.getHeader( hdrMap, "c" ) );
         assertEquals( "CC, DD, EE", HttpServer.getHeader( hdrMap, "C" ) );
     }
+
+    public void testRequestParser() throws IOException {
+        String hdr = "\r\nPOST /x%20y?q=1 HTTP/1.1\r\n"
+                   + "Host: localhost\r\n"
+                   + "X-Long: one\r\n"
+                   + "  two  \r\n"
+                   + "Junk line\r\n"
+                   + "content-length: 3\r\n"
+                   + "\r\n";
+        byte[] hbuf = ( hdr + "abcGET" ).getBytes( "ISO-8859-1" );
+        RequestParser parser = new RequestParser( 100 );
+        for ( int chunk = 1; chunk < hbuf.length; chunk++ ) {
+            parser.reset();
+            int nc = 0;
+            for ( int off = 0; off < hbuf.length && ! parser.isComplete();
+                  off += chunk ) {
+                nc += parser.parse( hbuf, off,
+                                    Math.min( chunk, hbuf.length - off ) );
+            }
+            assertTrue( parser.isComplete() );
+            assertEquals( hdr.length(), nc );
+            assertEquals( 3, parser.getContentLength() );
+            HttpServer.Request req =
+                parser.createRequest( null, new ByteArrayInputStream(
+                                                "abc".getBytes() ) );
+            assertEquals( "POST", req.getMethod() );
+            assertEquals( "/x y?q=1", req.getUrl() );
+            assertEquals( "HTTP/1.1", req.getProtocol() );
+            assertEquals( "one two",
+                          HttpServer.getHeader( req.getHeaderMap(),
+                                                "x-long" ) );
+            assertEquals( 3, req.getHeaderMap().size() );
+            assertEquals( 3, req.getBodyLength() );
+            assertEquals( "abc", new String( req.getBody() ) );
+            assertEquals( "abc", new String( readAll( req.getBodyStream() ) ) );
+        }
+
+        parser.reset();
+        byte[] b09 = "GET /old".getBytes( "ISO-8859-1" );
+        assertEquals( b09.length, parser.parse( b09, 0, b09.length ) );
+        assertFalse( parser.isComplete() );
+        parser.endOfInput();
+        HttpServer.Request req09 = parser.createRequest( null, null );
+        assertEquals( "/old", req09.getUrl() );
+        assertEquals( "HTTP/0.9", req09.getProtocol() );
+
+        String[] bads = new String[] {
+            "GET / HTTP/1.1\r\nContent-Length: x\r\n\r\n",
+            "GET / HTTP/x\r\n\r\n",
+            "GET / HTTP/1.1\rX",
+            "POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n",
+        };
+        for ( int i = 0; i < bads.length; i++ ) {
+            parser.reset();
+            byte[] bbuf = bads[ i ].getBytes( "ISO-8859-1" );
+            try {
+                parser.parse( bbuf, 0, bbuf.length );
+                fail( bads[ i ] );
+            }
+            catch ( HttpServer.HttpException e ) {
+            }
+        }
+    }
+
+    public void testHandlerTrie() {
+        HttpServer.Handler g1 = new TestHandler( null );
+        HttpServer.Handler a = new TestHandler( "/a/" );
+        HttpServer.Handler ab = new TestHandler( "/a/b" );
+        HttpServer.Handler g2 = new TestHandler( null );
+        HttpServer.Handler c = new TestHandler( "/c" );
+        HandlerTrie trie =
+            new HandlerTrie( new HttpServer.Handler[] { g1, a, ab, g2, c } );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] {
+                          g1, a, ab, g2, } ),
+                      Arrays.asList( trie.getHandlers( "/a/b/x" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] {
+                          g1, a, g2, } ),
+                      Arrays.asList( trie.getHandlers( "/a/x" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] {
+                          g1, g2, c, } ),
+                      Arrays.asList( trie.getHandlers( "/c?q" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { g1, g2, } ),
+                      Arrays.asList( trie.getHandlers( "/a" ) ) );
+        assertEquals( Arrays.asList( new HttpServer.Handler[] { g1, g2, } ),
+                      Arrays.asList( trie.getHandlers( "/zz" ) ) );
+        assertSame( trie.getHandlers( "/a/b/y" ),
+                    trie.getHandlers( "/a/bc" ) );
+        assertEquals( 0, HandlerTrie.EMPTY.getHandlers( "/" ).length );
+    }
+
+    public void testEngines() throws IOException {
+        exerciseServer( new HttpServer( UtilServer
+                                       .createServerSocket( 0, false ) ) );
+        exerciseServer( new HttpServer( UtilServer
+                                       .createServerSocket( 0, true ),
+                                        true ) );
+        exerciseShedding( new HttpServer( UtilServer
+                                         .createServerSocket( 0, false ) ) );
+        exerciseShedding( new HttpServer( UtilServer
+                                         .createServerSocket( 0, true ),
+                                          true ) );
+        try {
+            new HttpServer( new java.net.ServerSocket( 0 ), true );
+            fail();
+        }
+        catch ( IllegalArgumentException e ) {
+        }
+    }
+
+    public void testFileServing() throws IOException {
+        File file = File.createTempFile( "ServerTest", ".dat" );
+        file.deleteOnExit();
+        byte[] content = new byte[ 300000 ];
+        for ( int i = 0; i < content.length; i++ ) {
+            content[ i ] = (byte) ( i * 7 );
+        }
+        OutputStream fout = new FileOutputStream( file );
+        fout.write( content );
+        fout.close();
+        boolean[][] configs = { { false, false }, { true, false },
+                                { true, true }, };
+        for ( int ic = 0; ic < configs.length; ic++ ) {
+            boolean withChannel = configs[ ic ][ 0 ];
+            boolean isNio = configs[ ic ][ 1 ];
+            HttpServer server =
+                new HttpServer( UtilServer
+                               .createServerSocket( 0, withChannel ), isNio );
+            MultiURLMapperHandler mHandler =
+                new MultiURLMapperHandler( server, "files" );
+            server.addHandler( mHandler );
+            server.start();
+            try {
+                exerciseFile( mHandler.addLocalUrl( file.toURL() ), content );
+            }
+            finally {
+                server.stop();
+            }
+        }
+        assertNull( FileResponse.parseRange( "bytes=1-2,4-5", 10 ) );
+        assertNull( FileResponse.parseRange( "lines=1-2", 10 ) );
+        assertNull( FileResponse.parseRange( "bytes=5-2", 10 ) );
+        assertEquals( 0, FileResponse.parseRange( "bytes=10-", 10 ).length );
+        assertEquals( 0, FileResponse.parseRange( "bytes=-0", 10 ).length );
+        assertTrue( Arrays.equals( new long[] { 7, 9 },
+                                   FileResponse
+                                  .parseRange( "bytes=-3", 10 ) ) );
+        assertTrue( Arrays.equals( new long[] { 2, 9 },
+                                   FileResponse
+                                  .parseRange( "bytes=2-99", 10 ) ) );
+        long t = 1234567890000L;
+        assertEquals( t, FileResponse.parseDate( FileResponse
+                                                .formatDate( t ) ) );
+    }
+
+    public void testContentEncoding() throws IOException {
+        assertEquals( "gzip", ContentEncoding.negotiate( "deflate, gzip" ) );
+        assertEquals( "deflate",
+                      ContentEncoding.negotiate( "gzip;q=0, deflate" ) );
+        assertNull( ContentEncoding.negotiate( "br" ) );
+        assertNull( ContentEncoding.negotiate( null ) );
+        assertTrue( ContentEncoding.isCompressible( "text/xml" ) );
+        assertFalse( ContentEncoding.isCompressible( "image/png" ) );
+        StringBuffer sbuf = new StringBuffer();
+        for ( int i = 0; i < 2000; i++ ) {
+            sbuf.append( "<value>" ).append( i ).append( "</value>\n" );
+        }
+        byte[] text = sbuf.toString().getBytes( "UTF-8" );
+        for ( int ie = 0; ie < 2; ie++ ) {
+            boolean isNio = ie == 1;
+            HttpServer server =
+                new HttpServer( UtilServer.createServerSocket( 0, isNio ),
+                                isNio );
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response serveRequest( HttpServer.Request
+                                                         request ) {
+                    final byte[] body = request.getBody();
+                    HashMap hdrMap = new HashMap();
+                    hdrMap.put( "Content-Type", "text/xml" );
+                    hdrMap.put( "Content-Length",
+                                Integer.toString( body.length ) );
+                    hdrMap.put( "ETag", "\"x1\"" );
+                    return new HttpServer.Response( 200, "OK", hdrMap ) {
+                        public void writeBody( OutputStream out )
+                                throws IOException {
+                            out.write( body );
+                        }
+                    };
+                }
+            } );
+            server.start();
+            try {
+                for ( int ic = 0; ic < 2; ic++ ) {
+                    String coding = ic == 0 ? "gzip" : "deflate";
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    OutputStream zout =
+                        ContentEncoding.createEncoder( bos, coding );
+                    zout.write( text );
+                    zout.close();
+                    byte[] ztext = bos.toByteArray();
+                    assertTrue( ztext.length < text.length / 2 );
+                    HttpURLConnection conn =
+                        (HttpURLConnection) server.getBaseUrl()
+                                                  .openConnection();
+                    conn.setDoOutput( true );
+                    conn.setRequestMethod( "POST" );
+                    conn.setRequestProperty( "Content-Encoding", coding );
+                    conn.setRequestProperty( "Accept-Encoding", coding );
+                    conn.setRequestProperty( "Content-Length",
+                                             Integer
+                                            .toString( ztext.length ) );
+                    OutputStream out = conn.getOutputStream();
+                    out.write( ztext );
+                    out.close();
+                    assertEquals( 200, conn.getResponseCode() );
+                    assertEquals( coding, conn.getContentEncoding() );
+                    assertEquals( "W/\"x1-" + coding + "\"",
+                                  conn.getHeaderField( "ETag" ) );
+                    assertEquals( "Accept-Encoding",
+                                  conn.getHeaderField( "Vary" ) );
+                    assertEquals( "gzip, deflate",
+                                  conn.getHeaderField( "Accept-Encoding" ) );
+                    InputStream zin = conn.getInputStream();
+                    byte[] zresp = readAll( zin );
+                    assertTrue( zresp.length < text.length / 2 );
+                    assertTrue( Arrays.equals( text, readAll( ContentEncoding
+                                  .createDecoder( new ByteArrayInputStream(
+                                                      zresp ), coding ) ) ) );
+                }
+                HttpURLConnection conn =
+                    (HttpURLConnection) server.getBaseUrl().openConnection();
+                conn.setDoOutput( true );
+                conn.setRequestMethod( "POST" );
+                conn.setRequestProperty( "Content-Encoding", "br" );
+                conn.getOutputStream().write( text );
+                assertEquals( 415, conn.getResponseCode() );
+            }
+            finally {
+                server.stop();
+            }
+        }
+    }
+
+    public void testChunked() throws IOException {
+        String chunked = "4\r\nWiki\r\n5;x=y\r\npedia\r\n0\r\n"
+                       + "X-Trailer: t\r\n\r\nNEXT";
+        InputStream in =
+            new ByteArrayInputStream( chunked.getBytes( "US-ASCII" ) );
+        assertEquals( "Wikipedia",
+                      new String( readAll( new ChunkedInputStream( in, 99 ) ),
+                                  "US-ASCII" ) );
+        assertEquals( "NEXT", new String( readAll( in ), "US-ASCII" ) );
+        try {
+            readAll( new ChunkedInputStream(
+                         new ByteArrayInputStream( chunked
+                                                  .getBytes( "US-ASCII" ) ),
+                         8 ) );
+            fail();
+        }
+        catch ( HttpServer.HttpException e ) {
+            assertEquals( 413, e.createResponse().getStatusCode() );
+        }
+        byte[] data = new byte[ 10000 ];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[ i ] = (byte) i;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ChunkedOutputStream cout = new ChunkedOutputStream( bos, 1000 );
+        cout.write( data, 0, 10 );
+        cout.write( 99 );
+        cout.write( data, 0, data.length );
+        cout.finish();
+        byte[] decoded =
+            readAll( new ChunkedInputStream(
+                         new ByteArrayInputStream( bos.toByteArray() ),
+                         Integer.MAX_VALUE ) );
+        assertEquals( 11 + data.length, decoded.length );
+        assertEquals( 99, decoded[ 10 ] );
+        assertEquals( data[ 9999 ], decoded[ decoded.length - 1 ] );
+
+        for ( int ie = 0; ie < 2; ie++ ) {
+            boolean isNio = ie == 1;
+            HttpServer server =
+                new HttpServer( UtilServer.createServerSocket( 0, isNio ),
+                                isNio );
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response serveRequest( HttpServer.Request
+                                                         request ) {
+                    final byte[] body = request.getBody();
+                    HashMap hdrMap = new HashMap();
+                    hdrMap.put( "Content-Type", "text/plain" );
+                    return new HttpServer.Response( 200, "OK", hdrMap ) {
+                        public void writeBody( OutputStream out )
+                                throws IOException {
+                            if ( body != null ) {
+                                out.write( body );
+                            }
+                        }
+                    };
+                }
+            } );
+            server.start();
+            Socket sock = new Socket( "localhost",
+                                      server.getSocket().getLocalPort() );
+            try {
+                String req = "POST /echo HTTP/1.1\r\n"
+                           + "Host: localhost\r\n"
+                           + "Transfer-Encoding: chunked\r\n"
+                           + "\r\n"
+                           + chunked.substring( 0, chunked.length() - 4 )
+                           + "GET /echo HTTP/1.1\r\n"
+                           + "Host: localhost\r\n"
+                           + "Connection: close\r\n"
+                           + "\r\n";
+                OutputStream out = sock.getOutputStream();
+                out.write( req.getBytes( "US-ASCII" ) );
+                out.flush();
+                String resp = new String( readAll( sock.getInputStream() ),
+                                          "US-ASCII" );
+                assertTrue( resp.startsWith( "HTTP/1.1 200 " ) );
+                assertTrue( resp.indexOf( "Transfer-Encoding: chunked" ) > 0 );
+                assertTrue( resp.indexOf( "\r\n\r\n9\r\nWikipedia\r\n"
+                                        + "0\r\n\r\nHTTP/1.1 200 " ) > 0 );
+                assertTrue( resp.indexOf( "Connection: close" ) > 0 );
+                assertTrue( resp.endsWith( "\r\n\r\n0\r\n\r\n" ) );
+            }
+            finally {
+                sock.close();
+                server.stop();
+            }
+        }
+    }
+
+    public void testDeferred() throws Exception {
+        for ( int ie = 0; ie < 2; ie++ ) {
+            boolean isNio = ie == 1;
+            HttpServer server =
+                new HttpServer( UtilServer.createServerSocket( 0, isNio ),
+                                isNio );
+            server.setWorkerLimits( 1, 0 );
+            final List deferreds = new ArrayList();
+            server.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response serveRequest( HttpServer.Request
+                                                         request ) {
+                    if ( request.getUrl().equals( "/defer" ) ) {
+                        HttpServer.DeferredResponse deferred =
+                            new HttpServer.DeferredResponse();
+                        deferred.getHeaderMap().put( "X-Extra", "x" );
+                        synchronized ( deferreds ) {
+                            deferreds.add( deferred );
+                            deferreds.notifyAll();
+                        }
+                        return deferred;
+                    }
+                    else {
+                        return createTextResponse( "now" );
+                    }
+                }
+            } );
+            server.start();
+            Socket sock = new Socket( "localhost",
+                                      server.getSocket().getLocalPort() );
+            try {
+
+                // Pipeline a deferred request and an immediate one.
+                String req = "GET /defer HTTP/1.1\r\n"
+                           + "Host: localhost\r\n"
+                           + "\r\n"
+                           + "GET /now HTTP/1.1\r\n"
+                           + "Host: localhost\r\n"
+                           + "Connection: close\r\n"
+                           + "\r\n";
+                OutputStream out = sock.getOutputStream();
+                out.write( req.getBytes( "US-ASCII" ) );
+                out.flush();
+                HttpServer.DeferredResponse deferred;
+                synchronized ( deferreds ) {
+                    while ( deferreds.isEmpty() ) {
+                        deferreds.wait();
+                    }
+                    deferred =
+                        (HttpServer.DeferredResponse) deferreds.get( 0 );
+                }
+
+                // The only worker thread is free to serve other requests
+                // while the response is outstanding.
+                for ( int i = 0; i < 500 && server.getActiveWorkerCount() > 0;
+                      i++ ) {
+                    Thread.sleep( 10 );
+                }
+                assertEquals( 0, server.getActiveWorkerCount() );
+                HttpURLConnection conn =
+                    (HttpURLConnection)
+                    new URL( server.getBaseUrl(), "/other" ).openConnection();
+                assertEquals( 200, conn.getResponseCode() );
+                assertEquals( 0, server.getRejectedCount() );
+
+                // Completing it resumes the original connection.
+                assertTrue( deferred
+                           .complete( createTextResponse( "later" ) ) );
+                assertFalse( deferred.complete( createTextResponse( "x" ) ) );
+                String resp = new String( readAll( sock.getInputStream() ),
+                                          "US-ASCII" );
+                assertTrue( resp.startsWith( "HTTP/1.1 200 " ) );
+                assertTrue( resp.indexOf( "X-Extra: x" ) > 0 );
+                int iLater = resp.indexOf( "\r\n\r\nlater" );
+                int iNow = resp.indexOf( "\r\n\r\nnow" );
+                assertTrue( iLater > 0 );
+
+                // The thread-per-connection engine only keeps connections
+                // open when it has spare workers.
+                if ( isNio ) {
+                    assertTrue( iNow > iLater );
+                }
+                else {
+                    assertTrue( resp.indexOf( "Connection: close" ) > 0 );
+                }
+            }
+            finally {
+                sock.close();
+                server.stop();
+            }
+        }
+    }
+
+    public void testIdleYield() throws Exception {
+        HttpServer server =
+            new HttpServer( UtilServer.createServerSocket( 0, false ) );
+        server.setWorkerLimits( 2, 4 );
+        final Object lock = new Object();
+        final boolean[] released = new boolean[ 1 ];
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request
+                                                     request ) {
+                if ( request.getUrl().equals( "/block" ) ) {
+                    synchronized ( lock ) {
+                        while ( ! released[ 0 ] ) {
+                            try {
+                                lock.wait();
+                            }
+                            catch ( InterruptedException e ) {
+                                break;
+                            }
+                        }
+                    }
+                }
+                return createTextResponse( "ok" );
+            }
+        } );
+        server.start();
+        int port = server.getSocket().getLocalPort();
+        Socket idleSock = new Socket( "localhost", port );
+        Socket blockSock = null;
+        try {
+
+            // Leave one connection idle after a request, occupying
+            // a worker, and tie up the other worker.
+            OutputStream idleOut = idleSock.getOutputStream();
+            idleOut.write( ( "GET /now HTTP/1.1\r\n"
+                           + "Host: localhost\r\n\r\n" )
+                          .getBytes( "US-ASCII" ) );
+            idleOut.flush();
+            InputStream idleIn = idleSock.getInputStream();
+            byte[] head = new byte[ 256 ];
+            assertTrue( idleIn.read( head ) > 0 );
+            assertTrue( new String( head, "US-ASCII" )
+                       .indexOf( "Connection: close" ) < 0 );
+            blockSock = new Socket( "localhost", port );
+            OutputStream blockOut = blockSock.getOutputStream();
+            blockOut.write( ( "GET /block HTTP/1.1\r\n"
+                            + "Host: localhost\r\n"
+                            + "Connection: close\r\n\r\n" )
+                           .getBytes( "US-ASCII" ) );
+            blockOut.flush();
+            for ( int i = 0; i < 500 && server.getActiveWorkerCount() < 2;
+                  i++ ) {
+                Thread.sleep( 10 );
+            }
+
+            // A new connection is served well within the keep-alive
+            // timeout, since the idle connection gives up its worker.
+            long start = System.currentTimeMillis();
+            HttpURLConnection conn =
+                (HttpURLConnection)
+                new URL( server.getBaseUrl(), "/other" ).openConnection();
+            assertEquals( 200, conn.getResponseCode() );
+            readAll( conn.getInputStream() );
+            assertTrue( System.currentTimeMillis() - start
+                        < server.getKeepAliveTimeout() / 2 );
+            assertEquals( 0, server.getRejectedCount() );
+            assertEquals( -1, idleIn.read() );
+        }
+        finally {
+            synchronized ( lock ) {
+                released[ 0 ] = true;
+                lock.notifyAll();
+            }
+            idleSock.close();
+            if ( blockSock != null ) {
+                blockSock.close();
+            }
+            server.stop();
+        }
+    }
+
+    private static HttpServer.Response createTextResponse( String text ) {
+        final byte[] body = text.getBytes();
+        HashMap hdrMap = new HashMap();
+        hdrMap.put( "Content-Type", "text/plain" );
+        hdrMap.put( "Content-Length", Integer.toString( body.length ) );
+        return new HttpServer.Response( 200, "OK", hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( body );
+            }
+        };
+    }
+
+    public void testExecutionModes() throws IOException {
+        assertTrue( ExecutionMode.getDefault().isAvailable() );
+        ExecutionMode[] modes = { ExecutionMode.PLATFORM,
+                                  ExecutionMode.VIRTUAL, };
+        for ( int im = 0; im < modes.length; im++ ) {
+            ExecutionMode mode = modes[ im ];
+            HttpServer server =
+                new HttpServer( UtilServer.createServerSocket( 0, false ) );
+            if ( mode.isAvailable() ) {
+                server.setExecutionMode( mode );
+                assertEquals( mode, server.getExecutionMode() );
+                exerciseServer( server );
+            }
+            else {
+                try {
+                    server.setExecutionMode( mode );
+                    fail();
+                }
+                catch ( IllegalArgumentException e ) {
+                }
+                server.getSocket().close();
+            }
+        }
+    }
+
+    private void exerciseServer( HttpServer server ) throws IOException {
+        ResourceHandler rHandler = new ResourceHandler( server, "res" );
+        server.addHandler( rHandler );
+        final byte[] content = new byte[ 100000 ];
+        for ( int i = 0; i < content.length; i++ ) {
+            content[ i ] = (byte) i;
+        }
+        URL url = rHandler.addResource( "data", new ServerResource() {
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+            public long getContentLength() {
+                return content.length;
+            }
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( content );
+            }
+        } );
+        server.start();
+        try {
+            for ( int i = 0; i < 5; i++ ) {
+                HttpURLConnection conn =
+                    (HttpURLConnection) url.openConnection();
+                assertEquals( 200, conn.getResponseCode() );
+                assertTrue( Arrays.equals( content,
+                                           readAll( conn.getInputStream() ) ) );
+            }
+            HttpURLConnection conn =
+                (HttpURLConnection)
+                new URL( server.getBaseUrl(), "/not-there" ).openConnection();
+            assertEquals( 404, conn.getResponseCode() );
+            exercisePipeline( server, rHandler );
+        }
+        finally {
+            server.stop();
+        }
+        assertTrue( ! server.isRunning() );
+    }
+
+    private void exerciseShedding( HttpServer server ) throws IOException {
+        server.setWorkerLimits( 1, 0 );
+        final Object lock = new Object();
+        final boolean[] state = new boolean[ 2 ];  // entered, released
+        server.addHandler( new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                if ( req.getUrl().equals( "/block" ) ) {
+                    synchronized ( lock ) {
+                        state[ 0 ] = true;
+                        lock.notifyAll();
+                        while ( ! state[ 1 ] ) {
+                            try {
+                                lock.wait();
+                            }
+                            catch ( InterruptedException e ) {
+                                return null;
+                            }
+                        }
+                    }
+                }
+                return HttpServer.createErrorResponse( 404, "Nothing" );
+            }
+        } );
+        server.start();
+        final URL blockUrl = new URL( server.getBaseUrl(), "/block" );
+        final int[] blockCode = new int[ 1 ];
+        Thread blocker = new Thread() {
+            public void run() {
+                try {
+                    blockCode[ 0 ] = ((HttpURLConnection)
+                                      blockUrl.openConnection())
+                                    .getResponseCode();
+                }
+                catch ( IOException e ) {
+                }
+            }
+        };
+        try {
+            blocker.start();
+            synchronized ( lock ) {
+                while ( ! state[ 0 ] ) {
+                    lock.wait();
+                }
+            }
+            assertEquals( 1, server.getActiveWorkerCount() );
+            assertEquals( 0, server.getRejectedCount() );
+            HttpURLConnection conn =
+                (HttpURLConnection)
+                new URL( server.getBaseUrl(), "/other" ).openConnection();
+            assertEquals( 503, conn.getResponseCode() );
+            assertEquals( "1", conn.getHeaderField( "Retry-After" ) );
+            assertEquals( 1, server.getRejectedCount() );
+            synchronized ( lock ) {
+                state[ 1 ] = true;
+                lock.notifyAll();
+            }
+            blocker.join();
+            assertEquals( 404, blockCode[ 0 ] );
+        }
+        catch ( InterruptedException e ) {
+            fail();
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    private void exercisePipeline( HttpServer server,
+                                   ResourceHandler rHandler )
+            throws IOException {
+        URL url = rHandler.addResource( "small", new ServerResource() {
+            public String getContentType() {
+                return "text/plain";
+            }
+            public long getContentLength() {
+                return 5;
+            }
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( "hello".getBytes( "US-ASCII" ) );
+            }
+        } );
+        String req = "POST /not-there HTTP/1.1\r\n"
+                   + "Host: localhost\r\n"
+                   + "Content-Length: 9\r\n"
+                   + "\r\n"
+                   + "(unread)\n"
+                   + "GET " + url.getPath() + " HTTP/1.1\r\n"
+                   + "Host: localhost\r\n"
+                   + "\r\n"
+                   + "GET " + url.getPath() + " HTTP/1.1\r\n"
+                   + "Host: localhost\r\n"
+                   + "Connection: close\r\n"
+                   + "\r\n";
+        Socket sock = new Socket( "localhost",
+                                  server.getSocket().getLocalPort() );
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write( req.getBytes( "US-ASCII" ) );
+            out.flush();
+
+            // Reading to the end checks that the server closes the
+            // connection after the last request, and not before.
+            String resp = new String( readAll( sock.getInputStream() ),
+                                      "US-ASCII" );
+            assertTrue( resp.startsWith( "HTTP/1.1 404 " ) );
+            int i200 = resp.indexOf( "HTTP/1.1 200 " );
+            assertTrue( i200 > 0 );
+            assertTrue( resp.indexOf( "HTTP/1.1 200 ", i200 + 1 ) > 0 );
+            assertTrue( resp.indexOf( "Connection: close" ) > 0 );
+            assertTrue( resp.endsWith( "\r\n\r\nhello" ) );
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+    private void exerciseFile( URL url, byte[] content ) throws IOException {
+
+        // Whole file; not content-coded, so that it can be transferred
+        // directly.
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "Accept-Encoding", "gzip" );
+        assertEquals( 200, conn.getResponseCode() );
+        assertNull( conn.getContentEncoding() );
+        assertEquals( "bytes", conn.getHeaderField( "Accept-Ranges" ) );
+        String etag = conn.getHeaderField( "ETag" );
+        String lastMod = conn.getHeaderField( "Last-Modified" );
+        assertNotNull( etag );
+        assertNotNull( lastMod );
+        assertTrue( Arrays.equals( content,
+                                   readAll( conn.getInputStream() ) ) );
+
+        // Byte range.
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "Range", "bytes=1000-1009" );
+        assertEquals( 206, conn.getResponseCode() );
+        assertEquals( "bytes 1000-1009/" + content.length,
+                      conn.getHeaderField( "Content-Range" ) );
+        byte[] part = readAll( conn.getInputStream() );
+        assertEquals( 10, part.length );
+        assertEquals( content[ 1000 ], part[ 0 ] );
+        assertEquals( content[ 1009 ], part[ 9 ] );
+
+        // Range ignored if If-Range validator does not match.
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "Range", "bytes=1000-1009" );
+        conn.setRequestProperty( "If-Range", "\"other\"" );
+        assertEquals( 200, conn.getResponseCode() );
+        assertEquals( content.length, readAll( conn.getInputStream() ).length );
+
+        // Unsatisfiable range.
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "Range", "bytes=" + content.length + "-" );
+        assertEquals( 416, conn.getResponseCode() );
+
+        // Conditional GETs.
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "If-None-Match", etag );
+        assertEquals( 304, conn.getResponseCode() );
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "If-None-Match", "\"other\"" );
+        conn.setRequestProperty( "If-Modified-Since", lastMod );
+        assertEquals( 200, conn.getResponseCode() );
+        readAll( conn.getInputStream() );
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty( "If-Modified-Since", lastMod );
+        assertEquals( 304, conn.getResponseCode() );
+    }
+
+    private static class TestHandler implements HttpServer.PrefixHandler {
+        private final String prefix_;
+        TestHandler( String prefix ) {
+            prefix_ = prefix;
+        }
+        public String getPathPrefix() {
+            return prefix_;
+        }
+        public HttpServer.Response serveRequest( HttpServer.Request req ) {
+            return null;
+        }
+    }
+
+    private static byte[] readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UtilServer.copy( in, bos );
+        return bos.toByteArray();
+    }
 }
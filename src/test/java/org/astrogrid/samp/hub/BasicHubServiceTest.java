@@ -0,0 +1,369 @@
+package org.astrogrid.samp.hub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.Response;
+import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.client.CallableClient;
+import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.client.SampException;
+
+public class BasicHubServiceTest extends TestCase {
+
+    private static final ProfileToken PROFILE = new ProfileToken() {
+        public String getProfileName() {
+            return "Test";
+        }
+        public MessageRestriction getMessageRestriction() {
+            return null;
+        }
+    };
+
+    public BasicHubServiceTest() {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.SEVERE );
+    }
+
+    public void testSynchronousCalls() throws Exception {
+        BasicHubService service = new BasicHubService( new Random( 23 ) );
+        service.start();
+        int maxWaiters = BasicHubService.MAX_WAITERS;
+        try {
+            HubConnection sender = service.register( PROFILE );
+            HubConnection receiver = service.register( PROFILE );
+            final List msgIdList =
+                Collections.synchronizedList( new ArrayList() );
+            receiver.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) {
+                    msgIdList.add( msgId );
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            Subscriptions subs = new Subscriptions();
+            subs.addMType( "test.call" );
+            receiver.declareSubscriptions( subs );
+            String receiverId = receiver.getRegInfo().getSelfId();
+            Message msg = new Message( "test.call" );
+            Response resp =
+                Response.createSuccessResponse( new HashMap() );
+
+            // Timeout; a late reply is refused.
+            try {
+                sender.callAndWait( receiverId, msg, 1 );
+                fail();
+            }
+            catch ( SampException e ) {
+                assertTrue( e.getMessage().startsWith( "Synchronous call "
+                                                     + "timeout" ) );
+            }
+            assertEquals( 1, msgIdList.size() );
+            assertReplyRefused( receiver, (String) msgIdList.remove( 0 ),
+                                resp, "timed out" );
+
+            // Successful reply; a second one is refused, as a duplicate
+            // or as too late depending on whether the waiter has yet
+            // collected the first.
+            Waiter w1 = new Waiter( sender, receiverId, msg );
+            w1.start();
+            String msgId1 = awaitCall( msgIdList );
+            receiver.reply( msgId1, resp );
+            assertReplyRefused( receiver, msgId1, resp, "Response ignored" );
+            w1.join( 5000 );
+            assertEquals( Response.OK_STATUS, w1.response_.getStatus() );
+            assertReplyRefused( receiver, msgId1, resp, "timed out" );
+
+            // Oldest pending call is aborted when the limit is exceeded.
+            BasicHubService.MAX_WAITERS = 1;
+            Waiter w2 = new Waiter( sender, receiverId, msg );
+            w2.start();
+            String msgId2 = awaitCall( msgIdList );
+            Waiter w3 = new Waiter( sender, receiverId, msg );
+            w3.start();
+            String msgId3 = awaitCall( msgIdList );
+            w2.join( 5000 );
+            assertTrue( w2.error_.getMessage().indexOf( "aborted" ) >= 0 );
+            assertReplyRefused( receiver, msgId2, resp, "timed out" );
+            receiver.reply( msgId3, resp );
+            w3.join( 5000 );
+            assertNotNull( w3.response_ );
+        }
+        finally {
+            BasicHubService.MAX_WAITERS = maxWaiters;
+            service.shutdown();
+        }
+    }
+
+    public void testAsyncCalls() throws Exception {
+        BasicHubService service = new BasicHubService( new Random( 29 ) );
+        service.start();
+        try {
+            AsyncHubConnection sender =
+                (AsyncHubConnection) service.register( PROFILE );
+            HubConnection receiver = service.register( PROFILE );
+            final List msgIdList =
+                Collections.synchronizedList( new ArrayList() );
+            receiver.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) {
+                    msgIdList.add( msgId );
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            Subscriptions subs = new Subscriptions();
+            subs.addMType( "test.call" );
+            receiver.declareSubscriptions( subs );
+            String receiverId = receiver.getRegInfo().getSelfId();
+            Message msg = new Message( "test.call" );
+            Response resp =
+                Response.createSuccessResponse( new HashMap() );
+
+            // Reply is passed to the callback on the replying thread.
+            Outcome o1 = new Outcome();
+            sender.callAndWait( receiverId, msg, 0, o1 );
+            String msgId1 = awaitCall( msgIdList );
+            assertFalse( o1.isDone() );
+            receiver.reply( msgId1, resp );
+            assertTrue( o1.isDone() );
+            assertEquals( Response.OK_STATUS, o1.response_.getStatus() );
+            assertReplyRefused( receiver, msgId1, resp, "timed out" );
+
+            // Timeout is enforced without a waiting thread.
+            Outcome o2 = new Outcome();
+            sender.callAndWait( receiverId, msg, 1, o2 );
+            String msgId2 = awaitCall( msgIdList );
+            o2.await( 5000 );
+            assertTrue( o2.error_.getMessage()
+                          .startsWith( "Synchronous call timeout" ) );
+            assertReplyRefused( receiver, msgId2, resp, "timed out" );
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    public void testBroadcasts() throws Exception {
+        BasicHubService service = new BasicHubService( new Random( 31 ) );
+        service.start();
+        try {
+            HubConnection sender = service.register( PROFILE );
+            HubConnection watcher = service.register( PROFILE );
+            HubConnection failer = service.register( PROFILE );
+            final List eventList =
+                Collections.synchronizedList( new ArrayList() );
+            final List responseList =
+                Collections.synchronizedList( new ArrayList() );
+            sender.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) {
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                    responseList.add( new Object[] { responderId, msgTag,
+                                                     response } );
+                }
+            } );
+            watcher.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) {
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                    eventList.add( msg.getMType() );
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            failer.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) throws SampException {
+                    throw new SampException( "No thanks" );
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            Subscriptions wsubs = new Subscriptions();
+            wsubs.addMType( "samp.hub.event.*" );
+
+            // Hub events have been delivered, in order, by the time
+            // the method causing them returns.
+            watcher.declareSubscriptions( wsubs );
+            assertEquals( 1, eventList.size() );
+            eventList.clear();
+            Subscriptions fsubs = new Subscriptions();
+            fsubs.addMType( "test.call" );
+            failer.declareSubscriptions( fsubs );
+            HashMap meta = new HashMap();
+            meta.put( "samp.name", "failer" );
+            failer.declareMetadata( meta );
+            assertEquals( 2, eventList.size() );
+            assertEquals( "samp.hub.event.subscriptions", eventList.get( 0 ) );
+            assertEquals( "samp.hub.event.metadata", eventList.get( 1 ) );
+
+            // A queued call which cannot be delivered gets an error
+            // response from the hub.
+            String failerId = failer.getRegInfo().getSelfId();
+            Map sentMap = sender.callAll( "tag1", new Message( "test.call" ) );
+            assertEquals( 1, sentMap.size() );
+            assertTrue( sentMap.containsKey( failerId ) );
+            for ( int i = 0; i < 500 && responseList.isEmpty(); i++ ) {
+                Thread.sleep( 10 );
+            }
+            assertEquals( 1, responseList.size() );
+            Object[] result = (Object[]) responseList.get( 0 );
+            assertEquals( failerId, result[ 0 ] );
+            assertEquals( "tag1", result[ 1 ] );
+            Response response = (Response) result[ 2 ];
+            assertEquals( Response.ERROR_STATUS, response.getStatus() );
+            assertTrue( response.getErrInfo().getErrortxt()
+                                .indexOf( "No thanks" ) >= 0 );
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    public void testUnregisterDrain() throws Exception {
+        BasicHubService service =
+            new BasicHubService( new Random( 37 ), 10, 2, 5000 );
+        service.start();
+        try {
+            HubConnection sender = service.register( PROFILE );
+            HubConnection receiver = service.register( PROFILE );
+            final List startList =
+                Collections.synchronizedList( new ArrayList() );
+            final List endList =
+                Collections.synchronizedList( new ArrayList() );
+            receiver.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) {
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg )
+                        throws InterruptedException {
+                    startList.add( msg.getMType() );
+                    Thread.sleep( 300 );
+                    endList.add( msg.getMType() );
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            Subscriptions subs = new Subscriptions();
+            subs.addMType( "test.notify" );
+            receiver.declareSubscriptions( subs );
+
+            // A delivery in progress completes before unregister returns,
+            // and any still waiting are discarded.
+            assertEquals( 1, sender.notifyAll( new Message( "test.notify" ) )
+                                   .size() );
+            assertEquals( 1, sender.notifyAll( new Message( "test.notify" ) )
+                                   .size() );
+            for ( int i = 0; i < 500 && startList.isEmpty(); i++ ) {
+                Thread.sleep( 10 );
+            }
+            receiver.unregister();
+            assertEquals( 1, endList.size() );
+            Thread.sleep( 400 );
+            assertEquals( 1, startList.size() );
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    private static String awaitCall( List msgIdList )
+            throws InterruptedException {
+        for ( int i = 0; i < 500 && msgIdList.isEmpty(); i++ ) {
+            Thread.sleep( 10 );
+        }
+        return (String) msgIdList.remove( 0 );
+    }
+
+    private static void assertReplyRefused( HubConnection receiver,
+                                            String msgId, Response resp,
+                                            String reason ) {
+        try {
+            receiver.reply( msgId, resp );
+            fail();
+        }
+        catch ( SampException e ) {
+            assertTrue( e.getMessage(),
+                        e.getMessage().indexOf( reason ) >= 0 );
+        }
+    }
+
+    private static class Outcome implements AsyncHubConnection.Callback {
+        Response response_;
+        SampException error_;
+        public synchronized void completed( Response response ) {
+            response_ = response;
+            notifyAll();
+        }
+        public synchronized void failed( SampException error ) {
+            error_ = error;
+            notifyAll();
+        }
+        synchronized boolean isDone() {
+            return response_ != null || error_ != null;
+        }
+        synchronized void await( long millis ) throws InterruptedException {
+            long end = System.currentTimeMillis() + millis;
+            while ( ! isDone() && System.currentTimeMillis() < end ) {
+                wait( 100 );
+            }
+        }
+    }
+
+    private static class Waiter extends Thread {
+        private final HubConnection connection_;
+        private final String recipientId_;
+        private final Message msg_;
+        Response response_;
+        SampException error_;
+        Waiter( HubConnection connection, String recipientId, Message msg ) {
+            connection_ = connection;
+            recipientId_ = recipientId;
+            msg_ = msg;
+        }
+        public void run() {
+            try {
+                response_ = connection_.callAndWait( recipientId_, msg_, 0 );
+            }
+            catch ( SampException e ) {
+                error_ = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.astrogrid.samp.hub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import org.astrogrid.samp.ExecutionMode;
+import org.astrogrid.samp.httpd.WorkerPool;
+
+public class DeliveryQueueTest extends TestCase {
+
+    public DeliveryQueueTest() {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.SEVERE );
+    }
+
+    public void testQueues() throws InterruptedException {
+        WorkerPool pool =
+            new WorkerPool( "test", 1, 0, ExecutionMode.getDefault(), true );
+        Object gate = new Object();
+
+        // Ordered delivery.
+        List got = Collections.synchronizedList( new ArrayList() );
+        DeliveryQueue q1 =
+            new DeliveryQueue( "c1", 100, OverflowPolicy.REJECT, pool );
+        for ( int i = 0; i < 50; i++ ) {
+            assertTrue( q1.offer( new TestDelivery( got, i, null ) ) );
+        }
+        assertTrue( q1.flush( 5000 ) );
+        assertEquals( 50, got.size() );
+        for ( int i = 0; i < 50; i++ ) {
+            assertEquals( new Integer( i ), got.get( i ) );
+        }
+        assertEquals( 50, q1.getDeliveredCount() );
+        assertEquals( 0, q1.getQueueDepth() );
+
+        // A blocked recipient holds up neither the sender nor
+        // other recipients, even when it occupies the only pool thread.
+        List got2 = Collections.synchronizedList( new ArrayList() );
+        List got3 = Collections.synchronizedList( new ArrayList() );
+        DeliveryQueue q2 =
+            new DeliveryQueue( "c2", 2, OverflowPolicy.REJECT, pool );
+        DeliveryQueue q3 =
+            new DeliveryQueue( "c3", 2, OverflowPolicy.DROP_OLDEST, pool );
+        synchronized ( gate ) {
+            assertTrue( q2.offer( new TestDelivery( got2, 0, gate ) ) );
+            assertTrue( q3.offer( new TestDelivery( got3, 0, gate ) ) );
+            Thread.sleep( 200 );
+            assertTrue( q2.offer( new TestDelivery( got2, 1, null ) ) );
+            assertTrue( q2.offer( new TestDelivery( got2, 2, null ) ) );
+            assertFalse( q2.offer( new TestDelivery( got2, 3, null ) ) );
+            assertEquals( 1, q2.getDroppedCount() );
+            for ( int i = 1; i < 5; i++ ) {
+                assertTrue( q3.offer( new TestDelivery( got3, i, null ) ) );
+            }
+            assertEquals( 2, q3.getQueueDepth() );
+            assertEquals( 2, q3.getDroppedCount() );
+            List got4 = Collections.synchronizedList( new ArrayList() );
+            DeliveryQueue q4 =
+                new DeliveryQueue( "c4", 10, OverflowPolicy.REJECT, pool );
+            assertTrue( q4.offer( new TestDelivery( got4, 0, null ) ) );
+            assertTrue( q4.flush( 5000 ) );
+            assertEquals( 1, got4.size() );
+        }
+        assertTrue( q2.flush( 5000 ) );
+        assertTrue( q3.flush( 5000 ) );
+        assertEquals( 3, got2.size() );
+        assertEquals( 3, got3.size() );
+        assertEquals( new Integer( 3 ), got3.get( 1 ) );
+        assertEquals( new Integer( 4 ), got3.get( 2 ) );
+        assertTrue( q2.getMaxLatencyMillis() >= 200 );
+        assertEquals( 2, q2.getMaxQueueDepth() );
+
+        // With the blocking policy, an offer to a full queue waits for
+        // room until its deadline.
+        List got5 = Collections.synchronizedList( new ArrayList() );
+        DeliveryQueue q5 =
+            new DeliveryQueue( "c5", 1, OverflowPolicy.BLOCK, pool );
+        synchronized ( gate ) {
+            assertTrue( q5.offer( new TestDelivery( got5, 0, gate ) ) );
+            Thread.sleep( 200 );
+            assertTrue( q5.offer( new TestDelivery( got5, 1, null ) ) );
+            long t0 = System.currentTimeMillis();
+            assertFalse( q5.offer( new TestDelivery( got5, 2, null ), t0 ) );
+            assertFalse( q5.offer( new TestDelivery( got5, 3, null ),
+                                   t0 + 200 ) );
+            long waited = System.currentTimeMillis() - t0;
+            assertTrue( waited >= 200 && waited < 5000 );
+        }
+        assertTrue( q5.offer( new TestDelivery( got5, 4, null ),
+                              System.currentTimeMillis() + 5000 ) );
+        assertTrue( q5.flush( 5000 ) );
+        assertEquals( 3, got5.size() );
+        assertEquals( 2, q5.getDroppedCount() );
+
+        // Failures are counted, and closed queues refuse deliveries.
+        assertTrue( q1.offer( new TestDelivery( got, -1, null ) ) );
+        assertTrue( q1.flush( 5000 ) );
+        assertEquals( 1, q1.getFailedCount() );
+        q1.close();
+        assertFalse( q1.offer( new TestDelivery( got, 99, null ) ) );
+    }
+
+    private static class TestDelivery extends DeliveryQueue.Delivery {
+        private final List list_;
+        private final int index_;
+        private final Object gate_;
+        TestDelivery( List list, int index, Object gate ) {
+            list_ = list;
+            index_ = index;
+            gate_ = gate;
+        }
+        public void deliver() {
+            if ( gate_ != null ) {
+                synchronized ( gate_ ) {
+                }
+            }
+            if ( index_ < 0 ) {
+                throw new RuntimeException( "Delivery failure" );
+            }
+            list_.add( new Integer( index_ ) );
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.astrogrid.samp.hub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.Response;
+import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.client.CallableClient;
+import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.client.SampException;
+
+public class HubMetricsTest extends TestCase {
+
+    private static final ProfileToken PROFILE = new ProfileToken() {
+        public String getProfileName() {
+            return "Test";
+        }
+        public MessageRestriction getMessageRestriction() {
+            return null;
+        }
+    };
+
+    public HubMetricsTest() {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.SEVERE );
+    }
+
+    public void testMetrics() throws Exception {
+        HubMetrics metrics = new HubMetrics();
+        HubMetrics.setDefault( metrics );
+        BasicHubService service;
+        try {
+            service = new BasicHubService( new Random( 31 ) );
+        }
+        finally {
+            HubMetrics.setDefault( null );
+        }
+        service.start();
+        try {
+            HubConnection sender = service.register( PROFILE );
+            HubConnection receiver = service.register( PROFILE );
+            receiver.setCallable( new CallableClient() {
+                public void receiveCall( String senderId, String msgId,
+                                         Message msg ) throws SampException {
+                    throw new SampException( "no calls" );
+                }
+                public void receiveNotification( String senderId,
+                                                 Message msg ) {
+                }
+                public void receiveResponse( String responderId,
+                                             String msgTag,
+                                             Response response ) {
+                }
+            } );
+            Subscriptions subs = new Subscriptions();
+            subs.addMType( "test.*" );
+            receiver.declareSubscriptions( subs );
+            String senderId = sender.getRegInfo().getSelfId();
+            String receiverId = receiver.getRegInfo().getSelfId();
+            metrics.reset();
+
+            sender.notify( receiverId, new Message( "test.notify" ) );
+            sender.notify( receiverId, new Message( "test.notify" ) );
+            try {
+                sender.call( receiverId, "tag", new Message( "test.call" ) );
+                fail();
+            }
+            catch ( SampException e ) {
+            }
+            assertEquals( 3, metrics.getDeliveryCount() );
+            assertEquals( 1, metrics.getFailureCount() );
+
+            Map report = metrics.getReport();
+            Map mtypes = (Map) report.get( "mtypes" );
+            assertEquals( "2", ((Map) mtypes.get( "test.notify" ))
+                              .get( "count" ) );
+            assertEquals( "1", ((Map) mtypes.get( "test.call" ))
+                              .get( "failures" ) );
+            assertEquals( "3", ((Map) report.get( "sent" )).get( senderId ) );
+            assertEquals( "3", ((Map) report.get( "received" ))
+                              .get( receiverId ) );
+            Map latencies = (Map) report.get( "latencies" );
+            assertEquals( "2", ((Map) latencies.get( "delivery.notify" ))
+                              .get( "count" ) );
+            Map gauges = (Map) report.get( "gauges" );
+            assertEquals( "0", gauges.get( "hub.pendingSynchCalls" ) );
+
+            // Metrics are only served over HTTP if explicitly requested.
+            assertNull( metrics.publish() );
+            URL url = metrics.serveHttp();
+            String text = readUrl( new URL( url, "text" ) );
+            assertTrue( text.indexOf( "mtypes.test.notify.count 2\n" ) >= 0 );
+            assertTrue( text.indexOf( "deliveries 3\n" ) >= 0 );
+            String json = readUrl( new URL( url, "json" ) );
+            assertTrue( json.trim().startsWith( "{" ) );
+            assertTrue( json.indexOf( "\"test.call\"" ) >= 0 );
+            assertTrue( metrics.getText().indexOf( "http.util.count" ) >= 0 );
+        }
+        finally {
+            service.shutdown();
+        }
+        assertNull( ((Map) metrics.getReport().get( "gauges" ))
+                   .get( "hub.pendingSynchCalls" ) );
+    }
+
+    public void testLimits() {
+        HubMetrics metrics = new HubMetrics( 2 );
+        for ( int i = 0; i < 5; i++ ) {
+            metrics.increment( "c" + i );
+        }
+        metrics.addLatency( "lat", 0 );
+        metrics.addLatency( "lat", 7 );
+        metrics.addLatency( "lat", 100000 );
+        Map report = metrics.getReport();
+        Map counters = new HashMap( (Map) report.get( "counters" ) );
+        assertEquals( 3, counters.size() );
+        assertEquals( "3", counters.get( HubMetrics.OTHER_KEY ) );
+        Map lat = (Map) ((Map) report.get( "latencies" )).get( "lat" );
+        assertEquals( "3", lat.get( "count" ) );
+        assertEquals( "100000", lat.get( "maxMillis" ) );
+        Map bins = (Map) lat.get( "bins" );
+        assertEquals( "1", bins.get( "0-1" ) );
+        assertEquals( "1", bins.get( "5-10" ) );
+        assertEquals( "1", bins.get( "60000-" ) );
+    }
+
+    private static String readUrl( URL url ) throws Exception {
+        InputStream in = url.openStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 1024 ];
+        for ( int n; ( n = in.read( buf ) ) >= 0; ) {
+            out.write( buf, 0, n );
+        }
+        in.close();
+        return new String( out.toByteArray(), "UTF-8" );
+    }
+}
@@ -0,0 +1,44 @@
+package org.astrogrid.samp.hub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+public class SnapshotClientSetTest extends TestCase {
+
+    public void testClientSet() {
+        ClientSet cset =
+            new SnapshotClientSet( Collections.reverseOrder() );
+        HubClient ca = new HubClient( "a", null );
+        HubClient cb = new HubClient( "b", null );
+        HubClient cc = new HubClient( "c", null );
+        assertEquals( 0, cset.getClients().length );
+
+        cset.add( cb );
+        cset.add( ca );
+        cset.add( cc );
+        HubClient[] clients = cset.getClients();
+        assertTrue( Arrays.equals( new HubClient[] { cc, cb, ca },
+                                   clients ) );
+        assertNotSame( clients, cset.getClients() );
+        clients[ 0 ] = null;
+        assertSame( cc, cset.getClients()[ 0 ] );
+        clients[ 0 ] = cc;
+        assertSame( cb, cset.getFromPublicId( "b" ) );
+        assertTrue( cset.containsClient( cb ) );
+        assertFalse( cset.containsClient( new HubClient( "b", null ) ) );
+
+        // Earlier snapshots are unaffected by later changes.
+        cset.remove( cb );
+        assertTrue( Arrays.equals( new HubClient[] { cc, cb, ca },
+                                   clients ) );
+        assertTrue( Arrays.equals( new HubClient[] { cc, ca },
+                                   cset.getClients() ) );
+        assertNull( cset.getFromPublicId( "b" ) );
+        assertFalse( cset.containsClient( cb ) );
+        assertFalse( cset.containsClient( null ) );
+
+        cset.remove( cb );
+        assertEquals( 2, cset.getClients().length );
+    }
+}
@@ -0,0 +1,122 @@
+package org.astrogrid.samp.hub;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.astrogrid.samp.Subscriptions;
+
+public class SubscriptionIndexTest extends TestCase {
+
+    private static final String[] MTYPES = {
+        "a", "a.b", "a.b.c", "a.bc", "a.b.c.d", "x.y", "ab.c", "",
+    };
+
+    private SubscriptionIndex index_;
+    private Map subsMap_;
+
+    protected void setUp() {
+        index_ = new SubscriptionIndex();
+        subsMap_ = new HashMap();
+    }
+
+    public void testIndex() {
+        HubClient c1 = new HubClient( "c1", null );
+        HubClient c2 = new HubClient( "c2", null );
+        HubClient c3 = new HubClient( "c3", null );
+        HubClient c4 = new HubClient( "c4", null );
+
+        declare( c1, new String[] { "a.b" } );
+        declare( c2, new String[] { "a.b.*" } );
+        declare( c3, new String[] { "*", "x.y" } );
+        declare( c4, new String[] { "a.*", "a.b.c" } );
+        assertEquals( set( new HubClient[] { c1, c2, c3, c4 } ),
+                      set( index_.getSubscribers( "a.b" ) ) );
+        assertEquals( set( new HubClient[] { c3, c4 } ),
+                      set( index_.getSubscribers( "a.bc" ) ) );
+        assertEquals( set( new HubClient[] { c3 } ),
+                      set( index_.getSubscribers( "ab.c" ) ) );
+        checkConsistent();
+
+        declare( c3, new String[] { "a.b.c" } );
+        index_.removeClient( c4 );
+        subsMap_.remove( c4 );
+        assertEquals( set( new HubClient[] { c2, c3 } ),
+                      set( index_.getSubscribers( "a.b.c" ) ) );
+        assertEquals( 0, index_.getSubscribers( "x.y" ).length );
+        checkConsistent();
+
+        declare( c2, new String[ 0 ] );
+        assertEquals( set( new HubClient[] { c1 } ),
+                      set( index_.getSubscribers( "a.b" ) ) );
+        checkConsistent();
+    }
+
+    public void testPrune() {
+        int baseCount = index_.getNodeCount();
+        HubClient c1 = new HubClient( "c1", null );
+        HubClient c2 = new HubClient( "c2", null );
+        declare( c1, new String[] { "a.b.c.d", "a.b.*", "*" } );
+        declare( c2, new String[] { "a.b", "x.y.z", "", "p.*" } );
+        assertTrue( index_.getNodeCount() > baseCount );
+
+        declare( c2, new String[] { "q.r.s" } );
+        assertEquals( set( new HubClient[] { c1 } ),
+                      set( index_.getSubscribers( "x.y.z" ) ) );
+        checkConsistent();
+        index_.removeClient( c1 );
+        subsMap_.remove( c1 );
+        assertEquals( baseCount + 3, index_.getNodeCount() );
+        checkConsistent();
+        index_.removeClient( c2 );
+        subsMap_.remove( c2 );
+        assertEquals( baseCount, index_.getNodeCount() );
+        checkConsistent();
+    }
+
+    public void testMatchLevel() {
+        assertEquals( 0, Subscriptions.matchLevel( "*", "a.b" ) );
+        assertEquals( 2, Subscriptions.matchLevel( "a.b.*", "a.b.c" ) );
+        assertEquals( 2, Subscriptions.matchLevel( "a.b.*", "a.b" ) );
+        assertEquals( 3, Subscriptions.matchLevel( "a.b.c", "a.b.c" ) );
+        assertEquals( -1, Subscriptions.matchLevel( "a.b.*", "a.bc" ) );
+        assertEquals( -1, Subscriptions.matchLevel( "a.b", "a.b.c" ) );
+    }
+
+    private void declare( HubClient client, String[] mtypes ) {
+        Subscriptions subs = new Subscriptions();
+        for ( int i = 0; i < mtypes.length; i++ ) {
+            subs.addMType( mtypes[ i ] );
+        }
+        index_.setSubscriptions( client, subs );
+        subsMap_.put( client, subs );
+    }
+
+    /**
+     * Checks that the index agrees with the clients' own subscriptions
+     * about who is subscribed to a selection of MTypes.
+     */
+    private void checkConsistent() {
+        for ( int im = 0; im < MTYPES.length; im++ ) {
+            String mtype = MTYPES[ im ];
+            Set expected = new HashSet();
+            for ( Iterator it = subsMap_.entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                if ( ((Subscriptions) entry.getValue())
+                    .isSubscribed( mtype ) ) {
+                    expected.add( entry.getKey() );
+                }
+            }
+            assertEquals( mtype, expected,
+                          set( index_.getSubscribers( mtype ) ) );
+        }
+    }
+
+    private static Set set( HubClient[] clients ) {
+        return new HashSet( Arrays.asList( clients ) );
+    }
+}
@@ -26,6 +26,8 @@ import org.astrogrid.samp.client.CallableClient;
 import org.astrogrid.samp.client.HubConnection;
 import org.astrogrid.samp.client.SampException;
 import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.hub.HubMetrics;
+import org.astrogrid.samp.hub.KeyGenerator;
 import org.astrogrid.samp.hub.MessageRestriction;
 import org.astrogrid.samp.xmlrpc.XmlRpcHubConnection;
 import org.astrogrid.samp.xmlrpc.internal.InternalServer;
@@ -289,6 +291,33 @@ public class WebClientTest extends TestCase {
         hServer.stop();
     }
 
+    public void testMetricsGauges() throws IOException {
+        HubMetrics metrics = new HubMetrics();
+        HubMetrics.setDefault( metrics );
+        try {
+            WebHubProfile.ServerFactory sxfact =
+                new WebHubProfile.ServerFactory();
+            sxfact.setLogType( null );
+            sxfact.setPort( 0 );
+            WebHubProfile profile =
+                new WebHubProfile( sxfact, ClientAuthorizers.TRUE,
+                                   ListMessageRestriction.DEFAULT,
+                                   new KeyGenerator( "k:", 8,
+                                                     new Random( 5L ) ),
+                                   false );
+            String gaugeName = "web.callbackQueueDepth";
+            profile.start( null );
+            assertEquals( "0", ((Map) metrics.getReport().get( "gauges" ))
+                              .get( gaugeName ) );
+            profile.stop();
+            assertNull( ((Map) metrics.getReport().get( "gauges" ))
+                       .get( gaugeName ) );
+        }
+        finally {
+            HubMetrics.setDefault( null );
+        }
+    }
+
     public void testMessageRestriction() {
         MessageRestriction allMr = ListMessageRestriction.ALLOW_ALL;
         MessageRestriction noneMr = ListMessageRestriction.DENY_ALL;
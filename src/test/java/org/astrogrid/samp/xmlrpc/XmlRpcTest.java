@@ -1,6 +1,27 @@
 package org.astrogrid.samp.xmlrpc;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import junit.framework.TestCase;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.httpd.UtilServer;
+import org.astrogrid.samp.xmlrpc.internal.InternalClient;
+import org.astrogrid.samp.xmlrpc.internal.InternalServer;
+import org.astrogrid.samp.xmlrpc.internal.LoopbackClient;
+import org.astrogrid.samp.xmlrpc.internal.LoopbackClientFactory;
+import org.astrogrid.samp.xmlrpc.internal.LoopbackServer;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcDecoder;
 
 public class XmlRpcTest extends TestCase {
 
@@ -16,4 +37,393 @@ public class XmlRpcTest extends TestCase {
         assertEquals( XmlRpcKit.INTERNAL,
                       XmlRpcKit.getInstanceByName( "internal" ) );
     }
+
+    public void testInternalServer() throws IOException, InterruptedException {
+        HttpServer hServer =
+            new HttpServer( UtilServer.createServerSocket( 0, false ) );
+        hServer.start();
+        try {
+            InternalServer xServer = new InternalServer( hServer, "/xmlrpc" );
+            xServer.addHandler( new SampXmlRpcHandler() {
+                public boolean canHandleCall( String method ) {
+                    return "test.echo".equals( method );
+                }
+                public Object handleCall( String method, List params,
+                                          Object reqInfo ) {
+                    return params.get( 0 );
+                }
+            } );
+            Map small = new HashMap();
+            small.put( "greeting", "hello" );
+            small.put( "list", Collections.singletonList( "1" ) );
+            Map tricky = new LinkedHashMap();
+            tricky.put( "quote\"back\\slash", "line1\nline2\ttab" );
+            tricky.put( "markup", "<a href='x'>&amp;</a>" );
+            tricky.put( "empty", Arrays.asList( new Object[] {
+                            "", new ArrayList(), new HashMap() } ) );
+            Map wide = Collections.singletonMap( "caf\u00e9",
+                                                 "\u2713 \ud834\udd1e" );
+            List large = new ArrayList();
+            for ( int i = 0; i < 20000; i++ ) {
+                large.add( "item-" + i );
+            }
+            SampXmlRpcClient iClient =
+                XmlRpcKit.INTERNAL.getClientFactory()
+                                  .createClient( xServer.getEndpoint() );
+            for ( int i = 0; i < 50; i++ ) {
+                iClient.callAndForget( "test.echo",
+                                       Collections.singletonList( small ) );
+            }
+            long end = System.currentTimeMillis() + 10000;
+            while ( InternalClient.getInFlightCount() > 0 &&
+                    System.currentTimeMillis() < end ) {
+                Thread.sleep( 10 );
+            }
+            assertEquals( 0, InternalClient.getInFlightCount() );
+            assertEquals( 0, InternalClient.getDrainQueueDepth() );
+
+            XmlRpcKit[] kits = { XmlRpcKit.INTERNAL, XmlRpcKit.APACHE };
+            for ( int ik = 0; ik < kits.length; ik++ ) {
+                SampXmlRpcClient client =
+                    kits[ ik ].getClientFactory()
+                              .createClient( xServer.getEndpoint() );
+                for ( int ir = 0; ir < 2; ir++ ) {
+                    assertEquals( small, echo( client, small ) );
+                    assertEquals( large, echo( client, large ) );
+                    assertEquals( tricky, echo( client, tricky ) );
+
+                    // Apache client does not transmit non-ASCII correctly.
+                    if ( kits[ ik ] == XmlRpcKit.INTERNAL ) {
+                        assertEquals( wide, echo( client, wide ) );
+                    }
+                }
+                SampXmlRpcPreEncoder encoder = (SampXmlRpcPreEncoder) client;
+                Object smallEnc = encoder.preEncode( small );
+                Object largeEnc = encoder.preEncode( large );
+                for ( int ir = 0; ir < 2; ir++ ) {
+                    assertEquals( small, echo( client, smallEnc ) );
+                    assertEquals( large, echo( client, largeEnc ) );
+                }
+                SampXmlRpcAsyncClient aClient = (SampXmlRpcAsyncClient) client;
+                TestCallback[] cbs = new TestCallback[ 10 ];
+                for ( int ic = 0; ic < cbs.length; ic++ ) {
+                    cbs[ ic ] = new TestCallback();
+                    aClient.callAsync( "test.echo",
+                                       Collections.singletonList( small ),
+                                       cbs[ ic ] );
+                }
+                TestCallback badCb = new TestCallback();
+                aClient.callAsync( "test.nosuch",
+                                   Collections.singletonList( small ), badCb );
+                for ( int ic = 0; ic < cbs.length; ic++ ) {
+                    cbs[ ic ].await();
+                    assertNull( cbs[ ic ].error_ );
+                    assertEquals( small, cbs[ ic ].result_ );
+                }
+                badCb.await();
+                assertNotNull( badCb.error_ );
+                assertNull( badCb.result_ );
+
+                List calls = new ArrayList();
+                calls.add( createCallMap( "test.echo", small ) );
+                calls.add( createCallMap( "test.nosuch", small ) );
+                calls.add( createCallMap( "test.echo", large ) );
+                List multi = (List)
+                    client.callAndWait( "system.multicall",
+                                        Collections.singletonList( calls ) );
+                assertEquals( 3, multi.size() );
+                assertEquals( Collections.singletonList( small ),
+                              multi.get( 0 ) );
+                assertTrue( ((Map) multi.get( 1 )).get( "faultString" )
+                           .toString().indexOf( "test.nosuch" ) >= 0 );
+                assertEquals( Collections.singletonList( large ),
+                              multi.get( 2 ) );
+            }
+        }
+        finally {
+            hServer.stop();
+        }
+    }
+
+    public void testLoopback() throws IOException {
+        LoopbackServer xServer = new LoopbackServer();
+        SampXmlRpcHandler handler = new SampXmlRpcHandler() {
+            public boolean canHandleCall( String method ) {
+                return "test.echo".equals( method );
+            }
+            public Object handleCall( String method, List params,
+                                      Object reqInfo ) {
+                return params.get( 0 );
+            }
+        };
+        Map map = new LinkedHashMap();
+        map.put( "esc", "a<b>&c \"q\" \\" );
+        map.put( "utf", "caf\u00e9 \u20ac \ud834\udd1e" );
+        map.put( "list", Arrays.asList( new Object[] { "", "x y" } ) );
+        String[] codecs = { "direct", "xml", "json" };
+        for ( int ic = 0; ic < codecs.length; ic++ ) {
+            SampXmlRpcClient client =
+                new LoopbackClientFactory( LoopbackClient.Codec
+                                          .getCodec( codecs[ ic ] ) )
+               .createClient( xServer.getEndpoint() );
+            try {
+                echo( client, map );
+                fail();
+            }
+            catch ( IOException e ) {
+                // no handlers yet, so server is not reachable
+            }
+            xServer.addHandler( handler );
+            assertEquals( map, echo( client, map ) );
+            Object enc = ((SampXmlRpcPreEncoder) client).preEncode( map );
+            assertEquals( map, echo( client, enc ) );
+            try {
+                client.callAndWait( "test.nosuch", new ArrayList() );
+                fail();
+            }
+            catch ( IOException e ) {
+                assertTrue( e.getMessage().indexOf( "test.nosuch" ) >= 0 );
+            }
+            xServer.removeHandler( handler );
+        }
+        assertTrue( XmlRpcKit.LOOPBACK.getClientFactory()
+                   .createClient( new URL( "http://localhost:2112/" ) )
+                    instanceof InternalClient );
+    }
+
+    public void testDeferredActor() throws Exception {
+        final DeferredResult deferred = new DeferredResult();
+        ActorHandler handler =
+                new ActorHandler( "test.", TestActor.class, new TestActor() {
+            public String sum( String a, String b ) {
+                return a + b;
+            }
+            public String neg( String a ) {
+                return "-" + a;
+            }
+        }, DeferringTestActor.class, new DeferringTestActor() {
+            public Object sum( String a, String b ) {
+                return deferred;
+            }
+        } ) {
+            protected Object invokeMethod( Method method, Object obj,
+                                           Object[] args )
+                    throws IllegalAccessException,
+                           InvocationTargetException {
+                return method.invoke( obj, args );
+            }
+        };
+        List params = Arrays.asList( new Object[] { "1", "2" } );
+        Object req = new DeferrableRequest() {};
+        assertEquals( "12", handler.handleCall( "test.sum", params, null ) );
+        assertEquals( "12",
+                      handler.handleCall( "test.sum", params,
+                          new HttpServer.Request( "POST", "/", new HashMap(),
+                                                  null, new byte[ 0 ] ) ) );
+        assertSame( deferred, handler.handleCall( "test.sum", params, req ) );
+        assertEquals( "-1",
+                      handler.handleCall( "test.neg",
+                                          Collections.singletonList( "1" ),
+                                          req ) );
+        try {
+            handler.handleCall( "test.sum", Collections.singletonList( "1" ),
+                                req );
+            fail();
+        }
+        catch ( IllegalArgumentException e ) {
+        }
+    }
+
+    public interface TestActor {
+        String sum( String a, String b );
+        String neg( String a );
+    }
+
+    public interface DeferringTestActor {
+        Object sum( String a, String b );
+    }
+
+    private static Map createCallMap( String methodName, Object param ) {
+        Map callMap = new HashMap();
+        callMap.put( "methodName", methodName );
+        callMap.put( "params", Collections.singletonList( param ) );
+        return callMap;
+    }
+
+    public void testDecoders() throws Exception {
+        String v1 = "<value><struct>"
+                  + "<member><name>a</name><value>x &amp; y</value></member>"
+                  + "<member><value><array><data>"
+                  + "<value><int>23</int></value>"
+                  + "<value><boolean>1</boolean></value>"
+                  + "<value><double>2.5</double></value>"
+                  + "<value><string><![CDATA[<cdata>]]></string></value>"
+                  + "<x>  <!-- c --> t </x>"
+                  + "</data></array></value><name>b</name></member>"
+                  + "</struct></value>";
+        String[] values = {
+            v1,
+            "<value> </value>",
+            "<value>\n  <array><data/></array>\n</value>",
+            "<value><base64>AA==</base64></value>",
+            "<value><foo/></value>",
+            "<value><string>a</string><string>b</string></value>",
+            "<value><int> 1</int></value>",
+            "<value><boolean>true</boolean></value>",
+            "<value><string>a<b/></string></value>",
+            "<value><struct><member><name>a</name></member></struct></value>",
+            "<value><struct><member><value>1</value></member></struct>"
+          + "</value>",
+            "<value><struct><x/></struct></value>",
+            "<value><array><x/></array></value>",
+            "<value><array></array></value>",
+        };
+        for ( int i = 0; i < values.length; i++ ) {
+            String v = values[ i ];
+            compareDecoders( "<methodCall><methodName>m</methodName>"
+                           + "<params><param>" + v + "</param></params>"
+                           + "</methodCall>", true );
+            compareDecoders( "<methodResponse><params><param>" + v
+                           + "</param></params></methodResponse>", false );
+            compareDecoders( "<methodResponse><fault>" + v
+                           + "</fault></methodResponse>", false );
+        }
+        String[] calls = {
+            "<methodCall><methodName>m</methodName></methodCall>",
+            "<methodCall><params/></methodCall>",
+            "<methodCall><methodName>m</methodName><params><x/></params>"
+          + "</methodCall>",
+            "<methodCall><methodName>m</methodName><params><param/>"
+          + "</params></methodCall>",
+            "<methodCall><methodName>m</methodName><params><param>"
+          + "<x/></param></params></methodCall>",
+            "<methodResponse/>",
+            "<methodCall><methodName>m</methodName>",
+        };
+        for ( int i = 0; i < calls.length; i++ ) {
+            compareDecoders( calls[ i ], true );
+        }
+        String[] responses = {
+            "<methodResponse/>",
+            "<methodResponse><params/></methodResponse>",
+            "<methodResponse><x/></methodResponse>",
+            "<methodResponse><fault><value>x</value></fault>"
+          + "</methodResponse>",
+            "<methodResponse><fault><value><struct>"
+          + "<member><name>faultCode</name><value><int>9</int></value>"
+          + "</member>"
+          + "<member><name>faultString</name><value>oops</value></member>"
+          + "</struct></value></fault></methodResponse>",
+            "<methodCall/>",
+        };
+        for ( int i = 0; i < responses.length; i++ ) {
+            compareDecoders( responses[ i ], false );
+        }
+        XmlRpcCall call =
+            XmlRpcDecoder.STREAM
+           .decodeCall( toStream( "<methodCall><methodName>m</methodName>"
+                                + "<params><param>" + v1 + "</param></params>"
+                                + "</methodCall>" ) );
+        Map map = (Map) call.getParams().get( 0 );
+        assertEquals( "x & y", map.get( "a" ) );
+        List list = (List) map.get( "b" );
+        assertEquals( new Integer( 23 ), list.get( 0 ) );
+        assertEquals( Boolean.TRUE, list.get( 1 ) );
+        assertEquals( new Double( 2.5 ), list.get( 2 ) );
+        assertEquals( "<cdata>", list.get( 3 ) );
+        assertEquals( "   t ", list.get( 4 ) );
+    }
+
+    public void testSerialization() throws Exception {
+        Map map = new LinkedHashMap();
+        map.put( "plain", "abc" );
+        map.put( "esc", "a<b>&c" );
+        map.put( "utf", "caf\u00e9 \u20ac \ud834\udd1e" );
+        map.put( "list", Arrays.asList( new Object[] { "", "x y" } ) );
+        StringBuffer sbuf = new StringBuffer();
+        for ( int i = 0; i < 10000; i++ ) {
+            sbuf.append( (char) ( 'a' + i % 26 ) );
+        }
+        map.put( "long", sbuf.toString() );
+        byte[] buf = InternalServer.getResultBytes( map );
+        String xml = new String( buf, "UTF-8" );
+        assertTrue( xml.indexOf( '\n' ) < 0 );
+        assertTrue( xml.indexOf( "a&lt;b&gt;&amp;c" ) > 0 );
+        Object result =
+            XmlRpcDecoder.STREAM.decodeResponse( toStream( xml ) );
+        assertEquals( map, result );
+        assertEquals( map,
+                      XmlRpcDecoder.DOM.decodeResponse( toStream( xml ) ) );
+        assertTrue( Arrays.equals( buf,
+                                   InternalServer.getResultBytes( map ) ) );
+    }
+
+    private static void compareDecoders( String xml, boolean isCall ) {
+        Object domResult = decode( XmlRpcDecoder.DOM, xml, isCall );
+        Object streamResult = decode( XmlRpcDecoder.STREAM, xml, isCall );
+        if ( domResult instanceof Throwable ) {
+            assertTrue( xml, streamResult instanceof Throwable );
+            Throwable domErr = (Throwable) domResult;
+            Throwable streamErr = (Throwable) streamResult;
+            if ( ! ( domErr instanceof org.xml.sax.SAXException ) ) {
+                assertEquals( xml, domErr.getClass(), streamErr.getClass() );
+                assertEquals( xml, domErr.getMessage(),
+                              streamErr.getMessage() );
+            }
+        }
+        else {
+            assertEquals( xml, domResult, streamResult );
+        }
+    }
+
+    private static Object decode( XmlRpcDecoder decoder, String xml,
+                                  boolean isCall ) {
+        try {
+            if ( isCall ) {
+                XmlRpcCall call = decoder.decodeCall( toStream( xml ) );
+                return Arrays.asList( new Object[] { call.getMethodName(),
+                                                     call.getParams() } );
+            }
+            else {
+                return decoder.decodeResponse( toStream( xml ) );
+            }
+        }
+        catch ( Exception e ) {
+            return e;
+        }
+    }
+
+    private static ByteArrayInputStream toStream( String xml )
+            throws IOException {
+        return new ByteArrayInputStream( xml.getBytes( "UTF-8" ) );
+    }
+
+    private static class TestCallback implements SampXmlRpcCallback {
+        private boolean done_;
+        Object result_;
+        IOException error_;
+        public synchronized void completed( Object result ) {
+            assertTrue( ! done_ );
+            result_ = result;
+            done_ = true;
+            notifyAll();
+        }
+        public synchronized void failed( IOException error ) {
+            assertTrue( ! done_ );
+            error_ = error;
+            done_ = true;
+            notifyAll();
+        }
+        synchronized void await() throws InterruptedException {
+            while ( ! done_ ) {
+                wait();
+            }
+        }
+    }
+
+    private static Object echo( SampXmlRpcClient client, Object value )
+            throws IOException {
+        return client.callAndWait( "test.echo",
+                                   Collections.singletonList( value ) );
+    }
 }
@@ -0,0 +1,155 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import junit.framework.TestCase;
+
+public class HttpConnectionPoolTest extends TestCase {
+
+    private static final byte[] BODY = "<x/>".getBytes();
+
+    public void testNoResend() throws Exception {
+        ServerSocket ss = new ServerSocket( 0 );
+        URL url = new URL( "http://localhost:" + ss.getLocalPort() + "/" );
+        HttpConnectionPool pool = new HttpConnectionPool( 2, 10000, 10000 );
+
+        // Server replies to the first request, then drops the connection
+        // after reading the second; the second must not be resent.
+        Script script = new Script( ss, new boolean[] { true, false } );
+        script.start();
+        HttpConnectionPool.Exchange ex1 =
+            pool.post( url, new HashMap(), BODY, 10000 );
+        assertEquals( 200, ex1.readResponse() );
+        ex1.close();
+        HttpConnectionPool.Exchange ex2 =
+            pool.post( url, new HashMap(), BODY, 10000 );
+        try {
+            ex2.readResponse();
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+        ex2.close();
+        script.join( 5000 );
+        assertEquals( 2, script.nRequest_ );
+
+        // Server closes an idle connection; it is discarded before reuse
+        // and the request goes out on a new connection.
+        script = new Script( ss, new boolean[] { true } );
+        script.start();
+        HttpConnectionPool.Exchange ex3 =
+            pool.post( url, new HashMap(), BODY, 10000 );
+        assertEquals( 200, ex3.readResponse() );
+        ex3.close();
+        script.join( 5000 );
+        Thread.sleep( 100 );
+        script = new Script( ss, new boolean[] { true } );
+        script.start();
+        HttpConnectionPool.Exchange ex4 =
+            pool.post( url, new HashMap(), BODY, 10000 );
+        assertEquals( 200, ex4.readResponse() );
+        ex4.close();
+        script.join( 5000 );
+        assertEquals( 1, script.nRequest_ );
+        ss.close();
+    }
+
+    public void testReadTimeout() throws Exception {
+        ServerSocket ss = new ServerSocket( 0 );
+        URL url = new URL( "http://localhost:" + ss.getLocalPort() + "/" );
+        HttpConnectionPool pool = new HttpConnectionPool( 2, 10000, 10000 );
+
+        // Server reads the request but never replies.
+        Script script = new Script( ss, new boolean[] { false } );
+        script.start();
+        HttpConnectionPool.Exchange ex =
+            pool.post( url, new HashMap(), BODY, 200 );
+        long start = System.currentTimeMillis();
+        try {
+            ex.readResponse();
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+        ex.close();
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        ss.close();
+    }
+
+    public void testProxied() throws Exception {
+        URL local = new URL( "http://127.0.0.1:2112/xmlrpc" );
+        URL remote = new URL( "http://example.com:2112/xmlrpc" );
+        String host = System.getProperty( "http.proxyHost" );
+        String nonHosts = System.getProperty( "http.nonProxyHosts" );
+        try {
+            System.setProperty( "http.proxyHost", "proxy.example.com" );
+            assertFalse( HttpConnectionPool.isProxied( local ) );
+            assertTrue( HttpConnectionPool.isProxied( remote ) );
+            System.setProperty( "http.nonProxyHosts", "*.com" );
+            assertFalse( HttpConnectionPool.isProxied( remote ) );
+            assertTrue( HttpConnectionPool.isProxied( local ) );
+        }
+        finally {
+            restoreProperty( "http.proxyHost", host );
+            restoreProperty( "http.nonProxyHosts", nonHosts );
+        }
+    }
+
+    private static void restoreProperty( String name, String value ) {
+        if ( value == null ) {
+            System.getProperties().remove( name );
+        }
+        else {
+            System.setProperty( name, value );
+        }
+    }
+
+    /**
+     * Accepts one connection and reads requests from it, replying or not
+     * according to a script, then closes it.
+     */
+    private static class Script extends Thread {
+        private final ServerSocket ss_;
+        private final boolean[] replies_;
+        volatile int nRequest_;
+        Script( ServerSocket ss, boolean[] replies ) {
+            ss_ = ss;
+            replies_ = replies;
+            setDaemon( true );
+        }
+        public void run() {
+            try {
+                Socket sock = ss_.accept();
+                InputStream in = sock.getInputStream();
+                OutputStream out = sock.getOutputStream();
+                for ( int i = 0; i < replies_.length; i++ ) {
+                    readRequest( in );
+                    nRequest_++;
+                    if ( replies_[ i ] ) {
+                        out.write( ( "HTTP/1.1 200 OK\r\n"
+                                   + "Content-Length: 0\r\n\r\n" )
+                                  .getBytes( "ISO-8859-1" ) );
+                        out.flush();
+                    }
+                }
+                sock.close();
+            }
+            catch ( IOException e ) {
+            }
+        }
+        private static void readRequest( InputStream in ) throws IOException {
+            int nl = 0;
+            for ( int c; nl < 2 && ( c = in.read() ) >= 0; ) {
+                nl = c == '\n' ? nl + 1 : ( c == '\r' ? nl : 0 );
+            }
+            for ( int i = 0; i < BODY.length; i++ ) {
+                in.read();
+            }
+        }
+    }
+}
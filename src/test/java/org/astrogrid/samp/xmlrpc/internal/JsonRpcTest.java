@@ -0,0 +1,83 @@
+package org.astrogrid.samp.xmlrpc.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class JsonRpcTest extends TestCase {
+
+    public void testCall() throws IOException {
+        Map map = new HashMap();
+        map.put( "k", Arrays.asList( new String[] { "a\"b", "\u00e9\n" } ) );
+        List params = new ArrayList();
+        params.add( "x" );
+        params.add( map );
+        JsonRpc.Call call =
+            JsonRpc.decodeCall( toStream( JsonRpc.encodeCall( "m.n",
+                                                              params ) ) );
+        assertEquals( "m.n", call.getMethodName() );
+        assertEquals( params, call.getParams() );
+        assertEquals( "\"1\"", call.getId() );
+
+        call = JsonRpc.decodeCall( toStream( " {\"jsonrpc\": \"2.0\", "
+                                           + "\"method\": \"m\", "
+                                           + "\"params\": [\"\\u0041\"], "
+                                           + "\"id\": 23} " ) );
+        assertEquals( Arrays.asList( new String[] { "A" } ),
+                      call.getParams() );
+        assertEquals( "23", call.getId() );
+        assertNull( JsonRpc.decodeCall( toStream( "{\"method\":\"m\"}" ) )
+                   .getId() );
+
+        String[] bad = {
+            "{\"method\":\"m\",\"params\":[1]}",
+            "{\"method\":\"m\",\"id\":[]}",
+            "{\"method\":\"m\"} x",
+            "{\"method\":\"m\"",
+            "{\"method\":\"m\",\"params\":[\"a]}",
+            "[]",
+        };
+        for ( int i = 0; i < bad.length; i++ ) {
+            try {
+                JsonRpc.decodeCall( toStream( bad[ i ] ) );
+                fail( bad[ i ] );
+            }
+            catch ( XmlRpcFormatException e ) {
+            }
+        }
+    }
+
+    public void testResponse() throws IOException {
+        byte[] resp = JsonRpc.encodeResult( "ok", "23" );
+        assertEquals( "{\"jsonrpc\":\"2.0\",\"result\":\"ok\",\"id\":23}",
+                      new String( resp, "UTF-8" ) );
+        assertEquals( "ok", JsonRpc.decodeResponse( toStream( resp ) ) );
+
+        byte[] fault = JsonRpc.encodeFault( new IOException( "oops" ), null );
+        assertEquals( "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":1,"
+                    + "\"message\":\"java.io.IOException: oops\"},"
+                    + "\"id\":null}",
+                      new String( fault, "UTF-8" ) );
+        try {
+            JsonRpc.decodeResponse( toStream( fault ) );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertTrue( e.getMessage().indexOf( "oops" ) > 0 );
+        }
+    }
+
+    private static InputStream toStream( byte[] buf ) {
+        return new ByteArrayInputStream( buf );
+    }
+
+    private static InputStream toStream( String txt ) throws IOException {
+        return toStream( txt.getBytes( "UTF-8" ) );
+    }
+}